@@ -2,18 +2,28 @@ package org.aalku.joatse.cloud.service;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.CRC32;
 
+import org.aalku.joatse.cloud.service.BandwithLimitManager.DirectionLimiters;
+import org.aalku.joatse.cloud.tools.io.BandwithCalculator.TwoWayBandwithCalculator;
+import org.aalku.joatse.cloud.tools.io.BandwithLimiter;
+import org.aalku.joatse.cloud.tools.io.BandwithLimiter.Pause;
+import org.aalku.joatse.cloud.tools.io.ByteBufferPool;
+import org.aalku.joatse.cloud.tools.io.TrafficClass;
 import org.slf4j.Logger;
 import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.WebSocketMessage;
@@ -21,32 +31,123 @@ import org.springframework.web.socket.WebSocketMessage;
 public abstract class AbstractToSocketConnection {
 	
 	protected static final byte PROTOCOL_VERSION = 1;
+	/** First version with per-socket flow control ({@link #MESSAGE_SOCKET_WINDOW}) */
+	public static final byte PROTOCOL_VERSION_FLOW_CONTROL = 2;
+	/** First version with {@link #MESSAGE_BATCH} */
+	public static final byte PROTOCOL_VERSION_BATCH = 3;
+	/** Highest version we speak. Each session uses the highest one both sides support. */
+	public static final byte PROTOCOL_VERSION_MAX = PROTOCOL_VERSION_BATCH;
 	
 	protected static final byte MESSAGE_TYPE_NEW_SOCKET = 1;
 	protected static final byte MESSAGE_SOCKET_DATA = 2;
 	protected static final byte MESSAGE_SOCKET_CLOSE = 3;
 	protected static final byte MESSAGE_PUBLIC_KEY = 4;
 	// MESSAGE_FILE_READ_REQUEST (5) is deprecated - use MESSAGE_TYPE_NEW_SOCKET with additionalPayload instead
+	/**
+	 * Window update (since v2). Header + credit (int): the sender can receive that
+	 * many more bytes of data of that socket.
+	 */
+	protected static final byte MESSAGE_SOCKET_WINDOW = 6;
+	/**
+	 * Several messages in one (since v3). Version, type, then for each message its
+	 * length (unsigned short) and the message. It's not about a socket, so it's
+	 * handled by the session.
+	 */
+	protected static final byte MESSAGE_BATCH = 7;
 	
-	public static final Set<Byte> messageTypesHandled = new HashSet<>(Arrays.asList(MESSAGE_TYPE_NEW_SOCKET, MESSAGE_SOCKET_DATA, MESSAGE_SOCKET_CLOSE));
+	public static final Set<Byte> messageTypesHandled = new HashSet<>(Arrays.asList(MESSAGE_TYPE_NEW_SOCKET, MESSAGE_SOCKET_DATA, MESSAGE_SOCKET_CLOSE, MESSAGE_SOCKET_WINDOW));
 	
 	protected static final int MAX_HEADER_SIZE_BYTES = 50;
 	protected static final int DATA_BUFFER_SIZE = 1024 * 63;
+	/** Data message header: version, type, socketId and crc. Then the data. */
+	protected static final int DATA_FRAME_HEADER_SIZE = 14;
+	
+	/**
+	 * Bytes of data the target can send us per socket before we grant more. We
+	 * only grant more as we write it to the client.
+	 */
+	public static final int DEFAULT_SOCKET_WINDOW = 1024 * 256;
+	
+	/**
+	 * Without flow control the target can send as much as it wants, so when this
+	 * much is pending to be written to the client we stop reading the WS.
+	 */
+	private static final int MAX_PENDING_TO_CLIENT_WITHOUT_FLOW_CONTROL = DEFAULT_SOCKET_WINDOW;
+	
+	/** Queued after the data when the target closes the socket */
+	private static final ByteBuffer CLOSE_MARKER = ByteBuffer.allocate(0);
 
 	/** Socket instance random id */
 	public final long socketId = new Random().nextLong() & Long.MAX_VALUE;
 	
-	private final Queue<Runnable> sendQueue = new LinkedBlockingDeque<>();
+	private final Queue<RawSend> sendQueue = new LinkedBlockingDeque<>();
 	private final AtomicBoolean sending = new AtomicBoolean(false);
+	/** A send failed, so nothing else will be sent. Guarded by sendLock. */
+	private boolean sendFailed = false;
 	protected final ReentrantLock sendLock = new ReentrantLock(true);
 	
 	protected final JWSSession jSession;
 	
+	protected final ByteBufferPool bufferPool;
+	
 	protected final long targetId;
+	/** QoS of everything this socket sends and receives */
+	private final TrafficClass trafficClass;
+	/** Of the tunnel item, where we count our data */
+	private final TwoWayBandwithCalculator itemTraffic;
+	/** Of the tunnel item, shared with its other sockets */
+	private final BandwithLimiter uploadLimiter;
+	private final BandwithLimiter downloadLimiter;
+	/** What the upload limiter asked for the last data we sent */
+	private volatile Pause uploadPause = Pause.ZERO;
 	private final CRC32 dataCRCT2W = new CRC32();
 	private final CRC32 dataCRCW2T = new CRC32();	
 	private final CompletableFuture<Boolean> closeStatus = new CompletableFuture<>();
+	/** Only the first close does something */
+	private final AtomicBoolean closed = new AtomicBoolean(false);
 	protected final CompletableFuture<Void> connectionToFinalTargetResult = new CompletableFuture<Void>();
+	
+	/** Version of the session when this socket was created */
+	private final byte protocolVersion;
+	private final boolean flowControl;
+	/** Bytes of data we can still send to the target. Guarded by sendLock. */
+	private long sendCredit;
+	/** Data waiting for credit, in order. Guarded by sendLock. */
+	private final Queue<PendingData> waitingForCredit = new ArrayDeque<>();
+	/** Someone waiting for any credit. Guarded by sendLock. */
+	private CompletableFuture<Long> creditWaiter = null;
+	/** Bytes of data the target can still send us */
+	private final AtomicLong receiveWindow = new AtomicLong(DEFAULT_SOCKET_WINDOW);
+	/** Bytes written to the client and not granted back yet. Guarded by sendLock. */
+	private long receivedNotGranted = 0;
+	
+	/** Data from the target to write to the client, in order. */
+	private final Queue<ToClient> toClientQueue = new ConcurrentLinkedQueue<>();
+	/** Only who sets it to true can write to the client */
+	private final AtomicBoolean writingToClient = new AtomicBoolean(false);
+	private final AtomicLong pendingToClientBytes = new AtomicLong(0);
+	/** Completed when pendingToClientBytes goes under the limit. Guarded by toClientQueue. */
+	private CompletableFuture<Void> pendingToClientUnderLimit = null;
+	
+	private static class ToClient {
+		private final ByteBuffer buffer;
+		/** Bandwith limit pause to wait before writing it, or null */
+		private final Pause pause;
+		private ToClient(ByteBuffer buffer, Pause pause) {
+			this.buffer = buffer;
+			this.pause = pause;
+		}
+	}
+	
+	private static class PendingData {
+		private final ByteBuffer frame;
+		private final int len;
+		private final CompletableFuture<Void> future = new CompletableFuture<>();
+		private PendingData(ByteBuffer frame, int len) {
+			this.frame = frame;
+			this.len = len;
+		}
+	}
 
 	/**
 	 * Protected constructor that initializes and registers the connection.
@@ -55,10 +156,20 @@ public abstract class AbstractToSocketConnection {
 	 * @param targetId The target ID for this connection
 	 * @param jSession The WebSocket session
 	 * @param additionalPayload Optional payload to send with NEW_SOCKET (e.g., file offset/length for file tunnels)
+	 * @param trafficClass QoS of the connection
 	 */
-	protected AbstractToSocketConnection(long targetId, JWSSession jSession, ByteBuffer additionalPayload) {
+	protected AbstractToSocketConnection(long targetId, JWSSession jSession, ByteBuffer additionalPayload, TrafficClass trafficClass) {
 		this.jSession = jSession;
+		this.bufferPool = jSession.getBufferPool();
 		this.targetId = targetId;
+		this.trafficClass = trafficClass;
+		this.itemTraffic = jSession.getItemTrafficCalculator(targetId);
+		DirectionLimiters itemLimiters = jSession.getItemLimiters(targetId);
+		this.uploadLimiter = itemLimiters.getUpload();
+		this.downloadLimiter = itemLimiters.getDownload();
+		this.protocolVersion = jSession.getProtocolVersion();
+		this.flowControl = protocolVersion >= PROTOCOL_VERSION_FLOW_CONTROL;
+		this.sendCredit = jSession.getTargetSocketWindow();
 		getCloseStatus().whenComplete((r,e)->jSession.remove(this));
 		
 		// Register with session BEFORE sending NEW_SOCKET so responses can be routed
@@ -111,12 +222,24 @@ public abstract class AbstractToSocketConnection {
 		}
 	}
 
+	/**
+	 * Buffer from the pool. Give it to sendRawMessageToTarget or release it.
+	 */
 	protected ByteBuffer allocateHeaderAndDataBuffer() {
-		return ByteBuffer.allocate(MAX_HEADER_SIZE_BYTES + DATA_BUFFER_SIZE);
+		return bufferPool.acquire(MAX_HEADER_SIZE_BYTES + DATA_BUFFER_SIZE);
 	}
 
-	protected ByteBuffer allocateDataBuffer() {
-		return ByteBuffer.allocate(DATA_BUFFER_SIZE);
+	/**
+	 * Buffer from the pool to put data directly in place of a data message. Its
+	 * position is after the header and its limit is after DATA_BUFFER_SIZE bytes
+	 * of data. Flip it when filled and give it to sendDataFrameToTarget, or
+	 * release it.
+	 */
+	protected ByteBuffer allocateDataFrame() {
+		ByteBuffer frame = bufferPool.acquire(DATA_FRAME_HEADER_SIZE + DATA_BUFFER_SIZE);
+		frame.limit(DATA_FRAME_HEADER_SIZE + DATA_BUFFER_SIZE);
+		frame.position(DATA_FRAME_HEADER_SIZE);
+		return frame;
 	}
 	
 	protected abstract void copyFromClientToTargetForever();
@@ -126,12 +249,35 @@ public abstract class AbstractToSocketConnection {
 	protected abstract Logger getLog();
 	
 	public final void close(Throwable e, Boolean remote) {
+		if (!closed.compareAndSet(false, true)) {
+			return; // Frames in flight fail and close again
+		}
 		sendLock.lock();
 		try {
 			sendRawMessageToTarget(newTcpSocketCloseMessage()); // Tell WS
+			IOException closed = new IOException("Socket closed");
+			PendingData pending;
+			while ((pending = waitingForCredit.poll()) != null) {
+				bufferPool.release(pending.frame);
+				pending.future.completeExceptionally(closed);
+			}
+			if (creditWaiter != null) {
+				creditWaiter.completeExceptionally(closed);
+				creditWaiter = null;
+			}
 		} finally {
 			sendLock.unlock();
 		}
+		// Nobody will write what's pending to the client
+		clearToClientQueue();
+		CompletableFuture<Void> underLimit;
+		synchronized (toClientQueue) {
+			underLimit = pendingToClientUnderLimit;
+			pendingToClientUnderLimit = null;
+		}
+		if (underLimit != null) {
+			underLimit.complete(null);
+		}
 		closeInternal(e, remote);
 		signalCloseStatus(e, remote);
 
@@ -140,12 +286,18 @@ public abstract class AbstractToSocketConnection {
 	protected abstract Void errorConnectingToFinalTarget(Throwable e);
 	
 	/**
+	 * Checks the data and queues it to be written to the client. It does not wait
+	 * for the write, the queue is written in order in the background.
 	 * 
-	 * @param buffer with position pointing to data
+	 * @param buffer with position pointing to data. It's copied as the caller can
+	 *               reuse it.
 	 * @param crc32 of packet
-	 * @throws IOException 
+	 * @param pause  to wait before writing it, because of the bandwith limit
+	 * @return Future to wait for before reading more from the WS. It's already
+	 *         completed unless we have no flow control and too much pending data.
+	 * @throws IOException
 	 */
-	protected void sendFromTargetToClient(ByteBuffer buffer, long crc32Field) throws IOException {
+	protected CompletableFuture<Void> sendFromTargetToClient(ByteBuffer buffer, long crc32Field, Pause pause) throws IOException {
 		buffer.mark();
 		dataCRCW2T.update(buffer);
 		if (dataCRCW2T.getValue() != crc32Field) {
@@ -153,47 +305,245 @@ public abstract class AbstractToSocketConnection {
 		}
 		// log.info("crc is OK: {}", Long.toHexString(crc32Field));
 		buffer.reset();
+		int len = buffer.remaining();
+		itemTraffic.reportPacketIn(len);
+		if (flowControl && receiveWindow.addAndGet(-len) < 0) {
+			throw new IOException("Target sent more data than the socket window allowed");
+		}
+		ByteBuffer copy = bufferPool.acquire(len);
+		copy.put(buffer);
+		copy.flip();
+		long pending = pendingToClientBytes.addAndGet(len);
+		toClientQueue.add(new ToClient(copy, pause));
+		writeToClientQueue();
+		if (!flowControl && pending > MAX_PENDING_TO_CLIENT_WITHOUT_FLOW_CONTROL) {
+			synchronized (toClientQueue) {
+				if (pendingToClientBytes.get() > MAX_PENDING_TO_CLIENT_WITHOUT_FLOW_CONTROL) {
+					if (pendingToClientUnderLimit == null) {
+						pendingToClientUnderLimit = new CompletableFuture<>();
+					}
+					return pendingToClientUnderLimit;
+				}
+			}
+		}
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * Writes the queue to the client, one buffer after the other. Only one thread
+	 * at a time does it. A buffer that has to wait for the bandwith limit is
+	 * written later from the scheduler, no thread waits for it.
+	 */
+	private void writeToClientQueue() {
+		while (writingToClient.compareAndSet(false, true)) {
+			ToClient next;
+			while ((next = toClientQueue.peek()) != null) {
+				long wait = next.pause == null ? 0L : next.pause.getRemainingNanos();
+				if (wait > 0) {
+					jSession.schedule(() -> {
+						writingToClient.set(false);
+						writeToClientQueue();
+					}, wait);
+					return;
+				}
+				if (!toClientQueue.remove(next)) {
+					continue; // Cleared on close
+				}
+				ByteBuffer buffer = next.buffer;
+				if (buffer == CLOSE_MARKER) {
+					targetClosedSocket();
+					continue;
+				}
+				int len = buffer.remaining();
+				CompletableFuture<Integer> write;
+				try {
+					write = writeToClient(buffer);
+				} catch (Exception e) {
+					write = CompletableFuture.failedFuture(e);
+				}
+				ByteBuffer written = buffer;
+				if (!write.isDone()) {
+					// Continue when done, maybe in other thread
+					write.whenComplete((r, e) -> {
+						bufferPool.release(written);
+						writtenToClient(len, e);
+						writingToClient.set(false);
+						writeToClientQueue();
+					});
+					return;
+				}
+				bufferPool.release(written);
+				writtenToClient(len, write.handle((r, e) -> e).join());
+			}
+			writingToClient.set(false);
+			if (toClientQueue.isEmpty()) {
+				break; // Else someone might have added something and left it to us
+			}
+		}
+	}
+
+	private void clearToClientQueue() {
+		ToClient next;
+		while ((next = toClientQueue.poll()) != null) {
+			bufferPool.release(next.buffer);
+		}
+	}
+
+	private void writtenToClient(int len, Throwable e) {
+		if (e != null) {
+			getLog().warn("Error sending data to client: " + e, e);
+			clearToClientQueue();
+			pendingToClientBytes.set(0);
+			close(e, false);
+		} else {
+			pendingToClientBytes.addAndGet(-len);
+			grantCredit(len);
+		}
+		CompletableFuture<Void> underLimit = null;
+		synchronized (toClientQueue) {
+			if (pendingToClientUnderLimit != null && pendingToClientBytes.get() <= MAX_PENDING_TO_CLIENT_WITHOUT_FLOW_CONTROL) {
+				underLimit = pendingToClientUnderLimit;
+				pendingToClientUnderLimit = null;
+			}
+		}
+		if (underLimit != null) {
+			underLimit.complete(null);
+		}
+	}
+	
+	/**
+	 * Data was written to the client so the target can send more. We accumulate it
+	 * so we don't send a window message for every data message.
+	 */
+	private void grantCredit(int len) {
+		if (!flowControl) {
+			return;
+		}
+		sendLock.lock();
+		try {
+			receivedNotGranted += len;
+			if (receivedNotGranted >= DEFAULT_SOCKET_WINDOW / 4) {
+				int credit = (int) receivedNotGranted;
+				receivedNotGranted = 0;
+				receiveWindow.addAndGet(credit);
+				sendRawMessageToTarget(newSocketWindowMessage(credit));
+			}
+		} finally {
+			sendLock.unlock();
+		}
+	}
+
+	/**
+	 * The target granted us more credit. Send what was waiting for it.
+	 */
+	private void creditReceived(int credit) {
+		if (!flowControl || credit <= 0) {
+			getLog().warn("Unexpected window message. credit={}", credit);
+			return;
+		}
+		CompletableFuture<Long> waiter;
+		long available;
+		sendLock.lock();
 		try {
-			writeToClient(buffer).get(); // This is blocking to ensure write order. TODO prepare an async version
-		} catch (InterruptedException | ExecutionException e) {
-			throw new IOException("Error writting to client: " + e, e);
+			sendCredit += credit;
+			while (!waitingForCredit.isEmpty() && waitingForCredit.peek().len <= sendCredit) {
+				PendingData pending = waitingForCredit.remove();
+				sendCredit -= pending.len;
+				sendDataFrameNow(pending.frame).whenComplete((r, e) -> {
+					if (e != null) {
+						pending.future.completeExceptionally(e);
+					} else {
+						pending.future.complete(r);
+					}
+				});
+			}
+			available = sendCredit;
+			waiter = creditWaiter;
+			if (waiter != null && waitingForCredit.isEmpty() && available > 0) {
+				creditWaiter = null;
+			} else {
+				waiter = null;
+			}
+		} finally {
+			sendLock.unlock();
+		}
+		if (waiter != null) {
+			waiter.complete(available);
+		}
+	}
+
+	/**
+	 * Completes with the bytes of data we can send now, when it's more than zero.
+	 * Long.MAX_VALUE if this session has no flow control. Only one caller at a time
+	 * can wait.
+	 */
+	protected CompletableFuture<Long> awaitSendCredit() {
+		if (!flowControl) {
+			return CompletableFuture.completedFuture(Long.MAX_VALUE);
+		}
+		sendLock.lock();
+		try {
+			if (waitingForCredit.isEmpty() && sendCredit > 0) {
+				return CompletableFuture.completedFuture(sendCredit);
+			}
+			if (creditWaiter == null) {
+				creditWaiter = new CompletableFuture<>();
+			}
+			return creditWaiter;
+		} finally {
+			sendLock.unlock();
 		}
 	}
 	
 	protected ByteBuffer newTcpSocketCloseMessage() {
-		ByteBuffer buffer = ByteBuffer.allocate(11);
-		buffer.clear();
-		buffer.put(PROTOCOL_VERSION);
-		buffer.put(MESSAGE_SOCKET_CLOSE);
-		buffer.putLong(socketId);
+		ByteBuffer buffer = bufferPool.acquire(11);
+		writeSocketHeader(buffer, MESSAGE_SOCKET_CLOSE);
+		buffer.flip();
+		return buffer;
+	}
+	
+	private ByteBuffer newSocketWindowMessage(int credit) {
+		ByteBuffer buffer = bufferPool.acquire(14);
+		writeSocketHeader(buffer, MESSAGE_SOCKET_WINDOW);
+		buffer.putInt(credit);
 		buffer.flip();
 		return buffer;
 	}
 	
 	/**
+	 * Handles a message from the target. It must be called in the order messages
+	 * are received but it does not block writing to the client.
 	 * 
 	 * @param buffer First thing at buffer pos is crc. The header before should be ignored and the rest is payload
 	 * @param type
-	 * @return
+	 * @param pause  to wait before writing data to the client, because of the
+	 *               bandwith limit
+	 * @return Future to wait for before handling more messages of the session.
+	 *         Usually it's already completed.
 	 */
-	public Runnable receivedMessageFromTarget(ByteBuffer buffer, byte type) {
+	public CompletableFuture<Void> receivedMessageFromTarget(ByteBuffer buffer, byte type, Pause pause) {
 		if (type == MESSAGE_SOCKET_DATA) {
 			try {
 				long crc32Field = buffer.getInt() & 0xFFFFFFFFL;
-				sendFromTargetToClient(buffer, crc32Field);
-				return null;
+				return sendFromTargetToClient(buffer, crc32Field, pause);
 			} catch (Exception e) {
 				getLog().warn("Error sending data to client: " + e, e);
-				return ()->close(); // Call it without lock
+				close();
 			}
 		} else if (type == MESSAGE_TYPE_NEW_SOCKET) {
 			int res = buffer.get();
-			return ()->notifyFinalTargetConnected(res == 1); // Notify without the lock
+			notifyFinalTargetConnected(res == 1);
 		} else if (type == MESSAGE_SOCKET_CLOSE) {
-			return ()->targetClosedSocket(); // Can be executed with lock I guess
+			// After the data we still have to write
+			toClientQueue.add(new ToClient(CLOSE_MARKER, null));
+			writeToClientQueue();
+		} else if (type == MESSAGE_SOCKET_WINDOW) {
+			int credit = buffer.getInt();
+			creditReceived(credit);
 		} else {
 			throw new RuntimeException("Unsupported message type: " + type);
 		}
+		return CompletableFuture.completedFuture(null);
 	}
 
 	public void notifyFinalTargetConnected(Boolean connected) {
@@ -212,9 +562,16 @@ public abstract class AbstractToSocketConnection {
 		close(null, null);
 	}
 
+	/**
+	 * close(e, remote) was called
+	 */
+	protected boolean isClosing() {
+		return closed.get();
+	}
+
 	protected int writeSocketHeader(ByteBuffer buffer, byte type) {
 		buffer.clear();
-		buffer.put(PROTOCOL_VERSION);
+		buffer.put(protocolVersion);
 		buffer.put(type);
 		buffer.putLong(socketId);
 		return buffer.position();
@@ -227,72 +584,161 @@ public abstract class AbstractToSocketConnection {
 	 */
 	protected abstract CompletableFuture<Integer> writeToClient(ByteBuffer buffer);
 
+	/**
+	 * Sends data to the target. It's copied to a data message so the caller can
+	 * reuse the payload buffer right away. If you can, read the data directly into
+	 * an {@link #allocateDataFrame()} and use {@link #sendDataFrameToTarget(ByteBuffer)}.
+	 * 
+	 * A payload bigger than DATA_BUFFER_SIZE goes in several data messages.
+	 */
 	protected CompletableFuture<Void> sendDataMessageToTarget(ByteBuffer payload) {
+		List<CompletableFuture<Void>> sent = new ArrayList<>();
+		sendLock.lock(); // Nothing in between
+		try {
+			do {
+				int len = Math.min(payload.remaining(), DATA_BUFFER_SIZE);
+				ByteBuffer frame = bufferPool.acquire(DATA_FRAME_HEADER_SIZE + len);
+				frame.position(DATA_FRAME_HEADER_SIZE);
+				frame.put(payload.slice(payload.position(), len));
+				payload.position(payload.position() + len);
+				frame.flip();
+				sent.add(sendDataFrameToTarget(frame));
+			} while (payload.hasRemaining());
+		} finally {
+			sendLock.unlock();
+		}
+		return CompletableFuture.allOf(sent.toArray(new CompletableFuture[sent.size()]));
+	}
+
+	/**
+	 * Sends a data message with the data already in place, from
+	 * DATA_FRAME_HEADER_SIZE to the limit. The header is written here. The frame is
+	 * owned by this from now on.
+	 * 
+	 * With flow control it waits for credit if needed, so data must not be bigger
+	 * than DATA_BUFFER_SIZE, the smallest socket window we accept.
+	 */
+	protected CompletableFuture<Void> sendDataFrameToTarget(ByteBuffer frame) {
+		sendLock.lock();
+		try {
+			int len = frame.limit() - DATA_FRAME_HEADER_SIZE;
+			if (len > DATA_BUFFER_SIZE) {
+				bufferPool.release(frame);
+				return CompletableFuture.failedFuture(new IllegalArgumentException("Data message too big: " + len));
+			} else if (!flowControl) {
+				return sendDataFrameNow(frame);
+			} else if (waitingForCredit.isEmpty() && sendCredit >= len) {
+				sendCredit -= len;
+				return sendDataFrameNow(frame);
+			} else {
+				PendingData pending = new PendingData(frame, len);
+				waitingForCredit.add(pending);
+				return pending.future;
+			}
+		} finally {
+			sendLock.unlock();
+		}
+	}
+
+	private CompletableFuture<Void> sendDataFrameNow(ByteBuffer frame) {
 		sendLock.lock();
 		try {
-			int len = payload.remaining();
-			ByteBuffer sendToTargetRawBuffer = ByteBuffer.allocate(payload.limit() + 14);
-			int crcPos = writeSocketHeader(sendToTargetRawBuffer, MESSAGE_SOCKET_DATA);
-			// Update CRC calc
-			sendToTargetRawBuffer.putInt(updatedataCRCT2W(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining()));
-			sendToTargetRawBuffer.put(payload);
-			if (sendToTargetRawBuffer.position() != crcPos + 4 + len) {
-				getLog().error("Assertion error. {} != {}", sendToTargetRawBuffer.position(), crcPos + 4 + len);
-				AssertionError e = new AssertionError("Assertion error of msg len and buffer pos");
+			int limit = frame.limit();
+			ByteBuffer payload = frame.duplicate();
+			payload.position(DATA_FRAME_HEADER_SIZE);
+			itemTraffic.reportPacketOut(payload.remaining());
+			uploadPause = uploadLimiter.next(payload.remaining(), trafficClass);
+			// CRC must be updated in the same order the messages are sent
+			int crc = updatedataCRCT2W(payload);
+			int crcPos = writeSocketHeader(frame, MESSAGE_SOCKET_DATA);
+			frame.putInt(crc);
+			if (frame.position() != DATA_FRAME_HEADER_SIZE || crcPos + 4 != DATA_FRAME_HEADER_SIZE) {
+				getLog().error("Assertion error. {} != {}", frame.position(), DATA_FRAME_HEADER_SIZE);
+				bufferPool.release(frame);
+				AssertionError e = new AssertionError("Assertion error of msg header len");
 				close(e, false);
 				throw e;
 			}
-			sendToTargetRawBuffer.flip();
-			return sendRawMessageToTarget(sendToTargetRawBuffer);
+			frame.limit(limit);
+			frame.position(0);
+			return sendRawMessageToTarget(frame);
 		} finally {
 			sendLock.unlock();
 		}
 	} 
 
+	/**
+	 * Queues a message to the target. The buffer is owned by this from now on and
+	 * released to the pool once sent.
+	 */
 	protected CompletableFuture<Void> sendRawMessageToTarget(ByteBuffer buffer) {
 		if (!sendLock.isHeldByCurrentThread()) {
 			throw new AssertionError("!sendLock.isHeldByCurrentThread()");
 		}
+		RawSend rawSend = new RawSend(buffer);
+		if (sendFailed) {
+			rawSend.fail(new IOException("A previous send failed"));
+			return rawSend.res;
+		}
 		// Already sending?
 		boolean wasSending = sending.getAndSet(true);
 
 		// Put on queue
-		final CompletableFuture<Void> res = new CompletableFuture<Void>();
-		sendQueue.add(new Runnable() {
-			@Override
-			public void run() {
-				try {
-					jSession.sendMessage((WebSocketMessage<?>) new BinaryMessage(buffer, true)).handle((r, e) -> {
-						sendLock.lock();
-						try {
-							if (e != null) {
-								getLog().error("Error sending to cloud. Will close socket: {}", e, e);
-								res.completeExceptionally(e);
-								close(e, false);
+		sendQueue.add(rawSend);
+		if (!wasSending) {
+			// If not sending, send
+			sendQueue.remove().run();
+		}
+		return rawSend.res;
+	}
+
+	private class RawSend implements Runnable {
+		private final ByteBuffer buffer;
+		private final CompletableFuture<Void> res = new CompletableFuture<Void>();
+
+		private RawSend(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		private void fail(Throwable e) {
+			bufferPool.release(buffer);
+			res.completeExceptionally(e);
+		}
+
+		@Override
+		public void run() {
+			try {
+				jSession.sendMessage((WebSocketMessage<?>) new BinaryMessage(buffer, true), trafficClass).handle((r, e) -> {
+					bufferPool.release(buffer);
+					sendLock.lock();
+					try {
+						if (e != null) {
+							getLog().error("Error sending to cloud. Will close socket: {}", e, e);
+							sendFailed = true;
+							res.completeExceptionally(e);
+							RawSend next;
+							while ((next = sendQueue.poll()) != null) {
+								next.fail(e);
+							}
+							close(e, false);
+						} else {
+							res.complete(null);
+							Runnable next = sendQueue.poll();
+							if (next == null) {
+								sending.set(false);
 							} else {
-								res.complete(null);
-								Runnable next = sendQueue.poll();
-								if (next == null) {
-									sending.set(false);
-								} else {
-									next.run();
-								}
+								next.run();
 							}
-							return (Void) null;
-						} finally {
-							sendLock.unlock();
 						}
-					});
-				} catch (Exception e) {
-					res.completeExceptionally(e);
-				}
+						return (Void) null;
+					} finally {
+						sendLock.unlock();
+					}
+				});
+			} catch (Exception e) {
+				fail(e);
 			}
-		});
-		if (!wasSending) {
-			// If not sending, send
-			sendQueue.remove().run();
 		}
-		return res;
 	}
 	
 	private void signalCloseStatus(Throwable e, Boolean remote) {
@@ -307,8 +753,37 @@ public abstract class AbstractToSocketConnection {
 		return closeStatus;
 	}
 
-	private int updatedataCRCT2W(byte[] array, int off, int len) {
-		dataCRCT2W.update(array, off, len);
+	public TrafficClass getTrafficClass() {
+		return trafficClass;
+	}
+
+	/**
+	 * Limiter of the data from the target to the client, for the session to pace
+	 * what it receives for us
+	 */
+	public BandwithLimiter getDownloadLimiter() {
+		return downloadLimiter;
+	}
+
+	/**
+	 * Completes when the upload limit of the item lets us send more. Wait for it
+	 * before reading more from the client.
+	 */
+	protected CompletableFuture<Void> awaitUploadLimit() {
+		long nanos = uploadPause.getRemainingNanos();
+		if (nanos <= 0) {
+			return CompletableFuture.completedFuture(null);
+		}
+		CompletableFuture<Void> res = new CompletableFuture<>();
+		jSession.schedule(() -> res.complete(null), nanos);
+		return res;
+	}
+
+	/**
+	 * Updates the CRC with the payload, without moving its position
+	 */
+	private int updatedataCRCT2W(ByteBuffer payload) {
+		dataCRCT2W.update(payload.duplicate());
 		return (int) dataCRCT2W.getValue();
 	}
 
@@ -1,22 +1,81 @@
 package org.aalku.joatse.cloud.service;
 
+import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.aalku.joatse.cloud.service.user.UserManager;
+import org.aalku.joatse.cloud.service.user.UserUpdatedEvent;
 import org.aalku.joatse.cloud.service.user.vo.JoatseUser;
 import org.aalku.joatse.cloud.tools.io.BandwithLimiter;
+import org.aalku.joatse.cloud.tools.io.RefCountedRegistry;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
 
-import com.github.benmanes.caffeine.cache.Caffeine;
-import com.github.benmanes.caffeine.cache.LoadingCache;
-
+/**
+ * Bandwith limiters: global, then per user, then per shared resource lot and
+ * per item of the lot.
+ * 
+ * Lots and items have separate limits for each direction. Upload is from the
+ * client to the target and download from the target to the client. Their
+ * download limiters are a chain item -> lot -> user -> global. Upload is paced
+ * by the session sender with the lot limiter (lot -> user -> global), and each
+ * item upload limiter paces only the sockets of that item, so it has no
+ * parent or the lot would count everything twice.
+ * 
+ * Sockets keep the limiters of their item, so changing a limit applies to the
+ * running sockets right away.
+ */
 @Component
 public class BandwithLimitManager implements InitializingBean {
 	
+	/**
+	 * Upload and download limiters of a lot or of an item
+	 */
+	public static class DirectionLimiters {
+		private final BandwithLimiter upload;
+		private final BandwithLimiter download;
+
+		private DirectionLimiters(BandwithLimiter upload, BandwithLimiter download) {
+			this.upload = upload;
+			this.download = download;
+		}
+
+		/**
+		 * From the client to the target
+		 */
+		public BandwithLimiter getUpload() {
+			return upload;
+		}
+
+		/**
+		 * From the target to the client
+		 */
+		public BandwithLimiter getDownload() {
+			return download;
+		}
+
+		public void setLimits(Long uploadBps, Long downloadBps) {
+			upload.setLimitBps(uploadBps);
+			download.setLimitBps(downloadBps);
+		}
+	}
+	
+	private static class LotLimiters {
+		private final UUID ownerUuid;
+		private final DirectionLimiters lot;
+		private final Map<Long, DirectionLimiters> items = new ConcurrentHashMap<>();
+
+		private LotLimiters(UUID ownerUuid, DirectionLimiters lot) {
+			this.ownerUuid = ownerUuid;
+			this.lot = lot;
+		}
+	}
+	
 	@Autowired
 	private UserManager userManager;
 	
@@ -25,21 +84,45 @@ public class BandwithLimitManager implements InitializingBean {
 	
 	@Value("${cloud.bandwith.limit.pause.max.millis:100}")
 	private long maxPauseMillis;
+	
+	@Value("${cloud.bandwith.limit.burst.bytes:65536}")
+	private long burstBytes;
+	
+	/**
+	 * Share the global limit fairly between users instead of first come first
+	 * served
+	 */
+	@Value("${cloud.bandwith.limit.global.fair:true}")
+	private boolean globalFairShare;
+	
+	/**
+	 * Interactive traffic of each user up to this rate goes without pauses. 0 to
+	 * treat it like any other.
+	 */
+	@Value("${cloud.qos.interactive.bps:1000000}")
+	private long interactiveBps;
 
 	private BandwithLimiter globalLimiter = new BandwithLimiter();
 	
-	private LoadingCache<UUID, BandwithLimiter> bandwithLimitPerUser = Caffeine.newBuilder().expireAfterAccess(5, TimeUnit.MINUTES).build(uuid -> {
-		JoatseUser user = userManager.loadUserByUUID(uuid);
-		BandwithLimiter bandwithLimiter = new BandwithLimiter();
-		bandwithLimiter.setMaxPauseMillis(maxPauseMillis);
-		bandwithLimiter.setParent(globalLimiter);
-		bandwithLimiter.setLimitBps(user.getBandwithLimit().orElse(null));
-		return bandwithLimiter;
-	});
+	/**
+	 * One per user with running sessions, so all of them share it and a limit
+	 * change reaches them all. They are created without limit, the factory runs
+	 * with a lock of the registry so it can't load the user.
+	 */
+	private final RefCountedRegistry<UUID, BandwithLimiter> bandwithLimitPerUser = new RefCountedRegistry<>(
+			uuid -> newLimiter(globalLimiter));
+	
+	/** Users over their traffic quota and the rate they are throttled to */
+	private final Map<UUID, Long> throttledUsers = new ConcurrentHashMap<>();
+	
+	/** By lot uuid, while its session is running */
+	private final Map<UUID, LotLimiters> lots = new ConcurrentHashMap<>();
 
 	@Override
 	public void afterPropertiesSet() throws Exception {
 		this.globalLimiter.setMaxPauseMillis(maxPauseMillis);
+		this.globalLimiter.setBurstBytes(burstBytes);
+		this.globalLimiter.setFairShare(globalFairShare);
 		this.globalLimiter.setLimitBps(globalBandwithLimit);
 	}
 
@@ -52,11 +135,97 @@ public class BandwithLimitManager implements InitializingBean {
 		this.globalLimiter.setLimitBps(globalBandwithLimit);
 	}
 	
-	public BandwithLimiter getUserBandwithLimiter(UUID userUuid) {
+	/**
+	 * @return the limiter of the user if it has running sessions
+	 */
+	public Optional<BandwithLimiter> getUserBandwithLimiter(UUID userUuid) {
 		return bandwithLimitPerUser.get(userUuid);
 	}
+	
+	@EventListener
+	public void userUpdated(UserUpdatedEvent event) {
+		JoatseUser user = event.getUser();
+		getUserBandwithLimiter(user.getUuid())
+				.ifPresent(l -> l.setLimitBps(userLimitBps(user.getUuid(), Optional.of(user))));
+	}
+	
+	/**
+	 * Limits the user to that rate, whatever its own limit is
+	 * 
+	 * @param bps null to stop throttling it
+	 */
+	public void setUserThrottle(UUID userUuid, Long bps) {
+		if (bps == null) {
+			throttledUsers.remove(userUuid);
+		} else {
+			throttledUsers.put(userUuid, bps);
+		}
+		getUserBandwithLimiter(userUuid).ifPresent(
+				l -> l.setLimitBps(userLimitBps(userUuid, Optional.ofNullable(userManager.loadUserByUUID(userUuid)))));
+	}
+	
+	/**
+	 * @return the lower of the user limit and its throttle, or null if none
+	 */
+	private Long userLimitBps(UUID userUuid, Optional<JoatseUser> user) {
+		Long limit = user.flatMap(JoatseUser::getBandwithLimit).orElse(null);
+		Long throttle = throttledUsers.get(userUuid);
+		return limit == null ? throttle : throttle == null ? limit : Long.valueOf(Math.min(limit, throttle));
+	}
 
 	public BandwithLimiter getGlobalBandwithLimiter() {
 		return globalLimiter;
 	}
+	
+	/**
+	 * Creates the limiters of the lot, without limits, under those of its owner.
+	 * The owner limiter lives until all its lots end.
+	 * 
+	 * @return the lot limiters
+	 */
+	public DirectionLimiters lotStarted(UUID lotUuid, UUID ownerUuid) {
+		Optional<JoatseUser> owner = Optional.ofNullable(userManager.loadUserByUUID(ownerUuid)); // Without lock
+		BandwithLimiter userLimiter = bandwithLimitPerUser.acquire(ownerUuid);
+		// Before the lot has traffic
+		userLimiter.setLimitBps(userLimitBps(ownerUuid, owner));
+		LotLimiters lotLimiters = new LotLimiters(ownerUuid, new DirectionLimiters(newLimiter(userLimiter), newLimiter(userLimiter)));
+		LotLimiters old = lots.put(lotUuid, lotLimiters);
+		if (old != null) {
+			bandwithLimitPerUser.release(old.ownerUuid);
+		}
+		return lotLimiters.lot;
+	}
+	
+	public void lotEnded(UUID lotUuid) {
+		LotLimiters lotLimiters = lots.remove(lotUuid);
+		if (lotLimiters != null) {
+			bandwithLimitPerUser.release(lotLimiters.ownerUuid);
+		}
+	}
+	
+	public Optional<DirectionLimiters> getLotLimiters(UUID lotUuid) {
+		return Optional.ofNullable(lots.get(lotUuid)).map(l -> l.lot);
+	}
+	
+	/**
+	 * @return the limiters of that item, created without limits the first time
+	 */
+	public DirectionLimiters getItemLimiters(UUID lotUuid, long targetId) {
+		LotLimiters lotLimiters = lotUuid == null ? null : lots.get(lotUuid);
+		if (lotLimiters == null) {
+			// No lot or it's gone, nobody will change them
+			return new DirectionLimiters(newLimiter(null), newLimiter(null));
+		}
+		return lotLimiters.items.computeIfAbsent(targetId,
+				k -> new DirectionLimiters(newLimiter(null), newLimiter(lotLimiters.lot.download)));
+	}
+	
+	private BandwithLimiter newLimiter(BandwithLimiter parent) {
+		BandwithLimiter bandwithLimiter = new BandwithLimiter();
+		bandwithLimiter.setMaxPauseMillis(maxPauseMillis);
+		bandwithLimiter.setBurstBytes(burstBytes);
+		bandwithLimiter.setInteractiveLimitBps(interactiveBps);
+		bandwithLimiter.setParent(parent);
+		return bandwithLimiter;
+	}
 }
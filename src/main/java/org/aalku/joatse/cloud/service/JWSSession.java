@@ -8,16 +8,23 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
 
+import org.aalku.joatse.cloud.service.BandwithLimitManager.DirectionLimiters;
 import org.aalku.joatse.cloud.service.sharing.shared.SharedResourceLot;
 import org.aalku.joatse.cloud.tools.io.BandwithCalculator.OneWayTraffic;
 import org.aalku.joatse.cloud.tools.io.BandwithCalculator.TwoWayBandwithCalculator;
 import org.aalku.joatse.cloud.tools.io.BandwithLimiter;
+import org.aalku.joatse.cloud.tools.io.BandwithLimiter.Pause;
+import org.aalku.joatse.cloud.tools.io.BinaryMessagePacker;
 import org.aalku.joatse.cloud.tools.io.IOTools;
+import org.aalku.joatse.cloud.tools.io.ByteBufferPool;
+import org.aalku.joatse.cloud.tools.io.TrafficClass;
+import org.aalku.joatse.cloud.tools.io.WebSocketSendScheduler;
 import org.aalku.joatse.cloud.tools.io.WebSocketSendWorker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,6 +40,7 @@ public class JWSSession {
 	private ReentrantLock lock = new ReentrantLock();
 	private Map<Long, AbstractToSocketConnection> socketConnectionMap = new LinkedHashMap<>();
 	private WebSocketSendWorker wsSendWorker;
+	private final WebSocketSendScheduler wsSendScheduler;
 
 	/**
 	 * Method to close the WebSocket session.
@@ -44,16 +52,27 @@ public class JWSSession {
 
 	private SharedResourceLot sharedResourceLot;
 	
-	private BandwithLimiter bandwithLimiter;
-
 	private BandwithLimitManager bandwithLimitManager;
 	
+	private final ByteBufferPool bufferPool;
+	
+	private final TrafficStatsManager trafficStats;
+	
 	private TwoWayBandwithCalculator bandwithCalculator = new TwoWayBandwithCalculator();
 
 	private final SessionPingHandler sessionPingHandler = new SessionPingHandler();
 
 	private CompletableFuture<byte[]> targetPublicKey = null;
 
+	/**
+	 * Binary protocol version agreed with the target. It's 1 unless the target
+	 * tells us it supports more.
+	 */
+	private volatile byte protocolVersion = AbstractToSocketConnection.PROTOCOL_VERSION;
+
+	/** Socket window the target announced */
+	private volatile int targetSocketWindow = AbstractToSocketConnection.DEFAULT_SOCKET_WINDOW;
+
 	/** Ping stats and sending, but it's scheduled from the outside */
 	public class SessionPingHandler {
 		private AtomicLong lastPingNanoTime = new AtomicLong(0);
@@ -95,9 +114,12 @@ public class JWSSession {
 	}
 	
 
-	public JWSSession(WebSocketSession session, BandwithLimitManager bandwithLimitManager) {
+	public JWSSession(WebSocketSession session, BandwithLimitManager bandwithLimitManager, WebSocketSendScheduler wsSendScheduler, ByteBufferPool bufferPool, TrafficStatsManager trafficStats) {
 		this.bandwithLimitManager = bandwithLimitManager;
-		this.wsSendWorker = new WebSocketSendWorker(session);
+		this.bufferPool = bufferPool;
+		this.trafficStats = trafficStats;
+		this.wsSendScheduler = wsSendScheduler;
+		this.wsSendWorker = wsSendScheduler.newWorker(session);
 		this.setBandwithLimiter(bandwithLimitManager.getGlobalBandwithLimiter());
 		this.closer = (BiConsumer<String, Throwable>)(closeReason, e)->{
 			log.error("Session is being closed. Reason={}, Error={}", closeReason, e, e);
@@ -133,8 +155,10 @@ public class JWSSession {
 		};
 	}
 
+	/**
+	 * @param bandwithLimiter for what we send, the upload of the lot once we have one
+	 */
 	private void setBandwithLimiter(BandwithLimiter bandwithLimiter) {
-		this.bandwithLimiter = bandwithLimiter;
 		this.wsSendWorker.setBandwithLimiter(bandwithLimiter);
 		this.wsSendWorker.setBandwithCalculator(bandwithCalculator.getOneWayOut());
 	}
@@ -171,55 +195,82 @@ public class JWSSession {
 	public void handleBinaryMessage(BinaryMessage message) throws IOException {
 		ByteBuffer buffer = message.getPayload();
 		int bytes = message.getPayloadLength();
-		try {
-			int version = buffer.get();
-			if (version != TunnelTcpConnection.PROTOCOL_VERSION) {
-				throw new IOException("Unsupported BinaryMessage protocol version: " + version);
+		bandwithCalculator.reportPacketIn(bytes);
+		handleBinaryMessage(buffer, true);
+	}
+
+	private void handleBinaryMessage(ByteBuffer buffer, boolean canBeBatch) throws IOException {
+		int bytes = buffer.remaining();
+		int version = buffer.get();
+		if (version < AbstractToSocketConnection.PROTOCOL_VERSION || version > protocolVersion) {
+			throw new IOException("Unsupported BinaryMessage protocol version: " + version);
+		}
+		byte type = buffer.get();
+		if (type == AbstractToSocketConnection.MESSAGE_SOCKET_WINDOW && protocolVersion < AbstractToSocketConnection.PROTOCOL_VERSION_FLOW_CONTROL) {
+			throw new IOException("Window message is not supported by protocol version " + protocolVersion);
+		}
+		if (type == AbstractToSocketConnection.MESSAGE_BATCH) {
+			if (!canBeBatch || protocolVersion < AbstractToSocketConnection.PROTOCOL_VERSION_BATCH) {
+				throw new IOException("Unexpected batch message. Protocol version " + protocolVersion);
 			}
-			byte type = buffer.get();
-			if (type == AbstractToSocketConnection.MESSAGE_PUBLIC_KEY) {
-				byte[] key = new byte[buffer.remaining()];
-				buffer.get(key);
-				lock.lock();
-				try {
-					if (targetPublicKey == null) {
-						throw new IllegalStateException("targetPublicKey received unexpectedly");
-					} else if (targetPublicKey.isDone() && !targetPublicKey.isCompletedExceptionally()) {
-						throw new IllegalStateException("targetPublicKey received twice or unexpectedly");
-					}
-					targetPublicKey.complete(key);
-				} finally {
-					lock.unlock();
+			ByteBuffer next;
+			while ((next = BinaryMessagePacker.unpackNext(buffer)) != null) {
+				handleBinaryMessage(next, false);
+			}
+		} else if (type == AbstractToSocketConnection.MESSAGE_PUBLIC_KEY) {
+			byte[] key = new byte[buffer.remaining()];
+			buffer.get(key);
+			lock.lock();
+			try {
+				if (targetPublicKey == null) {
+					throw new IllegalStateException("targetPublicKey received unexpectedly");
+				} else if (targetPublicKey.isDone() && !targetPublicKey.isCompletedExceptionally()) {
+					throw new IllegalStateException("targetPublicKey received twice or unexpectedly");
 				}
-			} else if (AbstractToSocketConnection.messageTypesHandled.contains(type)) {
-				long socketId = buffer.getLong();
-				Runnable runWithoutLock = null; 
-				AbstractToSocketConnection c = null;
-				lock.lock();
+				targetPublicKey.complete(key);
+			} finally {
+				lock.unlock();
+			}
+		} else if (AbstractToSocketConnection.messageTypesHandled.contains(type)) {
+			long socketId = buffer.getLong();
+			AbstractToSocketConnection c;
+			lock.lock();
+			try {
+				c = socketConnectionMap.get(socketId);
+			} finally {
+				lock.unlock();
+			}
+			if (c == null) {
+				log.warn("Received ws data relating a tcp connection that was disconnected: {}", socketId);
+				return;
+			}
+			/*
+			 * We don't sleep the pause here, it would block a container thread. The data
+			 * waits in its connection and the flow control window stops the target.
+			 */
+			Pause pause = c.getDownloadLimiter().next(bytes, c.getTrafficClass());
+			CompletableFuture<Void> canContinue;
+			try {
+				// It only queues the data, the connection writes it in order in the background
+				canContinue = c.receivedMessageFromTarget(buffer, type, pause);
+			} catch (Exception e) {
+				log.warn("Error handling tcp data: " + e, e);
+				c.close();
+				return;
+			}
+			if (!canContinue.isDone()) {
+				// Target without flow control and a slow client. Stop reading the WS for a while.
 				try {
-					c = socketConnectionMap.get(socketId);
-					if (c == null) {
-						log.warn("Received ws data relating a tcp connection that was disconnected: {}", socketId);
-						return;
-					}
-					runWithoutLock = c.receivedMessageFromTarget(buffer, type); // blocking with lock is ok
-				} catch (Exception e) {
-					if (c != null) {
-						log.warn("Error handling tcp data: " + e, e);
-						c.close();
-					}
-				} finally {
-					lock.unlock();
+					canContinue.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted waiting for a client", e);
+				} catch (ExecutionException e) {
+					// The connection takes care of its errors
 				}
-				if (runWithoutLock != null) {
-					runWithoutLock.run();
-				}
-			} else {
-				throw new IOException("Unsupported BinaryMessage message type: " + type);
 			}
-		} finally {
-			bandwithLimiter.next(bytes).sleep();
-			bandwithCalculator.reportPacketIn(bytes);
+		} else {
+			throw new IOException("Unsupported BinaryMessage message type: " + type);
 		}
 	}
 
@@ -227,6 +278,17 @@ public class JWSSession {
 		return wsSendWorker.sendMessage(message);
 	}
 
+	public CompletableFuture<Void> sendMessage(WebSocketMessage<?> message, TrafficClass trafficClass) {
+		return wsSendWorker.sendMessage(message, trafficClass);
+	}
+
+	/**
+	 * Runs the task later without blocking any thread until then
+	 */
+	public void schedule(Runnable task, long delayNanos) {
+		wsSendScheduler.schedule(task, delayNanos);
+	}
+
 	public SharedResourceLot getSharedResourceLot() {
 		lock.lock();
 		try {
@@ -240,7 +302,8 @@ public class JWSSession {
 		lock.lock();
 		try {
 			this.sharedResourceLot = sharedResourceLot;
-			this.setBandwithLimiter(bandwithLimitManager.getUserBandwithLimiter(sharedResourceLot.getOwner().getUuid()));
+			this.setBandwithLimiter(bandwithLimitManager.lotStarted(sharedResourceLot.getUuid(), sharedResourceLot.getOwner().getUuid()).getUpload());
+			trafficStats.sessionStarted(sharedResourceLot.getUuid(), sharedResourceLot.getOwner().getUuid(), bandwithCalculator);
 		} finally {
 			lock.unlock();
 		}
@@ -255,6 +318,64 @@ public class JWSSession {
 		}
 	}
 
+	/**
+	 * Agree the binary protocol version with the target: the highest both of us
+	 * support. It must be done before any binary message.
+	 * 
+	 * @param targetMaxVersion  Highest version the target supports
+	 * @param targetSocketWindow Bytes per socket the target can receive before
+	 *                           granting more (ignored without flow control). At
+	 *                           least a data message, or it would never get one.
+	 * @return the version to use
+	 */
+	public byte negotiateProtocolVersion(int targetMaxVersion, int targetSocketWindow) {
+		if (targetMaxVersion < AbstractToSocketConnection.PROTOCOL_VERSION) {
+			throw new IllegalArgumentException("Unsupported protocol version: " + targetMaxVersion);
+		}
+		byte version = (byte) Math.min(targetMaxVersion, AbstractToSocketConnection.PROTOCOL_VERSION_MAX);
+		if (version >= AbstractToSocketConnection.PROTOCOL_VERSION_FLOW_CONTROL
+				&& targetSocketWindow < AbstractToSocketConnection.DATA_BUFFER_SIZE) {
+			throw new IllegalArgumentException("Socket window smaller than a data message: " + targetSocketWindow);
+		}
+		this.targetSocketWindow = targetSocketWindow;
+		this.protocolVersion = version;
+		if (protocolVersion >= AbstractToSocketConnection.PROTOCOL_VERSION_BATCH) {
+			byte[] batchHeader = new byte[] { protocolVersion, AbstractToSocketConnection.MESSAGE_BATCH };
+			wsSendWorker.setMessagePacker(new BinaryMessagePacker(batchHeader, bufferPool));
+		}
+		return protocolVersion;
+	}
+
+	public byte getProtocolVersion() {
+		return protocolVersion;
+	}
+
+	public int getTargetSocketWindow() {
+		return targetSocketWindow;
+	}
+
+	public ByteBufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * @return where the sockets of that tunnel item count their data
+	 */
+	public TwoWayBandwithCalculator getItemTrafficCalculator(long targetId) {
+		UUID lotUuid = getTunnelUUID();
+		if (lotUuid == null) {
+			return new TwoWayBandwithCalculator(); // Nobody will look at it
+		}
+		return trafficStats.getItemCalculator(lotUuid, targetId);
+	}
+
+	/**
+	 * @return the upload and download limiters of the sockets of that tunnel item
+	 */
+	public DirectionLimiters getItemLimiters(long targetId) {
+		return bandwithLimitManager.getItemLimiters(getTunnelUUID(), targetId);
+	}
+
 	public SessionPingHandler getSessionPingHandler() {
 		return sessionPingHandler;
 	}
@@ -273,7 +394,7 @@ public class JWSSession {
 			if (targetPublicKey == null) {
 				targetPublicKey = new CompletableFuture<byte[]>();
 				ByteBuffer buffer = ByteBuffer.allocate(2);
-				buffer.put(AbstractToSocketConnection.PROTOCOL_VERSION);
+				buffer.put(protocolVersion);
 				buffer.put(AbstractToSocketConnection.MESSAGE_PUBLIC_KEY);
 				buffer.flip();
 				sendMessage(new BinaryMessage(buffer)).exceptionally(e->{
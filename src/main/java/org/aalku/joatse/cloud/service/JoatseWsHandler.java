@@ -25,6 +25,8 @@ import org.aalku.joatse.cloud.service.sharing.shared.SharedResourceLot;
 import org.aalku.joatse.cloud.service.sharing.shared.TcpTunnel;
 import org.aalku.joatse.cloud.service.user.vo.JoatseUser;
 import org.aalku.joatse.cloud.tools.io.IOTools;
+import org.aalku.joatse.cloud.tools.io.ByteBufferPool;
+import org.aalku.joatse.cloud.tools.io.WebSocketSendScheduler;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
@@ -56,6 +58,15 @@ public class JoatseWsHandler extends AbstractWebSocketHandler implements WebSock
 	@Autowired
 	private BandwithLimitManager bandwithLimitManager;
 	
+	@Autowired
+	private WebSocketSendScheduler wsSendScheduler;
+	
+	@Autowired
+	private ByteBufferPool bufferPool;
+	
+	@Autowired
+	private TrafficStatsManager trafficStats;
+	
 	/**
 	 * Map WebSocketSession.sessionId-->JWSSession
 	 */
@@ -85,7 +96,7 @@ public class JoatseWsHandler extends AbstractWebSocketHandler implements WebSock
 		HttpHeaders handshakeHeaders = wsSession.getHandshakeHeaders();
 		log.info("handshakeHeaders: {} - {}", wsSession.getId(), handshakeHeaders);
 		getStateReference(wsSession).set(State.WAITING_COMMAND);
-		wsSessionMap.put(wsSession.getId(), new JWSSession(wsSession, bandwithLimitManager));
+		wsSessionMap.put(wsSession.getId(), new JWSSession(wsSession, bandwithLimitManager, wsSendScheduler, bufferPool, trafficStats));
 	}
 	
 	@Override
@@ -98,6 +109,8 @@ public class JoatseWsHandler extends AbstractWebSocketHandler implements WebSock
 				if (uuid != null) {
 					log.info("SharedResourceLot closed because WS session was closed: {}", uuid);
 					sharingManager.removeTunnel(uuid);
+					trafficStats.sessionEnded(uuid);
+					bandwithLimitManager.lotEnded(uuid);
 				}
 				closeSession(wsSession, "WS got closed", null); // This reason will be saved if it was not already
 			} finally {
@@ -121,7 +134,9 @@ public class JoatseWsHandler extends AbstractWebSocketHandler implements WebSock
 			JSONObject js = new JSONObject(message.getPayload());
 			String request = js.getString("request");
 			if (request.equals("CONNECTION")) {
-				
+				// Targets that don't send it only know version 1
+				wsSessionMap.get(wsSession.getId()).negotiateProtocolVersion(js.optInt("protocolVersion", 1),
+						js.optInt("socketWindow", AbstractToSocketConnection.DEFAULT_SOCKET_WINDOW));
 				LotSharingRequest lotSharingRequest = LotSharingRequest.fromJsonRequest(js, wsSession.getRemoteAddress());
 				TunnelCreationResponse requestedTunnel = sharingManager.requestTunnel(wsSession.getPrincipal(),
 						lotSharingRequest);
@@ -137,7 +152,7 @@ public class JoatseWsHandler extends AbstractWebSocketHandler implements WebSock
 						JWSSession jWSSession = wsSessionMap.get(wsSession.getId());
 						if (associateSharedResourceLot(jWSSession, sharedResourceLot)) {
 							try {
-								jWSSession.sendMessage((WebSocketMessage<?>) new TextMessage(runningTunnelMessage(sharedResourceLot))).get();
+								jWSSession.sendMessage((WebSocketMessage<?>) new TextMessage(runningTunnelMessage(jWSSession, sharedResourceLot))).get();
 								getStateReference(wsSession).set(State.RUNNING); // Allow to process connections
 							} catch (Exception e1) {
 								log.error("Exception sending text response message: {}", e1, e1);
@@ -229,12 +244,17 @@ public class JoatseWsHandler extends AbstractWebSocketHandler implements WebSock
 		return true;
 	}
 
-	private CharSequence runningTunnelMessage(SharedResourceLot tunnel) {
+	private CharSequence runningTunnelMessage(JWSSession jWSSession, SharedResourceLot tunnel) {
 		String cloudPublicHostname = tunnel.getCloudPublicHostname();
 		
 		JSONObject res = new JSONObject();
 		res.put("request", "CONNECTION");
 		res.put("response", "RUNNING");
+		if (jWSSession.getProtocolVersion() > AbstractToSocketConnection.PROTOCOL_VERSION) {
+			// Old targets don't expect these
+			res.put("protocolVersion", jWSSession.getProtocolVersion());
+			res.put("socketWindow", AbstractToSocketConnection.DEFAULT_SOCKET_WINDOW);
+		}
 		Collection<JSONObject> tcpTunnels = new ArrayList<>();
 		for (TcpTunnel i: tunnel.getTcpItems()) {
 			JSONObject j = new JSONObject();
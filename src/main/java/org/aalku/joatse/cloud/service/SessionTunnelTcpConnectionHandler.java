@@ -7,6 +7,7 @@ import org.aalku.joatse.cloud.service.sharing.http.HttpTunnel;
 import org.aalku.joatse.cloud.service.sharing.shared.SharedResourceLot;
 import org.aalku.joatse.cloud.service.sharing.shared.TcpTunnel;
 import org.aalku.joatse.cloud.tools.io.IOTools;
+import org.aalku.joatse.cloud.tools.io.TrafficClass;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,7 +33,8 @@ class SessionTunnelTcpConnectionHandler implements BiConsumer<Long, Asynchronous
 			IOTools.runFailable(()->t.close());
 			return;
 		}
-		TunnelTcpConnection c = new TunnelTcpConnection(jWSSession, t, targetId);
+		TrafficClass trafficClass = tcpItem != null ? tcpItem.getTrafficClass() : httpTunnel.getTrafficClass();
+		TunnelTcpConnection c = new TunnelTcpConnection(jWSSession, t, targetId, trafficClass);
 		c.getCloseStatus().thenAccept(remote->{
 			// Connection closed ok
 			if (remote == null) {
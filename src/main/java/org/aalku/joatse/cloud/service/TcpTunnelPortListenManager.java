@@ -2,18 +2,18 @@ package org.aalku.joatse.cloud.service;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.UnknownHostException;
 import java.nio.channels.AsynchronousSocketChannel;
-import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.ForkJoinPool;
-import java.util.function.Consumer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.aalku.joatse.cloud.service.sharing.SharingManager;
 import org.aalku.joatse.cloud.tools.io.AsyncTcpPortListener;
 import org.aalku.joatse.cloud.tools.io.AsyncTcpPortListener.Event;
 import org.aalku.joatse.cloud.tools.io.IOTools;
+import org.aalku.joatse.cloud.tools.io.PortAllocator;
 import org.aalku.joatse.cloud.tools.io.PortRange;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,6 +24,13 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+/**
+ * Listens on the ports of cloud.port.open.range that tcp tunnels use.
+ * 
+ * Ports are not bound at startup. The {@link PortAllocator} binds them when
+ * lots get them and they are closed when no lot used them for
+ * cloud.port.open.grace.seconds.
+ */
 @Component
 public class TcpTunnelPortListenManager implements InitializingBean, DisposableBean {
 	
@@ -42,73 +49,125 @@ public class TcpTunnelPortListenManager implements InitializingBean, DisposableB
 	@Value("${server.hostname.listen:0.0.0.0}")
 	private String listenHostname;
 
+	@Value("${cloud.port.open.grace.seconds:60}")
+	private long graceSeconds;
+
 	@Autowired
 	private SharingManager sharingManager;
 
-	private void setupPortListen() throws UnknownHostException {
-		for (int p = openPortRange.min(); p <= openPortRange.max(); p++) {
-			setupPortListen(p);
+	private InetAddress listenAddress;
+
+	private PortAllocator portAllocator;
+
+	private ScheduledExecutorService executor;
+
+	/**
+	 * @return false if it couldn't listen on the port
+	 */
+	private boolean setupPortListen(int port) {
+		AsyncTcpPortListener<Void> asyncTcpPortListener = new AsyncTcpPortListener<Void>(listenAddress, port);
+		if (asyncTcpPortListener.getAddress() == null) {
+			log.warn("Could not listen on tcp port {}, it will not be used for a while", port);
+			return false;
 		}
-		sharingManager.setTcpOpenPorts(new ArrayList<>(openPortMap.keySet()));
+		synchronized (openPortMap) {
+			openPortMap.put(port, asyncTcpPortListener);
+		}
+		asyncTcpPortListener.start(null, t -> portEvent(port, asyncTcpPortListener, t));
+		log.debug("Listening on tcp port {}", port);
+		return true;
 	}
 
-	private void setupPortListen(int port) throws UnknownHostException {
-		
-		AsyncTcpPortListener<Void> asyncTcpPortListener = new AsyncTcpPortListener<Void>(
-				InetAddress.getByName(listenHostname), port, null,
-				(Consumer<Event<Void>>) new Consumer<AsyncTcpPortListener.Event<Void>>() {
-					@Override
-					public void accept(Event<Void> t) {
-						if (t.error != null) {
-							log.error(String.format("Could not accept connections on tcp port %s: %s", port, t.error.toString()), t.error);
-							synchronized (openPortMap) {
-								openPortMap.remove(port);
-								/*
-								 * TODO Tell someone.
-								 * 
-								 * We have to detect who's this connection for. Remember there can be several
-								 * connections from different users on the same port.
-								 */
-							}
-						} else {
-							AsynchronousSocketChannel channel = t.channel;
-							if (channel != null) {
-								try {
-									InetSocketAddress remoteAddress = (InetSocketAddress) IOTools
-											.runUnchecked(() -> channel.getRemoteAddress());
-									sharingManager.receivedTcpConnection(port, channel, remoteAddress);
-								} catch (Exception e) {
-									log.warn("Error handling incomming socket: {}", e, e);
-									IOTools.closeChannel(channel);
-								}
-							} else {
-								log.info("Closed tcp port {}", port);
-								synchronized (openPortMap) {
-									openPortMap.remove(port);
-								}
-							}
-						}
-					}
-
-				});
+	private void portEvent(int port, AsyncTcpPortListener<Void> listener, Event<Void> t) {
+		if (t.error != null) {
+			log.error(String.format("Could not accept connections on tcp port %s: %s", port, t.error.toString()), t.error);
+			portClosed(port, listener);
+			/*
+			 * TODO Tell someone.
+			 * 
+			 * We have to detect who's this connection for. Remember there can be several
+			 * connections from different users on the same port.
+			 */
+		} else {
+			AsynchronousSocketChannel channel = t.channel;
+			if (channel != null) {
+				try {
+					InetSocketAddress remoteAddress = (InetSocketAddress) IOTools
+							.runUnchecked(() -> channel.getRemoteAddress());
+					sharingManager.receivedTcpConnection(port, channel, remoteAddress);
+				} catch (Exception e) {
+					log.warn("Error handling incomming socket: {}", e, e);
+					IOTools.closeChannel(channel);
+				}
+			} else {
+				log.info("Closed tcp port {}", port);
+				portClosed(port, listener);
+			}
+		}
+	}
+
+	private void portClosed(int port, AsyncTcpPortListener<Void> listener) {
+		boolean byItself;
 		synchronized (openPortMap) {
-			openPortMap.put(port, asyncTcpPortListener);
+			// If we closed it, it's not there any more
+			byItself = openPortMap.remove(port, listener);
+		}
+		if (byItself) {
+			portAllocator.lost(port); // Without lock
+		}
+	}
+
+	private void closePortListen(int port) {
+		AsyncTcpPortListener<Void> listener;
+		synchronized (openPortMap) {
+			listener = openPortMap.remove(port);
+		}
+		if (listener != null) {
+			// Now, the allocator can bind the port again as soon as this returns. Our
+			// callback finds it already removed and doesn't call the allocator back.
+			listener.close();
+		}
+	}
+
+	private void unbindIdle() {
+		try {
+			int closed = portAllocator.unbindIdle(TimeUnit.SECONDS.toMillis(graceSeconds));
+			if (closed > 0) {
+				log.debug("Closed {} idle tcp ports, {} still open", closed, portAllocator.getBoundCount());
+			}
+		} catch (RuntimeException e) {
+			log.error("Error closing idle tcp ports: " + e, e);
 		}
 	}
 	
 	@Override
 	public void afterPropertiesSet() throws Exception {
-		setupPortListen();
+		listenAddress = InetAddress.getByName(listenHostname);
+		portAllocator = new PortAllocator(openPortRange.min(), openPortRange.max(), new PortAllocator.Binder() {
+			@Override
+			public boolean bind(int port) {
+				return setupPortListen(port);
+			}
+
+			@Override
+			public void unbind(int port) {
+				closePortListen(port);
+			}
+		});
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "tcpPortRelease");
+			t.setDaemon(true);
+			return t;
+		});
+		long period = Math.max(1, Math.min(graceSeconds, 10));
+		executor.scheduleWithFixedDelay(this::unbindIdle, period, period, TimeUnit.SECONDS);
+		sharingManager.setTcpPortAllocator(portAllocator);
 	}
 
 	@Override
 	public void destroy() throws Exception {
-		synchronized (openPortMap) {
-			for (AsyncTcpPortListener<Void> port : this.openPortMap.values()) {
-				ForkJoinPool.commonPool().execute(()->port.close()); // Without lock, later
-			}
-			this.openPortMap.clear();
-		}
+		executor.shutdownNow();
+		portAllocator.unbindAll();
 	}
 
 
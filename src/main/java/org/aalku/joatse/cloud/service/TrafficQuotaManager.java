@@ -0,0 +1,307 @@
+package org.aalku.joatse.cloud.service;
+
+import java.time.Clock;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.aalku.joatse.cloud.service.user.UserManager;
+import org.aalku.joatse.cloud.service.user.UserUpdatedEvent;
+import org.aalku.joatse.cloud.service.user.repository.MonthlyTrafficRepository;
+import org.aalku.joatse.cloud.service.user.vo.JoatseUser;
+import org.aalku.joatse.cloud.service.user.vo.MonthlyTraffic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bytes each user transfers per month, persisted, and what happens when they
+ * go over their quota: they are throttled or they can't share more.
+ *
+ * Traffic is not counted here. Every second we take what the user calculators
+ * of {@link TrafficStatsManager} counted, and every now and then we save what
+ * changed in one batch, so sockets never wait for the database. It's saved on
+ * shutdown too. If we crash we lose the last seconds, they go for free.
+ *
+ * Only the quota thread takes the lock (collect and flush, that use the
+ * database). Others read what it published.
+ */
+@Component
+public class TrafficQuotaManager implements InitializingBean, DisposableBean {
+
+	private Logger log = LoggerFactory.getLogger(TrafficQuotaManager.class);
+
+	public enum ExceededAction {
+		/** Limit the user to cloud.quota.throttle.bps */
+		THROTTLE,
+		/** Reject new shares, running ones go on */
+		REJECT
+	}
+
+	@Autowired
+	private TrafficStatsManager trafficStats;
+
+	@Autowired
+	private BandwithLimitManager bandwithLimitManager;
+
+	@Autowired
+	private UserManager userManager;
+
+	@Autowired
+	private MonthlyTrafficRepository monthlyTrafficRepository;
+
+	/**
+	 * Bytes per month of users without a quota of their own. 0 for no quota.
+	 */
+	@Value("${cloud.quota.monthly.bytes:0}")
+	private long defaultMonthlyQuota;
+
+	@Value("${cloud.quota.exceeded.action:THROTTLE}")
+	private ExceededAction exceededAction;
+
+	@Value("${cloud.quota.throttle.bps:256000}")
+	private long throttleBps;
+
+	@Value("${cloud.quota.flush.seconds:30}")
+	private long flushSeconds;
+
+	/**
+	 * Bytes of a user in a month, as the quota thread published them
+	 */
+	private static final class MonthBytes {
+		private final String month;
+		private final long bytes;
+
+		private MonthBytes(String month, long bytes) {
+			this.month = month;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Of a user this month. Only the quota thread changes it, except quota and
+	 * exceeded.
+	 */
+	private static class Usage {
+		private final UUID userUuid;
+		private String month;
+		/** What's in the database */
+		private long savedBytes;
+		/** Not saved yet */
+		private long pendingBytes = 0;
+		/**
+		 * Total of the user calculator last time we looked. It's new when we start
+		 * following the user, so it starts at 0 too.
+		 */
+		private long lastTotal = 0;
+		/** 0 for none */
+		private volatile long quota;
+		private volatile boolean exceeded = false;
+		/** For other threads */
+		private volatile MonthBytes published;
+
+		private Usage(UUID userUuid, String month, long savedBytes, long quota) {
+			this.userUuid = userUuid;
+			this.month = month;
+			this.savedBytes = savedBytes;
+			this.quota = quota;
+			publish();
+		}
+
+		private long getBytes() {
+			return savedBytes + pendingBytes;
+		}
+
+		private void publish() {
+			published = new MonthBytes(month, getBytes());
+		}
+	}
+
+	private final Map<UUID, Usage> usages = new ConcurrentHashMap<>();
+
+	private ScheduledExecutorService executor;
+
+	private Clock clock = Clock.systemUTC();
+
+	public TrafficQuotaManager() {
+	}
+
+	/**
+	 * Constructor for tests, outside of spring and without the quota thread
+	 */
+	TrafficQuotaManager(TrafficStatsManager trafficStats, BandwithLimitManager bandwithLimitManager,
+			UserManager userManager, MonthlyTrafficRepository monthlyTrafficRepository, long defaultMonthlyQuota,
+			ExceededAction exceededAction, long throttleBps, Clock clock) {
+		this.trafficStats = trafficStats;
+		this.bandwithLimitManager = bandwithLimitManager;
+		this.userManager = userManager;
+		this.monthlyTrafficRepository = monthlyTrafficRepository;
+		this.defaultMonthlyQuota = defaultMonthlyQuota;
+		this.exceededAction = exceededAction;
+		this.throttleBps = throttleBps;
+		this.clock = clock;
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "trafficQuota");
+			t.setDaemon(true);
+			return t;
+		});
+		executor.scheduleAtFixedRate(this::collect, 1, 1, TimeUnit.SECONDS);
+		executor.scheduleWithFixedDelay(this::flush, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void destroy() throws InterruptedException {
+		executor.shutdown();
+		executor.awaitTermination(5, TimeUnit.SECONDS);
+		collect();
+		flush();
+	}
+
+	/**
+	 * Takes the new traffic of every user
+	 */
+	synchronized void collect() {
+		try {
+			String month = currentMonth();
+			trafficStats.getUserTotalBytes().forEach((userUuid, total) -> {
+				Usage usage = usages.computeIfAbsent(userUuid, k -> load(k, month));
+				if (!usage.month.equals(month)) {
+					newMonth(usage, month);
+				}
+				if (total >= usage.lastTotal) {
+					usage.pendingBytes += total - usage.lastTotal;
+				} else {
+					// Forgotten and counted again from 0
+					usage.pendingBytes += total;
+				}
+				usage.lastTotal = total;
+				usage.publish();
+				checkExceeded(usage);
+			});
+		} catch (RuntimeException e) {
+			log.error("Error collecting traffic for quotas: " + e, e);
+		}
+	}
+
+	/**
+	 * Saves the traffic not saved yet, all in one go
+	 */
+	synchronized void flush() {
+		try {
+			List<MonthlyTraffic> batch = new ArrayList<>();
+			List<Usage> flushed = new ArrayList<>();
+			for (Usage usage : usages.values()) {
+				if (usage.pendingBytes > 0) {
+					batch.add(new MonthlyTraffic(usage.userUuid, usage.month, usage.getBytes()));
+					flushed.add(usage);
+				}
+			}
+			if (batch.isEmpty()) {
+				return;
+			}
+			monthlyTrafficRepository.saveAll(batch);
+			for (Usage usage : flushed) {
+				usage.savedBytes += usage.pendingBytes;
+				usage.pendingBytes = 0;
+			}
+			log.debug("Saved monthly traffic of {} users", batch.size());
+			// Users we don't follow any more don't need to be here
+			Map<UUID, Long> totals = trafficStats.getUserTotalBytes();
+			usages.values().removeIf(u -> u.pendingBytes == 0 && !u.exceeded && !totals.containsKey(u.userUuid));
+		} catch (RuntimeException e) {
+			log.error("Error saving monthly traffic, will retry: " + e, e);
+		}
+	}
+
+	private void newMonth(Usage usage, String month) {
+		if (usage.pendingBytes > 0) {
+			// What's left of the old month
+			monthlyTrafficRepository.save(new MonthlyTraffic(usage.userUuid, usage.month, usage.getBytes()));
+		}
+		usage.month = month;
+		usage.savedBytes = 0;
+		usage.pendingBytes = 0;
+		usage.publish();
+	}
+
+	private void checkExceeded(Usage usage) {
+		boolean exceeded = usage.quota > 0 && usage.getBytes() >= usage.quota;
+		if (exceeded != usage.exceeded) {
+			usage.exceeded = exceeded;
+			log.info("User {} is {} its monthly quota of {} bytes", usage.userUuid, exceeded ? "over" : "under", usage.quota);
+			if (exceededAction == ExceededAction.THROTTLE) {
+				bandwithLimitManager.setUserThrottle(usage.userUuid, exceeded ? throttleBps : null);
+			}
+		}
+	}
+
+	private Usage load(UUID userUuid, String month) {
+		long saved = monthlyTrafficRepository.findById(MonthlyTraffic.idOf(userUuid, month))
+				.map(MonthlyTraffic::getBytes).orElse(0L);
+		return new Usage(userUuid, month, saved, quotaOf(Optional.ofNullable(userManager.loadUserByUUID(userUuid))));
+	}
+
+	private long quotaOf(Optional<JoatseUser> user) {
+		return user.flatMap(JoatseUser::getMonthlyQuota).orElse(defaultMonthlyQuota);
+	}
+
+	@EventListener
+	public void userUpdated(UserUpdatedEvent event) {
+		Usage usage = usages.get(event.getUser().getUuid());
+		if (usage != null) {
+			usage.quota = quotaOf(Optional.of(event.getUser()));
+			// The quota thread will notice if that changes anything
+		}
+	}
+
+	/**
+	 * @return true if the user can't share anything new because it's over its
+	 *         quota
+	 */
+	public boolean isSharingRejected(JoatseUser user) {
+		if (exceededAction != ExceededAction.REJECT) {
+			return false;
+		}
+		long quota = quotaOf(Optional.of(user));
+		if (quota <= 0) {
+			return false;
+		}
+		return getMonthBytes(user.getUuid()) >= quota;
+	}
+
+	/**
+	 * @return bytes the user transferred this month, including what's not saved
+	 *         yet. Without waiting for the quota thread, it only reads the
+	 *         database if we don't follow the user.
+	 */
+	public long getMonthBytes(UUID userUuid) {
+		String month = currentMonth();
+		Usage usage = usages.get(userUuid);
+		MonthBytes published = usage == null ? null : usage.published;
+		if (published != null && published.month.equals(month)) {
+			return published.bytes;
+		}
+		return monthlyTrafficRepository.findById(MonthlyTraffic.idOf(userUuid, month))
+				.map(MonthlyTraffic::getBytes).orElse(0L);
+	}
+
+	private String currentMonth() {
+		return YearMonth.now(clock).toString();
+	}
+}
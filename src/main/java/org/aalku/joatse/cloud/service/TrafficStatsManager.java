@@ -0,0 +1,186 @@
+package org.aalku.joatse.cloud.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.aalku.joatse.cloud.tools.io.BandwithCalculator.TwoWayBandwithCalculator;
+import org.aalku.joatse.cloud.tools.io.TrafficTimeSeries;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.stereotype.Component;
+
+/**
+ * Traffic history of each session, each tunnel item and each user, so we can
+ * see who used what without an external TSDB.
+ *
+ * Every second it records in a {@link TrafficTimeSeries} how much each
+ * calculator counted since the last time. Sessions count their WebSocket
+ * traffic and are children of their user, items count the data of their
+ * sockets.
+ *
+ * Sessions and their items are forgotten when the session ends. Users are
+ * forgotten after 30 days without sessions nor traffic, when their history is
+ * all zeros anyway.
+ */
+@Component
+public class TrafficStatsManager implements InitializingBean, DisposableBean {
+
+	private Logger log = LoggerFactory.getLogger(TrafficStatsManager.class);
+
+	private static final long USER_HISTORY_SECONDS = TrafficTimeSeries.Resolution.HOUR.getStepSeconds()
+			* TrafficTimeSeries.Resolution.HOUR.getSlots();
+
+	private static class Source {
+		private final TwoWayBandwithCalculator calculator;
+		private final TrafficTimeSeries series = new TrafficTimeSeries();
+		/** Of a session, its user */
+		private final Source parent;
+		private long lastIn = 0;
+		private long lastOut = 0;
+		/** Last second with traffic or with a session */
+		private volatile long lastUsedEpochSecond = epochSecondNow();
+
+		private Source(TwoWayBandwithCalculator calculator, Source parent) {
+			this.calculator = calculator;
+			this.parent = parent;
+		}
+
+		private synchronized void sample(long epochSecond) {
+			long in = calculator.getOneWayIn().getTotalBytes();
+			long out = calculator.getOneWayOut().getTotalBytes();
+			if (in != lastIn || out != lastOut) {
+				series.record(epochSecond, in - lastIn, out - lastOut);
+				lastIn = in;
+				lastOut = out;
+				lastUsedEpochSecond = epochSecond;
+			}
+			if (parent != null) {
+				parent.lastUsedEpochSecond = epochSecond;
+			}
+		}
+	}
+
+	private static class ItemKey {
+		private final UUID lotUuid;
+		private final long targetId;
+
+		private ItemKey(UUID lotUuid, long targetId) {
+			this.lotUuid = lotUuid;
+			this.targetId = targetId;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(lotUuid, targetId);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ItemKey)) {
+				return false;
+			}
+			ItemKey other = (ItemKey) obj;
+			return targetId == other.targetId && lotUuid.equals(other.lotUuid);
+		}
+	}
+
+	private final Map<UUID, Source> users = new ConcurrentHashMap<>();
+	private final Map<UUID, Source> sessions = new ConcurrentHashMap<>();
+	private final Map<ItemKey, Source> items = new ConcurrentHashMap<>();
+
+	private ScheduledExecutorService executor;
+
+	@Override
+	public void afterPropertiesSet() {
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "trafficStats");
+			t.setDaemon(true);
+			return t;
+		});
+		executor.scheduleAtFixedRate(this::sampleAll, 1, 1, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void destroy() {
+		executor.shutdownNow();
+	}
+
+	private void sampleAll() {
+		try {
+			long epochSecond = epochSecondNow();
+			sessions.values().forEach(s -> s.sample(epochSecond));
+			items.values().forEach(s -> s.sample(epochSecond));
+			users.values().forEach(s -> s.sample(epochSecond));
+			users.values().removeIf(s -> s.lastUsedEpochSecond < epochSecond - USER_HISTORY_SECONDS);
+		} catch (RuntimeException e) {
+			log.error("Error sampling traffic stats: " + e, e);
+		}
+	}
+
+	/**
+	 * The session calculator becomes a child of the user one
+	 */
+	public void sessionStarted(UUID lotUuid, UUID userUuid, TwoWayBandwithCalculator sessionCalculator) {
+		Source user = users.computeIfAbsent(userUuid, k -> new Source(new TwoWayBandwithCalculator(), null));
+		user.lastUsedEpochSecond = epochSecondNow();
+		sessionCalculator.setParent(user.calculator);
+		sessions.put(lotUuid, new Source(sessionCalculator, user));
+	}
+
+	public void sessionEnded(UUID lotUuid) {
+		Source s = sessions.remove(lotUuid);
+		if (s != null) {
+			s.sample(epochSecondNow()); // Last bit to the user
+		}
+		items.keySet().removeIf(k -> k.lotUuid.equals(lotUuid));
+	}
+
+	/**
+	 * @return the calculator of a tunnel item, where its sockets count their data
+	 */
+	public TwoWayBandwithCalculator getItemCalculator(UUID lotUuid, long targetId) {
+		return items.computeIfAbsent(new ItemKey(lotUuid, targetId), k -> new Source(new TwoWayBandwithCalculator(), null)).calculator;
+	}
+
+	public Optional<TrafficTimeSeries> getSessionSeries(UUID lotUuid) {
+		return Optional.ofNullable(sessions.get(lotUuid)).map(s -> s.series);
+	}
+
+	public Optional<TrafficTimeSeries> getItemSeries(UUID lotUuid, long targetId) {
+		return Optional.ofNullable(items.get(new ItemKey(lotUuid, targetId))).map(s -> s.series);
+	}
+
+	public Optional<TrafficTimeSeries> getUserSeries(UUID userUuid) {
+		return Optional.ofNullable(users.get(userUuid)).map(s -> s.series);
+	}
+
+	/**
+	 * @return bytes in and out counted so far of each user we know. It starts
+	 *         again from 0 if we forget a user.
+	 */
+	public Map<UUID, Long> getUserTotalBytes() {
+		Map<UUID, Long> res = new HashMap<>();
+		users.forEach((k, v) -> res.put(k,
+				v.calculator.getOneWayIn().getTotalBytes() + v.calculator.getOneWayOut().getTotalBytes()));
+		return res;
+	}
+
+	public Map<UUID, TrafficTimeSeries> getAllUserSeries() {
+		Map<UUID, TrafficTimeSeries> res = new HashMap<>();
+		users.forEach((k, v) -> res.put(k, v.series));
+		return res;
+	}
+
+	private static long epochSecondNow() {
+		return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+	}
+}
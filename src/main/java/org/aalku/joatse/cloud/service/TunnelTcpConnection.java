@@ -5,8 +5,10 @@ import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.aalku.joatse.cloud.tools.io.IOTools;
+import org.aalku.joatse.cloud.tools.io.TrafficClass;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -14,10 +16,29 @@ class TunnelTcpConnection extends AbstractToSocketConnection {
 
 	private final Logger log = LoggerFactory.getLogger(TunnelTcpConnection.class);
 
+	/**
+	 * Data messages we can be sending while we read the next one. With flow
+	 * control the socket window limits it too.
+	 */
+	private static final int MAX_FRAMES_IN_FLIGHT = 4;
+
 	private final AsynchronousSocketChannel tcp;
 
-	public TunnelTcpConnection(JWSSession jSession, AsynchronousSocketChannel tcp, long targetId) {
-		super(targetId, jSession, null);
+	/**
+	 * Pooled frame we are reading tcp into. Null once released or sent.
+	 */
+	private final AtomicReference<ByteBuffer> readFrame = new AtomicReference<>();
+
+	private final Object framesLock = new Object();
+	/** Frames being read or sent. Guarded by framesLock. */
+	private int framesInFlight = 0;
+	/** Waiting for a frame to be sent to read another. Guarded by framesLock. */
+	private CompletableFuture<Void> frameSlotWaiter = null;
+	/** Waiting for every frame to be sent. Guarded by framesLock. */
+	private CompletableFuture<Void> allFramesSentWaiter = null;
+
+	public TunnelTcpConnection(JWSSession jSession, AsynchronousSocketChannel tcp, long targetId, TrafficClass trafficClass) {
+		super(targetId, jSession, null, trafficClass);
 		this.tcp = tcp;
 	}
 	
@@ -58,34 +79,105 @@ class TunnelTcpConnection extends AbstractToSocketConnection {
 	}
 
 	/**
-	 *
-	 * @param buffer The buffer has no data. We have to clear it and use it.
+	 * Reads tcp directly into a data message after its header, so it's sent
+	 * without copying it.
+	 * 
+	 * It does not wait for a message to be sent to read the next one, up to
+	 * MAX_FRAMES_IN_FLIGHT and the send credit, so reading and sending overlap.
 	 */
-	private void tcpToWs(ByteBuffer buffer) {
-		tcpRead(buffer).thenAccept(bytesRead->{
+	private void tcpToWs() {
+		if (isClosing()) {
+			return;
+		}
+		awaitFrameSlot().thenCompose(x->awaitUploadLimit()).thenCompose(x->awaitSendCredit()).thenCompose(credit->{
+			if (isClosing()) {
+				return CompletableFuture.completedFuture(-1); // Closed while waiting
+			}
+			ByteBuffer frame = allocateDataFrame();
+			// Never read more than the target can receive
+			frame.limit(DATA_FRAME_HEADER_SIZE + (int) Math.min(DATA_BUFFER_SIZE, credit));
+			readFrame.set(frame);
+			return tcpRead(frame);
+		}).thenAccept(bytesRead->{
 			if (bytesRead < 0) {
-				close();
+				releaseReadFrame();
+				frameDone();
+				// Send what we read before closing
+				awaitAllFramesSent().thenRun(()->close());
 				return;
 			}
-			buffer.flip();
-			sendDataMessageToTarget(buffer).whenCompleteAsync((x, e)->{
+			ByteBuffer frame = readFrame.getAndSet(null);
+			if (frame == null) {
+				return; // Released by an error
+			}
+			frame.flip();
+			sendDataFrameToTarget(frame).whenComplete((x, e)->{
+				frameDone();
 				if (e != null) {
 					close(e, false);
-				} else {
-					// log.info("CRC32T2W = {}", Integer.toHexString((int)dataCRCT2W.getValue()) );
-					tcpToWs(buffer);
 				}
 			});
+			// log.info("CRC32T2W = {}", Integer.toHexString((int)dataCRCT2W.getValue()) );
+			tcpToWs();
 		}).exceptionally(e->{
+			releaseReadFrame();
 			close(e, false);
 			return null;
 		});
 	}
+
+	/**
+	 * Completes when we can read one more frame. The slot is ours then, give it
+	 * back with frameDone().
+	 */
+	private CompletableFuture<Void> awaitFrameSlot() {
+		synchronized (framesLock) {
+			if (framesInFlight < MAX_FRAMES_IN_FLIGHT) {
+				framesInFlight++;
+				return CompletableFuture.completedFuture(null);
+			}
+			frameSlotWaiter = new CompletableFuture<>();
+			return frameSlotWaiter;
+		}
+	}
+
+	private void frameDone() {
+		CompletableFuture<Void> waiter = null;
+		synchronized (framesLock) {
+			if (frameSlotWaiter != null) {
+				// Its slot now
+				waiter = frameSlotWaiter;
+				frameSlotWaiter = null;
+			} else if (--framesInFlight == 0 && allFramesSentWaiter != null) {
+				waiter = allFramesSentWaiter;
+				allFramesSentWaiter = null;
+			}
+		}
+		if (waiter != null) {
+			waiter.complete(null);
+		}
+	}
+
+	private CompletableFuture<Void> awaitAllFramesSent() {
+		synchronized (framesLock) {
+			if (framesInFlight == 0) {
+				return CompletableFuture.completedFuture(null);
+			}
+			allFramesSentWaiter = new CompletableFuture<>();
+			return allFramesSentWaiter;
+		}
+	}
+
+	/**
+	 * Only once nothing is reading into it
+	 */
+	private void releaseReadFrame() {
+		bufferPool.release(readFrame.getAndSet(null));
+	}
 	
 	private CompletableFuture<Integer> tcpRead(ByteBuffer readBuffer) {
 		AsynchronousSocketChannel channel = this.tcp;
 		CompletableFuture<Integer> res = new CompletableFuture<Integer>();
-		readBuffer.clear();
 		channel.read(readBuffer, null, new CompletionHandler<Integer, Void>() {
 			@Override
 			public void completed(Integer result, Void attachment) {
@@ -95,7 +187,7 @@ class TunnelTcpConnection extends AbstractToSocketConnection {
 			public void failed(Throwable exc, Void attachment) {
 				if (exc instanceof AsynchronousCloseException) {
 					close(null, true);
-					res.complete(0);
+					res.complete(-1); // Like EOF, nothing more to read
 				} else {
 					res.completeExceptionally(exc);
 				}
@@ -124,7 +216,7 @@ class TunnelTcpConnection extends AbstractToSocketConnection {
 
 	@Override
 	protected void copyFromClientToTargetForever() {
-		tcpToWs(allocateDataBuffer()); // start copying from WS to TCP
+		tcpToWs(); // start copying from WS to TCP
 	}
 
 	@Override
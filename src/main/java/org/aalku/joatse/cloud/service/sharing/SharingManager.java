@@ -25,6 +25,8 @@ import java.util.function.Consumer;
 
 import org.aalku.joatse.cloud.config.ListenerConfigurationDetector;
 import org.aalku.joatse.cloud.config.SecurityConfigurationProperties;
+import org.aalku.joatse.cloud.service.TrafficQuotaManager;
+import org.aalku.joatse.cloud.service.sharing.TunnelRegistry.Route;
 import org.aalku.joatse.cloud.service.sharing.command.CommandTunnel;
 import org.aalku.joatse.cloud.service.sharing.file.FileTunnel;
 import org.aalku.joatse.cloud.service.sharing.http.HttpEndpointGenerator;
@@ -38,6 +40,7 @@ import org.aalku.joatse.cloud.service.user.repository.UserRepository;
 import org.aalku.joatse.cloud.service.user.vo.JoatseUser;
 import org.aalku.joatse.cloud.service.user.vo.PreconfirmedShare;
 import org.aalku.joatse.cloud.tools.io.IOTools;
+import org.aalku.joatse.cloud.tools.io.PortAllocator;
 import org.aalku.joatse.cloud.tools.net.AddressRange;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -172,7 +175,8 @@ public class SharingManager implements InitializingBean, DisposableBean {
 	@Autowired
 	private UserRepository userRepository;
 
-	private Collection<Integer> tcpOpenPorts;
+	/** Set by TcpTunnelPortListenManager, it binds the ports */
+	private PortAllocator tcpPortAllocator;
 
 	@Autowired
 	private HttpEndpointGenerator httpEndpointGenerator;
@@ -182,6 +186,9 @@ public class SharingManager implements InitializingBean, DisposableBean {
 
 	@Autowired
 	private SecurityConfigurationProperties securityConfig;
+	
+	@Autowired
+	private TrafficQuotaManager trafficQuotaManager;
 
 	/**
 	 * Requests a connection need. The client user must then confirm it from the ip
@@ -289,6 +296,11 @@ public class SharingManager implements InitializingBean, DisposableBean {
 	 */
 	public void acceptTunnelRequest(UUID uuid, JoatseUser user) {
 		log.info("JoatseUser accepted tunnel request: {}", uuid);
+		if (trafficQuotaManager.isSharingRejected(user)) {
+			log.info("Tunnel request rejected, user {} is over its monthly quota: {}", user.getUuid(), uuid);
+			rejectConnectionRequest(uuid, "Monthly traffic quota exceeded");
+			return;
+		}
 		LotSharingRequest request = null;
 		TunnelCreationResult.Accepted newTunnel;
 		try {
@@ -323,10 +335,19 @@ public class SharingManager implements InitializingBean, DisposableBean {
 			throw new IllegalStateException();
 		}
 		SharedResourceLot tunnel = new SharedResourceLot(owner, request, webListenerConfiguration.getPublicHostname());
-		tunnel.selectTcpPorts(tcpOpenPorts);
-		tunnel.selectHttpEndpoints(httpEndpointGenerator);
-		tunnel.selectFileEndpoints(httpEndpointGenerator);
-		tunnelRegistry.registerTunnel(tunnel);
+		List<Integer> tcpPorts = tcpPortAllocator.acquire(tunnel.getTcpItems().size());
+		try {
+			tunnel.selectTcpPorts(tcpPorts);
+			tunnel.selectHttpEndpoints(httpEndpointGenerator);
+			tunnel.selectFileEndpoints(httpEndpointGenerator);
+		} catch (RuntimeException e) {
+			tcpPortAllocator.release(tcpPorts);
+			throw e;
+		}
+		SharedResourceLot replaced = tunnelRegistry.registerTunnel(tunnel);
+		if (replaced != null) {
+			releaseTcpPorts(replaced);
+		}
 		log.info("Tunnel registered for request {} with {} HTTP, {} file, {} TCP items", 
 			request.getUuid(), tunnel.getHttpItems().size(), tunnel.getFileItems().size(), tunnel.getTcpItems().size());
 		return tunnel;
@@ -377,11 +398,20 @@ public class SharingManager implements InitializingBean, DisposableBean {
 	}
 
 	public void removeTunnel(UUID uuid) {
-		tunnelRegistry.removeTunnel(uuid);
+		SharedResourceLot removed = tunnelRegistry.removeTunnel(uuid);
+		if (removed != null) {
+			releaseTcpPorts(removed);
+		}
+	}
+
+	private void releaseTcpPorts(SharedResourceLot lot) {
+		for (TcpTunnel tcp : lot.getTcpItems()) {
+			tcpPortAllocator.release(tcp.getListenPort());
+		}
 	}
 
-	public void setTcpOpenPorts(ArrayList<Integer> ports) {
-		this.tcpOpenPorts = ports;
+	public void setTcpPortAllocator(PortAllocator tcpPortAllocator) {
+		this.tcpPortAllocator = tcpPortAllocator;
 	}
 
 	public void receivedTcpConnection(int port, AsynchronousSocketChannel channel,
@@ -447,13 +477,26 @@ public class SharingManager implements InitializingBean, DisposableBean {
 	 * {@link httpClientEndConnectionReady()}
 	 */
 	public HttpTunnel getTunnelForHttpRequest(InetAddress remoteAddress, int serverPort, String serverName, String protocol) {
-		List<HttpTunnel> res = tunnelRegistry.findMatchingHttpTunnel(remoteAddress, serverPort, serverName, protocol);
+		return getTunnelForHttpRequest(remoteAddress, tunnelRegistry.findRoute(serverPort, serverName, protocol));
+	}
+
+	/**
+	 * What listens at the address an http request reached, to look up its http
+	 * and file tunnels without searching again.
+	 * 
+	 * @return null if nothing listens there
+	 */
+	public Route getHttpRoute(int serverPort, String serverName, String protocol) {
+		return tunnelRegistry.findRoute(serverPort, serverName, protocol);
+	}
+
+	public HttpTunnel getTunnelForHttpRequest(InetAddress remoteAddress, Route route) {
+		List<HttpTunnel> res = tunnelRegistry.findMatchingHttpTunnel(remoteAddress, route);
 		if (res.size() > 0) {
 			HttpTunnel ht = res.get(0);
 			SharedResourceLot srl = ht.getTunnel();
 			/* If not authorized maybe it should be */
-			boolean isAlreadyAllowed = srl.getAllowedAddressRanges().stream()
-				.anyMatch(range -> range.matches(remoteAddress));
+			boolean isAlreadyAllowed = srl.isAddressAllowed(remoteAddress);
 			if (!isAlreadyAllowed && srl.isAutoAuthorizeByHttpUrl()) {
 				srl.addAllowedAddressRange(AddressRange.of(remoteAddress.getHostAddress()));
 			}
@@ -474,14 +517,17 @@ public class SharingManager implements InitializingBean, DisposableBean {
 	}
 
 	public FileTunnel getTunnelForFileRequest(InetAddress remoteAddress, int serverPort, String serverName, String protocol, String requestPath) {
-		List<FileTunnel> res = tunnelRegistry.findMatchingFileTunnel(remoteAddress, serverPort, serverName, protocol, requestPath);
-		log.debug("File tunnel lookup for {}:{} - {} - {}  returned {} result(s)", serverName, serverPort, protocol, requestPath, res.size());
+		return getTunnelForFileRequest(remoteAddress, tunnelRegistry.findRoute(serverPort, serverName, protocol), requestPath);
+	}
+
+	public FileTunnel getTunnelForFileRequest(InetAddress remoteAddress, Route route, String requestPath) {
+		List<FileTunnel> res = tunnelRegistry.findMatchingFileTunnel(remoteAddress, route, requestPath);
+		log.debug("File tunnel lookup for {} returned {} result(s)", requestPath, res.size());
 		if (res.size() > 0) {
 			FileTunnel ft = res.get(0);
 			SharedResourceLot srl = ft.getSharedResourceLot();
 			/* If not authorized maybe it should be */
-			boolean isAlreadyAllowed = srl.getAllowedAddressRanges().stream()
-				.anyMatch(range -> range.matches(remoteAddress));
+			boolean isAlreadyAllowed = srl.isAddressAllowed(remoteAddress);
 			if (!isAlreadyAllowed && srl.isAutoAuthorizeByHttpUrl()) {
 				srl.addAllowedAddressRange(AddressRange.of(remoteAddress.getHostAddress()));
 			}
@@ -1,138 +1,287 @@
 package org.aalku.joatse.cloud.service.sharing;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.stream.Collectors;
 
 import org.aalku.joatse.cloud.service.sharing.file.FileTunnel;
 import org.aalku.joatse.cloud.service.sharing.http.HttpTunnel;
 import org.aalku.joatse.cloud.service.sharing.http.ListenAddress;
 import org.aalku.joatse.cloud.service.sharing.shared.SharedResourceLot;
 import org.aalku.joatse.cloud.service.sharing.shared.TcpTunnel;
-import org.aalku.joatse.cloud.tools.net.AddressRange;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
+/**
+ * Registered lots, indexed for each kind of lookup.
+ * 
+ * Indexes are never changed. Registering or removing a lot makes new ones, so
+ * lookups don't lock and don't depend on how many lots there are.
+ */
 @Component
 public class TunnelRegistry {
 	
 	static Logger log = LoggerFactory.getLogger(TunnelRegistry.class);
 
-	private Map<UUID, SharedResourceLot> tunnelsByUUID = new LinkedHashMap<>();
+	/**
+	 * Everything listening at an http(s) address: http tunnels and file tunnels
+	 * by the path of their url. Never changed, registering or removing a lot
+	 * makes new ones.
+	 */
+	public static final class Route {
+		private static final Route EMPTY = new Route(Collections.emptyList(), Collections.emptyMap());
+
+		private final List<HttpTunnel> httpTunnels;
+		private final Map<String, List<FileTunnel>> fileTunnelsByPath;
+
+		private Route(List<HttpTunnel> httpTunnels, Map<String, List<FileTunnel>> fileTunnelsByPath) {
+			this.httpTunnels = httpTunnels;
+			this.fileTunnelsByPath = fileTunnelsByPath;
+		}
+
+		public boolean hasFileTunnels() {
+			return !fileTunnelsByPath.isEmpty();
+		}
+
+		private Route withHttp(List<HttpTunnel> httpTunnels) {
+			return orNull(new Route(httpTunnels == null ? Collections.emptyList() : httpTunnels, fileTunnelsByPath));
+		}
+
+		private Route withFiles(String path, List<FileTunnel> fileTunnels) {
+			Map<String, List<FileTunnel>> files = new HashMap<>(fileTunnelsByPath);
+			if (fileTunnels == null) {
+				files.remove(path);
+			} else {
+				files.put(path, fileTunnels);
+			}
+			return orNull(new Route(httpTunnels, files.isEmpty() ? Collections.emptyMap() : files));
+		}
+
+		/**
+		 * @return null if it's empty, so it's removed from the map
+		 */
+		private static Route orNull(Route route) {
+			return route.httpTunnels.isEmpty() && route.fileTunnelsByPath.isEmpty() ? null : route;
+		}
+	}
+
+	private static class Index {
+		private static final Index EMPTY = new Index(new LinkedHashMap<>(), new HashMap<>(), new HashMap<>());
+
+		private final Map<UUID, SharedResourceLot> tunnelsByUUID;
+		/** Where each http request goes, by the address it reached */
+		private final Map<ListenAddress, Route> routes;
+		private final Map<Integer, List<TcpTunnel>> tcpByPort;
+
+		private Index(Map<UUID, SharedResourceLot> tunnelsByUUID, Map<ListenAddress, Route> routes,
+				Map<Integer, List<TcpTunnel>> tcpByPort) {
+			this.tunnelsByUUID = tunnelsByUUID;
+			this.routes = routes;
+			this.tcpByPort = tcpByPort;
+		}
+
+		private Index copy() {
+			return new Index(new LinkedHashMap<>(tunnelsByUUID), new HashMap<>(routes), new HashMap<>(tcpByPort));
+		}
+
+		private Route route(ListenAddress address) {
+			return routes.getOrDefault(address, Route.EMPTY);
+		}
+
+		private void setRoute(ListenAddress address, Route route) {
+			if (route == null) {
+				routes.remove(address);
+			} else {
+				routes.put(address, route);
+			}
+		}
+
+		private void add(SharedResourceLot tunnel) {
+			tunnelsByUUID.put(tunnel.getUuid(), tunnel);
+			for (HttpTunnel http : tunnel.getHttpItems()) {
+				Route route = route(http.getListenAddress());
+				setRoute(http.getListenAddress(), route.withHttp(with(route.httpTunnels, http)));
+			}
+			for (TcpTunnel tcp : tunnel.getTcpItems()) {
+				tcpByPort.put(tcp.getListenPort(), with(tcpByPort.get(tcp.getListenPort()), tcp));
+			}
+			for (FileTunnel file : tunnel.getFileItems()) {
+				ListenAddress fileAddress = file.getListenAddress();
+				if (fileAddress == null) {
+					log.warn("FileTunnel has null ListenAddress - targetId={}, targetDescription={}, targetPath={}", 
+						file.getTargetId(), file.getTargetDescription(), file.getTargetPath());
+					continue;
+				}
+				Route route = route(fileAddress);
+				String path = file.getListenUrl().getPath();
+				setRoute(fileAddress, route.withFiles(path, with(route.fileTunnelsByPath.get(path), file)));
+			}
+		}
+
+		private void remove(SharedResourceLot tunnel) {
+			tunnelsByUUID.remove(tunnel.getUuid());
+			for (HttpTunnel http : tunnel.getHttpItems()) {
+				Route route = route(http.getListenAddress());
+				if (route.httpTunnels.contains(http)) {
+					setRoute(http.getListenAddress(), route.withHttp(without(route.httpTunnels, http)));
+				}
+			}
+			for (TcpTunnel tcp : tunnel.getTcpItems()) {
+				tcpByPort.computeIfPresent(tcp.getListenPort(), (k, v) -> without(v, tcp));
+			}
+			for (FileTunnel file : tunnel.getFileItems()) {
+				ListenAddress fileAddress = file.getListenAddress();
+				if (fileAddress == null) {
+					continue;
+				}
+				Route route = route(fileAddress);
+				String path = file.getListenUrl().getPath();
+				List<FileTunnel> files = route.fileTunnelsByPath.get(path);
+				if (files != null && files.contains(file)) {
+					setRoute(fileAddress, route.withFiles(path, without(files, file)));
+				}
+			}
+		}
+
+		private static <E> List<E> with(List<E> list, E e) {
+			List<E> res = new ArrayList<>(list == null ? 1 : list.size() + 1);
+			if (list != null) {
+				res.addAll(list);
+			}
+			res.add(e);
+			return Collections.unmodifiableList(res);
+		}
+
+		/**
+		 * @return null if it's empty, so it's removed from the map
+		 */
+		private static <E> List<E> without(List<E> list, E e) {
+			List<E> res = new ArrayList<>(list);
+			res.remove(e);
+			return res.isEmpty() ? null : Collections.unmodifiableList(res);
+		}
+	}
+
+	/** Only changed with the lock of this */
+	private volatile Index index = Index.EMPTY;
 			
-	public synchronized List<HttpTunnel> findMatchingHttpTunnel(InetAddress remoteAddress, int serverPort, String serverName, String protocol) {
-		ListenAddress reachedAddress = new ListenAddress(serverPort, serverName, protocol);
-		List<HttpTunnel> tunnelsMatching = tunnelsByUUID.values().stream()
-				.flatMap(x -> x.getHttpItems().stream())
-				.filter(http->http.getListenAddress().equals(reachedAddress))
-				.filter(http -> {
-					SharedResourceLot t = http.getTunnel();
-					if (t.isAutoAuthorizeByHttpUrl()) {
-						return true;
-					} else {
-						// Use flexible IP address matching (supports exact IP, CIDR, and wildcards)
-						return isAddressAllowed(remoteAddress, t);
-					}
-				})
-				.collect(Collectors.toList());
-		log.debug("Found {} HTTP tunnel(s) matching: {}", tunnelsMatching.size(), reachedAddress);
+	/**
+	 * @return what listens at that address, or null if nothing does. Unknown
+	 *         hosts end here with one map lookup.
+	 */
+	public Route findRoute(int serverPort, String serverName, String protocol) {
+		return index.routes.get(new ListenAddress(serverPort, serverName, protocol));
+	}
+
+	public List<HttpTunnel> findMatchingHttpTunnel(InetAddress remoteAddress, int serverPort, String serverName, String protocol) {
+		return findMatchingHttpTunnel(remoteAddress, findRoute(serverPort, serverName, protocol));
+	}
+
+	public List<HttpTunnel> findMatchingHttpTunnel(InetAddress remoteAddress, Route route) {
+		if (route == null) {
+			return Collections.emptyList();
+		}
+		List<HttpTunnel> candidates = route.httpTunnels;
+		List<HttpTunnel> tunnelsMatching = new ArrayList<>(candidates.size());
+		for (HttpTunnel http : candidates) {
+			SharedResourceLot t = http.getTunnel();
+			// Use flexible IP address matching (supports exact IP, CIDR, and wildcards)
+			if (t.isAutoAuthorizeByHttpUrl() || isAddressAllowed(remoteAddress, t)) {
+				tunnelsMatching.add(http);
+			}
+		}
 		return tunnelsMatching;
 	}
 	
-	public synchronized List<TcpTunnel> findMatchingTcpTunnel(InetAddress remoteAddress, int listenPort) {
-		List<TcpTunnel> tunnelsMatching = tunnelsByUUID.values().stream()
-				.filter(t -> {
-					// Use flexible IP address matching (supports exact IP, CIDR, and wildcards)
-					return isAddressAllowed(remoteAddress, t);
-				})
-				.flatMap(x -> x.getTcpItems().stream())
-				.filter(tcp->tcp.getListenPort() == listenPort)
-				.collect(Collectors.toList());
+	public List<TcpTunnel> findMatchingTcpTunnel(InetAddress remoteAddress, int listenPort) {
+		List<TcpTunnel> candidates = index.tcpByPort.getOrDefault(listenPort, Collections.emptyList());
+		List<TcpTunnel> tunnelsMatching = new ArrayList<>(candidates.size());
+		for (TcpTunnel tcp : candidates) {
+			// Use flexible IP address matching (supports exact IP, CIDR, and wildcards)
+			if (isAddressAllowed(remoteAddress, tcp.getTunnel())) {
+				tunnelsMatching.add(tcp);
+			}
+		}
 		return tunnelsMatching;
 	}
 	
-	public synchronized List<FileTunnel> findMatchingFileTunnel(InetAddress remoteAddress, int serverPort, String serverName, String protocol, String requestPath) {
-		ListenAddress reachedAddress = new ListenAddress(serverPort, serverName, protocol);
-		
-		List<FileTunnel> tunnelsMatching = tunnelsByUUID.values().stream()
-				.flatMap(x -> x.getFileItems().stream())
-				.filter(file->{
-					ListenAddress fileAddress = file.getListenAddress();
-					if (fileAddress == null) {
-						log.warn("FileTunnel has null ListenAddress - targetId={}, targetDescription={}, targetPath={}", 
-							file.getTargetId(), file.getTargetDescription(), file.getTargetPath());
-						return false;
-					}
-					// Check if ListenAddress matches
-					if (!fileAddress.equals(reachedAddress)) {
-						return false;
-					}
-					// Check if request path matches the file's URL path
-					if (requestPath != null && file.getListenUrl() != null) {
-						String filePath = file.getListenUrl().getPath();
-						return requestPath.equals(filePath);
-					}
-					return true;
-				})
-				.filter(file -> {
-					SharedResourceLot t = file.getSharedResourceLot();
-					if (t.isAutoAuthorizeByHttpUrl()) {
-						return true;
-					} else {
-						// Use flexible IP address matching (supports exact IP, CIDR, and wildcards)
-						return isAddressAllowed(remoteAddress, t);
-					}
-				})
-				.collect(Collectors.toList());
-		log.debug("Found {} file tunnel(s) matching: {}", tunnelsMatching.size(), reachedAddress);
+	public List<FileTunnel> findMatchingFileTunnel(InetAddress remoteAddress, int serverPort, String serverName, String protocol, String requestPath) {
+		return findMatchingFileTunnel(remoteAddress, findRoute(serverPort, serverName, protocol), requestPath);
+	}
+
+	public List<FileTunnel> findMatchingFileTunnel(InetAddress remoteAddress, Route route, String requestPath) {
+		if (route == null) {
+			return Collections.emptyList();
+		}
+		Map<String, List<FileTunnel>> byPath = route.fileTunnelsByPath;
+		List<FileTunnel> candidates;
+		if (requestPath != null) {
+			candidates = byPath.getOrDefault(requestPath, Collections.emptyList());
+		} else {
+			candidates = new ArrayList<>();
+			byPath.values().forEach(candidates::addAll);
+		}
+		List<FileTunnel> tunnelsMatching = new ArrayList<>(candidates.size());
+		for (FileTunnel file : candidates) {
+			SharedResourceLot t = file.getSharedResourceLot();
+			// Use flexible IP address matching (supports exact IP, CIDR, and wildcards)
+			if (t.isAutoAuthorizeByHttpUrl() || isAddressAllowed(remoteAddress, t)) {
+				tunnelsMatching.add(file);
+			}
+		}
 		return tunnelsMatching;
 	}
 	
 	@SuppressWarnings("unchecked")
-	public synchronized <E> E getTunnel(UUID uuid, long targetId) {
-		SharedResourceLot srl = tunnelsByUUID.get(uuid);
+	public <E> E getTunnel(UUID uuid, long targetId) {
+		SharedResourceLot srl = index.tunnelsByUUID.get(uuid);
 		if (srl == null) {
 			return null;
 		} else {
-			Object res = srl.getHttpItem(targetId);
-			if (res == null) {
-				res = srl.getTcpItem(targetId);
-			}
-			if (res == null) {
-				res = srl.getCommandItem(targetId);
-			}
-			if (res == null) {
-				res = srl.getFileItem(targetId);
-			}
-			return (E) res;
+			return (E) srl.getItem(targetId);
 		}
 	}
 
-	public synchronized void removeTunnel(UUID uuid) {
-		tunnelsByUUID.remove(uuid);
+	/**
+	 * @return the lot removed, null if there wasn't one
+	 */
+	public synchronized SharedResourceLot removeTunnel(UUID uuid) {
+		SharedResourceLot tunnel = index.tunnelsByUUID.get(uuid);
+		if (tunnel != null) {
+			Index newIndex = index.copy();
+			newIndex.remove(tunnel);
+			index = newIndex;
+		}
+		return tunnel;
 	}
 
-	public synchronized void registerTunnel(SharedResourceLot tunnel) {
-		tunnelsByUUID.put(tunnel.getUuid(), tunnel);
+	/**
+	 * @return the lot with the same uuid it replaced, null if there wasn't one
+	 */
+	public synchronized SharedResourceLot registerTunnel(SharedResourceLot tunnel) {
+		Index newIndex = index.copy();
+		SharedResourceLot old = newIndex.tunnelsByUUID.get(tunnel.getUuid());
+		if (old != null) {
+			newIndex.remove(old);
+		}
+		newIndex.add(tunnel);
+		index = newIndex;
+		return old;
 	}
 	
 	/**
 	 * Checks if the given remote address is allowed to access the tunnel.
-	 * Uses AddressRange for flexible IP address matching supporting exact IPs, CIDR notation, and wildcards.
+	 * Exact IPs, CIDR notation and wildcards, compiled by the lot. If no address
+	 * ranges are configured access is denied.
 	 */
 	private boolean isAddressAllowed(InetAddress remoteAddress, SharedResourceLot tunnel) {
-		// Use AddressRange collection for flexible matching
-		if (!tunnel.getAllowedAddressRanges().isEmpty()) {
-			return tunnel.getAllowedAddressRanges().stream()
-				.anyMatch(addressRange -> addressRange.matches(remoteAddress));
-		}
-		
-		// If no address ranges configured, deny access
-		return false;
+		return tunnel.isAddressAllowed(remoteAddress);
 	}
 
 }
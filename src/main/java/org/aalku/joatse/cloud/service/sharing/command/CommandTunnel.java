@@ -1,6 +1,7 @@
 package org.aalku.joatse.cloud.service.sharing.command;
 
 import org.aalku.joatse.cloud.service.sharing.shared.SharedResourceLot;
+import org.aalku.joatse.cloud.tools.io.TrafficClass;
 
 public class CommandTunnel {
 
@@ -18,8 +19,11 @@ public class CommandTunnel {
 
 	private final String targetUser;
 
-	public CommandTunnel(SharedResourceLot tunnel, long targetId, String targetDescription, String targetHost, int targetPort, String targetUser, String[] command) {
+	private final TrafficClass trafficClass;
+
+	public CommandTunnel(SharedResourceLot tunnel, long targetId, String targetDescription, String targetHost, int targetPort, String targetUser, String[] command, TrafficClass trafficClass) {
 		this.tunnel = tunnel;
+		this.trafficClass = trafficClass;
 		this.targetId = targetId;
 		this.targetDescription = targetDescription;
 		this.targetHostname = targetHost;
@@ -56,4 +60,8 @@ public class CommandTunnel {
 		return targetUser;
 	}
 
+	public TrafficClass getTrafficClass() {
+		return trafficClass;
+	}
+
 }
\ No newline at end of file
@@ -35,7 +35,7 @@ class TerminalConnection extends AbstractToSocketConnection {
 	private volatile boolean closed = false;
 
 	public TerminalConnection(CommandTunnel tunnel, TerminalUpdateListener terminalUpdateHandler, JWSSession jSession, String encryptedSessionHex) {
-		super(tunnel.getTargetId(), jSession, ByteBuffer.wrap(Hex.decode(encryptedSessionHex)));
+		super(tunnel.getTargetId(), jSession, ByteBuffer.wrap(Hex.decode(encryptedSessionHex)), tunnel.getTrafficClass());
 //		this.tunnel = tunnel;
 		this.terminalUpdateHandler = terminalUpdateHandler;
 	}
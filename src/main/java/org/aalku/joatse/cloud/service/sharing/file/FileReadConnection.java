@@ -88,7 +88,7 @@ public class FileReadConnection extends AbstractToSocketConnection {
 	 * @param length Number of bytes to read (-1 for entire file, 0 for metadata only)
 	 */
 	public FileReadConnection(FileTunnel fileTunnel, JWSSession jSession, long offset, long length) {
-		super(fileTunnel.getTargetId(), jSession, createFileRequestPayload(offset, length));
+		super(fileTunnel.getTargetId(), jSession, createFileRequestPayload(offset, length), fileTunnel.getTrafficClass());
 		this.fileTunnel = fileTunnel;
 		this.offset = offset;
 		this.length = length;
@@ -7,6 +7,7 @@ import java.util.Optional;
 
 import org.aalku.joatse.cloud.service.sharing.http.ListenAddress;
 import org.aalku.joatse.cloud.service.sharing.shared.SharedResourceLot;
+import org.aalku.joatse.cloud.tools.io.TrafficClass;
 
 public class FileTunnel {
 	
@@ -14,10 +15,12 @@ public class FileTunnel {
 	private final long targetId;
 	private final String targetDescription;
 	private final String targetPath;
+	private final TrafficClass trafficClass;
 	private ListenAddress listenAddress;
 	
-	public FileTunnel(SharedResourceLot sharedResourceLot, long targetId, String targetDescription, String targetPath) {
+	public FileTunnel(SharedResourceLot sharedResourceLot, long targetId, String targetDescription, String targetPath, TrafficClass trafficClass) {
 		this.sharedResourceLot = sharedResourceLot;
+		this.trafficClass = trafficClass;
 		this.targetId = targetId;
 		this.targetDescription = targetDescription;
 		this.targetPath = targetPath;
@@ -39,6 +42,10 @@ public class FileTunnel {
 		return targetPath;
 	}
 	
+	public TrafficClass getTrafficClass() {
+		return trafficClass;
+	}
+	
 	public ListenAddress getListenAddress() {
 		return listenAddress;
 	}
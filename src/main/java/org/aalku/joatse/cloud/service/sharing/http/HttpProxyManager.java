@@ -11,6 +11,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.ref.WeakReference;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -49,10 +50,13 @@ import java.util.zip.GZIPOutputStream;
 
 import org.aalku.joatse.cloud.config.ListenerConfigurationDetector;
 import org.aalku.joatse.cloud.service.sharing.SharingManager;
+import org.aalku.joatse.cloud.service.sharing.TunnelRegistry.Route;
 import org.aalku.joatse.cloud.service.sharing.shared.SharedResourceLot;
 import org.aalku.joatse.cloud.tools.io.AsyncTcpPortListener;
 import org.aalku.joatse.cloud.tools.io.IOTools;
 import org.aalku.joatse.cloud.tools.io.PortRange;
+import org.aalku.joatse.cloud.tools.io.UrlPrefixRewriter;
+import org.aalku.joatse.cloud.tools.net.NumericAddress;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.HttpClientTransport;
 import org.eclipse.jetty.client.HttpDestination;
@@ -271,6 +275,12 @@ public class HttpProxyManager implements InitializingBean, DisposableBean {
 
 		@Override
 		protected HttpClient newHttpClient(ClientConnector clientConnector) {
+			if (inProcessHttpProxy) {
+				InProcessClientConnector inProcessConnector = new InProcessClientConnector(
+						(tunnel, channel) -> sharingManager.switchboardConnectionReady(tunnel, channel));
+				inProcessConnector.setExecutor(clientConnector.getExecutor());
+				clientConnector = inProcessConnector;
+			}
 	        HttpClient client = new HttpClient(new HttpClientTransportOverHTTP(clientConnector) {
 	        	@Override
 	        	public Origin newOrigin(HttpRequest request) {
@@ -289,9 +299,15 @@ public class HttpProxyManager implements InitializingBean, DisposableBean {
 	        	}
 	        });
 			client.getSslContextFactory().setTrustAll(unsafeHttpClient);
-			client.getProxyConfiguration().addProxy(new JoatseProxy(
-							new Origin.Address("localhost", switchboardPortListener.getAddress().getPort()), false,
-							null, null));
+			if (inProcessHttpProxy) {
+				// The tunnel knows where to go, nothing to resolve here
+				client.setSocketAddressResolver((host, port, promise) -> promise
+						.succeeded(Collections.singletonList(InetSocketAddress.createUnresolved(host, port))));
+			} else {
+				client.getProxyConfiguration().addProxy(new JoatseProxy(
+								new Origin.Address("localhost", switchboardPortListener.getAddress().getPort()), false,
+								null, null));
+			}
 			return client;
 		}
 
@@ -310,25 +326,32 @@ public class HttpProxyManager implements InitializingBean, DisposableBean {
 				HttpServletResponse servletResponse = (HttpServletResponse) response;
 
 		        // ID http or file tunnel
-				InetAddress remoteAddress = InetAddress.getByName(request.getRemoteAddr());
 				int serverPort = request.getServerPort();
 				String serverName = request.getServerName();
 				String scheme = request.getScheme();
-				log.warn("DEBUG: HttpProxyManager.service called - remoteAddress={}, serverPort={}, serverName={}, scheme={}, requestURL={}", 
-						remoteAddress, serverPort, serverName, scheme, servletRequest.getRequestURL());
-				
-				// Check for file tunnel first
-				String requestPath = servletRequest.getRequestURI();
-				org.aalku.joatse.cloud.service.sharing.file.FileTunnel fileTunnel = sharingManager.getTunnelForFileRequest(remoteAddress, serverPort, serverName, scheme, requestPath);
-				if (fileTunnel != null) {
-					log.info("Request {} {} for file tunnel {}", servletRequest.getMethod(),
-							servletRequest.getRequestURL(), fileTunnel.getTargetId());
-					handleFileRequest(servletRequest, servletResponse, fileTunnel);
-					return;
+				// Unknown hosts (bots mostly) end here, without parsing nor searching more
+				Route route = sharingManager.getHttpRoute(serverPort, serverName, scheme);
+				HttpTunnel httpTunnel = null;
+				if (route != null) {
+					InetAddress remoteAddress = NumericAddress.parse(request.getRemoteAddr());
+					log.debug("HttpProxyManager.service called - remoteAddress={}, serverPort={}, serverName={}, scheme={}", 
+							remoteAddress, serverPort, serverName, scheme);
+					
+					// Check for file tunnel first
+					if (route.hasFileTunnels()) {
+						String requestPath = servletRequest.getRequestURI();
+						org.aalku.joatse.cloud.service.sharing.file.FileTunnel fileTunnel = sharingManager.getTunnelForFileRequest(remoteAddress, route, requestPath);
+						if (fileTunnel != null) {
+							log.info("Request {} {} for file tunnel {}", servletRequest.getMethod(),
+									servletRequest.getRequestURL(), fileTunnel.getTargetId());
+							handleFileRequest(servletRequest, servletResponse, fileTunnel);
+							return;
+						}
+					}
+					
+					httpTunnel = sharingManager.getTunnelForHttpRequest(remoteAddress, route);
+					log.debug("HttpProxyManager.service found tunnel: {}", httpTunnel != null ? httpTunnel.getTargetId() : "null");
 				}
-				
-				HttpTunnel httpTunnel = sharingManager.getTunnelForHttpRequest(remoteAddress, serverPort, serverName, scheme);
-				log.warn("DEBUG: HttpProxyManager.service found tunnel: {}", httpTunnel != null ? httpTunnel.getTargetId() : "null");
 
 				if (Optional.ofNullable(servletRequest.getHeader("Upgrade")).filter(x->x.equals("websocket")).isPresent()) {
 			        websocketUpgrade(servletRequest, servletResponse, httpTunnel);
@@ -343,9 +366,15 @@ public class HttpProxyManager implements InitializingBean, DisposableBean {
 					request.setAttribute(REQUEST_KEY_HIDE_PROXY, httpTunnel.isHideProxy());
 					super.service(request, response);
 				} else {
-					log.warn("Request {}:{} {} {} rejected: Unknown tunnel or unauthorized address",
-							servletRequest.getRemoteAddr(), servletRequest.getRemotePort(),
-							servletRequest.getMethod(), servletRequest.getRequestURL());
+					if (route == null) {
+						log.debug("Request {}:{} {} {} rejected: Unknown tunnel",
+								servletRequest.getRemoteAddr(), servletRequest.getRemotePort(),
+								servletRequest.getMethod(), servletRequest.getRequestURL());
+					} else {
+						log.warn("Request {}:{} {} {} rejected: Unauthorized address",
+								servletRequest.getRemoteAddr(), servletRequest.getRemotePort(),
+								servletRequest.getMethod(), servletRequest.getRequestURL());
+					}
 					HttpServletResponse hsr = (HttpServletResponse) response;
 					try (PrintWriter pw = new PrintWriter(hsr.getOutputStream())) {
 						hsr.setStatus(511); // Network Authentication Required - IP not authorized
@@ -363,7 +392,7 @@ public class HttpProxyManager implements InitializingBean, DisposableBean {
 							
 							pw.print("<p>Can't find a shared resource matching <span id='requested-url'>" + HtmlUtils.htmlEscape(requestUrl)
 									+ "</span> allowed to be used from your IP address "
-									+ HtmlUtils.htmlEscape(remoteAddress.getHostAddress()) + "</p>");
+									+ HtmlUtils.htmlEscape(servletRequest.getRemoteAddr()) + "</p>");
 							
 							pw.print("<p>You might want to log in at <a href='"
 									+ HtmlUtils.htmlEscape(new StringBuilder(loginUrl).append("?triedToAccessHttp=" + URLEncoder.encode(requestUrl, "utf-8")).toString()) + "'>"
@@ -1113,47 +1142,52 @@ public class HttpProxyManager implements InitializingBean, DisposableBean {
 			URL clientRequestUrl = IOTools.runUnchecked(()->new URL(serverResponse.getRequest().getURI().toString()));
 			URL proxyRequestUrl = IOTools.runUnchecked(()->new URL(clientRequest.getRequestURL().toString()));
 
+			String contentType = proxyResponse.getContentType();
+			String contentEncoding = Optional.ofNullable(proxyResponse.getHeader("Content-Encoding")).orElse("identity");
+			if (!(Arrays.asList("identity", "gzip").contains(contentEncoding) && contentType != null
+					&& PATTERN_CONTENT_TYPE_TEXT.matcher(contentType).matches())) {
+				log.info("transform.response can't rewrite {}-->{} {} {}", 
+						proxyRequestUrl,
+						clientRequestUrl,
+						contentType,
+						contentEncoding);
+				return ContentTransformer.IDENTITY;
+			}
+			log.info("transform.response {}: {}-->{} {} {}", 
+					tunnel.getUuid(),
+					proxyRequestUrl,
+					clientRequestUrl,
+					contentType,
+					contentEncoding);
+			Charset charset = Charset.forName(proxyResponse.getCharacterEncoding());
+			if (UrlPrefixRewriter.supports(charset)) {
+				// On the bytes, as they come
+				ContentTransformer transformer = new UrlRewriteContentTransformer(httpTunnel.getUrlRewriter());
+				return contentEncoding.equals("gzip") ? new GZIPContentTransformer(getHttpClient(), transformer) : transformer;
+			}
+
 			return new AfterContentTransformer() {
 				@Override
 				public boolean transform(Source source, Sink sink) throws IOException {
-					String contentType = proxyResponse.getContentType();
-					String contentEncoding = Optional.ofNullable(proxyResponse.getHeader("Content-Encoding")).orElse("identity");
-					if (Arrays.asList("identity", "gzip").contains(contentEncoding) && contentType != null
-							&& PATTERN_CONTENT_TYPE_TEXT.matcher(contentType).matches()) {
-						log.info("transform.response {}: {}-->{} {} {}", 
-								tunnel.getUuid(),
-								proxyRequestUrl,
-								clientRequestUrl,
-								contentType,
-								contentEncoding);
-						Charset charset = Charset.forName(proxyResponse.getCharacterEncoding());
-
-						InputStream ins = wrap(contentEncoding, source.getInputStream());
-						OutputStream outs = wrap(contentEncoding, sink.getOutputStream());
-						BufferedReader in = new BufferedReader(new InputStreamReader(ins, charset));
-						PrintWriter out = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(outs), charset));
-						CharBuffer buffer = CharBuffer.allocate(1024 * 100);
-						while (true) {
-							int r = in.read(buffer);
-							if (r < 0) {
-								IOTools.rewriteStringContent(buffer, out, true, PATTERN_URL_PREFFIX, httpTunnel.getUrlRewriteFunction());
-								in.close();
-								out.close();
-								return true;
-							} else {
-								if (r > 0 && buffer.hasRemaining()) {
-									continue; // Buffer must be full if not last
-								}
-								IOTools.rewriteStringContent(buffer, out, false, PATTERN_URL_PREFFIX, httpTunnel.getUrlRewriteFunction());
+					// Not ASCII compatible, as chars
+					InputStream ins = wrap(contentEncoding, source.getInputStream());
+					OutputStream outs = wrap(contentEncoding, sink.getOutputStream());
+					BufferedReader in = new BufferedReader(new InputStreamReader(ins, charset));
+					PrintWriter out = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(outs), charset));
+					CharBuffer buffer = CharBuffer.allocate(1024 * 100);
+					while (true) {
+						int r = in.read(buffer);
+						if (r < 0) {
+							IOTools.rewriteStringContent(buffer, out, true, PATTERN_URL_PREFFIX, httpTunnel.getUrlRewriteFunction());
+							in.close();
+							out.close();
+							return true;
+						} else {
+							if (r > 0 && buffer.hasRemaining()) {
+								continue; // Buffer must be full if not last
 							}
+							IOTools.rewriteStringContent(buffer, out, false, PATTERN_URL_PREFFIX, httpTunnel.getUrlRewriteFunction());
 						}
-					} else {
-						log.info("transform.response can't rewrite {}-->{} {} {}", 
-								proxyRequestUrl,
-								clientRequestUrl,
-								contentType,
-								contentEncoding);
-						return false;
 					}
 				}
 				private OutputStream wrap(String contentEncoding, OutputStream out) throws IOException {
@@ -1172,6 +1206,66 @@ public class HttpProxyManager implements InitializingBean, DisposableBean {
 		}
 	}
 
+	/**
+	 * Rewrites urls as the content comes, see {@link UrlPrefixRewriter}.
+	 * 
+	 * What is not rewritten goes out as slices of the input, without copying it.
+	 * Jetty writes the output before it releases the input. Only replacements and
+	 * bytes the rewriter held are copied.
+	 */
+	private static final class UrlRewriteContentTransformer implements AsyncMiddleManServlet.ContentTransformer {
+		private final OutputStream out;
+		/** Array of the input being transformed */
+		private byte[] input;
+		private List<ByteBuffer> output;
+
+		private UrlRewriteContentTransformer(UrlPrefixRewriter rewriter) {
+			this.out = rewriter.rewrite(new OutputStream() {
+				@Override
+				public void write(int b) {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+					if (len == 0) {
+						return;
+					} else if (b == input) {
+						output.add(ByteBuffer.wrap(b, off, len));
+					} else {
+						// The rewriter's own arrays, they change
+						output.add(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+					}
+				}
+			});
+		}
+
+		@Override
+		public void transform(ByteBuffer input, boolean finished, List<ByteBuffer> output) throws IOException {
+			this.output = output;
+			try {
+				int offset;
+				if (input.hasArray()) {
+					this.input = input.array();
+					offset = input.arrayOffset() + input.position();
+				} else {
+					this.input = new byte[input.remaining()];
+					input.get(input.position(), this.input);
+					offset = 0;
+				}
+				int length = input.remaining();
+				input.position(input.limit());
+				out.write(this.input, offset, length);
+				if (finished) {
+					out.close();
+				}
+			} finally {
+				this.input = null;
+				this.output = null;
+			}
+		}
+	}
+
 	private static final class JoatseProxy extends Proxy {
 
 		private JoatseProxy(Address address, boolean secure, SslContextFactory.Client sslContextFactory,
@@ -1232,6 +1326,13 @@ public class HttpProxyManager implements InitializingBean, DisposableBean {
 	@Qualifier("switchboardPortListener")
 	private AsyncTcpPortListener<Void> switchboardPortListener;
 
+	/**
+	 * Connect the http client to the tunnels in process instead of through the
+	 * switchboard port
+	 */
+	@Value("${cloud.http.proxy.inprocess:true}")
+	private boolean inProcessHttpProxy;
+
 	@Autowired
 	public SharingManager sharingManager;
 	
@@ -1253,11 +1354,7 @@ public class HttpProxyManager implements InitializingBean, DisposableBean {
 	}
 
 	public InetAddress getRemoteInetAddress(HttpServletRequest clientRequest) {
-		try {
-			return InetAddress.getByName(clientRequest.getRemoteAddr());
-		} catch (UnknownHostException e) {
-			throw new RuntimeException(); // Impossible
-		}
+		return NumericAddress.parse(clientRequest.getRemoteAddr());
 	}
 
 	public String rewriteCookieDomain(HttpTunnel tunnel, String headerValue) {
@@ -7,11 +7,14 @@ import java.util.function.Function;
 import org.aalku.joatse.cloud.service.sharing.http.HttpProxyManager.UrlRewriteConfig;
 import org.aalku.joatse.cloud.service.sharing.shared.SharedResourceLot;
 import org.aalku.joatse.cloud.tools.io.IOTools;
+import org.aalku.joatse.cloud.tools.io.TrafficClass;
+import org.aalku.joatse.cloud.tools.io.UrlPrefixRewriter;
 
 public class HttpTunnel {
 
-	public HttpTunnel(SharedResourceLot tunnel, long targetId, String targetDescription, URL targetURL, boolean unsafe, String listenHostname, boolean hideProxy) {
+	public HttpTunnel(SharedResourceLot tunnel, long targetId, String targetDescription, URL targetURL, boolean unsafe, String listenHostname, boolean hideProxy, TrafficClass trafficClass) {
 		this.tunnel = tunnel;
+		this.trafficClass = trafficClass;
 		this.targetId = targetId;
 		this.targetDescription = targetDescription;
 		this.targetURL = targetURL;
@@ -26,12 +29,17 @@ public class HttpTunnel {
 	
 	private UrlRewriteConfig urlRewriteConfig = null;
 
+	/** Built from urlRewriteConfig.urlRewriteMap */
+	private UrlPrefixRewriter urlRewriter = null;
+
 	private final String targetDescription;
 	private final URL targetURL;
 	private final boolean hideProxy;
 
 	private final boolean unsafe;
 
+	private final TrafficClass trafficClass;
+
 	private ListenAddress listenAddress;
 
 
@@ -68,6 +76,10 @@ public class HttpTunnel {
 		return targetId;
 	}
 
+	public TrafficClass getTrafficClass() {
+		return trafficClass;
+	}
+
 	public SharedResourceLot getTunnel() {
 		return tunnel;
 	}
@@ -76,6 +88,10 @@ public class HttpTunnel {
 		return y -> urlRewriteConfig.urlRewriteMap.getOrDefault(y, y);
 	}
 
+	public synchronized UrlPrefixRewriter getUrlRewriter() {
+		return urlRewriter;
+	}
+
 	public synchronized Function<String, String> getUrlReverseRewriteFunction() {
 		return y -> urlRewriteConfig.urlReverseRewriteMap.getOrDefault(y, y);
 	}
@@ -87,6 +103,7 @@ public class HttpTunnel {
 	public void setListenAddress(ListenAddress listenAddress) {
 		this.listenAddress = listenAddress;		
 		this.urlRewriteConfig = buildUrlRewriteConfig(listenAddress, this.targetURL);
+		this.urlRewriter = new UrlPrefixRewriter(urlRewriteConfig.urlRewriteMap);
 	}
 
 	private static UrlRewriteConfig buildUrlRewriteConfig(ListenAddress listenAddress, URL targetUrl) {
@@ -0,0 +1,74 @@
+package org.aalku.joatse.cloud.service.sharing.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import org.aalku.joatse.cloud.tools.io.InProcessSocketChannel;
+import org.eclipse.jetty.client.HttpClientTransport;
+import org.eclipse.jetty.client.HttpDestination;
+import org.eclipse.jetty.io.ClientConnectionFactory;
+import org.eclipse.jetty.io.ClientConnector;
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.util.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connects the http client straight to the tunnel of the destination, in
+ * process. There's no socket to the switchboard nor handshake, the tunnel gets
+ * an {@link InProcessSocketChannel} as if it had come through the switchboard.
+ *
+ * The destination must be tagged with its {@link HttpTunnel}.
+ */
+class InProcessClientConnector extends ClientConnector {
+
+	private static final InetSocketAddress LOOPBACK = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+
+	static Logger log = LoggerFactory.getLogger(InProcessClientConnector.class);
+
+	private final BiConsumer<HttpTunnel, AsynchronousSocketChannel> tunnelConnector;
+
+	/**
+	 * @param tunnelConnector hands the channel to the tunnel
+	 */
+	InProcessClientConnector(BiConsumer<HttpTunnel, AsynchronousSocketChannel> tunnelConnector) {
+		this.tunnelConnector = tunnelConnector;
+	}
+
+	@Override
+	public void connect(SocketAddress address, Map<String, Object> context) {
+		@SuppressWarnings("unchecked")
+		Promise<Connection> promise = (Promise<Connection>) context.get(CONNECTION_PROMISE_CONTEXT_KEY);
+		InProcessEndPoint endPoint = null;
+		try {
+			HttpDestination destination = (HttpDestination) context.get(HttpClientTransport.HTTP_DESTINATION_CONTEXT_KEY);
+			Object tag = destination.getOrigin().getTag();
+			if (!(tag instanceof HttpTunnel)) {
+				throw new IOException("HttpTunnel is not tagged");
+			}
+			HttpTunnel tunnel = (HttpTunnel) tag;
+			InProcessSocketChannel channel = new InProcessSocketChannel(getExecutor(), LOOPBACK, LOOPBACK);
+			endPoint = new InProcessEndPoint(getScheduler(), getIdleTimeout().toMillis(), channel);
+			tunnelConnector.accept(tunnel, channel);
+			ClientConnectionFactory factory = (ClientConnectionFactory) context.get(CLIENT_CONNECTION_FACTORY_CONTEXT_KEY);
+			Connection connection = factory.newConnection(endPoint, context);
+			endPoint.setConnection(connection);
+			endPoint.onOpen();
+			connection.onOpen();
+			log.info("Joatse HTTP tunnel established: {}.{} --> {}", tunnel.getTunnel().getUuid(),
+					tunnel.getTargetId(), tunnel.getTargetURL());
+			promise.succeeded(connection);
+		} catch (Throwable e) {
+			log.error("Error connecting to http tunnel: " + e, e);
+			if (endPoint != null) {
+				endPoint.close(e);
+			}
+			promise.failed(e);
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package org.aalku.joatse.cloud.service.sharing.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
+import org.aalku.joatse.cloud.tools.io.InProcessSocketChannel;
+import org.eclipse.jetty.io.ByteArrayEndPoint;
+import org.eclipse.jetty.util.thread.Scheduler;
+
+/**
+ * Jetty side of an {@link InProcessSocketChannel}. What the http client
+ * writes goes to the channel and what the tunnel writes to the channel is
+ * filled to the http client, both ways with the channel's limit of bytes
+ * waiting.
+ */
+class InProcessEndPoint extends ByteArrayEndPoint implements InProcessSocketChannel.Peer {
+
+	private final InProcessSocketChannel channel;
+
+	/** The channel said it has too many bytes waiting */
+	private volatile boolean channelFull = false;
+
+	private final Object inputLock = new Object();
+	/** Bytes received and not filled yet */
+	private int pendingInput = 0;
+	/** We told the channel we don't want more */
+	private boolean inputFull = false;
+
+	InProcessEndPoint(Scheduler scheduler, long idleTimeout, InProcessSocketChannel channel) {
+		super(scheduler, idleTimeout);
+		this.channel = channel;
+		setGrowOutput(true);
+		channel.setPeer(this);
+	}
+
+	@Override
+	public boolean flush(ByteBuffer... buffers) throws IOException {
+		if (!channel.isOpen()) {
+			throw new ClosedChannelException();
+		}
+		if (channelFull) {
+			return false; // WriteFlusher waits for completeWrite()
+		}
+		super.flush(buffers);
+		ByteBuffer out = takeOutput();
+		if (out.hasRemaining()) {
+			// Before the offer, drained() can come from another thread before it returns
+			channelFull = true;
+			if (channel.offer(out)) {
+				channelFull = false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	protected void onIncompleteFlush() {
+		// drained() could have come before the flusher was waiting
+		if (!channelFull) {
+			getWriteFlusher().completeWrite();
+		}
+	}
+
+	@Override
+	public void drained() {
+		channelFull = false;
+		getWriteFlusher().completeWrite();
+	}
+
+	@Override
+	public boolean received(ByteBuffer data) {
+		boolean res;
+		synchronized (inputLock) {
+			pendingInput += data.remaining();
+			res = pendingInput < InProcessSocketChannel.MAX_PENDING_BYTES;
+			inputFull = !res;
+		}
+		addInput(data);
+		return res;
+	}
+
+	@Override
+	public int fill(ByteBuffer buffer) throws IOException {
+		int n = super.fill(buffer);
+		if (n > 0) {
+			boolean writable;
+			synchronized (inputLock) {
+				pendingInput -= n;
+				writable = inputFull && pendingInput < InProcessSocketChannel.MAX_PENDING_BYTES;
+				if (writable) {
+					inputFull = false;
+				}
+			}
+			if (writable) {
+				channel.writable();
+			}
+		}
+		return n;
+	}
+
+	@Override
+	public void receivedEOF() {
+		addInputEOF();
+	}
+
+	@Override
+	public void doShutdownOutput() {
+		super.doShutdownOutput();
+		channel.offerEOF();
+	}
+
+	@Override
+	public void doClose() {
+		super.doClose();
+		channel.peerClosed();
+	}
+}
@@ -9,11 +9,14 @@ public class ListenAddress {
 	private final int listenPort;
 	private final String cloudProtocol;
 	private final String cloudHostname;
+	/** It's a map key in every request lookup */
+	private final int hash;
 	
 	public ListenAddress(int listenPort, String cloudHostname, String cloudProtocol) {
 		this.listenPort = listenPort;
 		this.cloudProtocol = cloudProtocol;
 		this.cloudHostname = cloudHostname;
+		this.hash = Objects.hash(cloudHostname, cloudProtocol, listenPort);
 	}
 	
 	public URL getListenUrl(Optional<String> file) {
@@ -35,7 +38,7 @@ public class ListenAddress {
 	
 	@Override
 	public int hashCode() {
-		return Objects.hash(cloudHostname, cloudProtocol, listenPort);
+		return hash;
 	}
 
 	@Override
@@ -47,7 +50,7 @@ public class ListenAddress {
 		if (getClass() != obj.getClass())
 			return false;
 		ListenAddress other = (ListenAddress) obj;
-		return Objects.equals(cloudHostname, other.cloudHostname) && Objects.equals(cloudProtocol, other.cloudProtocol)
+		return hash == other.hash && Objects.equals(cloudHostname, other.cloudHostname) && Objects.equals(cloudProtocol, other.cloudProtocol)
 				&& listenPort == other.listenPort;
 	}
 }
\ No newline at end of file
@@ -15,6 +15,7 @@ import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 import org.aalku.joatse.cloud.service.sharing.SharingManager.TunnelCreationResult;
+import org.aalku.joatse.cloud.tools.io.TrafficClass;
 import org.aalku.joatse.cloud.tools.net.AddressRange;
 import org.json.JSONArray;
 import org.json.JSONArray;
@@ -125,7 +126,7 @@ public class LotSharingRequest {
 			String[] command = jo.getJSONArray("command").toList().stream().map(x->x.toString()).collect(Collectors.toList()).toArray(new String[0]);
 			// Generate default description if not provided
 			String finalDescription = TunnelDescriptionUtils.getDefaultCommandDescription(targetDescription, command);
-			items.add(new TunnelRequestCommandItem(targetId, finalDescription, targetHostname, targetPort, targetUser, command));
+			items.add(withQos(jo, new TunnelRequestCommandItem(targetId, finalDescription, targetHostname, targetPort, targetUser, command)));
 		}
 		return items;
 	}
@@ -150,7 +151,7 @@ public class LotSharingRequest {
 			boolean hideProxy = jo.optBoolean("hideProxy", false);
 			// Generate default description if not provided
 			String finalDescription = TunnelDescriptionUtils.getDefaultHttpDescription(targetDescription, targetUrl);
-			items.add(new TunnelRequestHttpItem(targetId, finalDescription, targetUrl, unsafe, Optional.empty(), hideProxy)); // TODO
+			items.add(withQos(jo, new TunnelRequestHttpItem(targetId, finalDescription, targetUrl, unsafe, Optional.empty(), hideProxy))); // TODO
 		}
 		return items;
 	}
@@ -164,7 +165,7 @@ public class LotSharingRequest {
 			String targetPath = jo.getString("targetPath");
 			// Generate default description if not provided
 			String finalDescription = TunnelDescriptionUtils.getDefaultFileDescription(targetDescription, targetPath);
-			items.add(new TunnelRequestFileItem(targetId, finalDescription, targetPath));
+			items.add(withQos(jo, new TunnelRequestFileItem(targetId, finalDescription, targetPath)));
 		}
 		return items;
 	}
@@ -179,11 +180,20 @@ public class LotSharingRequest {
 			int targetPort = jo.getInt("targetPort");
 			// Generate default description if not provided
 			String finalDescription = TunnelDescriptionUtils.getDefaultTcpDescription(targetDescription, targetHostname, targetPort);
-			items.add(new TunnelRequestTcpItem(targetId, finalDescription, targetHostname, targetPort));
+			items.add(withQos(jo, new TunnelRequestTcpItem(targetId, finalDescription, targetHostname, targetPort)));
 		}
 		return items;
 	}
 
+	/**
+	 * Optional "qos": "interactive", "default" or "bulk". Without it each item
+	 * type has its own default.
+	 */
+	private static <T extends TunnelRequestItem> T withQos(JSONObject jo, T item) {
+		item.setTrafficClass(TrafficClass.fromName(jo.optString("qos"), null));
+		return item;
+	}
+
 	public UUID getPreconfirmedUuid() {
 		return preconfirmedUuid;
 	}
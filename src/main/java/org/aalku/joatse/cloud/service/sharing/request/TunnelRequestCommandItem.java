@@ -2,6 +2,8 @@ package org.aalku.joatse.cloud.service.sharing.request;
 
 import java.util.Arrays;
 
+import org.aalku.joatse.cloud.tools.io.TrafficClass;
+
 public class TunnelRequestCommandItem extends TunnelRequestItem {
 
 	private final String[] command;
@@ -41,4 +43,9 @@ public class TunnelRequestCommandItem extends TunnelRequestItem {
 		return user;
 	}
 
+	@Override
+	protected TrafficClass getDefaultTrafficClass() {
+		return TrafficClass.INTERACTIVE;
+	}
+
 }
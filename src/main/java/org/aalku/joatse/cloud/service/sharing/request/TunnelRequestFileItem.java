@@ -2,6 +2,8 @@ package org.aalku.joatse.cloud.service.sharing.request;
 
 import java.util.Objects;
 
+import org.aalku.joatse.cloud.tools.io.TrafficClass;
+
 public class TunnelRequestFileItem extends TunnelRequestItem {
 	
 	private final String targetPath;
@@ -15,6 +17,11 @@ public class TunnelRequestFileItem extends TunnelRequestItem {
 		return targetPath;
 	}
 	
+	@Override
+	protected TrafficClass getDefaultTrafficClass() {
+		return TrafficClass.BULK;
+	}
+	
 	@Override
 	public boolean equals(TunnelRequestItem obj) {
 		if (!(obj instanceof TunnelRequestFileItem)) {
@@ -1,5 +1,9 @@
 package org.aalku.joatse.cloud.service.sharing.request;
 
+import java.util.Optional;
+
+import org.aalku.joatse.cloud.tools.io.TrafficClass;
+
 public abstract class TunnelRequestItem {
 	public final String targetDescription;
 	public final String targetHostname;
@@ -8,6 +12,10 @@ public abstract class TunnelRequestItem {
 	 * Random target port id, to id target tuple [host, port]
 	 */
 	public long targetId;
+	/**
+	 * QoS asked for in the request, null for the default of the item type
+	 */
+	private TrafficClass trafficClass = null;
 
 	public TunnelRequestItem(long targetId, String targetDescription, String targetHostname, int targetPort) {
 		this.targetId = targetId;
@@ -17,4 +25,16 @@ public abstract class TunnelRequestItem {
 	}
 	
 	public abstract boolean equals(TunnelRequestItem obj);
+
+	public TrafficClass getTrafficClass() {
+		return Optional.ofNullable(trafficClass).orElseGet(this::getDefaultTrafficClass);
+	}
+
+	public void setTrafficClass(TrafficClass trafficClass) {
+		this.trafficClass = trafficClass;
+	}
+
+	protected TrafficClass getDefaultTrafficClass() {
+		return TrafficClass.DEFAULT;
+	}
 }
\ No newline at end of file
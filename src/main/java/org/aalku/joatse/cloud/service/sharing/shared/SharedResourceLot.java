@@ -30,7 +30,9 @@ import org.aalku.joatse.cloud.service.sharing.request.TunnelRequestFileItem;
 import org.aalku.joatse.cloud.service.sharing.request.TunnelRequestHttpItem;
 import org.aalku.joatse.cloud.service.sharing.request.TunnelRequestTcpItem;
 import org.aalku.joatse.cloud.service.user.vo.JoatseUser;
+import org.aalku.joatse.cloud.tools.io.LongObjectMap;
 import org.aalku.joatse.cloud.tools.net.AddressRange;
+import org.aalku.joatse.cloud.tools.net.ConcurrentAddressSet;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
@@ -45,7 +47,7 @@ public class SharedResourceLot {
 	private final JoatseUser owner;
 	private final UUID uuid;
 	private final String cloudPublicHostname;
-	private Collection<AddressRange> allowedAddressRanges;
+	private final ConcurrentAddressSet allowedAddresses;
 	private final InetSocketAddress requesterAddress;
 	private final Instant creationTime;
 	/**
@@ -57,6 +59,8 @@ public class SharedResourceLot {
 	private Collection<HttpTunnel> httpItems = new ArrayList<>(1);
 	private Collection<CommandTunnel> commandItems = new ArrayList<>(1);
 	private Collection<FileTunnel> fileItems = new ArrayList<>(1);
+	/** All the items by targetId */
+	private final LongObjectMap<Object> itemsById;
 	private boolean authorizeByHttpUrl;
 	private Supplier<CompletableFuture<byte[]>> targetPublicKeyProvider;
 
@@ -65,8 +69,7 @@ public class SharedResourceLot {
 		this.uuid = request.getUuid();
 		this.cloudPublicHostname = cloudPublicHostname;
 		this.requesterAddress = request.getRequesterAddress();
-		// Copy AddressRange collection from request
-		this.allowedAddressRanges = new ArrayList<>(request.getAllowedAddressRanges());
+		this.allowedAddresses = new ConcurrentAddressSet(request.getAllowedAddressRanges());
 		this.creationTime = request.getCreationTime();
 		
 		List<TunnelRequestTcpItem> rItems = request.getItems().stream().filter(x -> x instanceof TunnelRequestTcpItem)
@@ -96,7 +99,12 @@ public class SharedResourceLot {
 
 		this.authorizeByHttpUrl = request.isAutoAuthorizeByHttpUrl();
 
-		
+		LongObjectMap.Builder<Object> itemsById = new LongObjectMap.Builder<>();
+		tcpItems.forEach(i -> itemsById.put(i.targetId, i));
+		this.httpItems.forEach(i -> itemsById.put(i.getTargetId(), i));
+		commandItems.forEach(i -> itemsById.put(i.getTargetId(), i));
+		fileItems.forEach(i -> itemsById.put(i.getTargetId(), i));
+		this.itemsById = itemsById.build();
 	}
 
 	public void setTcpConnectionConsumer(BiConsumer<Long, AsynchronousSocketChannel> tcpConnectionListener) {
@@ -104,42 +112,43 @@ public class SharedResourceLot {
 	}
 	
 	public Collection<AddressRange> getAllowedAddressRanges() {
-		synchronized (allowedAddressRanges) {
-			return new ArrayList<>(allowedAddressRanges);
-		}
+		return allowedAddresses.getRanges();
 	}
 	
+	/**
+	 * Adds it without copying the others, it's done for every address that opens
+	 * a link
+	 */
 	public void addAllowedAddressRange(AddressRange addressRange) {
-		synchronized (allowedAddressRanges) {
-			allowedAddressRanges.add(addressRange);
-		}		
+		allowedAddresses.add(addressRange);
 	}
 	
 	public void setAllowedAddressRanges(Collection<AddressRange> addressRanges) {
-		synchronized (allowedAddressRanges) {
-			this.allowedAddressRanges.clear();
-			if (addressRanges != null) {
-				this.allowedAddressRanges.addAll(addressRanges);
-			}
-		}
+		allowedAddresses.set(addressRanges == null ? Collections.emptyList() : addressRanges);
+	}
+
+	/**
+	 * Checks the address against the allowed ranges without copying them. It's
+	 * called on every request.
+	 */
+	public boolean isAddressAllowed(InetAddress address) {
+		return allowedAddresses.contains(address);
 	}
 	
 	// Backward compatibility method - converts AddressRange back to InetAddress where possible
 	@Deprecated
 	public Collection<InetAddress> getAllowedAddresses() {
-		synchronized (allowedAddressRanges) {
-			return allowedAddressRanges.stream()
-				.filter(AddressRange::isExact) // Only exact IPs can be converted back to InetAddress
-				.map(range -> {
-					try {
-						return InetAddress.getByName(range.toString());
-					} catch (Exception e) {
-						return null;
-					}
-				})
-				.filter(addr -> addr != null)
-				.collect(Collectors.toCollection(LinkedHashSet::new));
-		}
+		return allowedAddresses.getRanges().stream()
+			.filter(AddressRange::isExact) // Only exact IPs can be converted back to InetAddress
+			.map(range -> {
+				try {
+					return InetAddress.getByName(range.toString());
+				} catch (Exception e) {
+					return null;
+				}
+			})
+			.filter(addr -> addr != null)
+			.collect(Collectors.toCollection(LinkedHashSet::new));
 	}
 	
 	// Backward compatibility method
@@ -165,36 +174,47 @@ public class SharedResourceLot {
 	}
 
 	private void addTcpItem(TunnelRequestTcpItem r) {
-		TcpTunnel i = new TcpTunnel(this, r.targetId, r.targetDescription, r.targetHostname, r.targetPort);
+		TcpTunnel i = new TcpTunnel(this, r.targetId, r.targetDescription, r.targetHostname, r.targetPort, r.getTrafficClass());
 		tcpItems.add(i);
 	}
 	
 	private void addHttpItem(TunnelRequestHttpItem r) {
-		httpItems.add(new HttpTunnel(this, r.targetId, r.targetDescription, r.getTargetUrl(), r.isUnsafe(), r.getListenHostname(), r.isHideProxy()));
+		httpItems.add(new HttpTunnel(this, r.targetId, r.targetDescription, r.getTargetUrl(), r.isUnsafe(), r.getListenHostname(), r.isHideProxy(), r.getTrafficClass()));
 	}
 	
 	private void addCommandItem(TunnelRequestCommandItem r) {
-		commandItems.add(new CommandTunnel(this, r.targetId, r.targetDescription, r.targetHostname, r.targetPort, r.getTargetUser(), r.getCommand()));
+		commandItems.add(new CommandTunnel(this, r.targetId, r.targetDescription, r.targetHostname, r.targetPort, r.getTargetUser(), r.getCommand(), r.getTrafficClass()));
 	}
 	
 	private void addFileItem(TunnelRequestFileItem r) {
-		fileItems.add(new FileTunnel(this, r.targetId, r.targetDescription, r.getTargetPath()));
+		fileItems.add(new FileTunnel(this, r.targetId, r.targetDescription, r.getTargetPath(), r.getTrafficClass()));
+	}
+
+	/**
+	 * @return the item of any kind with that targetId, or null
+	 */
+	public Object getItem(long targetId) {
+		return itemsById.get(targetId);
 	}
 
 	public TcpTunnel getTcpItem(long targetId) {
-		return tcpItems.stream().filter(i->i.targetId==targetId).findAny().orElse(null);
+		Object item = itemsById.get(targetId);
+		return item instanceof TcpTunnel ? (TcpTunnel) item : null;
 	}
 
 	public HttpTunnel getHttpItem(long targetId) {
-		return getHttpItems().stream().filter(i->i.getTargetId()==targetId).findAny().orElse(null);
+		Object item = itemsById.get(targetId);
+		return item instanceof HttpTunnel ? (HttpTunnel) item : null;
 	}
 
 	public CommandTunnel getCommandItem(long targetId) {
-		return getCommandItems().stream().filter(i->i.getTargetId()==targetId).findAny().orElse(null);
+		Object item = itemsById.get(targetId);
+		return item instanceof CommandTunnel ? (CommandTunnel) item : null;
 	}
 	
 	public FileTunnel getFileItem(long targetId) {
-		return getFileItems().stream().filter(i->i.getTargetId()==targetId).findAny().orElse(null);
+		Object item = itemsById.get(targetId);
+		return item instanceof FileTunnel ? (FileTunnel) item : null;
 	}
 	
 	public Collection<TcpTunnel> getTcpItems() {
@@ -275,6 +295,7 @@ public class SharedResourceLot {
 				o.put("targetDescription", i.getTargetDescription());
 				o.put("targetUrl", i.getTargetURL());
 				o.put("unsafe", String.valueOf(i.isUnsafe()));
+				o.put("qos", i.getTrafficClass().getName());
 				a.put(o);
 			}
 			res.put("httpTunnels", a);
@@ -301,6 +322,7 @@ public class SharedResourceLot {
 					o.put("targetDescription", i.targetDescription);
 					o.put("targetHostname", i.targetHostname);
 					o.put("targetPort", i.targetPort);
+					o.put("qos", i.getTrafficClass().getName());
 					a.put(o);
 				}
 				res.put("tcpTunnels", a);
@@ -318,6 +340,7 @@ public class SharedResourceLot {
 				o.put("targetPort", i.getTargetPort());
 				o.put("targetUser", i.getTargetUser());
 				o.put("command", new JSONArray(Arrays.asList(i.getCommand())));
+				o.put("qos", i.getTrafficClass().getName());
 				a.put(o);
 			}
 			res.put("commandTunnels", a);
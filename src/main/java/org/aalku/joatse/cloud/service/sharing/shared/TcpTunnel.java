@@ -1,5 +1,7 @@
 package org.aalku.joatse.cloud.service.sharing.shared;
 
+import org.aalku.joatse.cloud.tools.io.TrafficClass;
+
 public class TcpTunnel {
 	/**
 	 * 
@@ -14,9 +16,11 @@ public class TcpTunnel {
 	public final String targetHostname;
 	public final int targetPort;
 	private int listenPort;
+	private final TrafficClass trafficClass;
 
-	public TcpTunnel(SharedResourceLot sharedResourceLot, long targetId, String targetDescription, String targetHostname, int targetPort) {
+	public TcpTunnel(SharedResourceLot sharedResourceLot, long targetId, String targetDescription, String targetHostname, int targetPort, TrafficClass trafficClass) {
 		this.sharedResourceLot = sharedResourceLot;
+		this.trafficClass = trafficClass;
 		this.targetId = targetId;
 		this.targetDescription = targetDescription;
 		this.targetHostname = targetHostname;
@@ -35,4 +39,7 @@ public class TcpTunnel {
 	public long getTargetId() {
 		return targetId;
 	}
+	public TrafficClass getTrafficClass() {
+		return trafficClass;
+	}
 }
\ No newline at end of file
@@ -30,6 +30,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.mail.SimpleMailMessage;
@@ -82,6 +83,9 @@ public class UserManager {
 
 	@Autowired
 	private JoatseTokenManager joatseJwtTokenManager;
+	
+	@Autowired
+	private ApplicationEventPublisher eventPublisher;
 
 	private Logger log = LoggerFactory.getLogger(UserManager.class);
 
@@ -212,6 +216,7 @@ public class UserManager {
 					throw new IllegalArgumentException("User does not exist: " + u.getUsername());
 				}
 				userRepository.save(u);
+				eventPublisher.publishEvent(new UserUpdatedEvent(u));
 			}
 
 			@Override
@@ -0,0 +1,19 @@
+package org.aalku.joatse.cloud.service.user;
+
+import org.aalku.joatse.cloud.service.user.vo.JoatseUser;
+
+/**
+ * Published after a user is saved with its changes
+ */
+public class UserUpdatedEvent {
+
+	private final JoatseUser user;
+
+	public UserUpdatedEvent(JoatseUser user) {
+		this.user = user;
+	}
+
+	public JoatseUser getUser() {
+		return user;
+	}
+}
@@ -0,0 +1,10 @@
+package org.aalku.joatse.cloud.service.user.repository;
+
+import org.aalku.joatse.cloud.service.user.vo.MonthlyTraffic;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface MonthlyTrafficRepository extends CrudRepository<MonthlyTraffic, String> {
+	
+}
@@ -81,6 +81,17 @@ public class JoatseUser implements UserDetails, Serializable {
 	@ElementCollection(fetch = FetchType.EAGER)
 	private Set<String> grantedAuthoritiesList; 
 	
+	/**
+	 * Bandwith limit of all the sessions of the user together, in bps. Null for
+	 * no limit.
+	 */
+	private Long bandwithLimit;
+	
+	/**
+	 * Bytes per month, null for the default quota
+	 */
+	private Long monthlyQuota;
+	
 	public static JoatseUser newLocalUser(String login, boolean emailNeedsConfirmation) {
 		JoatseUser user = new JoatseUser();
 		user.uuid = UUID.randomUUID();
@@ -217,8 +228,19 @@ public class JoatseUser implements UserDetails, Serializable {
 	}
 
 	public Optional<Long> getBandwithLimit() {
-		// TODO Auto-generated method stub
-		return Optional.empty();
+		return Optional.ofNullable(bandwithLimit).filter(n -> n > 0L);
+	}
+
+	public void setBandwithLimit(Long bandwithLimit) {
+		this.bandwithLimit = bandwithLimit;
+	}
+
+	public Optional<Long> getMonthlyQuota() {
+		return Optional.ofNullable(monthlyQuota).filter(n -> n > 0L);
+	}
+
+	public void setMonthlyQuota(Long monthlyQuota) {
+		this.monthlyQuota = monthlyQuota;
 	}
 
 	public Map<String, String> asAttributeMap() {
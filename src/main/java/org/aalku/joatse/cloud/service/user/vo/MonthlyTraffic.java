@@ -0,0 +1,69 @@
+package org.aalku.joatse.cloud.service.user.vo;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+
+/**
+ * Bytes a user transferred in a month, for quotas and billing
+ */
+@Entity(name = "monthlyTraffic")
+public class MonthlyTraffic implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * User uuid and month, like "uuid/2024-01"
+	 */
+	@Id
+	private String id;
+
+	@Column
+	private UUID userUuid;
+
+	/**
+	 * Like "2024-01"
+	 */
+	@Column
+	private String month;
+
+	@Column
+	private long bytes;
+
+	public MonthlyTraffic() {
+	}
+
+	public MonthlyTraffic(UUID userUuid, String month, long bytes) {
+		this.id = idOf(userUuid, month);
+		this.userUuid = userUuid;
+		this.month = month;
+		this.bytes = bytes;
+	}
+
+	public static String idOf(UUID userUuid, String month) {
+		return userUuid + "/" + month;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public UUID getUserUuid() {
+		return userUuid;
+	}
+
+	public String getMonth() {
+		return month;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public void setBytes(long bytes) {
+		this.bytes = bytes;
+	}
+}
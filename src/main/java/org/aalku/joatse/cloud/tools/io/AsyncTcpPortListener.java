@@ -63,7 +63,17 @@ public class AsyncTcpPortListener<E> {
 			// Callback is called in another thread so it doesn't have the inherited context
 			// (locks, threadLocals...).
 			closed.set(true);
-			ForkJoinPool.commonPool().execute(() -> callback.accept(new Event<E>(null, e, context)));
+			if (ass != null) {
+				try {
+					ass.close(); // Don't keep the file descriptor
+				} catch (IOException e1) {
+				}
+			}
+			ForkJoinPool.commonPool().execute(() -> {
+				if (callback != null) {
+					callback.accept(new Event<E>(null, e, context));
+				}
+			});
 		}
 	}
 	public AsyncTcpPortListener(InetAddress address, int port, E context, Consumer<AsyncTcpPortListener.Event<E>> callback) {
@@ -102,6 +112,9 @@ public class AsyncTcpPortListener<E> {
 		this.close(null);
 	}
 
+	/**
+	 * @return null if it couldn't bind
+	 */
 	public InetSocketAddress getAddress() {
 		return address;
 	}
@@ -109,7 +122,9 @@ public class AsyncTcpPortListener<E> {
 	public void start(E context, Consumer<AsyncTcpPortListener.Event<E>> callback) {
 		this.callback = callback;
 		this.context = context;
-		registerAcceptCycle();		
+		if (!closed.get()) {
+			registerAcceptCycle();
+		}
 	}
 
 }
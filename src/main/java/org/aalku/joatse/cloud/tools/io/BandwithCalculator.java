@@ -1,10 +1,13 @@
 package org.aalku.joatse.cloud.tools.io;
 
-import java.util.Optional;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.LongAdder;
 
 public abstract class BandwithCalculator {
 	
@@ -43,81 +46,146 @@ public abstract class BandwithCalculator {
 	}
 
 	
+	/**
+	 * Time a rate is averaged over. Recent traffic weights more (EWMA).
+	 */
+	public enum Horizon {
+		SECOND(1), TEN_SECONDS(10), MINUTE(60);
+
+		private final long nanos;
+
+		private Horizon(long seconds) {
+			this.nanos = TimeUnit.SECONDS.toNanos(seconds);
+		}
+	}
+
+	/**
+	 * Samples every calculator once a second. It only holds them weakly, so
+	 * nobody has to unregister them.
+	 */
+	private static class Sampler {
+		private static final long SAMPLE_EVERY_NANOS = TimeUnit.SECONDS.toNanos(1);
+		private static final Queue<WeakReference<OneWayBandwithCalculator>> calculators = new ConcurrentLinkedQueue<>();
+
+		static {
+			ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "bandwith_sampler");
+				t.setDaemon(true);
+				return t;
+			});
+			executor.scheduleAtFixedRate(Sampler::sampleAll, SAMPLE_EVERY_NANOS, SAMPLE_EVERY_NANOS, TimeUnit.NANOSECONDS);
+		}
+
+		private static void register(OneWayBandwithCalculator c) {
+			calculators.add(new WeakReference<>(c));
+		}
+
+		private static void sampleAll() {
+			long now = System.nanoTime();
+			for (Iterator<WeakReference<OneWayBandwithCalculator>> it = calculators.iterator(); it.hasNext();) {
+				OneWayBandwithCalculator c = it.next().get();
+				if (c == null) {
+					it.remove();
+				} else {
+					c.sample(now);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Counts traffic without locks. Reporting a packet only adds to striped
+	 * counters (ours and the parents'), the rates are calculated by the sampler
+	 * in the background and reading them is just a volatile read.
+	 */
 	public static class OneWayBandwithCalculator {
-		private static final int noTrafficSeconds = 4;
-		private static final long nanosPerSecond = TimeUnit.SECONDS.toNanos(1);
-		private static final long snapshotEveryNanos = nanosPerSecond * 2;
-		private static final long noTrafficNanos = snapshotEveryNanos * noTrafficSeconds;
-
-		private final ReentrantLock writeLock = new ReentrantLock();
-		private final AtomicLong totalTraffic = new AtomicLong(0L);		
-		private final AtomicLong snapshotTraffic = new AtomicLong(0L);
-		private final AtomicLong totalPackets = new AtomicLong(0L);		
-		private final AtomicLong snapshotPackets = new AtomicLong(0L);
-		private final AtomicLong snapshotNanoTime = new AtomicLong(System.nanoTime());
-		private final AtomicLong bps = new AtomicLong(0L);
-		private final AtomicLong pps = new AtomicLong(0L);
-		private final AtomicReference<OneWayBandwithCalculator> parent = new AtomicReference<>(null);
+		private static final Horizon[] horizons = Horizon.values();
+
+		private final LongAdder totalTraffic = new LongAdder();
+		private final LongAdder totalPackets = new LongAdder();
+		private volatile OneWayBandwithCalculator parent = null;
+
+		/* Only the sampler uses these */
+		private long sampleNanoTime;
+		private long sampleTraffic = 0L;
+		private long samplePackets = 0L;
+		private final double[] bpsAverage = new double[horizons.length];
+		private final double[] ppsAverage = new double[horizons.length];
+
+		/** By horizon */
+		private volatile OneWayTraffic[] traffic;
+
+		public OneWayBandwithCalculator() {
+			this(true);
+		}
+
+		/**
+		 * @param sampled false if the one who creates it calls {@link #sample(long)}
+		 */
+		OneWayBandwithCalculator(boolean sampled) {
+			sampleNanoTime = System.nanoTime();
+			OneWayTraffic zero = new OneWayTraffic(0L, 0L);
+			traffic = new OneWayTraffic[] { zero, zero, zero };
+			if (sampled) {
+				Sampler.register(this);
+			}
+		}
+
 		public void reportPacket(long bytes) {
-			writeLock.lock();
-			try {
-				/* order might be important */
-				long t = System.nanoTime();
-				long tp = totalPackets.get();
-				long tt = totalTraffic.get();
-				long dtimeNanos = t - snapshotNanoTime.get();
-				boolean nextSlot = dtimeNanos > snapshotEveryNanos;
-				if (nextSlot) {
-					long dtraffic = tt - snapshotTraffic.get();
-					long dPackets = tp - snapshotPackets.get();
-					float dtSeconds = (((float)dtimeNanos) / (float) nanosPerSecond);
-					this.bps.set((long) (dtraffic * 8 / dtSeconds));
-					this.pps.set((long) (dPackets / dtSeconds));
-					snapshotNanoTime.set(t);
-					snapshotPackets.set(tp);
-					snapshotTraffic.set(tt);
-				}
-				totalPackets.incrementAndGet();
-				totalTraffic.addAndGet(bytes);
-			} finally {
-				writeLock.unlock();
+			for (OneWayBandwithCalculator c = this; c != null; c = c.parent) {
+				c.totalTraffic.add(bytes);
+				c.totalPackets.increment();
 			}
-			Optional.ofNullable(parent.get()).ifPresent(p->p.reportPacket(bytes));
-		}
-		private void handleNoTraffic() {
-			/* order might be important */
-			long t = System.nanoTime();
-			long sp = snapshotPackets.get();
-			long tp = totalPackets.get(); // <- This would be the first to be increased, sp can't be higher
-			if (sp == tp) { // Maybe no traffic
-				long dtimeNanos = t - snapshotNanoTime.get();
-				if (dtimeNanos > noTrafficNanos) {
-					// No traffic for 4 seconds. Lock and check again
-					writeLock.lock();
-					try {
-						// check again and snapshot
-						t = System.nanoTime();
-						dtimeNanos = t - snapshotNanoTime.get();
-						tp = totalPackets.get();
-						if (sp == tp && dtimeNanos > noTrafficNanos) {
-							// No traffic for more than noTrafficNanos
-							long tt = totalTraffic.get();
-							snapshotNanoTime.set(t);
-							snapshotPackets.set(tp);
-							snapshotTraffic.set(tt);
-						}
-					} finally {
-						writeLock.unlock();
-					}
-				}
+		}
+
+		/**
+		 * Updates the averages with the traffic since the last sample. Only the
+		 * sampler calls it.
+		 */
+		void sample(long now) {
+			long dtNanos = now - sampleNanoTime;
+			if (dtNanos <= 0) {
+				return;
 			}
+			long tt = totalTraffic.sum();
+			long tp = totalPackets.sum();
+			double dtSeconds = dtNanos / (double) TimeUnit.SECONDS.toNanos(1);
+			double bps = (tt - sampleTraffic) * 8 / dtSeconds;
+			double pps = (tp - samplePackets) / dtSeconds;
+			sampleNanoTime = now;
+			sampleTraffic = tt;
+			samplePackets = tp;
+			OneWayTraffic[] res = new OneWayTraffic[horizons.length];
+			for (int i = 0; i < horizons.length; i++) {
+				double alpha = 1d - Math.exp(-dtNanos / (double) horizons[i].nanos);
+				bpsAverage[i] += alpha * (bps - bpsAverage[i]);
+				ppsAverage[i] += alpha * (pps - ppsAverage[i]);
+				res[i] = new OneWayTraffic(Math.round(bpsAverage[i]), Math.round(ppsAverage[i]));
+			}
+			traffic = res;
 		}
+
+		/**
+		 * @return the traffic of the last 10 seconds or so
+		 */
 		public OneWayTraffic getTraffic() {
-			handleNoTraffic();
-			return new OneWayTraffic(this.bps.get(), this.pps.get());
+			return getTraffic(Horizon.TEN_SECONDS);
 		}
+
+		public OneWayTraffic getTraffic(Horizon horizon) {
+			return traffic[horizon.ordinal()];
+		}
+
+		public long getTotalBytes() {
+			return totalTraffic.sum();
+		}
+
+		public long getTotalPackets() {
+			return totalPackets.sum();
+		}
+
 		public void setParent(OneWayBandwithCalculator parent) {
-			this.parent.set(parent);
+			this.parent = parent;
 		}
 	}
 		
@@ -2,39 +2,94 @@ package org.aalku.joatse.cloud.tools.io;
 
 import java.io.IOException;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.function.Function;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Token bucket bandwith limiter with an optional parent that limits too. It
+ * does not wait, it tells you how long to pause.
+ * 
+ * It knows about {@link TrafficClass}: interactive traffic does not pause while
+ * it's under the interactive cap, but it counts, so the others pause for it.
+ * Bulk traffic never gets the burst.
+ */
 public class BandwithLimiter {
 	
-	private BandwithLimiter parent;
+	private volatile BandwithLimiter parent;
 	
+	/**
+	 * A pause that ends at a deadline (System.nanoTime(), or the clock of the
+	 * limiter). Better not to sleep it but to schedule what's next for then with
+	 * {@link #getRemainingNanos()}.
+	 */
 	public static class Pause {
 
-		public static final Pause ZERO = new Pause(0L);
-		private long nanosWait;
+		public static final Pause ZERO = new Pause(0L, 0L, null); // No clock needed
+		private final long nanosWait;
+		private final long deadlineNanos;
+		private final LongSupplier nanoClock;
 
 		public Pause(long nanosWait) {
+			this(nanosWait, System::nanoTime);
+		}
+
+		private Pause(long nanosWait, LongSupplier nanoClock) {
+			this(nanosWait, nanoClock.getAsLong(), nanoClock);
+		}
+
+		/**
+		 * @param now what nanoClock said when the pause started
+		 */
+		Pause(long nanosWait, long now, LongSupplier nanoClock) {
 			this.nanosWait = nanosWait;
+			this.nanoClock = nanoClock;
+			this.deadlineNanos = nanosWait > 0 ? now + nanosWait : 0L;
 		}
 
+		/**
+		 * Blocks the thread until the deadline. Use only in threads of your own.
+		 */
 		public void sleep() throws IOException {
-			try {
-				Thread.sleep(TimeUnit.NANOSECONDS.toMillis(nanosWait));
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
-				throw new IOException("Interrupted bandwith limit sleep");
+			long remaining;
+			while ((remaining = getRemainingNanos()) > 0) {
+				LockSupport.parkNanos(remaining);
+				if (Thread.interrupted()) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted bandwith limit sleep");
+				}
 			}
 		}
 
+		public long getNanos() {
+			return nanosWait;
+		}
+
+		public long getDeadlineNanos() {
+			return deadlineNanos;
+		}
+
+		/**
+		 * @return nanos until the deadline, 0 if it's over
+		 */
+		public long getRemainingNanos() {
+			return nanosWait <= 0 ? 0L : Math.max(0L, deadlineNanos - nanoClock.getAsLong());
+		}
+
 		public Pause orGreater(Pause parentPause) {
 			return this.nanosWait >= parentPause.nanosWait ? this : parentPause;
 		}
@@ -58,42 +113,170 @@ public class BandwithLimiter {
 
 	private Logger log = LoggerFactory.getLogger(BandwithLimiter.class);
 	
+	/**
+	 * Bytes counted in a time window. A new one starts with the first packet
+	 * after the current one is windowTimeNanos old.
+	 */
 	private static class MeasureWindow {
-		private final long startTime = System.nanoTime();
-		private AtomicReference<Long> endTime = new AtomicReference<>(null);
-		private AtomicLong byteCount = new AtomicLong(0L);
-		public void update(long byteCount) {
-			if (endTime.get() != null) {
-				throw new IllegalStateException("Window already closed");
-			}
-			this.byteCount.addAndGet(byteCount);
-		}
-		public void close() {
-			if (!endTime.compareAndSet(null, System.nanoTime())) {
-				throw new IllegalStateException("Window already closed");
-			}
+		private final long seq;
+		private final long startTime;
+		private final AtomicLong byteCount = new AtomicLong(0L);
+		private MeasureWindow(long seq, long startTime) {
+			this.seq = seq;
+			this.startTime = startTime;
 		}
 		@Override
 		public String toString() {
 			long nowN = System.nanoTime();
 			long nowM = System.currentTimeMillis();
 			long bytes = byteCount.get();
-			Function<Long, Instant> mapNanos = n->Instant.ofEpochMilli(nowM - TimeUnit.NANOSECONDS.toMillis(nowN - n));
-			long end = Optional.ofNullable(endTime.get()).orElse(nowN);
-			long deltaMillis = TimeUnit.NANOSECONDS.toMillis(end - startTime);
-			return String.format("w[%s --> %s ; b = %d, bps = %s]", mapNanos.apply(startTime), mapNanos.apply(end), bytes, deltaMillis == 0L ? 0 : bytes * 1000 / deltaMillis);
+			Instant start = Instant.ofEpochMilli(nowM - TimeUnit.NANOSECONDS.toMillis(nowN - startTime));
+			return String.format("w[%s ; b = %d]", start, bytes);
 		}
 	}
 	
+	/**
+	 * Max-min fair share of a parent between its active children. Every child
+	 * gets the same limit (the level) so the ones that want less than that keep
+	 * what they use and the rest is split equally between the others.
+	 */
+	private static class FairShare {
+		private static final long UPDATE_EVERY_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+		/** Update rounds without traffic to forget a child. It might be just pausing. */
+		private static final int IDLE_ROUNDS = 5;
+
+		private static class Demand {
+			private final LongAdder bytes = new LongAdder();
+			/** It had to pause because of the level, so it wants more */
+			private volatile boolean saturated = false;
+			private int idleRounds = 0;
+			/** Of the last round with traffic */
+			private boolean lastSaturated;
+			private long lastRateBps;
+		}
+
+		private final Map<BandwithLimiter, Demand> children = new ConcurrentHashMap<>();
+		private final AtomicLong lastUpdate;
+		/** Limit for each child, 0 if none */
+		private volatile long levelBps = 0;
+
+		private FairShare(long now) {
+			lastUpdate = new AtomicLong(now);
+		}
+
+		private void report(BandwithLimiter child, long bytes, boolean saturated, long now, long capacityBps) {
+			Demand d = children.get(child);
+			if (d == null) {
+				d = Optional.ofNullable(children.putIfAbsent(child, new Demand())).orElseGet(() -> children.get(child));
+			}
+			d.bytes.add(bytes);
+			if (saturated) {
+				d.saturated = true;
+			}
+			long last = lastUpdate.get();
+			if (now - last >= UPDATE_EVERY_NANOS && lastUpdate.compareAndSet(last, now)) {
+				update(now - last, capacityBps);
+			}
+		}
+
+		/**
+		 * Only one thread at a time, the one that moved lastUpdate
+		 */
+		private void update(long elapsedNanos, long capacityBps) {
+			List<Long> rates = new ArrayList<>();
+			int saturated = 0;
+			for (Iterator<Demand> it = children.values().iterator(); it.hasNext();) {
+				Demand d = it.next();
+				long bytes = d.bytes.sumThenReset();
+				boolean s = d.saturated;
+				d.saturated = false;
+				if (bytes == 0 && !s) {
+					if (++d.idleRounds >= IDLE_ROUNDS) {
+						it.remove();
+						continue;
+					}
+					// Maybe a long pause, as it was
+				} else {
+					d.idleRounds = 0;
+					d.lastSaturated = s;
+					d.lastRateBps = bytes * 8 * TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+				}
+				if (d.lastSaturated) {
+					saturated++;
+				} else {
+					rates.add(d.lastRateBps);
+				}
+			}
+			levelBps = capacityBps <= 0 ? 0 : waterfill(capacityBps, rates, saturated);
+		}
+
+		/**
+		 * @param rates     of the children that got what they wanted
+		 * @param saturated how many children want more
+		 * @return level so the children don't use more than the capacity, 0 if
+		 *         there is enough for everyone
+		 */
+		private static long waterfill(long capacityBps, List<Long> rates, int saturated) {
+			Collections.sort(rates);
+			long remaining = capacityBps;
+			int children = rates.size() + saturated;
+			for (long rate : rates) {
+				if (rate * children > remaining) {
+					break;
+				}
+				// Less than its share, it can have it all
+				remaining -= rate;
+				children--;
+			}
+			if (children == 0) {
+				return 0L;
+			}
+			return Math.max(1L, remaining / children);
+		}
+	}
+
 	private AtomicLong limitBps = new AtomicLong(0);
 	
+	private final LongSupplier nanoClock;
+	
+	/** Null unless the children share it fairly */
+	private volatile FairShare fairShare = null;
+	
+	/**
+	 * Virtual time of the token bucket (GCRA): when we would have sent everything
+	 * so far at the limit. It's never less than now minus the burst.
+	 */
+	private final AtomicLong virtualTime;
+	
+	private volatile long burstBytes = 64 * 1024;
+	
+	public static final long INTERACTIVE_BURST_BYTES = 32 * 1024;
+	
+	/** Interactive traffic that can skip the pauses. Disabled by default. */
+	private final RateCap interactiveCap = new RateCap(0L, INTERACTIVE_BURST_BYTES);
+	
 	private final long windowTimeNanos = TimeUnit.SECONDS.toNanos(2);
 	
 	private final int windowsStored = (int) (TimeUnit.SECONDS.toNanos(30) / windowTimeNanos);
 	
-	private LinkedBlockingDeque<MeasureWindow> windows = new LinkedBlockingDeque<>();
+	/** Last windows by seq % windowsStored */
+	private final AtomicReferenceArray<MeasureWindow> windows = new AtomicReferenceArray<>(windowsStored);
+	
+	private final AtomicReference<MeasureWindow> currentWindow = new AtomicReference<>(null);
+
+	private volatile long maxPauseNanos = TimeUnit.SECONDS.toNanos(20); // A lot
 
-	private long maxPauseNanos = TimeUnit.SECONDS.toNanos(20); // A lot
+	public BandwithLimiter() {
+		this(System::nanoTime);
+	}
+
+	/**
+	 * @param nanoClock like System.nanoTime(), for tests
+	 */
+	BandwithLimiter(LongSupplier nanoClock) {
+		this.nanoClock = nanoClock;
+		this.virtualTime = new AtomicLong(nanoClock.getAsLong());
+	}
 
 	public Long getLimitBps() {
 		return Optional.of(limitBps.get()).filter(n -> n > 0L).orElse(null);
@@ -104,60 +287,110 @@ public class BandwithLimiter {
 	}
 	
 	/**
-	 * Count bytes associated to current time window, calc bps and order a pause if
-	 * needed
+	 * Count bytes associated to current time window and order a pause if needed.
+	 * 
+	 * It's lock free. Each call moves the virtual time the time those bytes take
+	 * at the limit and we have to pause until the virtual time is now. The burst
+	 * lets the virtual time be behind now, so after some quiet time that many
+	 * bytes can go without a pause.
+	 * 
+	 * If the parent is shared fairly, the limit is the lower of ours and our fair
+	 * share.
 	 */
-	public synchronized Pause next(long byteCount) {
-		Pause parentPause = parent == null ? Pause.ZERO : parent.next(byteCount);
-		final long now = System.nanoTime();
-		MeasureWindow last = Optional.ofNullable(windows.peekLast()).filter(w->w.endTime.get() == null).filter(w->{
-			if (w.startTime + windowTimeNanos < now) {
-				// Too old, close
-				w.close();
-				return false;
-			} else {
-				// Suits us
-				return true;
-			}
-		}).orElseGet(()->{
-			// No open window. Create one
-			MeasureWindow w = new MeasureWindow();
-			windows.add(w);
-			return w;
-		});
-		if (last == null || last.endTime.get() != null || last.startTime + windowTimeNanos < now) {
-			throw new RuntimeException("Internal error");
-		}
-		// Sum the bytes to last window
-		last.update(byteCount);
-		cleanOldWindows(now);
-		long limitBps = this.limitBps.get();
+	public Pause next(long byteCount) {
+		return next(byteCount, TrafficClass.DEFAULT);
+	}
+
+	/**
+	 * Like {@link #next(long)} for traffic of that class.
+	 */
+	public Pause next(long byteCount, TrafficClass trafficClass) {
+		return next(byteCount, trafficClass, null, false);
+	}
+
+	private Pause next(long byteCount, TrafficClass trafficClass, BandwithLimiter child, boolean childSaturated) {
+		final long now = nanoClock.getAsLong();
+		count(now, byteCount);
+		if (trafficClass == TrafficClass.INTERACTIVE && (interactiveCap.getLimitBps() > 0
+				? !interactiveCap.tryAcquire(now, byteCount)
+				: child == null)) {
+			// Over the cap it's like any other. Without a cap here the child decides.
+			trafficClass = TrafficClass.DEFAULT;
+		}
+		final long ownLimitBps = this.limitBps.get();
+		long limitBps = ownLimitBps;
+		BandwithLimiter parent = this.parent;
+		long fairLimitBps = parent == null ? 0L : parent.getFairShareLevelBps();
+		boolean limitedByFairShare = fairLimitBps > 0 && (limitBps <= 0 || fairLimitBps < limitBps);
+		if (limitedByFairShare) {
+			limitBps = fairLimitBps;
+		}
+		FairShare fairShare = this.fairShare;
+		Pause pause;
+		if (fairShare != null && child != null && fairShare.levelBps > 0) {
+			// Children pace themselves at the level, so they share us fairly
+			pause = Pause.ZERO;
+		} else {
+			pause = pace(now, byteCount, limitBps, trafficClass);
+		}
+		if (fairShare != null && child != null) {
+			// If we make it pause it wants more than it gets too
+			fairShare.report(child, byteCount, childSaturated || pause.getNanos() > 0, now, ownLimitBps);
+		}
+		if (parent == null) {
+			return pause;
+		}
+		return pause.orGreater(parent.next(byteCount, trafficClass, this, limitedByFairShare && pause.getNanos() > 0));
+	}
+
+	private Pause pace(long now, long byteCount, long limitBps, TrafficClass trafficClass) {
 		if (limitBps <= 0) {
 			// Limit disabled
-			return parentPause;
-		} else {
-			// Limit enabled, so let's calc
-			BpsCalc calcBps = calcBps(10);
-			long bps = calcBps.asBps();
-			long excessBps = bps - limitBps;
-			if (excessBps <= 0) {
-				return parentPause;
-			} else {
-				long excessBits = excessBps * calcBps.milliseconds / 1000;
-				long nanosToPause = excessBits * TimeUnit.SECONDS.toNanos(1) / limitBps;
+			return Pause.ZERO;
+		}
+		long costNanos = nanosAt(byteCount, limitBps);
+		// Bulk doesn't get the burst, it's for the others after a quiet time
+		long burstNanos = trafficClass == TrafficClass.BULK ? 0L : nanosAt(burstBytes, limitBps);
+		// Never less than what these bytes take, or big packets would beat the limit
+		long maxPauseNanos = Math.max(this.maxPauseNanos, costNanos);
+		while (true) {
+			long old = virtualTime.get();
+			long next = Math.max(old, now - burstNanos) + costNanos;
+			// Forget what we can't make up with the max pause
+			next = Math.min(next, now + maxPauseNanos);
+			if (virtualTime.compareAndSet(old, next)) {
+				long nanosToPause = next - now;
+				if (nanosToPause <= 0 || trafficClass == TrafficClass.INTERACTIVE) {
+					return Pause.ZERO;
+				}
 				if (log.isDebugEnabled()) {
-					log.debug("We transmitted {} bits in the last {} s, so {} bps but the limit is {} so we need to pause {} s", calcBps.bytes * 8,
-							calcBps.milliseconds / 1000d, bps, limitBps, nanosToPause / (double) TimeUnit.SECONDS.toNanos(1));
+					log.debug("Sending {} bytes at {} bps we need to pause {} s", byteCount, limitBps,
+							nanosToPause / (double) TimeUnit.SECONDS.toNanos(1));
 				}
-				return new Pause(Math.min(nanosToPause, maxPauseNanos)).orGreater(parentPause);
+				return new Pause(nanosToPause, now, nanoClock);
 			}
 		}
-		
 	}
 
-	private void cleanOldWindows(final long now) {
-		long timeLimit = now - windowTimeNanos * windowsStored;
-		windows.removeIf(w->w.startTime < timeLimit);
+	private static long nanosAt(long bytes, long bps) {
+		return (long) (bytes * 8d * TimeUnit.SECONDS.toNanos(1) / bps);
+	}
+
+	private void count(long now, long byteCount) {
+		while (true) {
+			MeasureWindow w = currentWindow.get();
+			if (w != null && w.startTime + windowTimeNanos >= now) {
+				w.byteCount.addAndGet(byteCount);
+				return;
+			}
+			// No window or too old, start another
+			MeasureWindow n = new MeasureWindow(w == null ? 0 : w.seq + 1, now);
+			n.byteCount.set(byteCount);
+			if (currentWindow.compareAndSet(w, n)) {
+				windows.set((int) (n.seq % windowsStored), n);
+				return;
+			}
+		}
 	}
 	
 	public long getMaxSecondsWidth() {
@@ -165,8 +398,11 @@ public class BandwithLimiter {
 	}
 
 	public long getCurrentSecondsWidth() {
-		return Math.min(getMaxSecondsWidth(),
-				TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - windows.getLast().startTime));
+		MeasureWindow w = currentWindow.get();
+		if (w == null) {
+			return 0;
+		}
+		return Math.min(getMaxSecondsWidth(), TimeUnit.NANOSECONDS.toSeconds(nanoClock.getAsLong() - w.startTime));
 	}
 	
 	public BpsCalc calcBps(int lastSeconds) {
@@ -177,29 +413,31 @@ public class BandwithLimiter {
 		 * use two windows and we give them the same weight. We could give less weight
 		 * to windows that are less overlapping the requested time interval.
 		 */
-		long now = System.nanoTime();
+		long now = nanoClock.getAsLong();
 		long timeLimit = now - TimeUnit.SECONDS.toNanos(lastSeconds);
+		long tooOld = now - windowTimeNanos * windowsStored;
 		long bytes = 0;
 		long oldestTime = now; // 1 ns is nothing and it prevents 0/0
-		Iterator<MeasureWindow> it = windows.descendingIterator();
+		MeasureWindow current = currentWindow.get();
 		int c = 0;
-		while (true) {
-			MeasureWindow w = it.hasNext() ? w = it.next() : null;
-			if (w != null) {
-				oldestTime = w.startTime;
-				bytes += w.byteCount.get();
-				c++;
+		for (long seq = current == null ? -1 : current.seq; seq >= 0 && c < windowsStored; seq--) {
+			MeasureWindow w = windows.get((int) (seq % windowsStored));
+			if (w == null || w.seq != seq || w.startTime < tooOld) {
+				break;
 			}
-			if (w == null || w.startTime < timeLimit) {
-				// end
-				long millis = TimeUnit.NANOSECONDS.toMillis(now - oldestTime);
-				if (log.isDebugEnabled()) {
-					long bps = bytes <= 0 ? 0 : millis <= 0 ? 0 : bytes * 8 * 1000 / millis;
-					log.debug(String.format("bits=%s, s=%.3f, c=%d, bps = %d", bytes * 8, millis / 1000d, c, bps));
-				}
-				return new BpsCalc(bytes, millis);
+			oldestTime = w.startTime;
+			bytes += w.byteCount.get();
+			c++;
+			if (w.startTime < timeLimit) {
+				break;
 			}
 		}
+		long millis = TimeUnit.NANOSECONDS.toMillis(now - oldestTime);
+		if (log.isDebugEnabled()) {
+			long bps = bytes <= 0 ? 0 : millis <= 0 ? 0 : bytes * 8 * 1000 / millis;
+			log.debug(String.format("bits=%s, s=%.3f, c=%d, bps = %d", bytes * 8, millis / 1000d, c, bps));
+		}
+		return new BpsCalc(bytes, millis);
 	}
 
 	public BandwithLimiter getParent() {
@@ -213,5 +451,51 @@ public class BandwithLimiter {
 	public void setMaxPauseMillis(long maxPauseMillis) {
 		this.maxPauseNanos = TimeUnit.MILLISECONDS.toNanos(maxPauseMillis);
 	}
+
+	/**
+	 * Share the limit fairly between the active children instead of first come
+	 * first served. Each one gets at least an equal share and what some don't use
+	 * is for the others.
+	 */
+	public void setFairShare(boolean fair) {
+		if (fair != (fairShare != null)) {
+			fairShare = fair ? new FairShare(nanoClock.getAsLong()) : null;
+		}
+	}
+
+	public boolean isFairShare() {
+		return fairShare != null;
+	}
+
+	/**
+	 * @return the limit for each child now, or 0 if none
+	 */
+	private long getFairShareLevelBps() {
+		FairShare fairShare = this.fairShare;
+		return fairShare == null ? 0L : fairShare.levelBps;
+	}
+
+	public Long getInteractiveLimitBps() {
+		return Optional.of(interactiveCap.getLimitBps()).filter(n -> n > 0L).orElse(null);
+	}
+
+	/**
+	 * Interactive traffic up to this rate does not pause. Null to treat it like
+	 * any other, unless this is a parent: then what the child decided goes.
+	 */
+	public void setInteractiveLimitBps(Long interactiveLimitBps) {
+		interactiveCap.setLimitBps(Optional.ofNullable(interactiveLimitBps).orElse(0L));
+	}
+
+	public long getBurstBytes() {
+		return burstBytes;
+	}
+
+	/**
+	 * Bytes that can be sent without pause after being quiet for a while
+	 */
+	public void setBurstBytes(long burstBytes) {
+		this.burstBytes = burstBytes;
+	}
 	
 }
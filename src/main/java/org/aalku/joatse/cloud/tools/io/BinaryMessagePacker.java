@@ -0,0 +1,79 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+/**
+ * Packs binary messages as: header, then for each message its length (unsigned
+ * short) and its bytes.
+ */
+public class BinaryMessagePacker implements MessagePacker {
+
+	public static final int MAX_PACKED_MESSAGE_LENGTH = 0xFFFF;
+
+	private final byte[] header;
+	private final ByteBufferPool bufferPool;
+
+	/**
+	 * @param header     Bytes before the packed messages, so the other side knows
+	 *                   what it is
+	 * @param bufferPool where to get buffers for the packed messages
+	 */
+	public BinaryMessagePacker(byte[] header, ByteBufferPool bufferPool) {
+		this.header = header.clone();
+		this.bufferPool = bufferPool;
+	}
+
+	@Override
+	public boolean canPack(WebSocketMessage<?> message) {
+		return message instanceof BinaryMessage && message.getPayloadLength() <= MAX_PACKED_MESSAGE_LENGTH;
+	}
+
+	@Override
+	public WebSocketMessage<?> pack(List<WebSocketMessage<?>> messages) {
+		int len = header.length;
+		for (WebSocketMessage<?> m : messages) {
+			len += 2 + m.getPayloadLength();
+		}
+		ByteBuffer buffer = bufferPool.acquire(len);
+		buffer.put(header);
+		for (WebSocketMessage<?> m : messages) {
+			ByteBuffer payload = ((BinaryMessage) m).getPayload().duplicate();
+			buffer.putShort((short) payload.remaining());
+			buffer.put(payload);
+		}
+		buffer.flip();
+		return new BinaryMessage(buffer, true);
+	}
+
+	@Override
+	public void packedSent(WebSocketMessage<?> packed) {
+		bufferPool.release(((BinaryMessage) packed).getPayload());
+	}
+
+	/**
+	 * Reads the next packed message.
+	 *
+	 * @param buffer positioned after the header or after the previous message
+	 * @return a slice with the next message, or null if there are no more
+	 */
+	public static ByteBuffer unpackNext(ByteBuffer buffer) throws IOException {
+		if (!buffer.hasRemaining()) {
+			return null;
+		}
+		if (buffer.remaining() < 2) {
+			throw new IOException("Truncated packed message");
+		}
+		int len = buffer.getShort() & 0xFFFF;
+		if (buffer.remaining() < len) {
+			throw new IOException("Truncated packed message");
+		}
+		ByteBuffer res = buffer.slice(buffer.position(), len);
+		buffer.position(buffer.position() + len);
+		return res;
+	}
+}
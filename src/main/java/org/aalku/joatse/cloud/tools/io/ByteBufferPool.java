@@ -0,0 +1,207 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded pool of direct buffers in a few size classes.
+ *
+ * Whoever acquires a buffer owns it until it gives it to someone else or
+ * releases it. Never use a buffer after releasing it. Bigger buffers than the
+ * biggest class are not pooled, they are heap buffers and releasing them does
+ * nothing.
+ *
+ * With leak tracking (for tests) it remembers where each outstanding buffer was
+ * acquired and it fails on double release. Without it there's no lock nor
+ * reference to outstanding buffers, it only notices a double release when a
+ * size class has more releases than acquisitions, and then the buffer is not
+ * pooled.
+ */
+@Component
+public class ByteBufferPool implements InitializingBean {
+
+	private Logger log = LoggerFactory.getLogger(ByteBufferPool.class);
+
+	public static final int[] DEFAULT_SIZE_CLASSES = { 256, 4 * 1024, 64 * 1024 };
+
+	private static class SizeClass {
+		private final int size;
+		private final int maxPooled;
+		private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger freeCount = new AtomicInteger(0);
+		/** Acquired and not released yet */
+		private final AtomicInteger outstanding = new AtomicInteger(0);
+
+		private SizeClass(int size, int maxPooled) {
+			this.size = size;
+			this.maxPooled = maxPooled;
+		}
+	}
+
+	/**
+	 * Max MB of free buffers kept, split between size classes.
+	 */
+	@Value("${cloud.buffer.pool.max.mb:64}")
+	private int maxPooledMb;
+
+	@Value("${cloud.buffer.pool.trackLeaks:false}")
+	private boolean trackLeaks;
+
+	private SizeClass[] classes;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/** Only with trackLeaks. Buffer --> where it was acquired. */
+	private final Map<ByteBuffer, Throwable> outstandingBuffers = new IdentityHashMap<>();
+
+	public ByteBufferPool() {
+	}
+
+	/**
+	 * Constructor for use outside of spring
+	 */
+	public ByteBufferPool(int maxPooledMb, boolean trackLeaks) {
+		this.maxPooledMb = maxPooledMb;
+		this.trackLeaks = trackLeaks;
+		afterPropertiesSet();
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		long bytesPerClass = maxPooledMb * 1024L * 1024L / DEFAULT_SIZE_CLASSES.length;
+		classes = new SizeClass[DEFAULT_SIZE_CLASSES.length];
+		for (int i = 0; i < classes.length; i++) {
+			int size = DEFAULT_SIZE_CLASSES[i];
+			classes[i] = new SizeClass(size, (int) Math.min(Integer.MAX_VALUE, bytesPerClass / size));
+		}
+		if (trackLeaks) {
+			log.warn("ByteBufferPool leak tracking is enabled. It's slow.");
+		}
+	}
+
+	private SizeClass sizeClassFor(int capacity) {
+		for (SizeClass c : classes) {
+			if (capacity <= c.size) {
+				return c;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return a cleared buffer with at least that capacity. Its limit is its
+	 *         capacity, that can be bigger than asked.
+	 */
+	public ByteBuffer acquire(int minCapacity) {
+		SizeClass c = sizeClassFor(minCapacity);
+		if (c == null) {
+			misses.increment();
+			return ByteBuffer.allocate(minCapacity);
+		}
+		ByteBuffer buffer = c.free.poll();
+		if (buffer != null) {
+			c.freeCount.decrementAndGet();
+			hits.increment();
+			buffer.clear();
+		} else {
+			misses.increment();
+			buffer = ByteBuffer.allocateDirect(c.size);
+		}
+		c.outstanding.incrementAndGet();
+		if (trackLeaks) {
+			synchronized (outstandingBuffers) {
+				outstandingBuffers.put(buffer, new Throwable("Acquired here"));
+			}
+		}
+		return buffer;
+	}
+
+	/**
+	 * Gives the buffer back. Null and buffers that are not from this pool are
+	 * ignored.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect()) {
+			return;
+		}
+		SizeClass c = sizeClassFor(buffer.capacity());
+		if (c == null || c.size != buffer.capacity()) {
+			return;
+		}
+		if (trackLeaks) {
+			synchronized (outstandingBuffers) {
+				if (outstandingBuffers.remove(buffer) == null) {
+					throw new IllegalStateException("Buffer released twice or not from this pool");
+				}
+			}
+		}
+		if (c.outstanding.decrementAndGet() < 0) {
+			// Released twice. Someone else might have it later, it can't be pooled
+			c.outstanding.incrementAndGet();
+			log.error("Buffer released twice or not from this pool, not pooling it", new Throwable("Released here"));
+			return;
+		}
+		if (c.freeCount.incrementAndGet() <= c.maxPooled) {
+			c.free.add(buffer);
+		} else {
+			// Pool is full, let GC have it
+			c.freeCount.decrementAndGet();
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Pooled buffers acquired and not released yet
+	 */
+	public long getOutstanding() {
+		long res = 0;
+		for (SizeClass c : classes) {
+			res += c.outstanding.get();
+		}
+		return res;
+	}
+
+	/**
+	 * Where each outstanding buffer was acquired. Empty without leak tracking.
+	 */
+	public Collection<Throwable> getOutstandingAcquisitions() {
+		synchronized (outstandingBuffers) {
+			return new ArrayList<>(outstandingBuffers.values());
+		}
+	}
+
+	public Map<String, Object> getStats() {
+		Map<String, Object> res = new LinkedHashMap<>();
+		res.put("hits", getHits());
+		res.put("misses", getMisses());
+		res.put("outstanding", getOutstanding());
+		Map<String, Object> free = new LinkedHashMap<>();
+		for (SizeClass c : classes) {
+			free.put(String.valueOf(c.size), c.freeCount.get());
+		}
+		res.put("free", free);
+		return res;
+	}
+}
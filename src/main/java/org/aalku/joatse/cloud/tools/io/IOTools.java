@@ -262,7 +262,7 @@ public interface IOTools {
 			// System.err.println("Match at " + m.start() + "!!!");
 			m.appendReplacement(sb, replaceFunction.apply(m.group()));
 			match = true;
-			splitPoint = Math.max(sb.length(), splitPoint); // We can't split before
+			splitPoint = Math.max(m.end(), splitPoint); // We can't split before
 			processed = m.end();
 		}
 		// Remaining
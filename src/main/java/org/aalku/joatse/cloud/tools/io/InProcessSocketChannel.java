@@ -0,0 +1,511 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.AlreadyConnectedException;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ReadPendingException;
+import java.nio.channels.WritePendingException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An AsynchronousSocketChannel with no socket below. The other end is a
+ * {@link Peer} in this same process and bytes are handed over in buffers, so
+ * there's no loopback connection nor kernel copies.
+ *
+ * Each way has a limit of bytes waiting to be read, so a slow reader slows down
+ * the writer like a socket would.
+ *
+ * Handlers are called by the thread that makes them complete, unless they nest
+ * too deep, then by the executor.
+ */
+public class InProcessSocketChannel extends AsynchronousSocketChannel {
+
+	public static final int MAX_PENDING_BYTES = 256 * 1024;
+
+	private static final int MAX_NESTED_HANDLERS = 16;
+	private static final ThreadLocal<int[]> nestedHandlers = ThreadLocal.withInitial(() -> new int[1]);
+
+	/**
+	 * The other end
+	 */
+	public interface Peer {
+		/**
+		 * Bytes written to the channel, in a buffer the peer can keep.
+		 *
+		 * @return false if it doesn't want more for now. Then it has to call
+		 *         {@link InProcessSocketChannel#writable()} when it does.
+		 */
+		boolean received(ByteBuffer data);
+
+		/**
+		 * No more bytes will be written, the output was shut down or the channel
+		 * closed
+		 */
+		void receivedEOF();
+
+		/**
+		 * The channel read enough after {@link InProcessSocketChannel#offer} said
+		 * there were too many bytes waiting
+		 */
+		void drained();
+	}
+
+	/**
+	 * The handler of a single buffer operation (Integer) or of a scattering or
+	 * gathering one (Long)
+	 */
+	private static class Callback<A> {
+		private final A attachment;
+		private final CompletionHandler<Integer, ? super A> handler;
+		private final CompletionHandler<Long, ? super A> longHandler;
+
+		private Callback(A attachment, CompletionHandler<Integer, ? super A> handler,
+				CompletionHandler<Long, ? super A> longHandler) {
+			this.attachment = attachment;
+			this.handler = handler;
+			this.longHandler = longHandler;
+		}
+
+		private void completed(long result) {
+			if (handler != null) {
+				handler.completed((int) result, attachment);
+			} else {
+				longHandler.completed(result, attachment);
+			}
+		}
+
+		private void failed(Throwable e) {
+			if (handler != null) {
+				handler.failed(e, attachment);
+			} else {
+				longHandler.failed(e, attachment);
+			}
+		}
+	}
+
+	private static class PendingRead {
+		private final ByteBuffer[] dsts;
+		private final int offset;
+		private final int length;
+		private final Callback<?> callback;
+
+		private PendingRead(ByteBuffer[] dsts, int offset, int length, Callback<?> callback) {
+			this.dsts = dsts;
+			this.offset = offset;
+			this.length = length;
+			this.callback = callback;
+		}
+
+		/**
+		 * @return the first buffer with room or null
+		 */
+		private ByteBuffer dst() {
+			for (int i = offset; i < offset + length; i++) {
+				if (dsts[i].hasRemaining()) {
+					return dsts[i];
+				}
+			}
+			return null;
+		}
+	}
+
+	private final Object lock = new Object();
+	private final Executor executor;
+	private final InetSocketAddress localAddress;
+	private final InetSocketAddress remoteAddress;
+	private volatile Peer peer;
+
+	private boolean open = true;
+
+	/* Peer to channel */
+	private final ArrayDeque<ByteBuffer> incoming = new ArrayDeque<>();
+	private int incomingBytes = 0;
+	private boolean incomingEOF = false;
+	/** The peer was told there are too many bytes waiting */
+	private boolean peerWaiting = false;
+	private PendingRead pendingRead;
+
+	/* Channel to peer */
+	private boolean outputShutdown = false;
+	private boolean peerClosed = false;
+	/** Completion of a write the peer didn't want more after */
+	private Runnable pendingWriteCompletion;
+	private boolean writing = false;
+	private boolean writableSignaled = false;
+
+	/**
+	 * @param executor to call handlers when they nest too deep
+	 */
+	public InProcessSocketChannel(Executor executor, InetSocketAddress localAddress, InetSocketAddress remoteAddress) {
+		super(null);
+		this.executor = executor;
+		this.localAddress = localAddress;
+		this.remoteAddress = remoteAddress;
+	}
+
+	public void setPeer(Peer peer) {
+		this.peer = peer;
+	}
+
+	/**
+	 * Bytes for the channel to read. The buffer is kept, don't use it any more.
+	 *
+	 * @return false if there are too many bytes waiting, then wait for
+	 *         {@link Peer#drained()}
+	 */
+	public boolean offer(ByteBuffer data) {
+		Runnable completion = null;
+		boolean res;
+		synchronized (lock) {
+			if (!open || incomingEOF) {
+				return true; // Nobody will read it
+			}
+			if (data.hasRemaining()) {
+				incoming.add(data);
+				incomingBytes += data.remaining();
+			}
+			completion = completePendingRead();
+			res = incomingBytes < MAX_PENDING_BYTES;
+			if (!res) {
+				peerWaiting = true;
+			}
+		}
+		complete(completion);
+		return res;
+	}
+
+	/**
+	 * The peer won't write more
+	 */
+	public void offerEOF() {
+		Runnable completion;
+		synchronized (lock) {
+			incomingEOF = true;
+			completion = completePendingRead();
+		}
+		complete(completion);
+	}
+
+	/**
+	 * The peer is gone, it won't read nor write any more
+	 */
+	public void peerClosed() {
+		Runnable completion;
+		synchronized (lock) {
+			peerClosed = true;
+			incomingEOF = true;
+			completion = completePendingRead();
+		}
+		complete(completion);
+		writable(); // Nobody will call it now
+	}
+
+	/**
+	 * The peer wants more bytes again
+	 */
+	public void writable() {
+		Runnable completion;
+		synchronized (lock) {
+			completion = pendingWriteCompletion;
+			pendingWriteCompletion = null;
+			if (completion == null) {
+				writableSignaled = true;
+			} else {
+				writing = false;
+			}
+		}
+		complete(completion);
+	}
+
+	@Override
+	public <A> void read(ByteBuffer dst, long timeout, TimeUnit unit, A attachment,
+			CompletionHandler<Integer, ? super A> handler) {
+		read(new ByteBuffer[] { dst }, 0, 1, new Callback<>(attachment, handler, null));
+	}
+
+	@Override
+	public <A> void read(ByteBuffer[] dsts, int offset, int length, long timeout, TimeUnit unit, A attachment,
+			CompletionHandler<Long, ? super A> handler) {
+		read(dsts, offset, length, new Callback<>(attachment, null, handler));
+	}
+
+	private void read(ByteBuffer[] dsts, int offset, int length, Callback<?> callback) {
+		Objects.checkFromIndexSize(offset, length, dsts.length);
+		Runnable completion;
+		synchronized (lock) {
+			if (pendingRead != null) {
+				throw new ReadPendingException();
+			}
+			if (!open) {
+				completion = () -> callback.failed(new ClosedChannelException());
+			} else {
+				pendingRead = new PendingRead(dsts, offset, length, callback);
+				completion = completePendingRead();
+			}
+		}
+		complete(completion);
+	}
+
+	/**
+	 * Reads into the pending read if there's something to read. With the lock.
+	 *
+	 * @return what to run without the lock, or null
+	 */
+	private Runnable completePendingRead() {
+		PendingRead p = pendingRead;
+		if (p == null || (incoming.isEmpty() && !incomingEOF)) {
+			return null;
+		}
+		pendingRead = null;
+		int n;
+		if (incoming.isEmpty()) {
+			n = -1;
+		} else {
+			n = 0;
+			ByteBuffer dst;
+			while (!incoming.isEmpty() && (dst = p.dst()) != null) {
+				ByteBuffer in = incoming.peek();
+				int len = Math.min(in.remaining(), dst.remaining());
+				dst.put(dst.position(), in, in.position(), len);
+				dst.position(dst.position() + len);
+				in.position(in.position() + len);
+				if (!in.hasRemaining()) {
+					incoming.poll();
+				}
+				n += len;
+			}
+			incomingBytes -= n;
+		}
+		boolean drained = peerWaiting && incomingBytes < MAX_PENDING_BYTES;
+		if (drained) {
+			peerWaiting = false;
+		}
+		Peer peer = this.peer;
+		int result = n;
+		return () -> {
+			if (drained && peer != null) {
+				peer.drained();
+			}
+			p.callback.completed(result);
+		};
+	}
+
+	@Override
+	public <A> void write(ByteBuffer src, long timeout, TimeUnit unit, A attachment,
+			CompletionHandler<Integer, ? super A> handler) {
+		write(new ByteBuffer[] { src }, 0, 1, new Callback<>(attachment, handler, null));
+	}
+
+	@Override
+	public <A> void write(ByteBuffer[] srcs, int offset, int length, long timeout, TimeUnit unit, A attachment,
+			CompletionHandler<Long, ? super A> handler) {
+		write(srcs, offset, length, new Callback<>(attachment, null, handler));
+	}
+
+	private void write(ByteBuffer[] srcs, int offset, int length, Callback<?> callback) {
+		Objects.checkFromIndexSize(offset, length, srcs.length);
+		ByteBuffer copy;
+		synchronized (lock) {
+			if (writing) {
+				throw new WritePendingException();
+			}
+			if (!open || outputShutdown) {
+				copy = null;
+			} else if (peerClosed) {
+				copy = null;
+			} else {
+				long size = 0;
+				for (int i = offset; i < offset + length; i++) {
+					size += srcs[i].remaining();
+				}
+				// One buffer for the peer, it's copied anyway
+				copy = ByteBuffer.allocate(Math.toIntExact(size));
+				for (int i = offset; i < offset + length; i++) {
+					copy.put(srcs[i]);
+				}
+				copy.flip();
+				writing = true;
+				writableSignaled = false;
+			}
+		}
+		if (copy == null) {
+			IOException e = open && !outputShutdown ? new IOException("Connection closed by peer") : new ClosedChannelException();
+			complete(() -> callback.failed(e));
+			return;
+		}
+		int n = copy.remaining();
+		Runnable completion = () -> callback.completed(n);
+		if (n > 0 && !peer.received(copy)) {
+			synchronized (lock) {
+				if (!writableSignaled && open && !peerClosed) {
+					pendingWriteCompletion = completion;
+					return;
+				}
+			}
+		}
+		synchronized (lock) {
+			writing = false;
+		}
+		complete(completion);
+	}
+
+	@Override
+	public Future<Integer> read(ByteBuffer dst) {
+		CompletableFuture<Integer> res = new CompletableFuture<>();
+		read(dst, 0L, TimeUnit.MILLISECONDS, res, futureHandler());
+		return res;
+	}
+
+	@Override
+	public Future<Integer> write(ByteBuffer src) {
+		CompletableFuture<Integer> res = new CompletableFuture<>();
+		write(src, 0L, TimeUnit.MILLISECONDS, res, futureHandler());
+		return res;
+	}
+
+	private static CompletionHandler<Integer, CompletableFuture<Integer>> futureHandler() {
+		return new CompletionHandler<Integer, CompletableFuture<Integer>>() {
+			@Override
+			public void completed(Integer result, CompletableFuture<Integer> attachment) {
+				attachment.complete(result);
+			}
+
+			@Override
+			public void failed(Throwable exc, CompletableFuture<Integer> attachment) {
+				attachment.completeExceptionally(exc);
+			}
+		};
+	}
+
+	@Override
+	public AsynchronousSocketChannel shutdownInput() throws IOException {
+		synchronized (lock) {
+			incomingEOF = true;
+			incoming.clear();
+			incomingBytes = 0;
+		}
+		return this;
+	}
+
+	@Override
+	public AsynchronousSocketChannel shutdownOutput() throws IOException {
+		boolean notify;
+		synchronized (lock) {
+			notify = open && !outputShutdown;
+			outputShutdown = true;
+		}
+		if (notify && peer != null) {
+			peer.receivedEOF();
+		}
+		return this;
+	}
+
+	@Override
+	public void close() throws IOException {
+		PendingRead read;
+		Runnable write;
+		boolean notify;
+		synchronized (lock) {
+			if (!open) {
+				return;
+			}
+			open = false;
+			notify = !outputShutdown;
+			read = pendingRead;
+			pendingRead = null;
+			write = pendingWriteCompletion;
+			pendingWriteCompletion = null;
+			writing = false;
+			incoming.clear();
+			incomingBytes = 0;
+		}
+		if (notify && peer != null) {
+			peer.receivedEOF();
+		}
+		if (read != null) {
+			complete(() -> read.callback.failed(new AsynchronousCloseException()));
+		}
+		complete(write); // It was written
+	}
+
+	@Override
+	public boolean isOpen() {
+		synchronized (lock) {
+			return open;
+		}
+	}
+
+	@Override
+	public SocketAddress getRemoteAddress() throws IOException {
+		return remoteAddress;
+	}
+
+	@Override
+	public SocketAddress getLocalAddress() throws IOException {
+		return localAddress;
+	}
+
+	@Override
+	public AsynchronousSocketChannel bind(SocketAddress local) throws IOException {
+		throw new AlreadyConnectedException();
+	}
+
+	@Override
+	public <T> AsynchronousSocketChannel setOption(SocketOption<T> name, T value) throws IOException {
+		return this; // Nothing to tune
+	}
+
+	@Override
+	public <T> T getOption(SocketOption<T> name) throws IOException {
+		return null;
+	}
+
+	@Override
+	public Set<SocketOption<?>> supportedOptions() {
+		return Collections.emptySet();
+	}
+
+	@Override
+	public <A> void connect(SocketAddress remote, A attachment, CompletionHandler<Void, ? super A> handler) {
+		throw new AlreadyConnectedException();
+	}
+
+	@Override
+	public Future<Void> connect(SocketAddress remote) {
+		throw new AlreadyConnectedException();
+	}
+
+	/**
+	 * Runs a handler now, or in the executor if we are too many handlers deep
+	 */
+	private void complete(Runnable completion) {
+		if (completion == null) {
+			return;
+		}
+		int[] nested = nestedHandlers.get();
+		if (nested[0] >= MAX_NESTED_HANDLERS) {
+			executor.execute(completion);
+			return;
+		}
+		nested[0]++;
+		try {
+			completion.run();
+		} finally {
+			nested[0]--;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable map from primitive long keys, so a lookup doesn't box the key nor
+ * follow entry objects. Open addressing with linear probing in two arrays, at
+ * most half full.
+ *
+ * Build it with {@link Builder}. It's safe to share between threads once built.
+ */
+public final class LongObjectMap<V> {
+
+	private static final LongObjectMap<?> EMPTY = new Builder<Object>().build();
+
+	private final long[] keys;
+	/** null where there is no entry */
+	private final Object[] values;
+	private final int mask;
+	private final int size;
+
+	private LongObjectMap(long[] keys, Object[] values, int size) {
+		this.keys = keys;
+		this.values = values;
+		this.mask = keys.length - 1;
+		this.size = size;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <V> LongObjectMap<V> empty() {
+		return (LongObjectMap<V>) EMPTY;
+	}
+
+	/**
+	 * @return the value or null if none
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		for (int i = index(key, mask);; i = (i + 1) & mask) {
+			Object v = values[i];
+			if (v == null || keys[i] == key) {
+				return (V) v;
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void forEach(LongObjectConsumer<V> action) {
+		for (int i = 0; i < keys.length; i++) {
+			if (values[i] != null) {
+				action.accept(keys[i], (V) values[i]);
+			}
+		}
+	}
+
+	public interface LongObjectConsumer<V> {
+		void accept(long key, V value);
+	}
+
+	private static int index(long key, int mask) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	public static class Builder<V> {
+		/** Boxing here is fine, it's only while building */
+		private final Map<Long, V> entries = new LinkedHashMap<>();
+
+		public Builder() {
+		}
+
+		/**
+		 * @param from entries to start with
+		 */
+		public Builder(LongObjectMap<V> from) {
+			from.forEach(entries::put);
+		}
+
+		/**
+		 * Adds or replaces the value of the key
+		 */
+		public Builder<V> put(long key, V value) {
+			if (value == null) {
+				throw new IllegalArgumentException("null values are not supported");
+			}
+			entries.put(key, value);
+			return this;
+		}
+
+		public Builder<V> remove(long key) {
+			entries.remove(key);
+			return this;
+		}
+
+		public LongObjectMap<V> build() {
+			int size = entries.size();
+			int capacity = Integer.highestOneBit(Math.max(1, size) * 2 - 1) << 1;
+			long[] k = new long[capacity];
+			Object[] v = new Object[capacity];
+			int mask = capacity - 1;
+			entries.forEach((key, value) -> {
+				int i = index(key, mask);
+				while (v[i] != null) {
+					i = (i + 1) & mask;
+				}
+				k[i] = key;
+				v[i] = value;
+			});
+			return new LongObjectMap<>(k, v, size);
+		}
+	}
+}
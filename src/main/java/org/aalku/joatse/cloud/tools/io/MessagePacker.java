@@ -0,0 +1,26 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import java.util.List;
+
+import org.springframework.web.socket.WebSocketMessage;
+
+/**
+ * Packs several messages of a session in one, so {@link WebSocketSendWorker}
+ * can send many small messages as one WebSocket message.
+ */
+public interface MessagePacker {
+
+	boolean canPack(WebSocketMessage<?> message);
+
+	/**
+	 * @param messages at least two, all of them accepted by canPack()
+	 */
+	WebSocketMessage<?> pack(List<WebSocketMessage<?>> messages);
+
+	/**
+	 * Called when the packed message was sent or failed. Nothing will use it
+	 * after that.
+	 */
+	default void packedSent(WebSocketMessage<?> packed) {
+	}
+}
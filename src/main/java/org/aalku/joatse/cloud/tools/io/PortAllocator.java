@@ -0,0 +1,216 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Hands out ports of a range and binds them only while they are used.
+ *
+ * Several lots can share a port, connections are told apart by their remote
+ * address, so each port has a count of users. Free ports are handed out first,
+ * going round the range from where the last allocation ended, so the load is
+ * spread instead of piling up on the lowest ports. Only if there are not enough
+ * free ports are the least used ones shared.
+ *
+ * A port is bound when it's handed out and unbound by {@link #unbindIdle(long)}
+ * once it has been free for the grace period, so a lot that reconnects finds
+ * its port still there. Ports that couldn't be bound are skipped for a grace
+ * period too.
+ */
+public class PortAllocator {
+
+	/**
+	 * What binding a port means. It's called with the lock of the allocator, and
+	 * it should be quick.
+	 */
+	public interface Binder {
+		/**
+		 * @return false if it couldn't be bound
+		 */
+		boolean bind(int port);
+
+		void unbind(int port);
+	}
+
+	private final int min;
+	private final int size;
+	private final Binder binder;
+	private final LongSupplier nanoClock;
+
+	private final int[] users;
+	/** Ports with users */
+	private final BitSet used;
+	private final BitSet bound;
+	/** Ports that couldn't be bound or were lost */
+	private final BitSet broken;
+	/** Since when it's free or broken, nanoClock */
+	private final long[] since;
+	/** Where the next search for free ports starts */
+	private int cursor = 0;
+
+	public PortAllocator(int min, int max, Binder binder) {
+		this(min, max, binder, System::nanoTime);
+	}
+
+	PortAllocator(int min, int max, Binder binder, LongSupplier nanoClock) {
+		if (max < min) {
+			throw new IllegalArgumentException("Empty port range: " + min + "-" + max);
+		}
+		this.min = min;
+		this.size = max - min + 1;
+		this.binder = binder;
+		this.nanoClock = nanoClock;
+		this.users = new int[size];
+		this.used = new BitSet(size);
+		this.bound = new BitSet(size);
+		this.broken = new BitSet(size);
+		this.since = new long[size];
+	}
+
+	/**
+	 * @return that many different ports, bound
+	 * @throws IllegalStateException if there aren't that many ports that can be
+	 *                               bound
+	 */
+	public synchronized List<Integer> acquire(int count) {
+		List<Integer> res = new ArrayList<>(count);
+		if (count <= 0) {
+			return res;
+		}
+		if (count > size) {
+			throw new IllegalStateException("Not enough open TCP ports (" + size + ") for this share size (" + count + ")");
+		}
+		BitSet chosen = new BitSet(size);
+		int last = -1;
+		// Free ports first
+		for (int n = 0, i = cursor; n < size && res.size() < count; n++, i = next(i)) {
+			if (!used.get(i) && !broken.get(i) && bind(i)) {
+				take(i, chosen, res);
+				last = i;
+			}
+		}
+		// Then share the least used
+		while (res.size() < count) {
+			int best = -1;
+			for (int i = used.nextSetBit(0); i >= 0; i = used.nextSetBit(i + 1)) {
+				if (!chosen.get(i) && bound.get(i) && (best < 0 || users[i] < users[best])) {
+					best = i;
+				}
+			}
+			if (best < 0) {
+				for (int p : res) {
+					release(p);
+				}
+				throw new IllegalStateException("Not enough TCP ports could be bound (" + res.size() + ") for this share size (" + count + ")");
+			}
+			take(best, chosen, res);
+		}
+		if (last >= 0) {
+			cursor = next(last);
+		}
+		return res;
+	}
+
+	public synchronized void release(Collection<Integer> ports) {
+		ports.forEach(this::release);
+	}
+
+	public synchronized void release(int port) {
+		int i = port - min;
+		if (i < 0 || i >= size || users[i] == 0) {
+			return;
+		}
+		if (--users[i] == 0) {
+			used.clear(i);
+			since[i] = nanoClock.getAsLong();
+		}
+	}
+
+	/**
+	 * The port stopped listening by itself. It's not handed out again for a while,
+	 * users keep it and {@link #unbindIdle(long)} binds it again after that.
+	 */
+	public synchronized void lost(int port) {
+		int i = port - min;
+		if (i >= 0 && i < size && bound.get(i)) {
+			bound.clear(i);
+			broken.set(i);
+			since[i] = nanoClock.getAsLong();
+		}
+	}
+
+	/**
+	 * Unbinds the ports free for longer than the grace period, and lets broken
+	 * ones be tried again. Broken ones that still have users are bound again now.
+	 *
+	 * @return ports unbound
+	 */
+	public synchronized int unbindIdle(long graceMillis) {
+		long limit = nanoClock.getAsLong() - TimeUnit.MILLISECONDS.toNanos(graceMillis);
+		int res = 0;
+		for (int i = bound.nextSetBit(0); i >= 0; i = bound.nextSetBit(i + 1)) {
+			if (!used.get(i) && since[i] - limit <= 0) {
+				bound.clear(i);
+				binder.unbind(min + i);
+				res++;
+			}
+		}
+		for (int i = broken.nextSetBit(0); i >= 0; i = broken.nextSetBit(i + 1)) {
+			if (since[i] - limit > 0) {
+				continue;
+			}
+			if (users[i] == 0) {
+				broken.clear(i);
+			} else if (binder.bind(min + i)) {
+				broken.clear(i);
+				bound.set(i);
+			} else {
+				since[i] = nanoClock.getAsLong(); // Another grace period
+			}
+		}
+		return res;
+	}
+
+	public synchronized void unbindAll() {
+		for (int i = bound.nextSetBit(0); i >= 0; i = bound.nextSetBit(i + 1)) {
+			binder.unbind(min + i);
+		}
+		bound.clear();
+	}
+
+	public synchronized int getBoundCount() {
+		return bound.cardinality();
+	}
+
+	public synchronized int getUsedCount() {
+		return used.cardinality();
+	}
+
+	private boolean bind(int i) {
+		if (bound.get(i)) {
+			return true;
+		}
+		if (binder.bind(min + i)) {
+			bound.set(i);
+			return true;
+		}
+		broken.set(i);
+		since[i] = nanoClock.getAsLong();
+		return false;
+	}
+
+	private void take(int i, BitSet chosen, List<Integer> res) {
+		users[i]++;
+		used.set(i);
+		chosen.set(i);
+		res.add(min + i);
+	}
+
+	private int next(int i) {
+		return i + 1 >= size ? 0 : i + 1;
+	}
+}
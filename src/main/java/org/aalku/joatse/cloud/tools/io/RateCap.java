@@ -0,0 +1,83 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small lock free token bucket (GCRA) to cap the rate of something, like the
+ * traffic that may skip the queue. It starts full.
+ */
+class RateCap {
+
+	private volatile long limitBps;
+	private final long burstBytes;
+	/** When we would have sent everything so far at the limit */
+	private final AtomicLong virtualTime = new AtomicLong(Long.MIN_VALUE);
+
+	/**
+	 * @param limitBps   0 or less means no traffic at all
+	 * @param burstBytes bytes that can go at once after being quiet
+	 */
+	RateCap(long limitBps, long burstBytes) {
+		this.limitBps = limitBps;
+		this.burstBytes = burstBytes;
+	}
+
+	/**
+	 * Takes the bytes if they fit now, or nothing if they don't.
+	 */
+	boolean tryAcquire(long now, long bytes) {
+		long limitBps = this.limitBps;
+		if (limitBps <= 0) {
+			return false;
+		}
+		long burstNanos = nanosAt(burstBytes, limitBps);
+		long costNanos = nanosAt(bytes, limitBps);
+		while (true) {
+			long old = virtualTime.get();
+			long next = Math.max(old, now - burstNanos) + costNanos;
+			if (next - now > 0) {
+				return false;
+			}
+			if (virtualTime.compareAndSet(old, next)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return true if something can go now, but maybe not everything
+	 */
+	boolean hasTokens(long now) {
+		long limitBps = this.limitBps;
+		if (limitBps <= 0) {
+			return false;
+		}
+		return Math.max(virtualTime.get(), now - nanosAt(burstBytes, limitBps)) - now <= 0;
+	}
+
+	/**
+	 * Takes the bytes even if they don't fit, the next ones will wait for them.
+	 */
+	void charge(long now, long bytes) {
+		long limitBps = this.limitBps;
+		if (limitBps <= 0) {
+			return;
+		}
+		long burstNanos = nanosAt(burstBytes, limitBps);
+		long costNanos = nanosAt(bytes, limitBps);
+		virtualTime.getAndUpdate(old -> Math.max(old, now - burstNanos) + costNanos);
+	}
+
+	long getLimitBps() {
+		return limitBps;
+	}
+
+	void setLimitBps(long limitBps) {
+		this.limitBps = limitBps;
+	}
+
+	private static long nanosAt(long bytes, long bps) {
+		return (long) (bytes * 8d * TimeUnit.SECONDS.toNanos(1) / bps);
+	}
+}
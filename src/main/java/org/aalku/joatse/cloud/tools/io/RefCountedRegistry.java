@@ -0,0 +1,61 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Values by key that live while someone uses them. The first acquire() creates
+ * the value and each release() undoes an acquire(). When nobody uses it any
+ * more it's forgotten, so the next acquire() creates it again.
+ * 
+ * Everyone using a key at the same time gets the same value.
+ */
+public class RefCountedRegistry<K, V> {
+
+	private static class Entry<V> {
+		private final V value;
+		/** Guarded by the map, we only change it inside compute() */
+		private int refs = 0;
+
+		private Entry(V value) {
+			this.value = value;
+		}
+	}
+
+	private final Map<K, Entry<V>> map = new ConcurrentHashMap<>();
+	private final Function<K, V> factory;
+
+	/**
+	 * @param factory creates the value of a key when nobody is using it
+	 */
+	public RefCountedRegistry(Function<K, V> factory) {
+		this.factory = factory;
+	}
+
+	public V acquire(K key) {
+		return map.compute(key, (k, e) -> {
+			if (e == null) {
+				e = new Entry<>(factory.apply(k));
+			}
+			e.refs++;
+			return e;
+		}).value;
+	}
+
+	public void release(K key) {
+		map.computeIfPresent(key, (k, e) -> --e.refs <= 0 ? null : e);
+	}
+
+	/**
+	 * @return the value if someone is using it
+	 */
+	public Optional<V> get(K key) {
+		return Optional.ofNullable(map.get(key)).map(e -> e.value);
+	}
+
+	public int size() {
+		return map.size();
+	}
+}
@@ -3,6 +3,7 @@ package org.aalku.joatse.cloud.tools.io;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
 import java.util.UUID;
 import java.util.function.Consumer;
 
@@ -14,6 +15,7 @@ import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 /**
@@ -47,6 +49,12 @@ import org.springframework.stereotype.Component;
  * 
  * There's no need of receiving protocol version since we are talking to the
  * same process. It will always be the same version.
+ * 
+ * If the uuid and targetId are the ones of {@link SwitchboardMux} the connection
+ * carries many others, see there.
+ * 
+ * It listens on a tcp port of localhost and, if "switchboard.socket" is set, on
+ * a unix domain socket at that path too. The protocol is the same.
  */
 @Component
 public class Switchboard implements InitializingBean, DisposableBean, Consumer<Event<Void>>{
@@ -58,6 +66,11 @@ public class Switchboard implements InitializingBean, DisposableBean, Consumer<E
 	@Autowired
 	@Qualifier("switchboardPortListener")
 	private AsyncTcpPortListener<Void> switchboardPortListener;
+
+	@Value("${switchboard.socket:}")
+	private String switchboardSocket;
+
+	private UnixSocketListener<Void> switchboardSocketListener;
 	
 	@Autowired
 	private SharingManager sharingManager; // the tunnel will run through it.
@@ -69,18 +82,30 @@ public class Switchboard implements InitializingBean, DisposableBean, Consumer<E
 	public void afterPropertiesSet() throws Exception {
 		switchboardPortListener.start(null, this);
 		log.info("Switchboard listening at tcp: " + switchboardPortListener.getAddress());
+		if (!switchboardSocket.isEmpty()) {
+			switchboardSocketListener = new UnixSocketListener<Void>(Path.of(switchboardSocket));
+			switchboardSocketListener.start(null, this);
+			if (switchboardSocketListener.getAddress() != null) {
+				log.info("Switchboard listening at unix socket: " + switchboardSocketListener.getAddress().getPath());
+			} else {
+				log.error("Switchboard is not listening at unix socket: " + switchboardSocket + ", check switchboard.socket");
+			}
+		}
 	}
 	
 	@Override
 	public void destroy() throws Exception {
 		IOTools.runFailable(()->switchboardPortListener.close());
+		if (switchboardSocketListener != null) {
+			IOTools.runFailable(()->switchboardSocketListener.close());
+		}
 		log.info("Switchboard closed.");
 	}
 
 	@Override
 	public void accept(Event<Void> t) {
 		if (t.error != null) {
-			log.error("Can't accept connections at tcp address: " + switchboardPortListener.getAddress());
+			log.error("Switchboard can't accept connections: " + t.error, t.error);
 		} else if (t.channel != null) {
 			handleNewChannel(t.channel);			
 		} else {
@@ -93,6 +118,10 @@ public class Switchboard implements InitializingBean, DisposableBean, Consumer<E
 		IOTools.asyncReadWholeBuffer(channel, headerBuffer).thenAcceptAsync(n->{
 			UUID uuid = new UUID(headerBuffer.getLong(), headerBuffer.getLong());
 			long targetId = headerBuffer.getLong();
+			if (SwitchboardMux.isMux(uuid, targetId)) {
+				handleMux(channel);
+				return;
+			}
 			
 			Object context = sharingManager.switchboardConnected(uuid, targetId);			
 			if (context != null) {
@@ -118,6 +147,31 @@ public class Switchboard implements InitializingBean, DisposableBean, Consumer<E
 			return null;
 		});
 	}
+	/**
+	 * Many connections over this one, see {@link SwitchboardMux}
+	 */
+	private void handleMux(AsynchronousSocketChannel channel) {
+		SwitchboardMuxSession session = new SwitchboardMuxSession(channel, new SwitchboardMuxSession.Targets() {
+			@Override
+			public Object connected(UUID uuid, long targetId) {
+				return sharingManager.switchboardConnected(uuid, targetId);
+			}
+
+			@Override
+			public void ready(Object context, AsynchronousSocketChannel streamChannel) {
+				sharingManager.switchboardConnectionReady(context, streamChannel);
+			}
+		});
+		IOTools.asyncWriteWholeBuffer(channel, ByteBuffer.wrap(new byte[] {0})) // send 0 = OK
+			.thenAccept(x -> {
+				log.info("Switchboard mux is ready");
+				session.start();
+			}).exceptionally(e -> {
+				IOTools.closeChannel(channel);
+				return null;
+			});
+	}
+
 	private void reportErrorThenClose(AsynchronousSocketChannel channel, int errorCode, String errorMessage) {
 		ByteBuffer bb = ByteBuffer.allocate(errorMessage.length()+2);
 		// send errorCode, errorMessage, 0
@@ -0,0 +1,382 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A long lived local process that keeps one connection to the switchboard and
+ * carries many short ones through it ({@link SwitchboardMux}), so each ssh
+ * connection doesn't have to start a JVM.
+ *
+ * It listens on a unix domain socket. Clients send a line with the tunnel uuid
+ * and the target id separated by a space, then the real traffic. There's a
+ * launcher script that does that with socat, sb-connect.sh:
+ *
+ * <pre>
+ * java -jar file.jar --daemon <daemon socket path> <switchboard socket path>|<switchboard host> <switchboard port> &
+ * ssh -o 'ProxyCommand sb-connect.sh <daemon socket path> <tunnel UUID> <target id>' <user>@<ssh server> ...
+ * </pre>
+ *
+ * It uses plain blocking channels and two threads per connection, there are no
+ * dependencies here, the client jar only has the switchboard client classes.
+ */
+public class SwitchboardClientDaemon implements Closeable {
+
+	private static final int MAX_HEADER_LINE = 200;
+
+	private final SocketAddress switchboardAddress;
+	private final Path socketPath;
+	private final ServerSocketChannel server;
+	private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+		Thread th = new Thread(r, "sbDaemon");
+		th.setDaemon(true);
+		return th;
+	});
+	private final AtomicInteger nextStreamId = new AtomicInteger(1);
+	private Carrier carrier;
+	private volatile boolean closed = false;
+
+	public static void main(String[] args) {
+		try {
+			if (args.length != 2 && args.length != 3) {
+				System.err.println("Usage: --daemon <daemon socket path> <switchboard socket path>|<switchboard host> <switchboard port>");
+				System.exit(2);
+			}
+			SocketAddress switchboard = args.length == 2 ? UnixDomainSocketAddress.of(args[1])
+					: new InetSocketAddress(args[1], Integer.parseInt(args[2], 10));
+			SwitchboardClientDaemon daemon = new SwitchboardClientDaemon(Path.of(args[0]), switchboard);
+			Runtime.getRuntime().addShutdownHook(new Thread(daemon::close));
+			daemon.run();
+		} catch (Exception e) {
+			e.printStackTrace(System.err);
+			System.exit(1);
+		}
+	}
+
+	public SwitchboardClientDaemon(Path socketPath, SocketAddress switchboardAddress) throws IOException {
+		this.socketPath = socketPath;
+		this.switchboardAddress = switchboardAddress;
+		this.server = UnixSocketFiles.bindPrivate(socketPath); // Only we can connect
+	}
+
+	/**
+	 * Accepts connections until closed
+	 */
+	public void run() {
+		while (!closed) {
+			try {
+				SocketChannel local = server.accept();
+				executor.execute(() -> handle(local));
+			} catch (IOException e) {
+				if (!closed) {
+					e.printStackTrace(System.err);
+					close();
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		quietly(() -> server.close());
+		quietly(() -> Files.deleteIfExists(socketPath));
+		Carrier c;
+		synchronized (this) {
+			c = carrier;
+			carrier = null;
+		}
+		if (c != null) {
+			c.close();
+		}
+		executor.shutdownNow();
+	}
+
+	private synchronized Carrier getCarrier() throws IOException {
+		if (carrier == null || carrier.closed) {
+			carrier = new Carrier(SwitchboardExternalClient.connect(switchboardAddress, SwitchboardMux.MUX_UUID,
+					SwitchboardMux.MUX_TARGET_ID));
+		}
+		return carrier;
+	}
+
+	private void handle(SocketChannel local) {
+		try {
+			String[] header = readHeaderLine(local).trim().split(" +");
+			if (header.length != 2) {
+				throw new IOException("Expected '<tunnel UUID> <target id>'");
+			}
+			UUID uuid = UUID.fromString(header[0]);
+			long targetId = Long.parseLong(header[1], 10);
+			getCarrier().open(local, uuid, targetId).upstream();
+		} catch (Exception e) {
+			System.err.println("Switchboard daemon: " + e);
+			quietly(() -> local.close());
+		}
+	}
+
+	private static String readHeaderLine(SocketChannel local) throws IOException {
+		// One byte at a time, what comes after the line is not ours
+		ByteBuffer line = ByteBuffer.allocate(MAX_HEADER_LINE);
+		ByteBuffer one = ByteBuffer.allocate(1);
+		while (line.hasRemaining()) {
+			one.clear();
+			if (local.read(one) < 0) {
+				throw new EOFException("No header line");
+			}
+			byte b = one.get(0);
+			if (b == '\n') {
+				return new String(line.array(), 0, line.position(), StandardCharsets.US_ASCII);
+			}
+			line.put(b);
+		}
+		throw new IOException("Header line too long");
+	}
+
+	private interface IOTask {
+		void run() throws IOException;
+	}
+
+	/**
+	 * IOTools is not in the client jar
+	 */
+	private static void quietly(IOTask task) {
+		try {
+			task.run();
+		} catch (IOException e) {
+		}
+	}
+
+	private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * The connection to the switchboard
+	 */
+	private class Carrier {
+		private final SocketChannel channel;
+		private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+		private final Object writeLock = new Object();
+		private volatile boolean closed = false;
+
+		private Carrier(SocketChannel channel) {
+			this.channel = channel;
+			executor.execute(this::downstream);
+		}
+
+		private Stream open(SocketChannel local, UUID uuid, long targetId) throws IOException {
+			Stream stream = new Stream(nextStreamId.getAndIncrement(), local, this);
+			streams.put(stream.id, stream);
+			write(SwitchboardMux.open(stream.id, uuid, targetId));
+			executor.execute(stream::downstream);
+			return stream;
+		}
+
+		private void write(ByteBuffer frame) throws IOException {
+			synchronized (writeLock) {
+				if (closed) {
+					throw new IOException("Switchboard connection closed");
+				}
+				writeFully(channel, frame);
+			}
+		}
+
+		/**
+		 * Reads frames and hands them to the streams
+		 */
+		private void downstream() {
+			ByteBuffer header = ByteBuffer.allocate(SwitchboardMux.HEADER_SIZE);
+			try {
+				while (true) {
+					header.clear();
+					readFully(channel, header);
+					int id = header.getInt(0);
+					byte type = header.get(4);
+					int len = header.getInt(5);
+					if (len < 0 || len > SwitchboardMux.MAX_PAYLOAD) {
+						throw new IOException("Invalid frame length: " + len);
+					}
+					ByteBuffer payload = ByteBuffer.allocate(len);
+					readFully(channel, payload);
+					payload.flip();
+					Stream stream = streams.get(id);
+					if (stream == null) {
+						continue;
+					}
+					switch (type) {
+					case SwitchboardMux.DATA:
+						stream.toLocal.add(payload);
+						break;
+					case SwitchboardMux.CREDIT:
+						stream.credit(payload.getInt());
+						break;
+					case SwitchboardMux.EOF:
+						stream.toLocal.add(Stream.EOF);
+						break;
+					case SwitchboardMux.CLOSE:
+						stream.abort();
+						break;
+					default:
+						throw new IOException("Invalid frame type: " + type);
+					}
+				}
+			} catch (IOException e) {
+				if (!this.closed) {
+					System.err.println("Switchboard connection lost: " + e);
+				}
+			}
+			close();
+		}
+
+		private void close() {
+			closed = true;
+			quietly(() -> channel.close()); // Unblocks a writer that has the lock
+			streams.values().forEach(Stream::abort);
+			streams.clear();
+		}
+	}
+
+	/**
+	 * A local connection carried by the carrier
+	 */
+	private static class Stream {
+		private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+		private static final ByteBuffer CLOSE = ByteBuffer.allocate(0);
+
+		private final int id;
+		private final SocketChannel local;
+		private final Carrier carrier;
+		private final LinkedBlockingQueue<ByteBuffer> toLocal = new LinkedBlockingQueue<>();
+		private int sendCredit = SwitchboardMux.WINDOW;
+		private boolean aborted = false;
+		private final AtomicInteger running = new AtomicInteger(2);
+
+		private Stream(int id, SocketChannel local, Carrier carrier) {
+			this.id = id;
+			this.local = local;
+			this.carrier = carrier;
+		}
+
+		private synchronized void credit(int bytes) {
+			sendCredit += bytes;
+			notifyAll();
+		}
+
+		private void abort() {
+			synchronized (this) {
+				aborted = true;
+				notifyAll();
+			}
+			toLocal.add(CLOSE);
+		}
+
+		/**
+		 * @return how much can be sent now, waiting for credit if there's none
+		 */
+		private synchronized int takeCredit(int wanted) throws IOException, InterruptedException {
+			while (sendCredit <= 0 && !aborted) {
+				wait();
+			}
+			if (aborted) {
+				throw new IOException("Stream closed");
+			}
+			int res = Math.min(wanted, sendCredit);
+			sendCredit -= res;
+			return res;
+		}
+
+		/**
+		 * Local to switchboard, in the thread that accepted the connection
+		 */
+		private void upstream() {
+			ByteBuffer buffer = ByteBuffer.allocate(SwitchboardMux.MAX_PAYLOAD);
+			try {
+				while (true) {
+					buffer.clear();
+					if (local.read(buffer) < 0) {
+						carrier.write(SwitchboardMux.frame(id, SwitchboardMux.EOF));
+						break;
+					}
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						int len = takeCredit(buffer.remaining());
+						carrier.write(SwitchboardMux.frame(id, SwitchboardMux.DATA, buffer, len));
+					}
+				}
+			} catch (IOException | InterruptedException e) {
+				quietly(() -> carrier.write(SwitchboardMux.frame(id, SwitchboardMux.CLOSE)));
+				abort();
+			}
+			done();
+		}
+
+		/**
+		 * Switchboard to local
+		 */
+		private void downstream() {
+			int creditToGrant = 0;
+			try {
+				while (true) {
+					ByteBuffer data = toLocal.take();
+					if (data == EOF) {
+						local.shutdownOutput();
+						break;
+					} else if (data == CLOSE) {
+						local.close(); // Unblocks upstream
+						break;
+					}
+					int n = data.remaining();
+					writeFully(local, data);
+					creditToGrant += n;
+					if (creditToGrant >= SwitchboardMux.WINDOW / 4) {
+						carrier.write(SwitchboardMux.credit(id, creditToGrant));
+						creditToGrant = 0;
+					}
+				}
+			} catch (IOException | InterruptedException e) {
+				quietly(() -> carrier.write(SwitchboardMux.frame(id, SwitchboardMux.CLOSE)));
+				abort();
+				quietly(() -> local.close());
+			}
+			done();
+		}
+
+		private void done() {
+			if (running.decrementAndGet() == 0) {
+				carrier.streams.remove(id, this);
+				quietly(() -> local.close());
+			}
+		}
+	}
+}
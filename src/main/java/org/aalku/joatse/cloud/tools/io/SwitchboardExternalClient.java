@@ -1,12 +1,19 @@
 package org.aalku.joatse.cloud.tools.io;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 
@@ -26,22 +33,109 @@ import java.util.concurrent.CompletableFuture;
  * 
  * The <ssh server> is needed in the command line but it's not really used, just to associate the pub key to that name.
  * 
+ * If the switchboard listens on a unix domain socket ("switchboard.socket") you
+ * can use it instead of host and port, it's faster:
+ * 
+ * <pre>
+ * ssh -o 'ProxyCommand java -jar file.jar <switchboard socket path> <tunnel UUID> <target id>' <user>@<ssh server> ...
+ * </pre>
+ * 
+ * With "--daemon" it runs a {@link SwitchboardClientDaemon} instead, for many
+ * connections without starting a JVM for each one.
  */
 public class SwitchboardExternalClient {
 
 	private static final int BUFFER_SIZE = 1024*128;
 
 	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("--daemon")) {
+			SwitchboardClientDaemon.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
 		try {
-			String host = args[0];
-			int port = Integer.parseInt(args[1], 10);
-			UUID uuid = UUID.fromString(args[2]);
-			long targetId = Long.parseLong(args[3], 10);
+			if (args.length > 0 && args[0].equals("--cds-training")) {
+				cdsTraining();
+				return;
+			}
+			SocketAddress address;
+			int a;
+			if (args.length == 3) {
+				address = UnixDomainSocketAddress.of(args[0]);
+				a = 1;
+			} else {
+				address = new InetSocketAddress(args[0], Integer.parseInt(args[1], 10));
+				a = 2;
+			}
+			UUID uuid = UUID.fromString(args[a]);
+			long targetId = Long.parseLong(args[a + 1], 10);
 
-			// Connect
-			SocketChannel client = SocketChannel.open();
+			run(address, uuid, targetId, Channels.newChannel(System.in), Channels.newChannel(System.out));
+		} catch (Exception e) {
+			e.printStackTrace(System.err);
+			System.exit(1);
+		}
+
+	}
+
+	private static void run(SocketAddress address, UUID uuid, long targetId, ReadableByteChannel in,
+			WritableByteChannel out) throws Exception {
+		SocketChannel client = connect(address, uuid, targetId);
+
+		// Two way comm until exception or both ends closed
+		CompletableFuture<Void> resOut = copyThread(in, client, "thOut");
+		CompletableFuture<Void> resIn = copyThread(client, out, "thIn");
+		CompletableFuture.allOf(resIn, resOut).exceptionally(e->{
+			resIn.cancel(true);
+			resOut.cancel(true);
+			return null;
+		}).get();
+		
+		try {
+			client.close();
+		} catch (Exception e) {
+		}
+	}
+
+	/**
+	 * Runs a connection against a fake switchboard in this process, so a class
+	 * data sharing archive can be recorded with the classes a real one loads:
+	 * 
+	 * <pre>
+	 * java -XX:ArchiveClassesAtExit=sb-client.jsa -jar file.jar --cds-training
+	 * java -XX:SharedArchiveFile=sb-client.jsa -jar file.jar ...
+	 * </pre>
+	 */
+	static void cdsTraining() throws Exception {
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			Thread switchboard = new Thread(() -> {
+				try (SocketChannel channel = server.accept()) {
+					ByteBuffer hello = ByteBuffer.allocate(16 + 8);
+					while (hello.hasRemaining() && channel.read(hello) >= 0);
+					ByteBuffer response = ByteBuffer.wrap(new byte[] { 0, 'o', 'k', '\n' });
+					while (response.hasRemaining()) {
+						channel.write(response);
+					}
+				} catch (IOException e) {
+				}
+			}, "switchboard");
+			switchboard.setDaemon(true);
+			switchboard.start();
+			run(server.getLocalAddress(), new UUID(0L, 1L), 1L, Channels.newChannel(new ByteArrayInputStream(new byte[0])),
+					Channels.newChannel(OutputStream.nullOutputStream()));
+		}
+	}
+
+	/**
+	 * Connects to the switchboard, tcp or unix domain socket, and asks for the
+	 * target.
+	 * 
+	 * @return the channel, blocking, ready for the real traffic
+	 */
+	static SocketChannel connect(SocketAddress address, UUID uuid, long targetId) throws IOException {
+		SocketChannel client = SocketChannel.open(address);
+		try {
 			client.configureBlocking(true);
-			client.connect(new InetSocketAddress(host, port));
 			// Say hello
 			ByteBuffer hello = ByteBuffer.allocate(16 + 8);
 			hello.putLong(uuid.getMostSignificantBits());
@@ -65,26 +159,11 @@ public class SwitchboardExternalClient {
 				hello.limit(hello.limit() - 1); // \0 at the end
 				throw new IOException("Negative response from switchboard: " + hello.asCharBuffer().toString());
 			}
-			hello = null;
-
-			// Two way comm until exception or both ends closed
-			CompletableFuture<Void> resOut = copyThread(Channels.newChannel(System.in), client, "thOut");
-			CompletableFuture<Void> resIn = copyThread(client, Channels.newChannel(System.out), "thIn");
-			CompletableFuture.allOf(resIn, resOut).exceptionally(e->{
-				resIn.cancel(true);
-				resOut.cancel(true);
-				return null;
-			}).get();
-			
-			try {
-				client.close();
-			} catch (Exception e) {
-			}
-		} catch (Exception e) {
-			e.printStackTrace(System.err);
-			System.exit(1);
+			return client;
+		} catch (IOException | RuntimeException e) {
+			client.close();
+			throw e;
 		}
-
 	}
 
 	private static CompletableFuture<Void> copyThread(ReadableByteChannel in, WritableByteChannel out, String name) {
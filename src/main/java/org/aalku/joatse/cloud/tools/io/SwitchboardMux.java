@@ -0,0 +1,83 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * Protocol to carry many switchboard connections over one.
+ *
+ * The client connects to the switchboard as usual but asks for
+ * {@link #MUX_UUID}.{@link #MUX_TARGET_ID}. After the 0 byte both sides send
+ * frames:
+ *
+ * <pre>
+ *  int   (4 bytes): stream id, chosen by the client.
+ *  byte  (1 byte):  type.
+ *  int   (4 bytes): payload length, up to {@link #MAX_PAYLOAD}.
+ *  bytes:           payload.
+ * </pre>
+ *
+ * Types:
+ *
+ * <pre>
+ * OPEN   --> payload is what a plain connection would send: uuid (16 bytes) and targetId (8 bytes).
+ * DATA  <--> bytes of the stream.
+ * CREDIT <--> int (4 bytes): the other side can send that many more DATA bytes of the stream.
+ * EOF   <--> no more DATA of the stream this way.
+ * CLOSE <--> the stream is gone, both ways. The server sends it when OPEN is rejected.
+ * </pre>
+ *
+ * Each side starts with {@link #WINDOW} bytes of credit for each stream, so a
+ * slow stream doesn't stop the others.
+ */
+public final class SwitchboardMux {
+
+	public static final UUID MUX_UUID = new UUID(0L, 0L);
+	public static final long MUX_TARGET_ID = 0L;
+
+	public static final byte OPEN = 1;
+	public static final byte DATA = 2;
+	public static final byte CREDIT = 3;
+	public static final byte EOF = 4;
+	public static final byte CLOSE = 5;
+
+	public static final int HEADER_SIZE = 4 + 1 + 4;
+	public static final int MAX_PAYLOAD = 64 * 1024;
+	public static final int WINDOW = 256 * 1024;
+
+	private SwitchboardMux() {
+	}
+
+	public static boolean isMux(UUID uuid, long targetId) {
+		return MUX_UUID.equals(uuid) && targetId == MUX_TARGET_ID;
+	}
+
+	/**
+	 * @return a frame ready to write, with len bytes of the payload, that are
+	 *         consumed
+	 */
+	public static ByteBuffer frame(int stream, byte type, ByteBuffer payload, int len) {
+		ByteBuffer res = ByteBuffer.allocate(HEADER_SIZE + len);
+		res.putInt(stream).put(type).putInt(len);
+		if (len > 0) {
+			res.put(res.position(), payload, payload.position(), len);
+			payload.position(payload.position() + len);
+			res.position(res.limit());
+		}
+		return res.flip();
+	}
+
+	public static ByteBuffer frame(int stream, byte type) {
+		return frame(stream, type, null, 0);
+	}
+
+	public static ByteBuffer open(int stream, UUID uuid, long targetId) {
+		ByteBuffer payload = ByteBuffer.allocate(16 + 8);
+		payload.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).putLong(targetId);
+		return frame(stream, OPEN, payload.flip(), payload.remaining());
+	}
+
+	public static ByteBuffer credit(int stream, int bytes) {
+		return frame(stream, CREDIT, ByteBuffer.allocate(4).putInt(0, bytes), 4);
+	}
+}
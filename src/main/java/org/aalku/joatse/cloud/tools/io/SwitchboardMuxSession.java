@@ -0,0 +1,356 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Switchboard side of a {@link SwitchboardMux} connection. Each stream is an
+ * {@link InProcessSocketChannel} handed to its target like a plain switchboard
+ * connection would be.
+ */
+public class SwitchboardMuxSession {
+
+	/**
+	 * What the switchboard does with a connection
+	 */
+	public interface Targets {
+		/**
+		 * @return a context for {@link #ready(Object, AsynchronousSocketChannel)} or
+		 *         null if there's no such target
+		 */
+		Object connected(UUID uuid, long targetId);
+
+		void ready(Object context, AsynchronousSocketChannel channel);
+	}
+
+	private Logger log = LoggerFactory.getLogger(SwitchboardMuxSession.class);
+
+	private final AsynchronousSocketChannel carrier;
+	private final Targets targets;
+	private final InetSocketAddress remoteAddress;
+	private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+	private final ByteBuffer in = ByteBuffer.allocate(2 * (SwitchboardMux.HEADER_SIZE + SwitchboardMux.MAX_PAYLOAD));
+
+	private final Object writeLock = new Object();
+	private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+	private boolean writing = false;
+	private boolean closed = false;
+
+	public SwitchboardMuxSession(AsynchronousSocketChannel carrier, Targets targets) {
+		this.carrier = carrier;
+		this.targets = targets;
+		// Unix domain sockets have no inet address, they are local
+		SocketAddress a = IOTools.runUnchecked(() -> carrier.getRemoteAddress());
+		this.remoteAddress = a instanceof InetSocketAddress ? (InetSocketAddress) a
+				: new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+	}
+
+	public void start() {
+		carrier.read(in, null, new CompletionHandler<Integer, Void>() {
+			@Override
+			public void completed(Integer result, Void attachment) {
+				if (result < 0) {
+					close();
+					return;
+				}
+				in.flip();
+				try {
+					while (readFrame()) {
+					}
+				} catch (IOException e) {
+					log.warn("Switchboard mux error: {}", e.toString());
+					close();
+					return;
+				}
+				in.compact();
+				carrier.read(in, null, this);
+			}
+
+			@Override
+			public void failed(Throwable exc, Void attachment) {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * @return false if there's not a whole frame in the buffer
+	 */
+	private boolean readFrame() throws IOException {
+		if (in.remaining() < SwitchboardMux.HEADER_SIZE) {
+			return false;
+		}
+		int p = in.position();
+		int id = in.getInt(p);
+		byte type = in.get(p + 4);
+		int len = in.getInt(p + 5);
+		if (len < 0 || len > SwitchboardMux.MAX_PAYLOAD) {
+			throw new IOException("Invalid frame length: " + len);
+		}
+		if (in.remaining() < SwitchboardMux.HEADER_SIZE + len) {
+			return false;
+		}
+		in.position(p + SwitchboardMux.HEADER_SIZE);
+		ByteBuffer payload = in.slice(in.position(), len);
+		in.position(in.position() + len);
+		Stream stream = streams.get(id);
+		switch (type) {
+		case SwitchboardMux.OPEN:
+			if (stream != null || len != 16 + 8) {
+				throw new IOException("Invalid open of stream " + id);
+			}
+			open(id, new UUID(payload.getLong(), payload.getLong()), payload.getLong());
+			break;
+		case SwitchboardMux.DATA:
+			if (stream != null) {
+				ByteBuffer data = ByteBuffer.allocate(len);
+				data.put(payload).flip();
+				stream.data(data);
+			}
+			break;
+		case SwitchboardMux.CREDIT:
+			if (stream != null) {
+				stream.credit(payload.getInt());
+			}
+			break;
+		case SwitchboardMux.EOF:
+			if (stream != null) {
+				stream.remoteEOF();
+			}
+			break;
+		case SwitchboardMux.CLOSE:
+			if (stream != null) {
+				stream.remoteClose();
+			}
+			break;
+		default:
+			throw new IOException("Invalid frame type: " + type);
+		}
+		return true;
+	}
+
+	private void open(int id, UUID uuid, long targetId) {
+		Object context = targets.connected(uuid, targetId);
+		if (context == null) {
+			write(SwitchboardMux.frame(id, SwitchboardMux.CLOSE));
+			return;
+		}
+		Stream stream = new Stream(id);
+		streams.put(id, stream);
+		try {
+			log.info("Switchboard mux stream is ready: {}.{}", uuid, targetId);
+			targets.ready(context, stream.channel);
+		} catch (Exception e) {
+			log.info("Switchboard mux error - {}.{}: {}", uuid, targetId, e);
+			stream.localClose();
+		}
+	}
+
+	private void write(ByteBuffer frame) {
+		synchronized (writeLock) {
+			if (closed) {
+				return;
+			}
+			if (writing) {
+				writeQueue.add(frame);
+				return;
+			}
+			writing = true;
+		}
+		carrier.write(frame, frame, new CompletionHandler<Integer, ByteBuffer>() {
+			@Override
+			public void completed(Integer result, ByteBuffer buffer) {
+				if (!buffer.hasRemaining()) {
+					synchronized (writeLock) {
+						buffer = writeQueue.poll();
+						if (buffer == null) {
+							writing = false;
+							return;
+						}
+					}
+				}
+				carrier.write(buffer, buffer, this);
+			}
+
+			@Override
+			public void failed(Throwable exc, ByteBuffer buffer) {
+				close();
+			}
+		});
+	}
+
+	public void close() {
+		synchronized (writeLock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			writeQueue.clear();
+		}
+		IOTools.closeChannel(carrier);
+		streams.values().forEach(s -> s.channel.peerClosed());
+		streams.clear();
+		log.info("Switchboard mux closed: {}", remoteAddress);
+	}
+
+	private class Stream implements InProcessSocketChannel.Peer {
+		private final int id;
+		private final InProcessSocketChannel channel;
+
+		/* Target to remote */
+		private int sendCredit = SwitchboardMux.WINDOW;
+		private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+		private boolean writerWaiting = false;
+		private boolean eofPending = false;
+		private boolean eofSent = false;
+
+		/* Remote to target */
+		/** What the remote side can still send, it must not send more */
+		private int receiveWindow = SwitchboardMux.WINDOW;
+		private int creditToGrant = 0;
+		/** Bytes the channel took when it had too many, credited when drained */
+		private int withheld = 0;
+		private int drainedCount = 0;
+		private boolean remoteEOF = false;
+
+		private Stream(int id) {
+			this.id = id;
+			this.channel = new InProcessSocketChannel(ForkJoinPool.commonPool(), remoteAddress, remoteAddress);
+			channel.setPeer(this);
+		}
+
+		@Override
+		public synchronized boolean received(ByteBuffer data) {
+			if (eofSent) {
+				return true;
+			}
+			out.add(data);
+			sendData();
+			if (!out.isEmpty()) {
+				writerWaiting = true;
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Sends what the credit allows, and the EOF after it. With the lock.
+		 */
+		private void sendData() {
+			while (sendCredit > 0 && !out.isEmpty()) {
+				ByteBuffer b = out.peek();
+				int len = Math.min(Math.min(b.remaining(), sendCredit), SwitchboardMux.MAX_PAYLOAD);
+				write(SwitchboardMux.frame(id, SwitchboardMux.DATA, b, len));
+				sendCredit -= len;
+				if (!b.hasRemaining()) {
+					out.poll();
+				}
+			}
+			if (out.isEmpty() && eofPending && !eofSent) {
+				eofSent = true;
+				write(SwitchboardMux.frame(id, SwitchboardMux.EOF));
+				removeIfDone();
+			}
+		}
+
+		private void credit(int bytes) {
+			boolean wake;
+			synchronized (this) {
+				sendCredit += bytes;
+				sendData();
+				wake = writerWaiting && out.isEmpty();
+				if (wake) {
+					writerWaiting = false;
+				}
+			}
+			if (wake) {
+				channel.writable();
+			}
+		}
+
+		@Override
+		public synchronized void receivedEOF() {
+			eofPending = true;
+			sendData();
+		}
+
+		@Override
+		public synchronized void drained() {
+			drainedCount++;
+			grant(withheld);
+			withheld = 0;
+		}
+
+		private void data(ByteBuffer data) throws IOException {
+			int n = data.remaining();
+			int before;
+			synchronized (this) {
+				receiveWindow -= n;
+				if (receiveWindow < 0) {
+					// Or we would keep whatever it sends
+					throw new IOException("Stream " + id + " got more data than its window");
+				}
+				before = drainedCount;
+			}
+			boolean room = channel.offer(data);
+			synchronized (this) {
+				if (room || drainedCount != before) {
+					grant(n);
+				} else {
+					withheld += n;
+				}
+			}
+		}
+
+		/**
+		 * With the lock. Credits are sent in batches, the remote side has credit
+		 * left meanwhile.
+		 */
+		private void grant(int bytes) {
+			creditToGrant += bytes;
+			if (creditToGrant >= SwitchboardMux.WINDOW / 4) {
+				write(SwitchboardMux.credit(id, creditToGrant));
+				receiveWindow += creditToGrant;
+				creditToGrant = 0;
+			}
+		}
+
+		private void remoteEOF() {
+			synchronized (this) {
+				remoteEOF = true;
+				removeIfDone();
+			}
+			channel.offerEOF();
+		}
+
+		private void removeIfDone() {
+			if (remoteEOF && eofSent) {
+				streams.remove(id, this);
+			}
+		}
+
+		private void remoteClose() {
+			streams.remove(id, this);
+			channel.peerClosed();
+		}
+
+		private void localClose() {
+			streams.remove(id, this);
+			write(SwitchboardMux.frame(id, SwitchboardMux.CLOSE));
+			IOTools.runFailable(() -> channel.close());
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.AlreadyConnectedException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ReadPendingException;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritePendingException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An AsynchronousSocketChannel over a blocking SocketChannel, for the kind of
+ * sockets nio2 can't handle, like unix domain sockets in java 17.
+ *
+ * Each read or write blocks a thread of the executor until it's done, so a
+ * connection waiting for bytes keeps a thread. Timeouts are ignored.
+ */
+class ThreadedSocketChannel extends AsynchronousSocketChannel {
+
+	private final SocketChannel channel;
+	private final Executor executor;
+	private final AtomicBoolean reading = new AtomicBoolean(false);
+	private final AtomicBoolean writing = new AtomicBoolean(false);
+
+	ThreadedSocketChannel(SocketChannel channel, Executor executor) throws IOException {
+		super(null);
+		channel.configureBlocking(true);
+		this.channel = channel;
+		this.executor = executor;
+	}
+
+	private interface IOCall<V> {
+		V call() throws IOException;
+	}
+
+	private <V, A> void run(AtomicBoolean pending, IOCall<V> call, A attachment,
+			CompletionHandler<V, ? super A> handler) {
+		executor.execute(() -> {
+			V res;
+			try {
+				res = call.call();
+			} catch (Throwable e) {
+				pending.set(false);
+				handler.failed(e, attachment);
+				return;
+			}
+			pending.set(false);
+			handler.completed(res, attachment);
+		});
+	}
+
+	@Override
+	public <A> void read(ByteBuffer dst, long timeout, TimeUnit unit, A attachment,
+			CompletionHandler<Integer, ? super A> handler) {
+		if (reading.getAndSet(true)) {
+			throw new ReadPendingException();
+		}
+		run(reading, () -> channel.read(dst), attachment, handler);
+	}
+
+	@Override
+	public <A> void read(ByteBuffer[] dsts, int offset, int length, long timeout, TimeUnit unit, A attachment,
+			CompletionHandler<Long, ? super A> handler) {
+		if (reading.getAndSet(true)) {
+			throw new ReadPendingException();
+		}
+		run(reading, () -> channel.read(dsts, offset, length), attachment, handler);
+	}
+
+	@Override
+	public <A> void write(ByteBuffer src, long timeout, TimeUnit unit, A attachment,
+			CompletionHandler<Integer, ? super A> handler) {
+		if (writing.getAndSet(true)) {
+			throw new WritePendingException();
+		}
+		run(writing, () -> channel.write(src), attachment, handler);
+	}
+
+	@Override
+	public <A> void write(ByteBuffer[] srcs, int offset, int length, long timeout, TimeUnit unit, A attachment,
+			CompletionHandler<Long, ? super A> handler) {
+		if (writing.getAndSet(true)) {
+			throw new WritePendingException();
+		}
+		run(writing, () -> channel.write(srcs, offset, length), attachment, handler);
+	}
+
+	@Override
+	public Future<Integer> read(ByteBuffer dst) {
+		CompletableFuture<Integer> res = new CompletableFuture<>();
+		read(dst, 0L, TimeUnit.MILLISECONDS, res, futureHandler());
+		return res;
+	}
+
+	@Override
+	public Future<Integer> write(ByteBuffer src) {
+		CompletableFuture<Integer> res = new CompletableFuture<>();
+		write(src, 0L, TimeUnit.MILLISECONDS, res, futureHandler());
+		return res;
+	}
+
+	private static CompletionHandler<Integer, CompletableFuture<Integer>> futureHandler() {
+		return new CompletionHandler<Integer, CompletableFuture<Integer>>() {
+			@Override
+			public void completed(Integer result, CompletableFuture<Integer> attachment) {
+				attachment.complete(result);
+			}
+
+			@Override
+			public void failed(Throwable exc, CompletableFuture<Integer> attachment) {
+				attachment.completeExceptionally(exc);
+			}
+		};
+	}
+
+	@Override
+	public AsynchronousSocketChannel shutdownInput() throws IOException {
+		channel.shutdownInput();
+		return this;
+	}
+
+	@Override
+	public AsynchronousSocketChannel shutdownOutput() throws IOException {
+		channel.shutdownOutput();
+		return this;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close(); // Blocked reads and writes fail with AsynchronousCloseException
+	}
+
+	@Override
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	@Override
+	public SocketAddress getRemoteAddress() throws IOException {
+		return channel.getRemoteAddress();
+	}
+
+	@Override
+	public SocketAddress getLocalAddress() throws IOException {
+		return channel.getLocalAddress();
+	}
+
+	@Override
+	public AsynchronousSocketChannel bind(SocketAddress local) throws IOException {
+		channel.bind(local);
+		return this;
+	}
+
+	@Override
+	public <T> AsynchronousSocketChannel setOption(SocketOption<T> name, T value) throws IOException {
+		channel.setOption(name, value);
+		return this;
+	}
+
+	@Override
+	public <T> T getOption(SocketOption<T> name) throws IOException {
+		return channel.getOption(name);
+	}
+
+	@Override
+	public Set<SocketOption<?>> supportedOptions() {
+		return channel.supportedOptions();
+	}
+
+	@Override
+	public <A> void connect(SocketAddress remote, A attachment, CompletionHandler<Void, ? super A> handler) {
+		throw new AlreadyConnectedException();
+	}
+
+	@Override
+	public Future<Void> connect(SocketAddress remote) {
+		throw new AlreadyConnectedException();
+	}
+}
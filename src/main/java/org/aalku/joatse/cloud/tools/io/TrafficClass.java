@@ -0,0 +1,35 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import java.util.Locale;
+
+/**
+ * QoS class of the traffic of a tunnel. Interactive traffic goes first, up to
+ * a small rate, then default and then bulk.
+ */
+public enum TrafficClass {
+	/** Terminals and the like. Little data but it has to go now. */
+	INTERACTIVE,
+	DEFAULT,
+	/** File transfers and the like. A lot of data and nobody waits for a byte. */
+	BULK;
+
+	/**
+	 * @param name as in the json requests ("interactive", "default", "bulk"),
+	 *             case insensitive
+	 * @param def  if there is no name
+	 * @throws IllegalArgumentException if the name is unknown
+	 */
+	public static TrafficClass fromName(String name, TrafficClass def) {
+		if (name == null || name.isEmpty()) {
+			return def;
+		}
+		return valueOf(name.toUpperCase(Locale.ROOT));
+	}
+
+	/**
+	 * @return the name as in the json requests
+	 */
+	public String getName() {
+		return name().toLowerCase(Locale.ROOT);
+	}
+}
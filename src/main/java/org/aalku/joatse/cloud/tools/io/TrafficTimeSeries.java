@@ -0,0 +1,187 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bytes in and out over time, in ring buffers of primitive arrays: 1 s
+ * resolution for 10 minutes, 1 min for 24 h and 1 h for 30 days. Less than
+ * 50KB each.
+ *
+ * It's written once a second by a sampler, so it's just synchronized.
+ */
+public class TrafficTimeSeries {
+
+	public enum Resolution {
+		SECOND(1, 600), MINUTE(60, 1440), HOUR(3600, 720);
+
+		private final long stepSeconds;
+		private final int slots;
+
+		private Resolution(long stepSeconds, int slots) {
+			this.stepSeconds = stepSeconds;
+			this.slots = slots;
+		}
+
+		public long getStepSeconds() {
+			return stepSeconds;
+		}
+
+		public int getSlots() {
+			return slots;
+		}
+
+		/**
+		 * @param name "second", "minute" or "hour", case insensitive
+		 */
+		public static Optional<Resolution> fromName(String name) {
+			for (Resolution r : values()) {
+				if (r.name().equalsIgnoreCase(name)) {
+					return Optional.of(r);
+				}
+			}
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * Values of a resolution, oldest first. Slots without traffic are 0.
+	 */
+	public static class Series {
+		private final Resolution resolution;
+		private final long startEpochSecond;
+		private final long[] bytesIn;
+		private final long[] bytesOut;
+
+		private Series(Resolution resolution, long startEpochSecond, long[] bytesIn, long[] bytesOut) {
+			this.resolution = resolution;
+			this.startEpochSecond = startEpochSecond;
+			this.bytesIn = bytesIn;
+			this.bytesOut = bytesOut;
+		}
+
+		public Resolution getResolution() {
+			return resolution;
+		}
+
+		/**
+		 * Start of the first slot
+		 */
+		public long getStartEpochSecond() {
+			return startEpochSecond;
+		}
+
+		public long[] getBytesIn() {
+			return bytesIn;
+		}
+
+		public long[] getBytesOut() {
+			return bytesOut;
+		}
+
+		public long getTotalBytes() {
+			long total = 0;
+			for (int i = 0; i < bytesIn.length; i++) {
+				total += bytesIn[i] + bytesOut[i];
+			}
+			return total;
+		}
+
+		public Map<String, Object> toMap() {
+			Map<String, Object> res = new LinkedHashMap<>();
+			res.put("resolution", resolution.name().toLowerCase());
+			res.put("stepSeconds", resolution.stepSeconds);
+			res.put("startEpochSecond", startEpochSecond);
+			res.put("bytesIn", bytesIn);
+			res.put("bytesOut", bytesOut);
+			return res;
+		}
+	}
+
+	private static class Ring {
+		private final Resolution resolution;
+		private final long[] in;
+		private final long[] out;
+		/** Slot (epoch seconds / step) of the newest values, -1 if none */
+		private long lastSlot = -1;
+
+		private Ring(Resolution resolution) {
+			this.resolution = resolution;
+			this.in = new long[resolution.slots];
+			this.out = new long[resolution.slots];
+		}
+
+		private void add(long epochSecond, long bytesIn, long bytesOut) {
+			long slot = epochSecond / resolution.stepSeconds;
+			if (lastSlot >= 0 && slot <= lastSlot - resolution.slots) {
+				return; // Too old
+			}
+			moveTo(slot);
+			int i = (int) (slot % resolution.slots);
+			in[i] += bytesIn;
+			out[i] += bytesOut;
+		}
+
+		/**
+		 * Clears the slots between the last one and this one
+		 */
+		private void moveTo(long slot) {
+			if (slot <= lastSlot) {
+				return;
+			}
+			long from = lastSlot < 0 ? slot : Math.max(lastSlot + 1, slot - resolution.slots + 1);
+			for (long s = from; s <= slot; s++) {
+				int i = (int) (s % resolution.slots);
+				in[i] = 0;
+				out[i] = 0;
+			}
+			lastSlot = slot;
+		}
+
+		private Series get(long nowEpochSecond) {
+			moveTo(nowEpochSecond / resolution.stepSeconds);
+			int n = resolution.slots;
+			long[] resIn = new long[n];
+			long[] resOut = new long[n];
+			long first = lastSlot - n + 1;
+			for (int k = 0; k < n; k++) {
+				long s = first + k;
+				if (s >= 0) {
+					int i = (int) (s % n);
+					resIn[k] = in[i];
+					resOut[k] = out[i];
+				}
+			}
+			return new Series(resolution, first * resolution.stepSeconds, resIn, resOut);
+		}
+	}
+
+	private final Ring[] rings;
+
+	public TrafficTimeSeries() {
+		Resolution[] resolutions = Resolution.values();
+		rings = new Ring[resolutions.length];
+		for (int i = 0; i < resolutions.length; i++) {
+			rings[i] = new Ring(resolutions[i]);
+		}
+	}
+
+	/**
+	 * Adds the bytes of that second to every resolution
+	 */
+	public synchronized void record(long epochSecond, long bytesIn, long bytesOut) {
+		for (Ring r : rings) {
+			r.add(epochSecond, bytesIn, bytesOut);
+		}
+	}
+
+	public synchronized Series get(Resolution resolution, long nowEpochSecond) {
+		return rings[resolution.ordinal()].get(nowEpochSecond);
+	}
+
+	public Series get(Resolution resolution) {
+		return get(resolution, TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()));
+	}
+}
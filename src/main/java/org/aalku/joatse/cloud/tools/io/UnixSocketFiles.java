@@ -0,0 +1,85 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+
+/**
+ * Unix domain server sockets that only the owner can connect to. The client
+ * daemon uses it too, so only the JDK here.
+ */
+final class UnixSocketFiles {
+
+	private UnixSocketFiles() {
+	}
+
+	/**
+	 * Binds a socket at path. It's bound inside a new 0700 directory next to
+	 * path, made rw for the owner only and then moved to path, so nobody else
+	 * can connect before that. A socket left at path by a process that is gone is
+	 * replaced.
+	 *
+	 * @throws IOException if something is listening at path, path is not a
+	 *                     socket or it can't be bound
+	 */
+	static ServerSocketChannel bindPrivate(Path path) throws IOException {
+		path = path.toAbsolutePath();
+		removeStale(path);
+		boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+		Path dir = posix
+				? Files.createTempDirectory(path.getParent(), ".sock",
+						PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")))
+				: Files.createTempDirectory(path.getParent(), ".sock");
+		Path temp = dir.resolve("s");
+		ServerSocketChannel ssc = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			ssc.bind(UnixDomainSocketAddress.of(temp));
+			if (posix) {
+				Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+			}
+			Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+			return ssc;
+		} catch (IOException | RuntimeException e) {
+			ssc.close();
+			Files.deleteIfExists(temp);
+			throw e;
+		} finally {
+			Files.deleteIfExists(dir);
+		}
+	}
+
+	/**
+	 * Deletes the socket at path if nothing is listening on it
+	 */
+	private static void removeStale(Path path) throws IOException {
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		} catch (NoSuchFileException e) {
+			return;
+		}
+		if (!attributes.isOther()) {
+			throw new IOException("Not a socket: " + path);
+		}
+		SocketChannel probe;
+		try {
+			probe = SocketChannel.open(UnixDomainSocketAddress.of(path));
+		} catch (ConnectException e) {
+			Files.delete(path); // Refused, left by a process that is gone
+			return;
+		}
+		probe.close();
+		throw new IOException("Something is listening on " + path + " already");
+	}
+}
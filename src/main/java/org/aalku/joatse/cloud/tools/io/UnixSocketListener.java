@@ -0,0 +1,111 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import org.aalku.joatse.cloud.tools.io.AsyncTcpPortListener.Event;
+
+/**
+ * Like {@link AsyncTcpPortListener} but listening on a unix domain socket, so
+ * local clients don't go through the TCP/IP stack. Only the owner of the
+ * process can connect, the socket file is rw for the owner only from the start
+ * (see {@link UnixSocketFiles#bindPrivate(Path)}).
+ *
+ * nio2 can't do unix domain sockets, so there's a thread accepting connections
+ * and the channels are {@link ThreadedSocketChannel}s, with a thread per
+ * pending read or write.
+ */
+public class UnixSocketListener<E> {
+
+	private final Path path;
+	private ServerSocketChannel ssc;
+	private UnixDomainSocketAddress address;
+	private E context;
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+	private Consumer<Event<E>> callback;
+	private final ExecutorService executor;
+	/** Why it couldn't bind, told to the callback in start() */
+	private Exception bindError;
+
+	public UnixSocketListener(Path path) {
+		this.path = path;
+		this.executor = Executors.newCachedThreadPool(r -> {
+			Thread th = new Thread(r, "unixSocket");
+			th.setDaemon(true);
+			return th;
+		});
+		try {
+			try {
+				ssc = UnixSocketFiles.bindPrivate(path);
+				this.address = UnixDomainSocketAddress.of(path);
+			} catch (IOException e) {
+				throw new IOException(String.format("Could not listen on socket %s: %s", path, e), e); // Expected
+			}
+		} catch (Exception e) {
+			closed.set(true);
+			this.address = null;
+			if (ssc != null) {
+				IOTools.runFailable(() -> ssc.close());
+			}
+			this.bindError = e;
+		}
+	}
+
+	private void close(Throwable e) {
+		if (!closed.getAndSet(true)) {
+			IOTools.runFailable(() -> ssc.close());
+			IOTools.runFailable(() -> Files.deleteIfExists(path));
+			if (callback != null) {
+				callback.accept(new Event<E>(null, e, context));
+			}
+		}
+	}
+
+	private void acceptLoop() {
+		while (!closed.get()) {
+			SocketChannel channel;
+			try {
+				channel = ssc.accept();
+			} catch (IOException e) {
+				close(closed.get() ? null : e);
+				return;
+			}
+			try {
+				callback.accept(new Event<E>(new ThreadedSocketChannel(channel, executor), null, context));
+			} catch (IOException e) {
+				IOTools.runFailable(() -> channel.close());
+			}
+		}
+	}
+
+	public void close() {
+		this.close(null);
+	}
+
+	/**
+	 * @return null if it couldn't bind
+	 */
+	public UnixDomainSocketAddress getAddress() {
+		return address;
+	}
+
+	public void start(E context, Consumer<Event<E>> callback) {
+		this.callback = callback;
+		this.context = context;
+		if (bindError != null) {
+			callback.accept(new Event<E>(null, bindError, context));
+		} else if (!closed.get()) {
+			Thread th = new Thread(this::acceptLoop, "unixSocketAccept");
+			th.setDaemon(true);
+			th.start();
+		}
+	}
+}
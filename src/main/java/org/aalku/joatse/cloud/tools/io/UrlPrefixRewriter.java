@@ -0,0 +1,273 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replaces url prefixes (scheme://host[:port]) in a byte stream, as it comes.
+ * It finds the same prefixes as this regex, in the original text, and replaces
+ * those that are in the map:
+ *
+ * <pre>
+ * (?&lt;!\w)http(s?)://[-\w_.]+(:[0-9]+)?(?![-\w_.])
+ * </pre>
+ *
+ * Same output as {@link IOTools#rewriteStringContent} with that pattern, but
+ * without decoding chars nor regex, and it only holds back the bytes of a
+ * prefix that is not complete yet, so the output is not delayed until the end.
+ *
+ * It works with the bytes so the charset must be ASCII compatible, see
+ * {@link #supports(Charset)}.
+ *
+ * It's immutable, create it once and call {@link #rewrite(OutputStream)} for
+ * each stream.
+ */
+public final class UrlPrefixRewriter {
+
+	private static final byte[] HTTP = "http".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] SCHEME_SEPARATOR = "://".getBytes(StandardCharsets.US_ASCII);
+
+	private static final int NO_MATCH = -1;
+	/** The buffer ended before we know */
+	private static final int MORE = -2;
+	/** Same but in the host part, so the prefix is at least that long */
+	private static final int MORE_HOST = -3;
+
+	/** How many bytes we add to the held ones before trying again */
+	private static final int STEP = 512;
+
+	private static final boolean[] WORD = new boolean[256];
+	private static final boolean[] HOST = new boolean[256];
+	static {
+		for (int c = 0; c < 256; c++) {
+			WORD[c] = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+			HOST[c] = WORD[c] || c == '-' || c == '.';
+		}
+	}
+
+	private final byte[][] from;
+	private final byte[][] to;
+	private final int maxKeyLength;
+
+	public UrlPrefixRewriter(Map<String, String> replacements) {
+		List<byte[]> from = new ArrayList<>();
+		List<byte[]> to = new ArrayList<>();
+		int max = 0;
+		synchronized (replacements) { // It might be a synchronized map
+			for (Map.Entry<String, String> e : replacements.entrySet()) {
+				if (!StandardCharsets.US_ASCII.newEncoder().canEncode(e.getKey())) {
+					continue; // The regex would never match it
+				}
+				from.add(e.getKey().getBytes(StandardCharsets.US_ASCII));
+				to.add(e.getValue().getBytes(StandardCharsets.US_ASCII));
+				max = Math.max(max, e.getKey().length());
+			}
+		}
+		this.from = from.toArray(new byte[0][]);
+		this.to = to.toArray(new byte[0][]);
+		this.maxKeyLength = max;
+	}
+
+	/**
+	 * @return if an ascii url looks the same in that charset and no other char has
+	 *         ascii bytes in it
+	 */
+	public static boolean supports(Charset charset) {
+		String name = charset.name();
+		return charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII)
+				|| name.startsWith("ISO-8859-") || name.startsWith("windows-125");
+	}
+
+	/**
+	 * @return a stream that writes to out the rewritten bytes. Closing it writes
+	 *         what was held back and closes out.
+	 */
+	public OutputStream rewrite(OutputStream out) {
+		return new RewriteStream(out);
+	}
+
+	/**
+	 * @return the replacement or null
+	 */
+	private byte[] replacement(byte[] b, int start, int end) {
+		for (int k = 0; k < from.length; k++) {
+			if (Arrays.equals(from[k], 0, from[k].length, b, start, end)) {
+				return to[k];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * End of the prefix that starts at i, if there is one. Like the regex but
+	 * the lookbehind is checked by the caller.
+	 *
+	 * @param eof there's nothing after n
+	 * @return the end, {@link #NO_MATCH}, {@link #MORE} or {@link #MORE_HOST}
+	 */
+	private static int match(byte[] b, int i, int n, boolean eof) {
+		int j = i;
+		for (byte c : HTTP) {
+			if (j == n) {
+				return eof ? NO_MATCH : MORE;
+			} else if (b[j++] != c) {
+				return NO_MATCH;
+			}
+		}
+		if (j < n && b[j] == 's') {
+			j++;
+		}
+		for (byte c : SCHEME_SEPARATOR) {
+			if (j == n) {
+				return eof ? NO_MATCH : MORE;
+			} else if (b[j++] != c) {
+				return NO_MATCH;
+			}
+		}
+		int host = j;
+		while (j < n && HOST[b[j] & 0xFF]) {
+			j++;
+		}
+		if (j == n && !eof) {
+			return MORE_HOST;
+		} else if (j == host) {
+			return NO_MATCH;
+		} else if (j == n || b[j] != ':') {
+			return j;
+		}
+		int colon = j++;
+		int port = j;
+		while (j < n && b[j] >= '0' && b[j] <= '9') {
+			j++;
+		}
+		if (j == n && !eof) {
+			return MORE;
+		} else if (j == port) {
+			return colon;
+		}
+		// A host char after the port digits means it wasn't a port
+		return j < n && HOST[b[j] & 0xFF] ? colon : j;
+	}
+
+	private final class RewriteStream extends FilterOutputStream {
+
+		/** Bytes of a prefix we can't decide yet */
+		private byte[] held = new byte[STEP * 2];
+		private int heldLength = 0;
+		/** The byte before the first held (or next) one, -1 at the beginning */
+		private int previous = -1;
+		/** In the host of a prefix too long to be replaced */
+		private boolean skippingHost = false;
+		private boolean finished = false;
+
+		private RewriteStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			int end = off + len;
+			while (heldLength > 0 && off < end) {
+				int n = Math.min(STEP, end - off);
+				hold(b, off, n);
+				off += n;
+				processHeld(false);
+			}
+			if (off < end) {
+				process(b, off, end, false);
+			}
+		}
+
+		private void hold(byte[] b, int off, int len) {
+			if (heldLength + len > held.length) {
+				held = Arrays.copyOf(held, Math.max(held.length * 2, heldLength + len));
+			}
+			System.arraycopy(b, off, held, heldLength, len);
+			heldLength += len;
+		}
+
+		/**
+		 * What is still held is moved to the beginning
+		 */
+		private void processHeld(boolean eof) throws IOException {
+			int length = heldLength;
+			heldLength = 0;
+			process(held, 0, length, eof);
+		}
+
+		/**
+		 * Writes what it can of b[from..to) and holds the rest
+		 */
+		private void process(byte[] b, int from, int to, boolean eof) throws IOException {
+			int written = from;
+			int p = from;
+			if (skippingHost) {
+				while (p < to && HOST[b[p] & 0xFF]) {
+					p++;
+				}
+				skippingHost = p == to;
+			}
+			int keep = to;
+			while (p < to) {
+				if (b[p] != 'h') {
+					p++;
+					continue;
+				}
+				int before = p > from ? b[p - 1] & 0xFF : previous;
+				if (before >= 0 && WORD[before]) {
+					p++;
+					continue;
+				}
+				int end = match(b, p, to, eof);
+				if (end == NO_MATCH) {
+					p++;
+				} else if (end == MORE_HOST && to - p > maxKeyLength) {
+					skippingHost = true; // Longer than any key
+					break;
+				} else if (end < 0) {
+					keep = p;
+					break;
+				} else {
+					byte[] replacement = replacement(b, p, end);
+					if (replacement != null) {
+						out.write(b, written, p - written);
+						out.write(replacement);
+						written = end;
+					}
+					p = end;
+				}
+			}
+			out.write(b, written, keep - written);
+			if (keep > from) {
+				previous = b[keep - 1] & 0xFF;
+			}
+			if (keep < to) {
+				hold(b, keep, to - keep);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if (!finished) {
+					finished = true;
+					processHeld(true);
+				}
+			} finally {
+				super.close();
+			}
+		}
+	}
+}
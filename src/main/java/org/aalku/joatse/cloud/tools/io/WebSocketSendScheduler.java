@@ -0,0 +1,141 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Small shared pool that drains the send queues of every {@link WebSocketSendWorker}.
+ *
+ * We used to have a thread per session, blocked most of the time. Now a worker
+ * only gets a pool thread while it has something to send.
+ * 
+ * It also has the message packing and QoS settings of the workers.
+ */
+@Component
+public class WebSocketSendScheduler implements InitializingBean, DisposableBean {
+
+	private Logger log = LoggerFactory.getLogger(WebSocketSendScheduler.class);
+
+	/**
+	 * Number of threads. 0 means one per available processor.
+	 */
+	@Value("${cloud.ws.send.threads:0}")
+	private int threads;
+
+	/**
+	 * Max time a message can wait for others to be packed with it, when under load.
+	 */
+	@Value("${cloud.ws.pack.latency.micros:1000}")
+	private long packLatencyMicros = 1000;
+
+	/**
+	 * Packed messages stop growing at this size. Bigger messages are not packed.
+	 */
+	@Value("${cloud.ws.pack.bytes:16384}")
+	private int packBytes = 16384;
+
+	/**
+	 * Interactive messages of a session go before the others up to this rate. 0
+	 * to treat them like the default ones.
+	 */
+	@Value("${cloud.qos.interactive.bps:1000000}")
+	private long interactiveBps = 1000000;
+
+	private long packLatencyNanos;
+
+	private ScheduledExecutorService executor;
+
+	public WebSocketSendScheduler() {
+	}
+
+	/**
+	 * Constructor for use outside of spring
+	 */
+	public WebSocketSendScheduler(int threads) {
+		this.threads = threads;
+		afterPropertiesSet();
+	}
+
+	/**
+	 * Constructor for use outside of spring
+	 */
+	public WebSocketSendScheduler(int threads, long packLatencyMicros, int packBytes) {
+		this.threads = threads;
+		this.packLatencyMicros = packLatencyMicros;
+		this.packBytes = packBytes;
+		afterPropertiesSet();
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		if (threads <= 0) {
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+		// A packed message has to fit in a WS message (64KB) with its overhead
+		packBytes = Math.min(packBytes, 32 * 1024);
+		packLatencyNanos = TimeUnit.MICROSECONDS.toNanos(packLatencyMicros);
+		AtomicInteger count = new AtomicInteger(0);
+		ThreadFactory threadFactory = r -> {
+			Thread t = new Thread(r, "wss_" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+		executor = Executors.newScheduledThreadPool(threads, threadFactory);
+		log.info("WebSocket send scheduler started with {} threads", threads);
+	}
+
+	@Override
+	public void destroy() {
+		executor.shutdownNow();
+	}
+
+	public WebSocketSendWorker newWorker(WebSocketSession session) {
+		return new WebSocketSendWorker(session, this);
+	}
+
+	public int getThreadCount() {
+		return threads;
+	}
+
+	long getPackLatencyNanos() {
+		return packLatencyNanos;
+	}
+
+	int getPackBytes() {
+		return packBytes;
+	}
+
+	long getInteractiveBps() {
+		return interactiveBps;
+	}
+
+	/**
+	 * For the workers created after this
+	 */
+	public void setInteractiveBps(long interactiveBps) {
+		this.interactiveBps = interactiveBps;
+	}
+
+	void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	/**
+	 * Runs the task later in the pool. It's also how paced work is resumed instead
+	 * of sleeping a thread.
+	 */
+	public void schedule(Runnable task, long delayNanos) {
+		executor.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+	}
+}
@@ -1,77 +1,314 @@
 package org.aalku.joatse.cloud.tools.io;
 
-import java.util.concurrent.BlockingQueue;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.aalku.joatse.cloud.tools.io.BandwithCalculator.OneWayBandwithCalculator;
+import org.aalku.joatse.cloud.tools.io.BandwithLimiter.Pause;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
 
-public class WebSocketSendWorker extends Thread {
+/**
+ * Send queue of a session. It has no thread of its own, it's drained by the
+ * {@link WebSocketSendScheduler} pool, by only one thread at a time so the
+ * order is kept.
+ * 
+ * With a {@link MessagePacker}, consecutive small messages waiting in the queue
+ * are sent as one. When idle every message goes out as soon as possible, but
+ * if the last send packed several messages we are under load, so we wait a
+ * little (the latency budget) for more messages to pack with the first one,
+ * unless there are enough bytes already.
+ * 
+ * There is a queue per {@link TrafficClass}. Interactive messages go first
+ * while they are under the interactive cap, over it they take turns with the
+ * default ones. Bulk messages get a fifth of the bytes while others wait. Each
+ * connection uses one class so its messages keep their order.
+ */
+public class WebSocketSendWorker {
 
 	private Logger log = LoggerFactory.getLogger(WebSocketSendWorker.class);
 
+	/**
+	 * Max messages sent in a row before letting other sessions use the thread.
+	 */
+	private static final int MAX_MESSAGES_PER_TURN = 64;
+
+	/**
+	 * Default bytes sent for each bulk byte while both are waiting.
+	 */
+	private static final int BULK_SHARE_RATIO = 4;
+
 	private static class Item {
 
 		private final WebSocketMessage<?> message;
 		private final CompletableFuture<Void> future;
+		private final long queuedNanoTime;
 
 		public Item(WebSocketMessage<?> message) {
 			this.message = message;
 			this.future = new CompletableFuture<Void>();
+			this.queuedNanoTime = System.nanoTime();
 		}
-
 	}
 
-	private BlockingQueue<Item> queue;
-	private WebSocketSession session;
-	private BandwithLimiter bandwithLimiter;
-	private OneWayBandwithCalculator bandwithCalculator;
+	/** By TrafficClass ordinal */
+	private final List<Queue<Item>> queues = new ArrayList<>();
+	/**
+	 * True while the queue is scheduled or being drained. Only who sets it to
+	 * true can schedule a drain.
+	 */
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+	private final WebSocketSession session;
+	private final WebSocketSendScheduler scheduler;
+	private volatile BandwithLimiter bandwithLimiter;
+	private volatile OneWayBandwithCalculator bandwithCalculator;
+	private volatile MessagePacker messagePacker;
+	/** The last send packed several messages. Only used while draining. */
+	private boolean underLoad = false;
+	private final RateCap interactiveCap;
+	/** Interactive over the cap goes next. Only used while draining. */
+	private boolean interactiveTurn = false;
+	/**
+	 * Bytes sent while bulk and others were waiting. Only used while draining.
+	 */
+	private long contendedDefaultBytes = 0;
+	private long contendedBulkBytes = 0;
 
-	public WebSocketSendWorker(WebSocketSession session) {
+	WebSocketSendWorker(WebSocketSession session, WebSocketSendScheduler scheduler) {
 		this.session = session;
-		this.queue = new LinkedBlockingQueue<>();
-		this.setName("wssw_" + session.getId());
-		this.start();
+		this.scheduler = scheduler;
+		this.interactiveCap = new RateCap(scheduler.getInteractiveBps(), BandwithLimiter.INTERACTIVE_BURST_BYTES);
+		for (int i = 0; i < TrafficClass.values().length; i++) {
+			queues.add(new ConcurrentLinkedQueue<>());
+		}
 	}
 
 	public CompletableFuture<Void> sendMessage(WebSocketMessage<?> message) {
+		return sendMessage(message, TrafficClass.DEFAULT);
+	}
+
+	public CompletableFuture<Void> sendMessage(WebSocketMessage<?> message, TrafficClass trafficClass) {
 		Item item = new Item(message);
-		try {
-			queue.put(item);
-		} catch (InterruptedException e) {
-			throw new RuntimeException(e);
+		queues.get(trafficClass.ordinal()).add(item);
+		if (closed.get()) {
+			// Might have been added after the close drain
+			failPending();
+		} else {
+			scheduleIfNeeded();
 		}
 		return item.future;
 	}
-	
-	@Override
-	public void run() {
-		while (session.isOpen()) {
-			try {
-				Item item = queue.take();
-				try {
-					session.sendMessage(item.message);
-					int bytes = item.message.getPayloadLength();
-					bandwithLimiter.next(bytes).sleep();
-					bandwithCalculator.reportPacket(bytes);
-				} catch (Exception e) {
-					item.future.completeExceptionally(e);
-					continue;
+
+	private void scheduleIfNeeded() {
+		if (!isEmpty() && scheduled.compareAndSet(false, true)) {
+			scheduler.execute(this::drain);
+		}
+	}
+
+	private boolean isEmpty() {
+		for (Queue<Item> queue : queues) {
+			if (!queue.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the class to send next, or null if there is nothing to send
+	 */
+	private TrafficClass nextTrafficClass() {
+		boolean interactive = !queues.get(TrafficClass.INTERACTIVE.ordinal()).isEmpty();
+		boolean normal = !queues.get(TrafficClass.DEFAULT.ordinal()).isEmpty();
+		boolean bulk = !queues.get(TrafficClass.BULK.ordinal()).isEmpty();
+		if (interactive && interactiveCap.hasTokens(System.nanoTime())) {
+			return TrafficClass.INTERACTIVE;
+		}
+		if (bulk && (interactive || normal)) {
+			if (contendedBulkBytes * BULK_SHARE_RATIO < contendedDefaultBytes) {
+				return TrafficClass.BULK;
+			}
+		} else {
+			// No contention
+			contendedDefaultBytes = 0;
+			contendedBulkBytes = 0;
+			if (bulk) {
+				return TrafficClass.BULK;
+			}
+		}
+		if (interactive && (!normal || (interactiveTurn = !interactiveTurn))) {
+			return TrafficClass.INTERACTIVE;
+		}
+		return normal ? TrafficClass.DEFAULT : null;
+	}
+
+	private void drain() {
+		try {
+			for (int i = 0; i < MAX_MESSAGES_PER_TURN; i++) {
+				if (closed.get() || !session.isOpen()) {
+					close();
+					return;
+				}
+				TrafficClass trafficClass = nextTrafficClass();
+				if (trafficClass == null) {
+					break;
+				}
+				Queue<Item> queue = queues.get(trafficClass.ordinal());
+				Item item = queue.peek();
+				if (item == null) {
+					continue; // Closed meanwhile
+				}
+				MessagePacker packer = messagePacker;
+				Pause pause;
+				if (packer != null && packer.canPack(item.message)) {
+					// Interactive doesn't wait to pack
+					long packWait = trafficClass == TrafficClass.INTERACTIVE ? 0 : waitToPackNanos(packer, queue, item);
+					if (packWait > 0) {
+						scheduler.schedule(this::drain, packWait);
+						return;
+					}
+					pause = sendPacked(packer, queue, trafficClass);
+				} else {
+					queue.poll();
+					pause = send(item.message, List.of(item), trafficClass);
+				}
+				long wait = pause.getRemainingNanos();
+				if (wait > 0) {
+					// Come back later instead of sleeping on a shared thread
+					scheduler.schedule(this::drain, wait);
+					return;
 				}
-				item.future.complete(null);
-			} catch (InterruptedException e) {
-				log.error("{} thread {} interrupted. Closing session.", WebSocketSendWorker.class.getSimpleName(), this);
-				this.close();
 			}
+		} catch (RuntimeException e) {
+			log.error("Unexpected error sending ws messages of session " + session.getId(), e);
 		}
+		scheduled.set(false);
+		scheduleIfNeeded();
 	}
-	
+
+	/**
+	 * @return how long to wait for more messages before packing from the first
+	 */
+	private long waitToPackNanos(MessagePacker packer, Queue<Item> queue, Item first) {
+		if (!underLoad) {
+			return 0;
+		}
+		long wait = scheduler.getPackLatencyNanos() - (System.nanoTime() - first.queuedNanoTime);
+		if (wait <= 0) {
+			return 0;
+		}
+		int bytes = 0;
+		for (Item item : queue) {
+			if (!canPack(packer, item)) {
+				return 0; // Can't wait for more
+			}
+			bytes += item.message.getPayloadLength();
+			if (bytes >= scheduler.getPackBytes()) {
+				return 0;
+			}
+		}
+		return wait;
+	}
+
+	private boolean canPack(MessagePacker packer, Item item) {
+		return packer.canPack(item.message) && item.message.getPayloadLength() < scheduler.getPackBytes();
+	}
+
+	/**
+	 * Sends as one message the packable messages at the head of the queue, up to
+	 * the pack bytes, or the first one alone if there is only one.
+	 */
+	private Pause sendPacked(MessagePacker packer, Queue<Item> queue, TrafficClass trafficClass) {
+		List<Item> items = new ArrayList<>();
+		int bytes = 0;
+		Item item;
+		while ((item = queue.peek()) != null && canPack(packer, item)
+				&& (items.isEmpty() || bytes + item.message.getPayloadLength() <= scheduler.getPackBytes())) {
+			queue.poll();
+			items.add(item);
+			bytes += item.message.getPayloadLength();
+		}
+		if (items.isEmpty()) {
+			// Too big to pack
+			item = queue.poll();
+			underLoad = false;
+			return send(item.message, List.of(item), trafficClass);
+		}
+		underLoad = items.size() > 1;
+		if (items.size() == 1) {
+			return send(items.get(0).message, items, trafficClass);
+		}
+		List<WebSocketMessage<?>> messages = new ArrayList<>(items.size());
+		for (Item i : items) {
+			messages.add(i.message);
+		}
+		WebSocketMessage<?> packed;
+		try {
+			packed = packer.pack(messages);
+		} catch (RuntimeException e) {
+			items.forEach(i -> i.future.completeExceptionally(e));
+			return Pause.ZERO;
+		}
+		try {
+			return send(packed, items, trafficClass);
+		} finally {
+			packer.packedSent(packed);
+		}
+	}
+
+	private Pause send(WebSocketMessage<?> message, List<Item> items, TrafficClass trafficClass) {
+		Pause pause = Pause.ZERO;
+		try {
+			session.sendMessage(message);
+			int bytes = message.getPayloadLength();
+			account(bytes, trafficClass);
+			BandwithLimiter limiter = bandwithLimiter;
+			if (limiter != null) {
+				pause = limiter.next(bytes, trafficClass);
+			}
+			OneWayBandwithCalculator calculator = bandwithCalculator;
+			if (calculator != null) {
+				calculator.reportPacket(bytes);
+			}
+		} catch (Exception e) {
+			items.forEach(i -> i.future.completeExceptionally(e));
+			return pause;
+		}
+		items.forEach(i -> i.future.complete(null));
+		return pause;
+	}
+
+	private void account(int bytes, TrafficClass trafficClass) {
+		if (trafficClass == TrafficClass.INTERACTIVE) {
+			interactiveCap.charge(System.nanoTime(), bytes);
+		}
+		if (trafficClass == TrafficClass.BULK) {
+			contendedBulkBytes += bytes;
+		} else {
+			contendedDefaultBytes += bytes;
+		}
+	}
+
+	private void failPending() {
+		for (Queue<Item> queue : queues) {
+			Item item;
+			while ((item = queue.poll()) != null) {
+				item.future.completeExceptionally(new IOException("WebSocket session closed"));
+			}
+		}
+	}
+
 	public void close() {
-		this.interrupt();
+		closed.set(true);
+		failPending();
 	}
 
 	public void setBandwithLimiter(BandwithLimiter bandwithLimiter) {
@@ -82,4 +319,11 @@ public class WebSocketSendWorker extends Thread {
 		this.bandwithCalculator = bandwithCalculator;
 	}
 
+	/**
+	 * @param messagePacker null to send every message on its own
+	 */
+	public void setMessagePacker(MessagePacker messagePacker) {
+		this.messagePacker = messagePacker;
+	}
+
 }
@@ -231,6 +231,17 @@ public class AddressRange {
         return Objects.hash(type, Arrays.hashCode(address), prefixLength, Arrays.hashCode(networkMask));
     }
     
+    /**
+     * Network or exact address, null for the wildcard. Not a copy, don't change it.
+     */
+    byte[] getAddressBytes() {
+        return address;
+    }
+    
+    int getPrefixLength() {
+        return prefixLength;
+    }
+    
     /**
      * Returns true if this is a wildcard pattern that matches any address.
      */
@@ -0,0 +1,250 @@
+package org.aalku.joatse.cloud.tools.net;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * A list of {@link AddressRange} compiled to check addresses on every request.
+ * Exact addresses go to hash sets of primitives and networks go to binary
+ * prefix tries, so a lookup doesn't allocate and takes at most one step per
+ * address bit, no matter how many ranges there are.
+ *
+ * Addresses are kept as two longs, IPv4 ones in the high bits of the first.
+ *
+ * Immutable. Build another one with {@link Builder} when the ranges change.
+ */
+public final class AddressSet {
+
+	public static final AddressSet EMPTY = new Builder().build();
+
+	private final boolean wildcard;
+	private final ExactSet ipv4;
+	private final ExactSet ipv6;
+	private final Trie ipv4Networks;
+	private final Trie ipv6Networks;
+	private final int size;
+
+	private AddressSet(boolean wildcard, ExactSet ipv4, ExactSet ipv6, Trie ipv4Networks, Trie ipv6Networks,
+			int size) {
+		this.wildcard = wildcard;
+		this.ipv4 = ipv4;
+		this.ipv6 = ipv6;
+		this.ipv4Networks = ipv4Networks;
+		this.ipv6Networks = ipv6Networks;
+		this.size = size;
+	}
+
+	public boolean contains(InetAddress address) {
+		if (address == null) {
+			return false;
+		}
+		if (wildcard) {
+			return true;
+		}
+		if (address instanceof Inet4Address) {
+			// The hash code of an Inet4Address is its address, getAddress() would copy it
+			return containsIPv4(address.hashCode());
+		}
+		// No way to read an IPv6 address without that copy
+		byte[] a = address.getAddress();
+		return containsIPv6(toLong(a, 0), toLong(a, 8));
+	}
+
+	public boolean containsIPv4(int address) {
+		if (wildcard) {
+			return true;
+		}
+		long hi = (address & 0xFFFFFFFFL) << 32;
+		return ipv4.contains(hi, 0L) || ipv4Networks.matches(hi, 0L, 32);
+	}
+
+	public boolean containsIPv6(long hi, long lo) {
+		if (wildcard) {
+			return true;
+		}
+		return ipv6.contains(hi, lo) || ipv6Networks.matches(hi, lo, 128);
+	}
+
+	/**
+	 * @return number of different ranges
+	 */
+	public int size() {
+		return size;
+	}
+
+	static long toLong(byte[] a, int from) {
+		long res = 0;
+		for (int i = from; i < from + 8; i++) {
+			res = (res << 8) | (i < a.length ? a[i] & 0xFF : 0);
+		}
+		return res;
+	}
+
+	/**
+	 * Open addressing hash set of (hi, lo) pairs, at most half full
+	 */
+	private static final class ExactSet {
+		private final long[] his;
+		private final long[] los;
+		private final boolean[] used;
+		private final int mask;
+
+		private ExactSet(List<long[]> entries) {
+			int capacity = Integer.highestOneBit(Math.max(1, entries.size()) * 2 - 1) << 1;
+			his = new long[capacity];
+			los = new long[capacity];
+			used = new boolean[capacity];
+			mask = capacity - 1;
+			for (long[] e : entries) {
+				int i = index(e[0], e[1]);
+				while (used[i]) {
+					i = (i + 1) & mask;
+				}
+				his[i] = e[0];
+				los[i] = e[1];
+				used[i] = true;
+			}
+		}
+
+		private boolean contains(long hi, long lo) {
+			for (int i = index(hi, lo);; i = (i + 1) & mask) {
+				if (!used[i]) {
+					return false;
+				}
+				if (his[i] == hi && los[i] == lo) {
+					return true;
+				}
+			}
+		}
+
+		private int index(long hi, long lo) {
+			long h = (hi ^ Long.rotateLeft(lo, 32)) * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32)) & mask;
+		}
+	}
+
+	/**
+	 * Binary trie of network prefixes in arrays. Node 0 is the root, and child 0
+	 * means there is none.
+	 */
+	private static final class Trie {
+		private final int[] zero;
+		private final int[] one;
+		/** A network ends here, so everything below matches */
+		private final boolean[] end;
+
+		private Trie(int[] zero, int[] one, boolean[] end) {
+			this.zero = zero;
+			this.one = one;
+			this.end = end;
+		}
+
+		private boolean matches(long hi, long lo, int bits) {
+			int node = 0;
+			for (int i = 0;; i++) {
+				if (end[node]) {
+					return true;
+				}
+				if (i == bits) {
+					return false;
+				}
+				long word = i < 64 ? hi : lo;
+				node = ((word >>> (63 - (i & 63))) & 1) == 0 ? zero[node] : one[node];
+				if (node == 0) {
+					return false;
+				}
+			}
+		}
+	}
+
+	private static final class TrieBuilder {
+		private int[] zero = new int[16];
+		private int[] one = new int[16];
+		private boolean[] end = new boolean[16];
+		private int nodes = 1;
+
+		private void add(long hi, long lo, int prefixLength) {
+			int node = 0;
+			for (int i = 0; i < prefixLength && !end[node]; i++) {
+				long word = i < 64 ? hi : lo;
+				boolean bit = ((word >>> (63 - (i & 63))) & 1) != 0;
+				int next = bit ? one[node] : zero[node];
+				if (next == 0) {
+					next = newNode();
+					if (bit) {
+						one[node] = next;
+					} else {
+						zero[node] = next;
+					}
+				}
+				node = next;
+			}
+			end[node] = true;
+		}
+
+		private int newNode() {
+			if (nodes == end.length) {
+				zero = Arrays.copyOf(zero, nodes * 2);
+				one = Arrays.copyOf(one, nodes * 2);
+				end = Arrays.copyOf(end, nodes * 2);
+			}
+			return nodes++;
+		}
+
+		private Trie build() {
+			return new Trie(Arrays.copyOf(zero, nodes), Arrays.copyOf(one, nodes), Arrays.copyOf(end, nodes));
+		}
+	}
+
+	public static class Builder {
+		private final List<AddressRange> ranges = new ArrayList<>();
+
+		public Builder() {
+		}
+
+		public Builder(Collection<AddressRange> ranges) {
+			addAll(ranges);
+		}
+
+		public Builder add(AddressRange range) {
+			ranges.add(range);
+			return this;
+		}
+
+		public Builder addAll(Collection<AddressRange> ranges) {
+			ranges.forEach(this::add);
+			return this;
+		}
+
+		public AddressSet build() {
+			boolean wildcard = false;
+			List<long[]> ipv4 = new ArrayList<>();
+			List<long[]> ipv6 = new ArrayList<>();
+			TrieBuilder ipv4Networks = new TrieBuilder();
+			TrieBuilder ipv6Networks = new TrieBuilder();
+			List<AddressRange> distinct = new ArrayList<>(new LinkedHashSet<>(ranges));
+			for (AddressRange r : distinct) {
+				if (r.isWildcard()) {
+					wildcard = true;
+					continue;
+				}
+				byte[] a = r.getAddressBytes();
+				long hi = toLong(a, 0);
+				long lo = toLong(a, 8);
+				boolean v4 = a.length == 4;
+				if (r.isExact()) {
+					(v4 ? ipv4 : ipv6).add(new long[] { hi, lo });
+				} else {
+					(v4 ? ipv4Networks : ipv6Networks).add(hi, lo, r.getPrefixLength());
+				}
+			}
+			return new AddressSet(wildcard, new ExactSet(ipv4), new ExactSet(ipv6), ipv4Networks.build(),
+					ipv6Networks.build(), distinct.size());
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package org.aalku.joatse.cloud.tools.net;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * {@link AddressRange}s added one at a time while other threads check
+ * addresses, like the addresses allowed in a lot. Adding an exact address
+ * doesn't copy the others: they go to hash tables of primitives that only grow,
+ * written by one thread at a time and read without locks. Networks are few so
+ * an {@link AddressSet} of them is built again when one is added.
+ */
+public final class ConcurrentAddressSet {
+
+	/** In the order they were added, to tell duplicates and list them. Guarded by this. */
+	private final Set<AddressRange> ranges = new LinkedHashSet<>();
+	/** The ranges that are not exact. Guarded by this. */
+	private final List<AddressRange> networkRanges = new ArrayList<>();
+	private volatile Compiled compiled = new Compiled(new ExactTable(16), new ExactTable(16), AddressSet.EMPTY);
+
+	private static final class Compiled {
+		private final ExactTable ipv4;
+		private final ExactTable ipv6;
+		/** Networks and wildcard */
+		private final AddressSet networks;
+
+		private Compiled(ExactTable ipv4, ExactTable ipv6, AddressSet networks) {
+			this.ipv4 = ipv4;
+			this.ipv6 = ipv6;
+			this.networks = networks;
+		}
+	}
+
+	/**
+	 * Open addressing hash table of (hi, lo) pairs, at most half full. A slot is
+	 * marked used after its pair is written and it's never emptied, so readers
+	 * don't need a lock.
+	 */
+	private static final class ExactTable {
+		private final long[] his;
+		private final long[] los;
+		private final AtomicIntegerArray used;
+		private final int mask;
+		/** Only the writer uses it */
+		private int size = 0;
+
+		private ExactTable(int capacity) {
+			his = new long[capacity];
+			los = new long[capacity];
+			used = new AtomicIntegerArray(capacity);
+			mask = capacity - 1;
+		}
+
+		private boolean contains(long hi, long lo) {
+			for (int i = index(hi, lo);; i = (i + 1) & mask) {
+				if (used.get(i) == 0) {
+					return false;
+				}
+				if (his[i] == hi && los[i] == lo) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * Adds a pair that is not there yet
+		 *
+		 * @return this, or a copy twice as big if this would be more than half full
+		 */
+		private ExactTable add(long hi, long lo) {
+			if ((size + 1) * 2 <= his.length) {
+				put(hi, lo);
+				return this;
+			}
+			ExactTable bigger = new ExactTable(his.length * 2);
+			for (int i = 0; i < his.length; i++) {
+				if (used.get(i) != 0) {
+					bigger.put(his[i], los[i]);
+				}
+			}
+			bigger.put(hi, lo);
+			return bigger;
+		}
+
+		private void put(long hi, long lo) {
+			int i = index(hi, lo);
+			while (used.get(i) != 0) {
+				i = (i + 1) & mask;
+			}
+			his[i] = hi;
+			los[i] = lo;
+			used.set(i, 1); // Publishes the pair
+			size++;
+		}
+
+		private int index(long hi, long lo) {
+			long h = (hi ^ Long.rotateLeft(lo, 32)) * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32)) & mask;
+		}
+	}
+
+	public ConcurrentAddressSet() {
+	}
+
+	public ConcurrentAddressSet(Collection<AddressRange> ranges) {
+		set(ranges);
+	}
+
+	public boolean contains(InetAddress address) {
+		if (address == null) {
+			return false;
+		}
+		Compiled c = compiled;
+		if (address instanceof Inet4Address) {
+			// The hash code of an Inet4Address is its address, getAddress() would copy it
+			int a = address.hashCode();
+			return c.ipv4.contains((a & 0xFFFFFFFFL) << 32, 0L) || c.networks.containsIPv4(a);
+		}
+		byte[] a = address.getAddress();
+		long hi = AddressSet.toLong(a, 0);
+		long lo = AddressSet.toLong(a, 8);
+		return c.ipv6.contains(hi, lo) || c.networks.containsIPv6(hi, lo);
+	}
+
+	/**
+	 * @return false if it was there already
+	 */
+	public synchronized boolean add(AddressRange range) {
+		if (!ranges.add(range)) {
+			return false;
+		}
+		Compiled c = compiled;
+		if (!range.isExact()) {
+			networkRanges.add(range);
+			compiled = new Compiled(c.ipv4, c.ipv6, new AddressSet.Builder(networkRanges).build());
+			return true;
+		}
+		byte[] a = range.getAddressBytes();
+		long hi = AddressSet.toLong(a, 0);
+		long lo = AddressSet.toLong(a, 8);
+		if (a.length == 4) {
+			ExactTable ipv4 = c.ipv4.add(hi, lo);
+			if (ipv4 != c.ipv4) {
+				compiled = new Compiled(ipv4, c.ipv6, c.networks);
+			}
+		} else {
+			ExactTable ipv6 = c.ipv6.add(hi, lo);
+			if (ipv6 != c.ipv6) {
+				compiled = new Compiled(c.ipv4, ipv6, c.networks);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces all the ranges. Readers see the old ones or the new ones, never a
+	 * mix.
+	 */
+	public synchronized void set(Collection<AddressRange> newRanges) {
+		ranges.clear();
+		networkRanges.clear();
+		ExactTable ipv4 = new ExactTable(16);
+		ExactTable ipv6 = new ExactTable(16);
+		for (AddressRange r : newRanges) {
+			if (!ranges.add(r)) {
+				continue;
+			}
+			if (!r.isExact()) {
+				networkRanges.add(r);
+				continue;
+			}
+			byte[] a = r.getAddressBytes();
+			long hi = AddressSet.toLong(a, 0);
+			long lo = AddressSet.toLong(a, 8);
+			if (a.length == 4) {
+				ipv4 = ipv4.add(hi, lo);
+			} else {
+				ipv6 = ipv6.add(hi, lo);
+			}
+		}
+		compiled = new Compiled(ipv4, ipv6, new AddressSet.Builder(networkRanges).build());
+	}
+
+	/**
+	 * @return a copy, in the order they were added
+	 */
+	public synchronized List<AddressRange> getRanges() {
+		return new ArrayList<>(ranges);
+	}
+
+	public synchronized int size() {
+		return ranges.size();
+	}
+}
@@ -0,0 +1,68 @@
+package org.aalku.joatse.cloud.tools.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Parses the numeric addresses servlet containers give us as remote address,
+ * without going through the name resolver.
+ */
+public final class NumericAddress {
+
+	private NumericAddress() {
+	}
+
+	/**
+	 * @param address an IPv4 or IPv6 literal, IPv6 maybe in brackets
+	 * @throws IllegalArgumentException if it's not numeric, names are not
+	 *                                  resolved
+	 */
+	public static InetAddress parse(String address) {
+		if (address == null || address.isEmpty()) {
+			throw new IllegalArgumentException("Empty address");
+		}
+		byte[] ipv4 = parseIPv4(address);
+		try {
+			if (ipv4 != null) {
+				return InetAddress.getByAddress(ipv4);
+			}
+			if (address.indexOf(':') >= 0) {
+				// IPv6 literals never reach the resolver, the JDK parses them as they are
+				return InetAddress.getByName(address);
+			}
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException("Invalid address: " + address, e);
+		}
+		throw new IllegalArgumentException("Not a numeric address: " + address);
+	}
+
+	/**
+	 * @return the 4 bytes of a dotted quad, or null if it's not one
+	 */
+	static byte[] parseIPv4(String s) {
+		byte[] res = new byte[4];
+		int part = 0;
+		int value = 0;
+		int digits = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= '0' && c <= '9') {
+				value = value * 10 + (c - '0');
+				if (++digits > 3 || value > 255) {
+					return null;
+				}
+			} else if (c == '.' && digits > 0 && part < 3) {
+				res[part++] = (byte) value;
+				value = 0;
+				digits = 0;
+			} else {
+				return null;
+			}
+		}
+		if (part != 3 || digits == 0) {
+			return null;
+		}
+		res[3] = (byte) value;
+		return res;
+	}
+}
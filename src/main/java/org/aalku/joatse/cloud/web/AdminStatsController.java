@@ -0,0 +1,73 @@
+package org.aalku.joatse.cloud.web;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.aalku.joatse.cloud.service.TrafficStatsManager;
+import org.aalku.joatse.cloud.tools.io.ByteBufferPool;
+import org.aalku.joatse.cloud.tools.io.TrafficTimeSeries.Resolution;
+import org.aalku.joatse.cloud.tools.io.TrafficTimeSeries.Series;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.annotation.Secured;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+@Secured("ROLE_JOATSE_ADMIN")
+@Controller
+public class AdminStatsController {
+
+	@Autowired
+	private ByteBufferPool bufferPool;
+
+	@Autowired
+	private TrafficStatsManager trafficStats;
+
+	@GetMapping("/admin/stats")
+	@ResponseBody
+	public Map<String, Object> stats() {
+		Map<String, Object> res = new LinkedHashMap<>();
+		res.put("bufferPool", bufferPool.getStats());
+		return res;
+	}
+
+	/**
+	 * Traffic history of the users that used more, to spot noisy tenants
+	 * 
+	 * @param resolution second (10 minutes), minute (24 hours) or hour (30 days)
+	 * @param top        how many users
+	 */
+	@GetMapping("/admin/stats/traffic")
+	@ResponseBody
+	public ResponseEntity<Map<String, Object>> traffic(@RequestParam(defaultValue = "hour") String resolution,
+			@RequestParam(defaultValue = "20") int top) {
+		Map<String, Object> res = new LinkedHashMap<>();
+		Optional<Resolution> r = Resolution.fromName(resolution);
+		if (r.isEmpty()) {
+			res.put("error", "INVALID_RESOLUTION");
+			res.put("message", "Invalid resolution: " + resolution);
+			return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(res);
+		}
+		List<Map<String, Object>> users = new ArrayList<>();
+		trafficStats.getAllUserSeries().entrySet().stream()
+			.map(e -> Map.entry(e.getKey(), e.getValue().get(r.get())))
+			.sorted(Comparator.comparingLong((Map.Entry<?, Series> e) -> e.getValue().getTotalBytes()).reversed())
+			.limit(Math.max(0, top))
+			.forEach(e -> {
+				Map<String, Object> u = new LinkedHashMap<>();
+				u.put("uuid", e.getKey().toString());
+				u.put("totalBytes", e.getValue().getTotalBytes());
+				u.put("traffic", e.getValue().toMap());
+				users.add(u);
+			});
+		res.put("users", users);
+		return ResponseEntity.ok(res);
+	}
+}
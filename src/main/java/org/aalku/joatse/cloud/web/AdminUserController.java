@@ -49,7 +49,7 @@ public class AdminUserController {
 			role = roles.contains("ROLE_JOATSE_ADMIN") ? "ADMIN" : role;
 			if (role != null) {
 				list.add(Map.of("UUID", user.getUuid().toString(), "login", user.getUsername(), "canDelete",
-						!user.getUsername().equals("admin"), "role", role));
+						!user.getUsername().equals("admin"), "role", role, "bandwithLimit", user.getBandwithLimit().orElse(0L)));
 			}
 		}
 		res.put("users", list);
@@ -94,6 +94,14 @@ public class AdminUserController {
 		} else {
 			user.removeAuthority(new SimpleGrantedAuthority("ROLE_JOATSE_ADMIN"));
 		}
+		if (userMap.containsKey("bandwithLimit")) {
+			// bps, null for no limit
+			user.setBandwithLimit(Optional.ofNullable((Number) userMap.get("bandwithLimit")).map(Number::longValue).orElse(null));
+		}
+		if (userMap.containsKey("monthlyQuota")) {
+			// bytes, null for the default
+			user.setMonthlyQuota(Optional.ofNullable((Number) userMap.get("monthlyQuota")).map(Number::longValue).orElse(null));
+		}
 		userManager.updateUser(user);
 		return Map.of("result", "User updated OK");
 	}
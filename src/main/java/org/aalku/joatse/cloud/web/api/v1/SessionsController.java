@@ -14,8 +14,12 @@ import java.util.UUID;
 import java.util.stream.Collectors;
 
 import org.aalku.joatse.cloud.config.ListenerConfigurationDetector;
+import org.aalku.joatse.cloud.service.BandwithLimitManager;
+import org.aalku.joatse.cloud.service.BandwithLimitManager.DirectionLimiters;
 import org.aalku.joatse.cloud.service.JWSSession;
 import org.aalku.joatse.cloud.service.JoatseWsHandler;
+import org.aalku.joatse.cloud.service.TrafficQuotaManager;
+import org.aalku.joatse.cloud.service.TrafficStatsManager;
 import org.aalku.joatse.cloud.service.sharing.command.CommandTunnel;
 import org.aalku.joatse.cloud.service.sharing.file.FileTunnel;
 import org.aalku.joatse.cloud.service.sharing.http.HttpTunnel;
@@ -23,6 +27,8 @@ import org.aalku.joatse.cloud.service.sharing.shared.SharedResourceLot;
 import org.aalku.joatse.cloud.service.sharing.shared.TcpTunnel;
 import org.aalku.joatse.cloud.service.user.UserManager;
 import org.aalku.joatse.cloud.service.user.vo.JoatseUser;
+import org.aalku.joatse.cloud.tools.io.TrafficTimeSeries;
+import org.aalku.joatse.cloud.tools.io.TrafficTimeSeries.Resolution;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -34,6 +40,7 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import jakarta.servlet.http.HttpServletRequest;
@@ -53,6 +60,15 @@ public class SessionsController {
 	@Autowired
 	private UserManager userManager;
 	
+	@Autowired
+	private TrafficStatsManager trafficStats;
+	
+	@Autowired
+	private BandwithLimitManager bandwithLimitManager;
+	
+	@Autowired
+	private TrafficQuotaManager trafficQuotaManager;
+	
 	/**
 	 * List all active sessions for the authenticated user
 	 */
@@ -298,6 +314,285 @@ public class SessionsController {
 		}
 	}
 	
+	/**
+	 * Traffic history of a session and of each of its tunnel items
+	 * 
+	 * @param resolution second (10 minutes), minute (24 hours) or hour (30 days)
+	 */
+	@GetMapping("/{sessionUuid}/traffic")
+	public ResponseEntity<Map<String, Object>> sessionTraffic(@PathVariable String sessionUuid,
+			@RequestParam(defaultValue = "minute") String resolution) {
+		Map<String, Object> response = new LinkedHashMap<>();
+		
+		try {
+			JoatseUser user = userManager.getAuthenticatedUser()
+				.orElseThrow(() -> new IllegalStateException("User not authenticated (sessionTraffic)"));
+			
+			userManager.requireRole("JOATSE_USER");
+			
+			Optional<Resolution> res = Resolution.fromName(resolution);
+			if (res.isEmpty()) {
+				response.put("error", "INVALID_RESOLUTION");
+				response.put("message", "Invalid resolution: " + resolution);
+				return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response);
+			}
+			
+			UUID uuid = UUID.fromString(sessionUuid);
+			Optional<SharedResourceLot> sessionOpt = getSession(uuid, user);
+			Optional<TrafficTimeSeries> series = sessionOpt.flatMap(s -> trafficStats.getSessionSeries(uuid));
+			if (series.isEmpty()) {
+				response.put("error", "SESSION_NOT_FOUND");
+				response.put("message", "Session not found");
+				return ResponseEntity.status(HttpStatus.NOT_FOUND).body(response);
+			}
+			
+			SharedResourceLot session = sessionOpt.get();
+			response.put("uuid", sessionUuid);
+			response.put("traffic", series.get().get(res.get()).toMap());
+			Map<String, Object> items = new LinkedHashMap<>();
+			for (long targetId : getTargetIds(session)) {
+				trafficStats.getItemSeries(uuid, targetId)
+					.ifPresent(s -> items.put(String.valueOf(targetId), s.get(res.get()).toMap()));
+			}
+			response.put("items", items);
+			return ResponseEntity.ok(response);
+			
+		} catch (IllegalStateException e) {
+			response.put("error", "AUTHENTICATION_REQUIRED");
+			response.put("message", e.getMessage());
+			return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(response);
+		} catch (IllegalArgumentException e) {
+			response.put("error", "INVALID_UUID");
+			response.put("message", "Invalid UUID format");
+			return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response);
+		} catch (Exception e) {
+			response.put("error", "TRAFFIC_ERROR");
+			response.put("message", "Error getting session traffic: " + e.getMessage());
+			log.error("Error getting session traffic: " + e, e);
+			return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
+		}
+	}
+	
+	/**
+	 * Traffic history of all the sessions of the authenticated user
+	 * 
+	 * @param resolution second (10 minutes), minute (24 hours) or hour (30 days)
+	 */
+	@GetMapping("/traffic")
+	public ResponseEntity<Map<String, Object>> userTraffic(@RequestParam(defaultValue = "minute") String resolution) {
+		Map<String, Object> response = new LinkedHashMap<>();
+		
+		try {
+			JoatseUser user = userManager.getAuthenticatedUser()
+				.orElseThrow(() -> new IllegalStateException("User not authenticated (userTraffic)"));
+			
+			userManager.requireRole("JOATSE_USER");
+			
+			Optional<Resolution> res = Resolution.fromName(resolution);
+			if (res.isEmpty()) {
+				response.put("error", "INVALID_RESOLUTION");
+				response.put("message", "Invalid resolution: " + resolution);
+				return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response);
+			}
+			
+			response.put("traffic", trafficStats.getUserSeries(user.getUuid())
+				.orElseGet(TrafficTimeSeries::new).get(res.get()).toMap());
+			response.put("monthBytes", trafficQuotaManager.getMonthBytes(user.getUuid()));
+			return ResponseEntity.ok(response);
+			
+		} catch (IllegalStateException e) {
+			response.put("error", "AUTHENTICATION_REQUIRED");
+			response.put("message", e.getMessage());
+			return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(response);
+		} catch (Exception e) {
+			response.put("error", "TRAFFIC_ERROR");
+			response.put("message", "Error getting user traffic: " + e.getMessage());
+			log.error("Error getting user traffic: " + e, e);
+			return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
+		}
+	}
+	
+	/**
+	 * Bandwith limits of a session and of each of its tunnel items, in bps. Upload
+	 * is from the client to the target and download from the target to the
+	 * client. Null is no limit.
+	 */
+	@GetMapping("/{sessionUuid}/limits")
+	public ResponseEntity<Map<String, Object>> sessionLimits(@PathVariable String sessionUuid) {
+		Map<String, Object> response = new LinkedHashMap<>();
+		
+		try {
+			JoatseUser user = userManager.getAuthenticatedUser()
+				.orElseThrow(() -> new IllegalStateException("User not authenticated (sessionLimits)"));
+			
+			userManager.requireRole("JOATSE_USER");
+			
+			UUID uuid = UUID.fromString(sessionUuid);
+			Optional<SharedResourceLot> sessionOpt = getSession(uuid, user);
+			Optional<DirectionLimiters> lotLimiters = sessionOpt.flatMap(s -> bandwithLimitManager.getLotLimiters(uuid));
+			if (lotLimiters.isEmpty()) {
+				response.put("error", "SESSION_NOT_FOUND");
+				response.put("message", "Session not found");
+				return ResponseEntity.status(HttpStatus.NOT_FOUND).body(response);
+			}
+			
+			response.put("uuid", sessionUuid);
+			response.putAll(limitsToMap(sessionOpt.get(), lotLimiters.get()));
+			return ResponseEntity.ok(response);
+			
+		} catch (IllegalStateException e) {
+			response.put("error", "AUTHENTICATION_REQUIRED");
+			response.put("message", e.getMessage());
+			return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(response);
+		} catch (IllegalArgumentException e) {
+			response.put("error", "INVALID_UUID");
+			response.put("message", "Invalid UUID format");
+			return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response);
+		} catch (Exception e) {
+			response.put("error", "LIMITS_ERROR");
+			response.put("message", "Error getting session limits: " + e.getMessage());
+			log.error("Error getting session limits: " + e, e);
+			return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
+		}
+	}
+	
+	/**
+	 * Update the bandwith limits of a session and of its tunnel items. The sockets
+	 * already open follow them right away.
+	 * 
+	 * Body like {"uploadBps": 1000000, "items": {"<targetId>": {"downloadBps":
+	 * 500000}}}. Limits not in the body don't change, null or 0 removes them.
+	 */
+	@PutMapping("/{sessionUuid}/limits")
+	public ResponseEntity<Map<String, Object>> updateSessionLimits(
+			@PathVariable String sessionUuid,
+			@RequestBody Map<String, Object> limitsRequest) {
+		
+		Map<String, Object> response = new LinkedHashMap<>();
+		
+		try {
+			JoatseUser user = userManager.getAuthenticatedUser()
+				.orElseThrow(() -> new IllegalStateException("User not authenticated (updateSessionLimits)"));
+			
+			userManager.requireRole("JOATSE_USER");
+			
+			UUID uuid = UUID.fromString(sessionUuid);
+			Optional<SharedResourceLot> sessionOpt = getSession(uuid, user);
+			Optional<DirectionLimiters> lotLimiters = sessionOpt.flatMap(s -> bandwithLimitManager.getLotLimiters(uuid));
+			if (lotLimiters.isEmpty()) {
+				response.put("error", "SESSION_NOT_FOUND");
+				response.put("message", "Session not found");
+				return ResponseEntity.status(HttpStatus.NOT_FOUND).body(response);
+			}
+			SharedResourceLot session = sessionOpt.get();
+			
+			// Check everything before changing anything
+			Map<Long, Map<?, ?>> itemRequests = new LinkedHashMap<>();
+			Object items = limitsRequest.getOrDefault("items", Map.of());
+			if (!(items instanceof Map)) {
+				response.put("error", "INVALID_LIMITS");
+				response.put("message", "items must be an object by targetId");
+				return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response);
+			}
+			List<Long> targetIds = getTargetIds(session);
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) items).entrySet()) {
+				Long targetId = parseTargetId(e.getKey());
+				if (targetId == null || !targetIds.contains(targetId)) {
+					response.put("error", "ITEM_NOT_FOUND");
+					response.put("message", "No such tunnel item in the session: " + e.getKey());
+					return ResponseEntity.status(HttpStatus.NOT_FOUND).body(response);
+				}
+				if (!(e.getValue() instanceof Map) || !isValidLimits((Map<?, ?>) e.getValue())) {
+					response.put("error", "INVALID_LIMITS");
+					response.put("message", "Invalid limits of item " + e.getKey());
+					return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response);
+				}
+				itemRequests.put(targetId, (Map<?, ?>) e.getValue());
+			}
+			if (!isValidLimits(limitsRequest)) {
+				response.put("error", "INVALID_LIMITS");
+				response.put("message", "Limits must be null or a number of bps not less than 0");
+				return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response);
+			}
+			
+			applyLimits(lotLimiters.get(), limitsRequest);
+			itemRequests.forEach((targetId, itemRequest) -> applyLimits(bandwithLimitManager.getItemLimiters(uuid, targetId), itemRequest));
+			
+			response.put("success", true);
+			response.putAll(limitsToMap(session, lotLimiters.get()));
+			
+			log.info("Bandwith limits of session {} updated by user {}", sessionUuid, user.getUsername());
+			return ResponseEntity.ok(response);
+			
+		} catch (IllegalStateException e) {
+			response.put("error", "AUTHENTICATION_REQUIRED");
+			response.put("message", e.getMessage());
+			return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(response);
+		} catch (IllegalArgumentException e) {
+			response.put("error", "INVALID_UUID");
+			response.put("message", "Invalid UUID format");
+			return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response);
+		} catch (Exception e) {
+			response.put("error", "LIMITS_UPDATE_ERROR");
+			response.put("message", "Error updating session limits: " + e.getMessage());
+			log.error("Error updating session limits: " + e, e);
+			return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
+		}
+	}
+	
+	private Map<String, Object> limitsToMap(SharedResourceLot session, DirectionLimiters lotLimiters) {
+		Map<String, Object> res = limitsToMap(lotLimiters);
+		Map<String, Object> items = new LinkedHashMap<>();
+		for (long targetId : getTargetIds(session)) {
+			items.put(String.valueOf(targetId), limitsToMap(bandwithLimitManager.getItemLimiters(session.getUuid(), targetId)));
+		}
+		res.put("items", items);
+		return res;
+	}
+	
+	private static Map<String, Object> limitsToMap(DirectionLimiters limiters) {
+		Map<String, Object> res = new LinkedHashMap<>();
+		res.put("uploadBps", limiters.getUpload().getLimitBps());
+		res.put("downloadBps", limiters.getDownload().getLimitBps());
+		return res;
+	}
+	
+	private static boolean isValidLimits(Map<?, ?> request) {
+		for (String key : List.of("uploadBps", "downloadBps")) {
+			Object value = request.get(key);
+			if (value != null && !(value instanceof Number && ((Number) value).longValue() >= 0)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static void applyLimits(DirectionLimiters limiters, Map<?, ?> request) {
+		if (request.containsKey("uploadBps")) {
+			limiters.getUpload().setLimitBps(Optional.ofNullable((Number) request.get("uploadBps")).map(Number::longValue).orElse(null));
+		}
+		if (request.containsKey("downloadBps")) {
+			limiters.getDownload().setLimitBps(Optional.ofNullable((Number) request.get("downloadBps")).map(Number::longValue).orElse(null));
+		}
+	}
+	
+	private static Long parseTargetId(Object key) {
+		try {
+			return Long.valueOf(String.valueOf(key));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	private static List<Long> getTargetIds(SharedResourceLot session) {
+		List<Long> targetIds = new ArrayList<>();
+		session.getHttpItems().forEach(i -> targetIds.add(i.getTargetId()));
+		session.getTcpItems().forEach(i -> targetIds.add(i.getTargetId()));
+		session.getCommandItems().forEach(i -> targetIds.add(i.getTargetId()));
+		session.getFileItems().forEach(i -> targetIds.add(i.getTargetId()));
+		return targetIds;
+	}
+	
 	private Optional<SharedResourceLot> getSession(UUID uuid, JoatseUser user) {
 		return wsHandler.getSessions(user).stream()
 			.map(s -> s.getSharedResourceLot())
@@ -0,0 +1,14 @@
+#!/bin/sh
+# Connects stdin/stdout to a tunnel target through a running switchboard client
+# daemon (java -jar ...-sb-client.jar --daemon ...), so no JVM is started.
+#
+#   ssh -o 'ProxyCommand sb-connect.sh <daemon socket path> <tunnel UUID> <target id>' <user>@<ssh server>
+#
+# It needs socat.
+
+if [ $# -ne 3 ]; then
+	echo "Usage: $0 <daemon socket path> <tunnel UUID> <target id>" >&2
+	exit 2
+fi
+
+{ printf '%s %s\n' "$2" "$3"; exec cat; } | exec socat -t 60 - UNIX-CONNECT:"$1"
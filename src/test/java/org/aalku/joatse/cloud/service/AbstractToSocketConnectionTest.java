@@ -0,0 +1,221 @@
+package org.aalku.joatse.cloud.service;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.aalku.joatse.cloud.tools.io.ByteBufferPool;
+import org.aalku.joatse.cloud.tools.io.TrafficClass;
+import org.aalku.joatse.cloud.tools.io.WebSocketSendScheduler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Flow control between the cloud and the target, per socket
+ */
+public class AbstractToSocketConnectionTest {
+
+	private static final int WINDOW = AbstractToSocketConnection.DEFAULT_SOCKET_WINDOW;
+	private static final int DATA = AbstractToSocketConnection.DATA_BUFFER_SIZE;
+
+	/** Writes to the client right away, or never */
+	private static class TestConnection extends AbstractToSocketConnection {
+		private final Logger log = LoggerFactory.getLogger(TestConnection.class);
+		private volatile boolean clientWrites = true;
+		private final AtomicLong written = new AtomicLong();
+
+		private TestConnection(JWSSession jSession) {
+			super(1L, jSession, null, TrafficClass.DEFAULT);
+		}
+
+		@Override
+		protected CompletableFuture<Integer> writeToClient(ByteBuffer buffer) {
+			if (!clientWrites) {
+				return new CompletableFuture<>();
+			}
+			int len = buffer.remaining();
+			buffer.position(buffer.limit());
+			written.addAndGet(len);
+			return CompletableFuture.completedFuture(len);
+		}
+
+		@Override
+		protected void copyFromClientToTargetForever() {
+		}
+
+		@Override
+		protected void closeInternal(Throwable e, Boolean remote) {
+		}
+
+		@Override
+		protected Logger getLog() {
+			return log;
+		}
+
+		@Override
+		protected Void errorConnectingToFinalTarget(Throwable e) {
+			return null;
+		}
+
+		@Override
+		protected void assertClosed() {
+		}
+	}
+
+	private WebSocketSendScheduler scheduler;
+	private JWSSession jSession;
+	/** Messages sent to the target */
+	private final BlockingQueue<ByteBuffer> sent = new LinkedBlockingQueue<>();
+	/** Of the data we send as the target */
+	private final CRC32 crc = new CRC32();
+	private byte version;
+
+	@BeforeEach
+	void setUp() {
+		scheduler = new WebSocketSendScheduler(1);
+		WebSocketSession session = (WebSocketSession) Proxy.newProxyInstance(WebSocketSession.class.getClassLoader(),
+				new Class<?>[] { WebSocketSession.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getId":
+						return "test";
+					case "isOpen":
+						return true;
+					case "sendMessage":
+						ByteBuffer payload = (ByteBuffer) ((WebSocketMessage<?>) args[0]).getPayload();
+						ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+						copy.put(payload.duplicate());
+						sent.add(copy.flip());
+						return null;
+					default:
+						return null;
+					}
+				});
+		jSession = new JWSSession(session, new BandwithLimitManager(), scheduler, new ByteBufferPool(16, true),
+				new TrafficStatsManager());
+	}
+
+	@AfterEach
+	void tearDown() {
+		scheduler.destroy();
+	}
+
+	private TestConnection connect(int targetMaxVersion, int targetSocketWindow) throws InterruptedException {
+		version = jSession.negotiateProtocolVersion(targetMaxVersion, targetSocketWindow);
+		TestConnection c = new TestConnection(jSession);
+		Assertions.assertNotNull(nextSent(AbstractToSocketConnection.MESSAGE_TYPE_NEW_SOCKET, 5000));
+		return c;
+	}
+
+	/**
+	 * @return next message of that type sent to the target, skipping others, or
+	 *         null if none in that time
+	 */
+	private ByteBuffer nextSent(byte type, long millis) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		ByteBuffer m;
+		while ((m = sent.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) != null) {
+			if (m.get(1) == type) {
+				return m;
+			}
+		}
+		return null;
+	}
+
+	private void receiveData(TestConnection c, int len) throws IOException {
+		byte[] data = new byte[len];
+		crc.update(data);
+		ByteBuffer m = ByteBuffer.allocate(AbstractToSocketConnection.DATA_FRAME_HEADER_SIZE + len);
+		m.put(version).put(AbstractToSocketConnection.MESSAGE_SOCKET_DATA).putLong(c.socketId);
+		m.putInt((int) crc.getValue()).put(data).flip();
+		jSession.handleBinaryMessage(new BinaryMessage(m));
+	}
+
+	private void receiveCredit(TestConnection c, int credit) throws IOException {
+		ByteBuffer m = ByteBuffer.allocate(14);
+		m.put(version).put(AbstractToSocketConnection.MESSAGE_SOCKET_WINDOW).putLong(c.socketId).putInt(credit).flip();
+		jSession.handleBinaryMessage(new BinaryMessage(m));
+	}
+
+	@Test
+	void grantsCreditInBatches() throws Exception {
+		TestConnection c = connect(AbstractToSocketConnection.PROTOCOL_VERSION_FLOW_CONTROL, WINDOW);
+		int chunk = 8192;
+		for (int i = 0; i < WINDOW / 4 / chunk - 1; i++) {
+			receiveData(c, chunk);
+		}
+		Assertions.assertNull(nextSent(AbstractToSocketConnection.MESSAGE_SOCKET_WINDOW, 200), "Too little to grant");
+		receiveData(c, chunk);
+		ByteBuffer grant = nextSent(AbstractToSocketConnection.MESSAGE_SOCKET_WINDOW, 5000);
+		Assertions.assertNotNull(grant);
+		Assertions.assertEquals(c.socketId, grant.getLong(2));
+		Assertions.assertEquals(WINDOW / 4, grant.getInt(10));
+		Assertions.assertEquals(WINDOW / 4, c.written.get());
+		Assertions.assertFalse(c.getCloseStatus().isDone());
+	}
+
+	@Test
+	void windowOverrunClosesTheSocket() throws Exception {
+		TestConnection c = connect(AbstractToSocketConnection.PROTOCOL_VERSION_FLOW_CONTROL, WINDOW);
+		c.clientWrites = false; // So nothing is granted
+		for (int i = 0; i < 4; i++) {
+			receiveData(c, WINDOW / 4);
+		}
+		Assertions.assertFalse(c.getCloseStatus().isDone(), "The whole window is allowed");
+		receiveData(c, 1);
+		c.getCloseStatus().get(5, TimeUnit.SECONDS);
+		Assertions.assertNotNull(nextSent(AbstractToSocketConnection.MESSAGE_SOCKET_CLOSE, 5000));
+	}
+
+	@Test
+	void sendWaitsForCreditAndSplitsBigPayloads() throws Exception {
+		TestConnection c = connect(AbstractToSocketConnection.PROTOCOL_VERSION_FLOW_CONTROL, DATA);
+		CompletableFuture<Void> f = c.sendDataMessageToTarget(ByteBuffer.allocate(DATA * 2 + 10));
+		ByteBuffer m = nextSent(AbstractToSocketConnection.MESSAGE_SOCKET_DATA, 5000);
+		Assertions.assertEquals(AbstractToSocketConnection.DATA_FRAME_HEADER_SIZE + DATA, m.remaining());
+		Assertions.assertNull(nextSent(AbstractToSocketConnection.MESSAGE_SOCKET_DATA, 200), "No credit left");
+		receiveCredit(c, DATA);
+		m = nextSent(AbstractToSocketConnection.MESSAGE_SOCKET_DATA, 5000);
+		Assertions.assertEquals(AbstractToSocketConnection.DATA_FRAME_HEADER_SIZE + DATA, m.remaining());
+		Assertions.assertFalse(f.isDone());
+		receiveCredit(c, DATA);
+		m = nextSent(AbstractToSocketConnection.MESSAGE_SOCKET_DATA, 5000);
+		Assertions.assertEquals(AbstractToSocketConnection.DATA_FRAME_HEADER_SIZE + 10, m.remaining());
+		f.get(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void rejectsWindowsSmallerThanADataMessage() {
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> jSession.negotiateProtocolVersion(AbstractToSocketConnection.PROTOCOL_VERSION_FLOW_CONTROL, DATA - 1));
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> jSession.negotiateProtocolVersion(AbstractToSocketConnection.PROTOCOL_VERSION_MAX, 0));
+		Assertions.assertEquals(AbstractToSocketConnection.PROTOCOL_VERSION, jSession.getProtocolVersion());
+	}
+
+	@Test
+	void version1HasNoFlowControl() throws Exception {
+		TestConnection c = connect(1, 0); // Window ignored
+		Assertions.assertEquals(AbstractToSocketConnection.PROTOCOL_VERSION, version);
+		for (int i = 0; i < 8; i++) {
+			receiveData(c, WINDOW / 4);
+		}
+		Assertions.assertEquals(WINDOW * 2, c.written.get());
+		Assertions.assertFalse(c.getCloseStatus().isDone());
+		c.sendDataMessageToTarget(ByteBuffer.allocate(DATA * 3)).get(5, TimeUnit.SECONDS);
+		Assertions.assertNull(nextSent(AbstractToSocketConnection.MESSAGE_SOCKET_WINDOW, 200));
+		Assertions.assertThrows(IOException.class, () -> receiveCredit(c, DATA));
+	}
+}
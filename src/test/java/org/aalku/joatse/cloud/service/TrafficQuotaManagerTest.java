@@ -0,0 +1,290 @@
+package org.aalku.joatse.cloud.service;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.aalku.joatse.cloud.service.TrafficQuotaManager.ExceededAction;
+import org.aalku.joatse.cloud.service.user.UserManager;
+import org.aalku.joatse.cloud.service.user.UserUpdatedEvent;
+import org.aalku.joatse.cloud.service.user.repository.MonthlyTrafficRepository;
+import org.aalku.joatse.cloud.service.user.vo.JoatseUser;
+import org.aalku.joatse.cloud.service.user.vo.MonthlyTraffic;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class TrafficQuotaManagerTest {
+
+	private static final long THROTTLE_BPS = 1000;
+
+	private static class TestClock extends Clock {
+		private Instant now = Instant.parse("2024-01-31T23:59:00Z");
+
+		@Override
+		public ZoneId getZone() {
+			return ZoneOffset.UTC;
+		}
+
+		@Override
+		public Clock withZone(ZoneId zone) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Instant instant() {
+			return now;
+		}
+	}
+
+	/** Totals of the user calculators, set by the test */
+	private static class TestTrafficStats extends TrafficStatsManager {
+		private final Map<UUID, Long> totals = new HashMap<>();
+
+		@Override
+		public Map<UUID, Long> getUserTotalBytes() {
+			return new HashMap<>(totals);
+		}
+	}
+
+	/** Remembers the throttles, null if lifted */
+	private static class TestBandwithLimitManager extends BandwithLimitManager {
+		private final Map<UUID, Optional<Long>> throttles = new HashMap<>();
+
+		@Override
+		public void setUserThrottle(UUID userUuid, Long bps) {
+			throttles.put(userUuid, Optional.ofNullable(bps));
+		}
+	}
+
+	private static class TestUserManager extends UserManager {
+		private final Map<UUID, JoatseUser> users = new HashMap<>();
+
+		@Override
+		public JoatseUser loadUserByUUID(UUID uuid) {
+			return users.get(uuid);
+		}
+	}
+
+	/** In memory, counting the calls that write */
+	private static class TestRepository implements MonthlyTrafficRepository {
+		private final Map<String, MonthlyTraffic> rows = new HashMap<>();
+		private final List<List<MonthlyTraffic>> batches = new ArrayList<>();
+		private int singleSaves = 0;
+
+		@Override
+		public <S extends MonthlyTraffic> S save(S entity) {
+			singleSaves++;
+			rows.put(entity.getId(), entity);
+			return entity;
+		}
+
+		@Override
+		public <S extends MonthlyTraffic> Iterable<S> saveAll(Iterable<S> entities) {
+			List<MonthlyTraffic> batch = new ArrayList<>();
+			for (S e : entities) {
+				rows.put(e.getId(), e);
+				batch.add(e);
+			}
+			batches.add(batch);
+			return entities;
+		}
+
+		@Override
+		public Optional<MonthlyTraffic> findById(String id) {
+			return Optional.ofNullable(rows.get(id));
+		}
+
+		@Override
+		public boolean existsById(String id) {
+			return rows.containsKey(id);
+		}
+
+		@Override
+		public Iterable<MonthlyTraffic> findAll() {
+			return new ArrayList<>(rows.values());
+		}
+
+		@Override
+		public Iterable<MonthlyTraffic> findAllById(Iterable<String> ids) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public long count() {
+			return rows.size();
+		}
+
+		@Override
+		public void deleteById(String id) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void delete(MonthlyTraffic entity) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void deleteAllById(Iterable<? extends String> ids) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void deleteAll(Iterable<? extends MonthlyTraffic> entities) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void deleteAll() {
+			throw new UnsupportedOperationException();
+		}
+
+		private long bytes(UUID uuid, String month) {
+			return findById(MonthlyTraffic.idOf(uuid, month)).map(MonthlyTraffic::getBytes).orElse(-1L);
+		}
+	}
+
+	private TestClock clock;
+	private TestTrafficStats stats;
+	private TestBandwithLimitManager limits;
+	private TestUserManager userManager;
+	private TestRepository repository;
+	private JoatseUser user;
+
+	@BeforeEach
+	void setUp() {
+		clock = new TestClock();
+		stats = new TestTrafficStats();
+		limits = new TestBandwithLimitManager();
+		userManager = new TestUserManager();
+		repository = new TestRepository();
+		user = JoatseUser.newLocalUser("user", false);
+		userManager.users.put(user.getUuid(), user);
+	}
+
+	private TrafficQuotaManager newManager(long defaultQuota, ExceededAction action) {
+		return new TrafficQuotaManager(stats, limits, userManager, repository, defaultQuota, action, THROTTLE_BPS,
+				clock);
+	}
+
+	@Test
+	void collectAddsDeltasAndSurvivesCounterResets() {
+		TrafficQuotaManager m = newManager(0, ExceededAction.THROTTLE);
+		UUID uuid = user.getUuid();
+		repository.rows.put(MonthlyTraffic.idOf(uuid, "2024-01"), new MonthlyTraffic(uuid, "2024-01", 1000));
+		stats.totals.put(uuid, 100L);
+		m.collect();
+		Assertions.assertEquals(1100, m.getMonthBytes(uuid), "Saved bytes plus the first total");
+		stats.totals.put(uuid, 150L);
+		m.collect();
+		m.collect(); // Nothing new
+		Assertions.assertEquals(1150, m.getMonthBytes(uuid));
+		stats.totals.put(uuid, 30L); // Calculator forgotten and counted again from 0
+		m.collect();
+		Assertions.assertEquals(1180, m.getMonthBytes(uuid));
+		Assertions.assertEquals(0, repository.batches.size(), "Nothing saved until flush");
+	}
+
+	@Test
+	void flushSavesPendingInOneBatch() {
+		TrafficQuotaManager m = newManager(0, ExceededAction.THROTTLE);
+		JoatseUser other = JoatseUser.newLocalUser("other", false);
+		userManager.users.put(other.getUuid(), other);
+		stats.totals.put(user.getUuid(), 100L);
+		stats.totals.put(other.getUuid(), 200L);
+		m.collect();
+		m.flush();
+		Assertions.assertEquals(1, repository.batches.size());
+		Assertions.assertEquals(2, repository.batches.get(0).size());
+		Assertions.assertEquals(100, repository.bytes(user.getUuid(), "2024-01"));
+		Assertions.assertEquals(200, repository.bytes(other.getUuid(), "2024-01"));
+		m.flush();
+		Assertions.assertEquals(1, repository.batches.size(), "Nothing pending, nothing saved");
+		stats.totals.put(user.getUuid(), 150L);
+		m.collect();
+		m.flush();
+		Assertions.assertEquals(2, repository.batches.size());
+		Assertions.assertEquals(1, repository.batches.get(1).size(), "Only what changed");
+		Assertions.assertEquals(150, repository.bytes(user.getUuid(), "2024-01"));
+	}
+
+	@Test
+	void newMonthSavesTheOldOneAndStartsFromZero() {
+		TrafficQuotaManager m = newManager(0, ExceededAction.THROTTLE);
+		UUID uuid = user.getUuid();
+		stats.totals.put(uuid, 100L);
+		m.collect();
+		clock.now = Instant.parse("2024-02-01T00:00:01Z");
+		Assertions.assertEquals(0, m.getMonthBytes(uuid), "Published bytes are of the old month");
+		stats.totals.put(uuid, 130L);
+		m.collect();
+		Assertions.assertEquals(1, repository.singleSaves);
+		Assertions.assertEquals(100, repository.bytes(uuid, "2024-01"));
+		Assertions.assertEquals(30, m.getMonthBytes(uuid));
+		m.flush();
+		Assertions.assertEquals(30, repository.bytes(uuid, "2024-02"));
+		Assertions.assertEquals(100, repository.bytes(uuid, "2024-01"));
+	}
+
+	@Test
+	void throttleWhenOverQuota() {
+		TrafficQuotaManager m = newManager(1000, ExceededAction.THROTTLE);
+		UUID uuid = user.getUuid();
+		stats.totals.put(uuid, 999L);
+		m.collect();
+		Assertions.assertFalse(limits.throttles.containsKey(uuid));
+		stats.totals.put(uuid, 1000L);
+		m.collect();
+		Assertions.assertEquals(Optional.of(THROTTLE_BPS), limits.throttles.get(uuid));
+		Assertions.assertFalse(m.isSharingRejected(user), "Throttled, not rejected");
+	}
+
+	@Test
+	void rejectWhenOverQuota() {
+		TrafficQuotaManager m = newManager(1000, ExceededAction.REJECT);
+		UUID uuid = user.getUuid();
+		stats.totals.put(uuid, 999L);
+		m.collect();
+		Assertions.assertFalse(m.isSharingRejected(user));
+		stats.totals.put(uuid, 1000L);
+		m.collect();
+		Assertions.assertTrue(m.isSharingRejected(user));
+		Assertions.assertTrue(limits.throttles.isEmpty(), "Rejected, not throttled");
+	}
+
+	@Test
+	void rejectReadsTheDatabaseForUsersNotFollowed() {
+		TrafficQuotaManager m = newManager(1000, ExceededAction.REJECT);
+		UUID uuid = user.getUuid();
+		repository.rows.put(MonthlyTraffic.idOf(uuid, "2024-01"), new MonthlyTraffic(uuid, "2024-01", 1000));
+		Assertions.assertTrue(m.isSharingRejected(user));
+		repository.rows.put(MonthlyTraffic.idOf(uuid, "2023-12"), new MonthlyTraffic(uuid, "2023-12", 5000));
+		clock.now = Instant.parse("2024-02-01T00:00:01Z");
+		Assertions.assertFalse(m.isSharingRejected(user));
+	}
+
+	@Test
+	void userUpdatedChangesTheQuota() {
+		TrafficQuotaManager m = newManager(1000, ExceededAction.THROTTLE);
+		UUID uuid = user.getUuid();
+		stats.totals.put(uuid, 1500L);
+		m.collect();
+		Assertions.assertEquals(Optional.of(THROTTLE_BPS), limits.throttles.get(uuid));
+		user.setMonthlyQuota(2000L);
+		m.userUpdated(new UserUpdatedEvent(user));
+		m.collect();
+		Assertions.assertEquals(Optional.empty(), limits.throttles.get(uuid), "Throttle lifted");
+		user.setMonthlyQuota(null); // Back to the default
+		m.userUpdated(new UserUpdatedEvent(user));
+		m.collect();
+		Assertions.assertEquals(Optional.of(THROTTLE_BPS), limits.throttles.get(uuid));
+	}
+}
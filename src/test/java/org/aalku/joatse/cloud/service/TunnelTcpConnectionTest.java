@@ -0,0 +1,168 @@
+package org.aalku.joatse.cloud.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.aalku.joatse.cloud.tools.io.ByteBufferPool;
+import org.aalku.joatse.cloud.tools.io.TrafficClass;
+import org.aalku.joatse.cloud.tools.io.WebSocketSendScheduler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+public class TunnelTcpConnectionTest {
+
+	private static final int DATA = AbstractToSocketConnection.DATA_BUFFER_SIZE;
+
+	private WebSocketSendScheduler scheduler;
+	private ByteBufferPool pool;
+	private JWSSession jSession;
+	/** Messages sent to the target */
+	private final BlockingQueue<ByteBuffer> sent = new LinkedBlockingQueue<>();
+	/** Data messages are not sent until this is open */
+	private final CountDownLatch dataSendsAllowed = new CountDownLatch(1);
+	private AsynchronousServerSocketChannel server;
+	/** The client side of the tcp connection */
+	private AsynchronousSocketChannel client;
+	private TunnelTcpConnection c;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		scheduler = new WebSocketSendScheduler(1);
+		WebSocketSession session = (WebSocketSession) Proxy.newProxyInstance(WebSocketSession.class.getClassLoader(),
+				new Class<?>[] { WebSocketSession.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getId":
+						return "test";
+					case "isOpen":
+						return true;
+					case "sendMessage":
+						ByteBuffer payload = (ByteBuffer) ((WebSocketMessage<?>) args[0]).getPayload();
+						if (payload.get(payload.position() + 1) == AbstractToSocketConnection.MESSAGE_SOCKET_DATA) {
+							dataSendsAllowed.await();
+						}
+						ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+						copy.put(payload.duplicate());
+						sent.add(copy.flip());
+						return null;
+					default:
+						return null;
+					}
+				});
+		pool = new ByteBufferPool(16, true);
+		jSession = new JWSSession(session, new BandwithLimitManager(), scheduler, pool, new TrafficStatsManager());
+		jSession.negotiateProtocolVersion(AbstractToSocketConnection.PROTOCOL_VERSION_FLOW_CONTROL,
+				AbstractToSocketConnection.DEFAULT_SOCKET_WINDOW);
+		server = AsynchronousServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		Future<AsynchronousSocketChannel> accepted = server.accept();
+		client = AsynchronousSocketChannel.open();
+		client.connect(server.getLocalAddress()).get(5, TimeUnit.SECONDS);
+		c = new TunnelTcpConnection(jSession, accepted.get(5, TimeUnit.SECONDS), 1L, TrafficClass.DEFAULT);
+		Assertions.assertNotNull(nextSent(AbstractToSocketConnection.MESSAGE_TYPE_NEW_SOCKET, 5000));
+		c.notifyFinalTargetConnected(true); // Starts reading
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		dataSendsAllowed.countDown();
+		client.close();
+		server.close();
+		c.close();
+		scheduler.destroy();
+	}
+
+	/**
+	 * @return next message of that type sent to the target, skipping others, or
+	 *         null if none in that time
+	 */
+	private ByteBuffer nextSent(byte type, long millis) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		ByteBuffer m;
+		while ((m = sent.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) != null) {
+			if (m.get(1) == type) {
+				return m;
+			}
+		}
+		return null;
+	}
+
+	private void grantCredit(int credit) throws IOException {
+		ByteBuffer m = ByteBuffer.allocate(14);
+		m.put(AbstractToSocketConnection.PROTOCOL_VERSION_FLOW_CONTROL).put(AbstractToSocketConnection.MESSAGE_SOCKET_WINDOW);
+		m.putLong(c.socketId).putInt(credit).flip();
+		jSession.handleBinaryMessage(new BinaryMessage(m));
+	}
+
+	private void waitForOutstanding(long expected) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (pool.getOutstanding() != expected && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		Assertions.assertEquals(expected, pool.getOutstanding());
+	}
+
+	@Test
+	void readsAheadUpToTheFrameLimit() throws Exception {
+		byte[] data = new byte[DATA * 10];
+		new Random(1).nextBytes(data);
+		Future<Integer> write = client.write(ByteBuffer.wrap(data));
+		// The first data message can't be sent, the next ones are read meanwhile
+		waitForOutstanding(4);
+		Thread.sleep(200);
+		Assertions.assertEquals(4, pool.getOutstanding(), "No more than MAX_FRAMES_IN_FLIGHT");
+		dataSendsAllowed.countDown();
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		while (received.size() < data.length) {
+			ByteBuffer m = nextSent(AbstractToSocketConnection.MESSAGE_SOCKET_DATA, 5000);
+			Assertions.assertNotNull(m);
+			Assertions.assertTrue(m.remaining() <= AbstractToSocketConnection.DATA_FRAME_HEADER_SIZE + DATA);
+			int len = m.remaining() - AbstractToSocketConnection.DATA_FRAME_HEADER_SIZE;
+			received.write(m.array(), AbstractToSocketConnection.DATA_FRAME_HEADER_SIZE, len);
+			grantCredit(len); // As the target
+		}
+		write.get(5, TimeUnit.SECONDS);
+		Assertions.assertArrayEquals(data, received.toByteArray(), "All of it, in order");
+	}
+
+	@Test
+	void sendsWhatWasReadThenClosesOnce() throws Exception {
+		client.write(ByteBuffer.wrap(new byte[1000])).get(5, TimeUnit.SECONDS);
+		client.close(); // EOF with the data waiting to be sent
+		Thread.sleep(200);
+		Assertions.assertFalse(c.getCloseStatus().isDone(), "Waits for the data to be sent");
+		dataSendsAllowed.countDown();
+		Assertions.assertNotNull(nextSent(AbstractToSocketConnection.MESSAGE_SOCKET_DATA, 5000));
+		c.getCloseStatus().get(5, TimeUnit.SECONDS);
+		c.close();
+		c.targetClosedSocket();
+		Assertions.assertNotNull(nextSent(AbstractToSocketConnection.MESSAGE_SOCKET_CLOSE, 5000));
+		Assertions.assertNull(nextSent(AbstractToSocketConnection.MESSAGE_SOCKET_CLOSE, 200), "Only one close");
+		waitForOutstanding(0);
+	}
+
+	@Test
+	void closeWhileReadingClosesOnce() throws Exception {
+		// A read is pending, closing the socket fails it and that closes again
+		c.close();
+		c.getCloseStatus().get(5, TimeUnit.SECONDS);
+		Assertions.assertNotNull(nextSent(AbstractToSocketConnection.MESSAGE_SOCKET_CLOSE, 5000));
+		Assertions.assertNull(nextSent(AbstractToSocketConnection.MESSAGE_SOCKET_CLOSE, 200), "Only one close");
+		waitForOutstanding(0);
+	}
+}
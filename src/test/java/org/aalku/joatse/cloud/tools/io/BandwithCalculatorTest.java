@@ -0,0 +1,90 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.aalku.joatse.cloud.tools.io.BandwithCalculator.Horizon;
+import org.aalku.joatse.cloud.tools.io.BandwithCalculator.OneWayBandwithCalculator;
+import org.aalku.joatse.cloud.tools.io.BandwithCalculator.OneWayTraffic;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class BandwithCalculatorTest {
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * 100 packets of 1000 bytes a second for some seconds, sampled once a second
+	 */
+	private static long sendSeconds(OneWayBandwithCalculator c, long now, int seconds, int packets) {
+		for (int s = 0; s < seconds; s++) {
+			for (int i = 0; i < packets; i++) {
+				c.reportPacket(1000);
+			}
+			now += SECOND;
+			c.sample(now);
+		}
+		return now;
+	}
+
+	private static void assertAbout(long expected, long actual) {
+		Assertions.assertTrue(Math.abs(expected - actual) <= expected / 100, "expected about " + expected + " but was " + actual);
+	}
+
+	@Test
+	void averagesOverEachHorizon() {
+		OneWayBandwithCalculator c = new OneWayBandwithCalculator(false);
+		long now = System.nanoTime();
+		now = sendSeconds(c, now, 10, 100);
+		assertAbout(800_000, c.getTraffic(Horizon.SECOND).getBps());
+		assertAbout(100, c.getTraffic(Horizon.SECOND).getPps());
+		Assertions.assertTrue(c.getTraffic(Horizon.MINUTE).getBps() < 200_000);
+		now = sendSeconds(c, now, 600, 100);
+		for (Horizon h : Horizon.values()) {
+			OneWayTraffic t = c.getTraffic(h);
+			assertAbout(800_000, t.getBps());
+			assertAbout(100, t.getPps());
+		}
+		// Quiet
+		now = sendSeconds(c, now, 10, 0);
+		Assertions.assertTrue(c.getTraffic(Horizon.SECOND).getBps() < 1000);
+		Assertions.assertTrue(c.getTraffic(Horizon.MINUTE).getBps() > 600_000);
+		Assertions.assertEquals(61_000_000, c.getTotalBytes());
+	}
+
+	@Test
+	void parentsCountEverything() throws InterruptedException {
+		OneWayBandwithCalculator global = new OneWayBandwithCalculator(false);
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			OneWayBandwithCalculator session = new OneWayBandwithCalculator(false);
+			session.setParent(global);
+			Thread t = new Thread(() -> {
+				for (int j = 0; j < 100_000; j++) {
+					session.reportPacket(10);
+				}
+				Assertions.assertEquals(1_000_000, session.getTotalBytes());
+			});
+			threads.add(t);
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		Assertions.assertEquals(4_000_000, global.getTotalBytes());
+		Assertions.assertEquals(400_000, global.getTotalPackets());
+	}
+
+	@Test
+	void sampledInTheBackground() throws InterruptedException {
+		OneWayBandwithCalculator c = new OneWayBandwithCalculator();
+		long t0 = System.nanoTime();
+		while (System.nanoTime() - t0 < SECOND * 5 / 2) {
+			c.reportPacket(1000);
+			Thread.sleep(10);
+		}
+		Assertions.assertTrue(c.getTraffic(Horizon.SECOND).getBps() > 0);
+		Assertions.assertTrue(c.getTraffic().getPps() > 0);
+	}
+}
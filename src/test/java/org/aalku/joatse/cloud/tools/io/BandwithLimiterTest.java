@@ -1,16 +1,24 @@
 package org.aalku.joatse.cloud.tools.io;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.aalku.joatse.cloud.tools.io.BandwithCalculator.OneWayBandwithCalculator;
 import org.aalku.joatse.cloud.tools.io.BandwithLimiter.Pause;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -133,6 +141,240 @@ public class BandwithLimiterTest {
 		Assertions.assertTrue(differencePercent3 < 5, "expected differencePercent < 5 but was " + differencePercent3);
 	}
 
+	@Test
+	void pacesAtTheLimitWithParent() {
+		log.info("// pacesAtTheLimitWithParent");
+		BandwithLimiter parent = new BandwithLimiter();
+		parent.setLimitBps(8_000_000L); // 1 MB/s
+		parent.setBurstBytes(10_000); // Makes up for parkNanos waking up late
+		BandwithLimiter child = new BandwithLimiter();
+		child.setParent(parent);
+		child.setLimitBps(80_000_000L); // Not the one limiting
+		long t0 = System.nanoTime();
+		long bytes = 0;
+		while (System.nanoTime() - t0 < TimeUnit.SECONDS.toNanos(2)) {
+			bytes += 1000;
+			LockSupport.parkNanos(child.next(1000).getNanos());
+		}
+		long t1 = System.nanoTime();
+		long bps = bytes * 8 * TimeUnit.SECONDS.toNanos(1) / (t1 - t0);
+		log.info("Sent at {} bps with a parent limit of {} bps", bps, parent.getLimitBps());
+		Assertions.assertTrue(absDifferencePercent(parent.getLimitBps(), bps) < 5, "bps=" + bps);
+	}
+
+	@Test
+	void burstAfterQuietTime() throws InterruptedException {
+		BandwithLimiter x = new BandwithLimiter();
+		x.setLimitBps(8_000_000L); // 1 MB/s
+		x.setBurstBytes(10_000);
+		Thread.sleep(20);
+		// 10 ms worth of bytes without pause, as we have been quiet for longer
+		for (int i = 0; i < 9; i++) {
+			Assertions.assertEquals(0, x.next(1000).getNanos());
+		}
+		Assertions.assertTrue(x.next(2000).getNanos() > 0);
+	}
+
+	@Test
+	void pauseHasSubMillisecondPrecision() throws IOException {
+		Pause pause = new Pause(TimeUnit.MICROSECONDS.toNanos(300));
+		Assertions.assertTrue(pause.getRemainingNanos() > 0);
+		long t0 = System.nanoTime();
+		pause.sleep();
+		long slept = System.nanoTime() - t0;
+		Assertions.assertEquals(0, pause.getRemainingNanos());
+		Assertions.assertTrue(slept >= TimeUnit.MICROSECONDS.toNanos(250), "slept " + slept);
+		Assertions.assertEquals(0, Pause.ZERO.getRemainingNanos());
+	}
+
+	@Test
+	void pausesUseTheLimiterClock() {
+		AtomicLong clock = new AtomicLong(TimeUnit.DAYS.toNanos(1000));
+		BandwithLimiter x = new BandwithLimiter(clock::get);
+		x.setLimitBps(8_000L); // 1000 bytes/s
+		x.setBurstBytes(0);
+		Pause pause = x.next(500);
+		Assertions.assertEquals(TimeUnit.MILLISECONDS.toNanos(500), pause.getRemainingNanos());
+		Assertions.assertEquals(clock.get() + TimeUnit.MILLISECONDS.toNanos(500), pause.getDeadlineNanos());
+		clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(200));
+		Assertions.assertEquals(TimeUnit.MILLISECONDS.toNanos(300), pause.getRemainingNanos());
+		clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(300));
+		Assertions.assertEquals(0, pause.getRemainingNanos());
+	}
+
+	@Test
+	void interactiveSkipsPausesUnderItsCap() {
+		AtomicLong clock = new AtomicLong(0L);
+		BandwithLimiter global = new BandwithLimiter(clock::get);
+		global.setLimitBps(8_000_000L); // 1 MB/s
+		BandwithLimiter user = new BandwithLimiter(clock::get);
+		user.setParent(global);
+		user.setLimitBps(800_000L); // 100 KB/s
+		user.setInteractiveLimitBps(80_000L); // 10 KB/s
+		// A bulk transfer used it all
+		Assertions.assertTrue(user.next(200_000, TrafficClass.BULK).getNanos() > 0);
+		Assertions.assertEquals(0, user.next(100, TrafficClass.INTERACTIVE).getNanos());
+		// It counts for the others
+		long before = user.next(100).getNanos();
+		for (int i = 0; i < 10; i++) {
+			Assertions.assertEquals(0, user.next(1000, TrafficClass.INTERACTIVE).getNanos());
+		}
+		Assertions.assertTrue(user.next(100).getNanos() > before);
+		// Over the cap it's like any other
+		int paused = 0;
+		for (int i = 0; i < 40; i++) {
+			if (user.next(1000, TrafficClass.INTERACTIVE).getNanos() > 0) {
+				paused++;
+			}
+		}
+		Assertions.assertTrue(paused > 10, "paused " + paused);
+		// Without a cap it's like any other too
+		Assertions.assertTrue(global.next(10_000_000, TrafficClass.DEFAULT).getNanos() > 0);
+		Assertions.assertTrue(global.next(100, TrafficClass.INTERACTIVE).getNanos() > 0);
+	}
+
+	@Test
+	void bulkDoesNotGetTheBurst() {
+		AtomicLong clock = new AtomicLong(0L);
+		BandwithLimiter x = new BandwithLimiter(clock::get);
+		x.setLimitBps(8_000_000L); // 1 MB/s
+		clock.addAndGet(TimeUnit.SECONDS.toNanos(10));
+		Assertions.assertEquals(TimeUnit.MILLISECONDS.toNanos(1), x.next(1000, TrafficClass.BULK).getNanos());
+		clock.addAndGet(TimeUnit.SECONDS.toNanos(10));
+		Assertions.assertEquals(0, x.next(1000, TrafficClass.DEFAULT).getNanos());
+	}
+
+	/**
+	 * Simulated time. Some users under the same global limit, sending as much as
+	 * they can in chunks of different sizes, and a light user.
+	 * 
+	 * @return bps of each user after a warm up
+	 */
+	private long[] simulateUsers(boolean fair, long globalBps, int[] chunkSizes, long[] demandBps) {
+		AtomicLong clock = new AtomicLong(0L);
+		BandwithLimiter global = new BandwithLimiter(clock::get);
+		global.setLimitBps(globalBps);
+		global.setMaxPauseMillis(100);
+		global.setFairShare(fair);
+		int n = chunkSizes.length;
+		BandwithLimiter[] users = new BandwithLimiter[n];
+		long[] nextTime = new long[n];
+		long[] bytes = new long[n];
+		for (int i = 0; i < n; i++) {
+			users[i] = new BandwithLimiter(clock::get);
+			users[i].setMaxPauseMillis(100);
+			users[i].setParent(global);
+		}
+		long linkBps = 100_000_000L;
+		long warmUp = TimeUnit.SECONDS.toNanos(5);
+		long end = TimeUnit.SECONDS.toNanos(25);
+		while (true) {
+			int u = 0;
+			for (int i = 1; i < n; i++) {
+				if (nextTime[i] < nextTime[u]) {
+					u = i;
+				}
+			}
+			long now = nextTime[u];
+			if (now >= end) {
+				break;
+			}
+			clock.set(now);
+			Pause pause = users[u].next(chunkSizes[u]);
+			if (now >= warmUp) {
+				bytes[u] += chunkSizes[u];
+			}
+			long bps = demandBps[u] > 0 ? demandBps[u] : linkBps;
+			nextTime[u] = now + Math.max(pause.getNanos(), chunkSizes[u] * 8L * TimeUnit.SECONDS.toNanos(1) / bps);
+		}
+		long[] res = new long[n];
+		for (int i = 0; i < n; i++) {
+			res[i] = bytes[i] * 8 * TimeUnit.SECONDS.toNanos(1) / (end - warmUp);
+		}
+		return res;
+	}
+
+	private static double jainIndex(long[] x) {
+		double sum = 0;
+		double sumSq = 0;
+		for (long v : x) {
+			sum += v;
+			sumSq += (double) v * v;
+		}
+		return sum * sum / (x.length * sumSq);
+	}
+
+	@Test
+	void fairShareBetweenUsers() {
+		log.info("// fairShareBetweenUsers");
+		long globalBps = 8_000_000L;
+		int[] chunks = new int[] { 64 * 1024, 16 * 1024, 4 * 1024, 1024 };
+		long[] demand = new long[] { 0, 0, 0, 0 };
+		long[] fcfs = simulateUsers(false, globalBps, chunks, demand);
+		long[] fair = simulateUsers(true, globalBps, chunks, demand);
+		log.info("First come first served: bps={}, jain={}", Arrays.toString(fcfs), jainIndex(fcfs));
+		log.info("Fair share: bps={}, jain={}", Arrays.toString(fair), jainIndex(fair));
+		Assertions.assertTrue(jainIndex(fair) > 0.95, "jain=" + jainIndex(fair));
+		Assertions.assertTrue(jainIndex(fair) > jainIndex(fcfs));
+		Assertions.assertTrue(Arrays.stream(fair).sum() <= globalBps * 105 / 100);
+		Assertions.assertTrue(Arrays.stream(fair).sum() >= globalBps * 90 / 100);
+	}
+
+	@Test
+	void fairShareGivesWhatIsNotUsedToOthers() {
+		log.info("// fairShareGivesWhatIsNotUsedToOthers");
+		long globalBps = 8_000_000L;
+		// The light user wants less than its equal share of 2 Mbps
+		int[] chunks = new int[] { 64 * 1024, 16 * 1024, 4 * 1024, 1024 };
+		long[] demand = new long[] { 0, 0, 0, 500_000L };
+		long[] fair = simulateUsers(true, globalBps, chunks, demand);
+		log.info("Fair share: bps={}", Arrays.toString(fair));
+		Assertions.assertTrue(fair[3] > 500_000L * 90 / 100, "light user got " + fair[3]);
+		long[] bulk = Arrays.copyOf(fair, 3);
+		Assertions.assertTrue(jainIndex(bulk) > 0.95, "jain=" + jainIndex(bulk));
+		// The others split what's left, more than an equal share of the total
+		Assertions.assertTrue(Arrays.stream(bulk).min().getAsLong() > globalBps / 4, Arrays.toString(bulk));
+	}
+
+	/**
+	 * Run with -Dbenchmark=true. Cost of next() on a user limiter with the global
+	 * parent, with several threads using different users and the same global.
+	 */
+	@Test
+	@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+	void benchmarkContention() throws Exception {
+		for (int threads : new int[] { 1, 8, 32 }) {
+			BandwithLimiter global = new BandwithLimiter();
+			global.setLimitBps(Long.MAX_VALUE / 2); // Never pauses, we measure the cost
+			int calls = 2_000_000 / threads;
+			ExecutorService exec = Executors.newFixedThreadPool(threads);
+			try {
+				List<Callable<Long>> tasks = new ArrayList<>();
+				for (int t = 0; t < threads; t++) {
+					BandwithLimiter user = new BandwithLimiter();
+					user.setParent(global);
+					user.setLimitBps(Long.MAX_VALUE / 2);
+					tasks.add(() -> {
+						long pauses = 0;
+						for (int i = 0; i < calls; i++) {
+							pauses += user.next(1400).getNanos();
+						}
+						return pauses;
+					});
+				}
+				long t0 = System.nanoTime();
+				for (Future<Long> f : exec.invokeAll(tasks)) {
+					f.get();
+				}
+				long t1 = System.nanoTime();
+				long total = (long) calls * threads;
+				log.info("threads={}, calls={}, {} ns/call, {} calls/s", threads, total, (t1 - t0) / total,
+						total * TimeUnit.SECONDS.toNanos(1) / (t1 - t0));
+			} finally {
+				exec.shutdownNow();
+			}
+		}
+	}
 	
 	private int absDifferencePercent(long expected, long real) {
 		long min = Math.min(expected, real);
@@ -0,0 +1,83 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ByteBufferPoolTest {
+
+	@Test
+	void reusesReleasedBuffers() {
+		ByteBufferPool pool = new ByteBufferPool(1, false);
+		ByteBuffer a = pool.acquire(100);
+		Assertions.assertTrue(a.isDirect());
+		Assertions.assertEquals(256, a.capacity());
+		a.put((byte) 1);
+		pool.release(a);
+		ByteBuffer b = pool.acquire(200);
+		Assertions.assertSame(a, b);
+		Assertions.assertEquals(0, b.position());
+		Assertions.assertEquals(b.capacity(), b.limit());
+		Assertions.assertEquals(1, pool.getHits());
+		Assertions.assertEquals(1, pool.getMisses());
+		Assertions.assertEquals(1, pool.getOutstanding());
+	}
+
+	@Test
+	void sizeClasses() {
+		ByteBufferPool pool = new ByteBufferPool(1, false);
+		Assertions.assertEquals(256, pool.acquire(256).capacity());
+		Assertions.assertEquals(4096, pool.acquire(257).capacity());
+		Assertions.assertEquals(64 * 1024, pool.acquire(64 * 1024).capacity());
+		ByteBuffer big = pool.acquire(64 * 1024 + 1);
+		Assertions.assertFalse(big.isDirect());
+		pool.release(big); // Ignored
+		Assertions.assertEquals(3, pool.getOutstanding());
+	}
+
+	@Test
+	void keepsOnlyUpToTheLimit() {
+		ByteBufferPool pool = new ByteBufferPool(1, false);
+		// 1MB in 3 classes is 5 buffers of 64KB
+		List<ByteBuffer> list = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			list.add(pool.acquire(64 * 1024));
+		}
+		list.forEach(pool::release);
+		list.clear();
+		for (int i = 0; i < 10; i++) {
+			list.add(pool.acquire(64 * 1024));
+		}
+		Assertions.assertEquals(5, pool.getHits());
+		Assertions.assertEquals(15, pool.getMisses());
+	}
+
+	@Test
+	void doubleReleaseIsNotPooledTwice() {
+		ByteBufferPool pool = new ByteBufferPool(1, false);
+		ByteBuffer a = pool.acquire(10);
+		pool.release(a);
+		pool.release(a); // Ignored
+		ByteBuffer b = pool.acquire(10);
+		ByteBuffer c = pool.acquire(10);
+		Assertions.assertSame(a, b);
+		Assertions.assertNotSame(b, c);
+		Assertions.assertEquals(2, pool.getOutstanding());
+	}
+
+	@Test
+	void tracksLeaks() {
+		ByteBufferPool pool = new ByteBufferPool(1, true);
+		ByteBuffer a = pool.acquire(10);
+		ByteBuffer b = pool.acquire(10);
+		pool.release(a);
+		Assertions.assertEquals(1, pool.getOutstandingAcquisitions().size());
+		Assertions.assertThrows(IllegalStateException.class, () -> pool.release(a));
+		pool.release(b);
+		Assertions.assertTrue(pool.getOutstandingAcquisitions().isEmpty());
+		Assertions.assertEquals(0, pool.getOutstanding());
+	}
+}
@@ -0,0 +1,304 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+public class InProcessSocketChannelTest {
+
+	private static class FakePeer implements InProcessSocketChannel.Peer {
+		private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+		private boolean wantMore = true;
+		private boolean eof = false;
+		private int drained = 0;
+
+		@Override
+		public boolean received(ByteBuffer data) {
+			received.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			return wantMore;
+		}
+
+		@Override
+		public void receivedEOF() {
+			eof = true;
+		}
+
+		@Override
+		public void drained() {
+			drained++;
+		}
+	}
+
+	private static class Result<V> implements CompletionHandler<V, Void> {
+		private final AtomicReference<V> value = new AtomicReference<>();
+		private final AtomicReference<Throwable> error = new AtomicReference<>();
+
+		@Override
+		public void completed(V result, Void attachment) {
+			value.set(result);
+		}
+
+		@Override
+		public void failed(Throwable exc, Void attachment) {
+			error.set(exc);
+		}
+	}
+
+	private final List<Runnable> deferred = new ArrayList<>();
+
+	private InProcessSocketChannel newChannel(FakePeer peer) {
+		InProcessSocketChannel channel = new InProcessSocketChannel(deferred::add,
+				InetSocketAddress.createUnresolved("local", 1), new InetSocketAddress("127.0.0.1", 2));
+		channel.setPeer(peer);
+		return channel;
+	}
+
+	private static ByteBuffer bytes(String s) {
+		return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void bothWays() throws Exception {
+		FakePeer peer = new FakePeer();
+		InProcessSocketChannel channel = newChannel(peer);
+		assertEquals(5, channel.write(bytes("hello")).get());
+		assertEquals("hello", peer.received.toString(StandardCharsets.UTF_8));
+
+		// Offered before and after the read
+		channel.offer(bytes("wor"));
+		ByteBuffer dst = ByteBuffer.allocate(2);
+		assertEquals(2, channel.read(dst).get());
+		assertEquals("wo", new String(dst.array(), StandardCharsets.UTF_8));
+		dst.clear();
+		assertEquals(1, channel.read(dst).get());
+		dst.clear();
+		Result<Integer> read = new Result<>();
+		channel.read(dst, null, read);
+		assertEquals(null, read.value.get());
+		channel.offer(bytes("ld"));
+		assertEquals(2, read.value.get());
+
+		channel.offerEOF();
+		dst.clear();
+		assertEquals(-1, channel.read(dst).get());
+		assertTrue(channel.isOpen());
+		assertFalse(peer.eof);
+		channel.shutdownOutput();
+		assertTrue(peer.eof);
+	}
+
+	@Test
+	public void writesWaitForThePeer() throws Exception {
+		FakePeer peer = new FakePeer();
+		peer.wantMore = false;
+		InProcessSocketChannel channel = newChannel(peer);
+		Result<Integer> write = new Result<>();
+		ByteBuffer src = bytes("abc");
+		channel.write(src, null, write);
+		assertFalse(src.hasRemaining()); // It was copied
+		assertEquals("abc", peer.received.toString(StandardCharsets.UTF_8));
+		assertEquals(null, write.value.get());
+		channel.writable();
+		assertEquals(3, write.value.get());
+
+		// Writable before the peer said it didn't want more
+		InProcessSocketChannel channel2 = newChannel(null);
+		channel2.setPeer(new FakePeer() {
+			@Override
+			public boolean received(ByteBuffer data) {
+				channel2.writable();
+				return false;
+			}
+		});
+		assertEquals(1, channel2.write(bytes("x")).get());
+	}
+
+	@Test
+	public void scatteringAndGathering() throws Exception {
+		FakePeer peer = new FakePeer();
+		InProcessSocketChannel channel = newChannel(peer);
+		Result<Long> write = new Result<>();
+		channel.write(new ByteBuffer[] { bytes("ignored"), bytes("hel"), bytes(""), bytes("lo") }, 1, 3, 0L,
+				TimeUnit.MILLISECONDS, null, write);
+		assertEquals(5L, write.value.get());
+		assertEquals("hello", peer.received.toString(StandardCharsets.UTF_8));
+
+		channel.offer(bytes("wor"));
+		channel.offer(bytes("ld!"));
+		ByteBuffer[] dsts = { ByteBuffer.allocate(2), ByteBuffer.allocate(0), ByteBuffer.allocate(3) };
+		Result<Long> read = new Result<>();
+		channel.read(dsts, 0, 3, 0L, TimeUnit.MILLISECONDS, null, read);
+		assertEquals(5L, read.value.get());
+		assertEquals("wo", new String(dsts[0].array(), StandardCharsets.UTF_8));
+		assertEquals("rld", new String(dsts[2].array(), StandardCharsets.UTF_8));
+		channel.offerEOF();
+		Result<Long> last = new Result<>();
+		channel.read(new ByteBuffer[] { ByteBuffer.allocate(10) }, 0, 1, 0L, TimeUnit.MILLISECONDS, null, last);
+		assertEquals(1L, last.value.get());
+		Result<Long> eof = new Result<>();
+		channel.read(new ByteBuffer[] { ByteBuffer.allocate(10) }, 0, 1, 0L, TimeUnit.MILLISECONDS, null, eof);
+		assertEquals(-1L, eof.value.get());
+	}
+
+	@Test
+	public void readsSlowDownThePeer() throws Exception {
+		FakePeer peer = new FakePeer();
+		InProcessSocketChannel channel = newChannel(peer);
+		byte[] chunk = new byte[64 * 1024];
+		int offered = 0;
+		while (channel.offer(ByteBuffer.wrap(chunk.clone()))) {
+			offered++;
+		}
+		assertEquals(InProcessSocketChannel.MAX_PENDING_BYTES / chunk.length - 1, offered);
+		ByteBuffer dst = ByteBuffer.allocate(chunk.length);
+		channel.read(dst).get();
+		assertEquals(1, peer.drained);
+		dst.clear();
+		channel.read(dst).get();
+		assertEquals(1, peer.drained);
+	}
+
+	/**
+	 * drained() can come in the reader thread before offer() returns false in the
+	 * writer thread, but it always comes once for each false
+	 */
+	@Test
+	public void offerRacesWithRead() throws Exception {
+		AtomicInteger drained = new AtomicInteger();
+		Object monitor = new Object();
+		InProcessSocketChannel channel = new InProcessSocketChannel(ForkJoinPool.commonPool(),
+				InetSocketAddress.createUnresolved("local", 1), new InetSocketAddress("127.0.0.1", 2));
+		channel.setPeer(new FakePeer() {
+			@Override
+			public void drained() {
+				synchronized (monitor) {
+					drained.incrementAndGet();
+					monitor.notifyAll();
+				}
+			}
+		});
+		int chunks = 2000;
+		int chunkSize = 16 * 1024 + 7;
+		CompletableFuture<Integer> writer = CompletableFuture.supplyAsync(() -> {
+			int full = 0;
+			for (int i = 0; i < chunks; i++) {
+				byte[] chunk = new byte[chunkSize];
+				chunk[0] = (byte) i;
+				if (!channel.offer(ByteBuffer.wrap(chunk))) {
+					full++;
+					synchronized (monitor) {
+						long deadline = System.currentTimeMillis() + 10_000;
+						while (drained.get() < full && System.currentTimeMillis() < deadline) {
+							waitFor(monitor);
+						}
+					}
+					if (drained.get() < full) {
+						throw new IllegalStateException("Lost drained() after " + i + " chunks");
+					}
+				}
+			}
+			channel.offerEOF();
+			return full;
+		});
+		ByteBuffer dst = ByteBuffer.allocate(5000);
+		long total = 0;
+		while (true) {
+			dst.clear();
+			int n = channel.read(dst).get(10, TimeUnit.SECONDS);
+			if (n < 0) {
+				break;
+			}
+			total += n;
+			if ((total & 7) == 0) {
+				Thread.yield();
+			}
+		}
+		assertEquals((long) chunks * chunkSize, total);
+		assertTrue(writer.get(10, TimeUnit.SECONDS) > 0);
+		assertEquals((int) writer.get(), drained.get());
+	}
+
+	private static void waitFor(Object monitor) {
+		try {
+			monitor.wait(10);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Test
+	public void closeFailsPendingRead() throws IOException, InterruptedException, ExecutionException {
+		FakePeer peer = new FakePeer();
+		InProcessSocketChannel channel = newChannel(peer);
+		Result<Integer> read = new Result<>();
+		channel.read(ByteBuffer.allocate(10), null, read);
+		channel.close();
+		assertTrue(read.error.get() instanceof AsynchronousCloseException);
+		assertTrue(peer.eof);
+		assertFalse(channel.isOpen());
+
+		Result<Integer> write = new Result<>();
+		channel.write(bytes("x"), null, write);
+		assertTrue(write.error.get() instanceof IOException);
+	}
+
+	@Test
+	public void peerClosed() throws Exception {
+		FakePeer peer = new FakePeer();
+		peer.wantMore = false;
+		InProcessSocketChannel channel = newChannel(peer);
+		Result<Integer> write = new Result<>();
+		channel.write(bytes("abc"), null, write);
+		Result<Integer> read = new Result<>();
+		channel.read(ByteBuffer.allocate(10), null, read);
+		channel.peerClosed();
+		assertEquals(-1, read.value.get());
+		assertEquals(3, write.value.get());
+		Result<Integer> write2 = new Result<>();
+		channel.write(bytes("x"), null, write2);
+		assertTrue(write2.error.get() instanceof IOException);
+	}
+
+	@Test
+	public void deepHandlersGoToTheExecutor() throws Exception {
+		FakePeer peer = new FakePeer();
+		InProcessSocketChannel channel = newChannel(peer);
+		AtomicInteger writes = new AtomicInteger();
+		CompletionHandler<Integer, Void> again = new CompletionHandler<Integer, Void>() {
+			@Override
+			public void completed(Integer result, Void attachment) {
+				if (writes.incrementAndGet() < 100) {
+					channel.write(bytes("x"), null, this);
+				}
+			}
+
+			@Override
+			public void failed(Throwable exc, Void attachment) {
+			}
+		};
+		channel.write(bytes("x"), null, again);
+		assertTrue(writes.get() < 100);
+		while (!deferred.isEmpty()) {
+			deferred.remove(0).run();
+		}
+		assertEquals(100, writes.get());
+	}
+}
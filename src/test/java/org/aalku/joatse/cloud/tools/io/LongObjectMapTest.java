@@ -0,0 +1,83 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class LongObjectMapTest {
+
+	private Logger log = LoggerFactory.getLogger(LongObjectMapTest.class);
+
+	@Test
+	void sameAsAHashMap() {
+		Random random = new Random(1);
+		Map<Long, String> expected = new HashMap<>();
+		LongObjectMap.Builder<String> builder = new LongObjectMap.Builder<>();
+		for (int i = 0; i < 1000; i++) {
+			long key = i % 10 == 0 ? i : random.nextLong();
+			expected.put(key, "v" + i);
+			builder.put(key, "v" + i);
+		}
+		builder.put(0L, "zero"); // Replaces
+		expected.put(0L, "zero");
+		LongObjectMap<String> map = builder.build();
+		Assertions.assertEquals(expected.size(), map.size());
+		expected.forEach((k, v) -> Assertions.assertEquals(v, map.get(k)));
+		for (int i = 0; i < 1000; i++) {
+			long key = random.nextLong();
+			Assertions.assertEquals(expected.get(key), map.get(key));
+		}
+		Map<Long, String> iterated = new HashMap<>();
+		map.forEach(iterated::put);
+		Assertions.assertEquals(expected, iterated);
+	}
+
+	@Test
+	void emptyAndRemove() {
+		Assertions.assertNull(LongObjectMap.empty().get(1L));
+		Assertions.assertEquals(0, LongObjectMap.empty().size());
+		LongObjectMap<String> map = new LongObjectMap.Builder<String>().put(1L, "a").put(2L, "b").build();
+		LongObjectMap<String> removed = new LongObjectMap.Builder<>(map).remove(1L).build();
+		Assertions.assertEquals("a", map.get(1L));
+		Assertions.assertNull(removed.get(1L));
+		Assertions.assertEquals("b", removed.get(2L));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> new LongObjectMap.Builder<String>().put(3L, null));
+	}
+
+	/**
+	 * Lookup time should be the same with few or many entries
+	 */
+	@Test
+	@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+	void benchmark() {
+		Random random = new Random(1);
+		for (int size : new int[] { 10, 100, 1000, 10000, 50000, 10, 50000 }) {
+			long[] keys = new long[size];
+			LongObjectMap.Builder<Object> builder = new LongObjectMap.Builder<>();
+			for (int i = 0; i < size; i++) {
+				keys[i] = random.nextLong();
+				builder.put(keys[i], Integer.valueOf(i));
+			}
+			LongObjectMap<Object> map = builder.build();
+			int lookups = 10_000_000;
+			long found = 0;
+			long t0 = System.nanoTime();
+			for (int i = 0; i < lookups; i++) {
+				// Half hits, half misses
+				long key = (i & 1) == 0 ? keys[(i >>> 1) % size] : keys[(i >>> 1) % size] + 1;
+				if (map.get(key) != null) {
+					found++;
+				}
+			}
+			long nanos = System.nanoTime() - t0;
+			Assertions.assertEquals(lookups / 2, found);
+			log.info("size={}, {} ns/lookup", size, String.format("%.1f", nanos / (double) lookups));
+		}
+	}
+}
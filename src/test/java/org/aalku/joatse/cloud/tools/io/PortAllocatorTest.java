@@ -0,0 +1,150 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+public class PortAllocatorTest {
+
+	private static class FakeBinder implements PortAllocator.Binder {
+		private final Set<Integer> bound = new HashSet<>();
+		private final Set<Integer> busy = new HashSet<>();
+		private int binds = 0;
+
+		@Override
+		public boolean bind(int port) {
+			binds++;
+			if (busy.contains(port)) {
+				return false;
+			}
+			assertTrue(bound.add(port), "bound twice " + port);
+			return true;
+		}
+
+		@Override
+		public void unbind(int port) {
+			assertTrue(bound.remove(port), "not bound " + port);
+		}
+	}
+
+	private final AtomicLong clock = new AtomicLong(0);
+
+	private void sleep(long seconds) {
+		clock.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+	}
+
+	@Test
+	public void nothingBoundUntilUsed() {
+		FakeBinder binder = new FakeBinder();
+		PortAllocator allocator = new PortAllocator(10000, 10999, binder, clock::get);
+		assertEquals(0, binder.bound.size());
+		List<Integer> ports = allocator.acquire(3);
+		assertEquals(3, new HashSet<>(ports).size());
+		assertEquals(new HashSet<>(ports), binder.bound);
+		assertEquals(3, allocator.getUsedCount());
+	}
+
+	@Test
+	public void spreadsThenShares() {
+		FakeBinder binder = new FakeBinder();
+		PortAllocator allocator = new PortAllocator(100, 104, binder, clock::get);
+		List<Integer> a = allocator.acquire(2);
+		List<Integer> b = allocator.acquire(2);
+		assertEquals(Arrays.asList(100, 101), a);
+		assertEquals(Arrays.asList(102, 103), b);
+		// One free left, the other is shared
+		List<Integer> c = allocator.acquire(2);
+		assertEquals(Arrays.asList(104, 100), c);
+		assertEquals(5, binder.bound.size());
+		// 100 is still shared, 101 is free again
+		allocator.release(a);
+		assertEquals(Arrays.asList(101), allocator.acquire(1));
+		assertThrows(IllegalStateException.class, () -> allocator.acquire(6));
+	}
+
+	@Test
+	public void unboundAfterGrace() {
+		FakeBinder binder = new FakeBinder();
+		PortAllocator allocator = new PortAllocator(100, 199, binder, clock::get);
+		List<Integer> a = allocator.acquire(2);
+		List<Integer> b = allocator.acquire(1);
+		allocator.release(a);
+		sleep(30);
+		assertEquals(0, allocator.unbindIdle(60_000));
+		assertEquals(3, binder.bound.size());
+		sleep(31);
+		assertEquals(2, allocator.unbindIdle(60_000));
+		assertEquals(new HashSet<>(b), binder.bound);
+		allocator.release(b);
+		allocator.release(b); // Twice does nothing
+		sleep(61);
+		assertEquals(1, allocator.unbindIdle(60_000));
+		assertTrue(binder.bound.isEmpty());
+		assertEquals(0, allocator.getUsedCount());
+	}
+
+	@Test
+	public void busyPortsAreSkipped() {
+		FakeBinder binder = new FakeBinder();
+		binder.busy.add(101);
+		PortAllocator allocator = new PortAllocator(100, 102, binder, clock::get);
+		assertEquals(Arrays.asList(100, 102), allocator.acquire(2));
+		int binds = binder.binds;
+		// Not tried again during the grace period, shared instead
+		List<Integer> c = allocator.acquire(1);
+		assertFalse(c.contains(101));
+		assertEquals(binds, binder.binds);
+		assertThrows(IllegalStateException.class, () -> allocator.acquire(3));
+		binder.busy.clear();
+		sleep(61);
+		allocator.unbindIdle(60_000);
+		assertEquals(Arrays.asList(101), allocator.acquire(1));
+	}
+
+	@Test
+	public void lostPortsAreNotHandedOut() {
+		FakeBinder binder = new FakeBinder();
+		PortAllocator allocator = new PortAllocator(100, 101, binder, clock::get);
+		List<Integer> a = allocator.acquire(1);
+		binder.bound.remove(a.get(0));
+		allocator.lost(a.get(0));
+		assertEquals(Arrays.asList(101), allocator.acquire(1));
+		assertEquals(1, allocator.getBoundCount());
+	}
+
+	@Test
+	public void lostPortsInUseAreBoundAgain() {
+		FakeBinder binder = new FakeBinder();
+		PortAllocator allocator = new PortAllocator(100, 101, binder, clock::get);
+		int port = allocator.acquire(1).get(0);
+		binder.bound.remove(port);
+		binder.busy.add(port);
+		allocator.lost(port);
+		sleep(61);
+		allocator.unbindIdle(60_000);
+		assertEquals(0, allocator.getBoundCount()); // Still busy
+		binder.busy.clear();
+		sleep(30);
+		allocator.unbindIdle(60_000);
+		assertEquals(0, allocator.getBoundCount()); // Waits a grace period again
+		sleep(31);
+		allocator.unbindIdle(60_000);
+		assertEquals(1, allocator.getBoundCount());
+		assertTrue(binder.bound.contains(port));
+		// Back to normal
+		allocator.release(port);
+		sleep(61);
+		assertEquals(1, allocator.unbindIdle(60_000));
+		assertTrue(binder.bound.isEmpty());
+	}
+}
@@ -0,0 +1,76 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.aalku.joatse.cloud.tools.io.BandwithLimiter.Pause;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class RefCountedRegistryTest {
+
+	@Test
+	void livesWhileUsed() {
+		RefCountedRegistry<String, Object> registry = new RefCountedRegistry<>(k -> new Object());
+		Object a = registry.acquire("a");
+		Assertions.assertSame(a, registry.acquire("a"));
+		registry.release("a");
+		Assertions.assertSame(a, registry.get("a").get());
+		registry.release("a");
+		Assertions.assertTrue(registry.get("a").isEmpty());
+		Assertions.assertEquals(0, registry.size());
+		Assertions.assertNotSame(a, registry.acquire("a"));
+	}
+
+	@Test
+	void userLimitIsEnforcedInAggregate() throws Exception {
+		AtomicLong clock = new AtomicLong(0L);
+		long limitBps = 8_000_000L; // 1MB/s
+		RefCountedRegistry<String, BandwithLimiter> registry = new RefCountedRegistry<>(k -> {
+			BandwithLimiter limiter = new BandwithLimiter(clock::get);
+			limiter.setBurstBytes(0);
+			limiter.setMaxPauseMillis(TimeUnit.MINUTES.toMillis(10));
+			limiter.setLimitBps(limitBps);
+			return limiter;
+		});
+		BandwithLimiter longLived = registry.acquire("user");
+		// Sessions of the same user come and go in parallel while the long lived one is there
+		int threads = 8;
+		int sessions = 50;
+		int chunks = 10;
+		int chunk = 1000;
+		ExecutorService exec = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				futures.add(exec.submit(() -> {
+					for (int s = 0; s < sessions; s++) {
+						BandwithLimiter limiter = registry.acquire("user");
+						Assertions.assertSame(longLived, limiter);
+						for (int c = 0; c < chunks; c++) {
+							limiter.next(chunk);
+						}
+						registry.release("user");
+					}
+				}));
+			}
+			for (Future<?> f : futures) {
+				f.get(30, TimeUnit.SECONDS);
+			}
+		} finally {
+			exec.shutdownNow();
+		}
+		// The clock didn't move, so the next byte waits for everything they all sent
+		long totalBytes = (long) threads * sessions * chunks * chunk + chunk;
+		Pause pause = longLived.next(chunk);
+		long expectedNanos = (long) (totalBytes * 8d * TimeUnit.SECONDS.toNanos(1) / limitBps);
+		Assertions.assertEquals(expectedNanos, pause.getNanos(), TimeUnit.MILLISECONDS.toNanos(1));
+		registry.release("user");
+		Assertions.assertEquals(0, registry.size());
+	}
+}
@@ -0,0 +1,169 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class SwitchboardExternalClientTest {
+
+	private static final Logger log = LoggerFactory.getLogger(SwitchboardExternalClientTest.class);
+
+	@Test
+	void cdsTrainingEnds() throws Exception {
+		SwitchboardExternalClient.cdsTraining();
+	}
+
+	/**
+	 * The classes of the sb-client jar, like the pom does
+	 */
+	private static Path buildClientJar(Path dir) throws Exception {
+		Path classes = Path.of(SwitchboardExternalClient.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+		String pkg = SwitchboardExternalClient.class.getPackageName().replace('.', '/');
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, SwitchboardExternalClient.class.getName());
+		Path jar = dir.resolve("sb-client.jar");
+		try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar), manifest);
+				DirectoryStream<Path> files = Files.newDirectoryStream(classes.resolve(pkg),
+						"{SwitchboardExternalClient,SwitchboardExternalClient$*,SwitchboardClientDaemon,SwitchboardClientDaemon$*,SwitchboardMux}.class")) {
+			for (Path f : files) {
+				out.putNextEntry(new JarEntry(pkg + "/" + f.getFileName()));
+				out.write(Files.readAllBytes(f));
+				out.closeEntry();
+			}
+		}
+		return jar;
+	}
+
+	/**
+	 * Says yes to everything and echoes
+	 */
+	private static void fakeSwitchboard(ServerSocketChannel server) {
+		while (true) {
+			SocketChannel channel;
+			try {
+				channel = server.accept();
+			} catch (IOException e) {
+				return;
+			}
+			Thread th = new Thread(() -> {
+				try (channel) {
+					ByteBuffer buffer = ByteBuffer.allocate(16 + 8);
+					while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+					channel.write(ByteBuffer.wrap(new byte[] { 0 }));
+					buffer = ByteBuffer.allocate(1024);
+					while (channel.read(buffer.clear()) >= 0) {
+						channel.write(buffer.flip());
+					}
+				} catch (IOException e) {
+				}
+			});
+			th.setDaemon(true);
+			th.start();
+		}
+	}
+
+	/**
+	 * From the process start until the first byte of the target comes out
+	 */
+	private static long timeToFirstByte(List<String> command, InetSocketAddress switchboard) throws Exception {
+		List<String> cmd = new ArrayList<>(command);
+		cmd.addAll(Arrays.asList(switchboard.getHostString(), String.valueOf(switchboard.getPort()),
+				UUID.randomUUID().toString(), "1"));
+		ProcessBuilder pb = new ProcessBuilder(cmd).redirectError(Redirect.DISCARD);
+		long t0 = System.nanoTime();
+		Process process = pb.start();
+		try {
+			OutputStream stdin = process.getOutputStream();
+			stdin.write('x');
+			stdin.flush();
+			InputStream stdout = process.getInputStream();
+			assertEquals('x', stdout.read());
+			return System.nanoTime() - t0;
+		} finally {
+			process.destroyForcibly().waitFor();
+		}
+	}
+
+	/**
+	 * Time to first byte of a new connection with the sb-client jar, with and
+	 * without a class data sharing archive, and the native image if there's one
+	 * at -Dsb.native=path (mvn package -Psb-client-native).
+	 */
+	@Test
+	@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+	void startupBenchmark() throws Exception {
+		Path dir = Files.createTempDirectory("joatse");
+		String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+		Path jar = buildClientJar(dir);
+		Path jsa = dir.resolve("sb-client.jsa");
+		Process training = new ProcessBuilder(java, "-XX:ArchiveClassesAtExit=" + jsa, "-jar", jar.toString(),
+				"--cds-training").redirectOutput(Redirect.DISCARD).redirectError(Redirect.DISCARD).start();
+		assertEquals(0, training.waitFor());
+		assertTrue(Files.exists(jsa));
+
+		List<String> names = new ArrayList<>();
+		List<List<String>> commands = new ArrayList<>();
+		names.add("jar");
+		commands.add(Arrays.asList(java, "-jar", jar.toString()));
+		names.add("jar + CDS");
+		commands.add(Arrays.asList(java, "-XX:SharedArchiveFile=" + jsa, "-jar", jar.toString()));
+		names.add("jar + CDS + C1 + SerialGC");
+		commands.add(Arrays.asList(java, "-XX:SharedArchiveFile=" + jsa, "-XX:TieredStopAtLevel=1",
+				"-XX:+UseSerialGC", "-jar", jar.toString()));
+		String nativeImage = System.getProperty("sb.native");
+		if (nativeImage != null && Files.isExecutable(Path.of(nativeImage))) {
+			names.add("native");
+			commands.add(Arrays.asList(nativeImage));
+		}
+
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			Thread switchboard = new Thread(() -> fakeSwitchboard(server));
+			switchboard.setDaemon(true);
+			switchboard.start();
+			InetSocketAddress address = (InetSocketAddress) server.getLocalAddress();
+			int runs = 10;
+			for (int v = 0; v < commands.size(); v++) {
+				timeToFirstByte(commands.get(v), address); // Warm up the disk cache
+				List<Long> times = new ArrayList<>();
+				for (int i = 0; i < runs; i++) {
+					times.add(timeToFirstByte(commands.get(v), address));
+				}
+				Collections.sort(times);
+				log.info("{}: median {} ms, best {} ms", names.get(v), times.get(runs / 2) / 1_000_000,
+						times.get(0) / 1_000_000);
+			}
+		} finally {
+			Files.deleteIfExists(jsa);
+			Files.deleteIfExists(jar);
+			Files.deleteIfExists(dir);
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class SwitchboardMuxTest {
+
+	private static final UUID UUID_ = UUID.randomUUID();
+	private static final long ECHO_TARGET = 1L;
+	/** It never reads */
+	private static final long STUCK_TARGET = 3L;
+
+	private Path dir;
+	private AsyncTcpPortListener<Void> switchboard;
+	private SwitchboardClientDaemon daemon;
+
+	/**
+	 * Like the switchboard, with only an echo target
+	 */
+	@BeforeEach
+	void setUp() throws IOException {
+		dir = Files.createTempDirectory("joatse");
+		switchboard = new AsyncTcpPortListener<>(InetAddress.getLoopbackAddress(), 0);
+		switchboard.start(null, t -> {
+			if (t.channel == null) {
+				return;
+			}
+			ByteBuffer header = ByteBuffer.allocate(16 + 8);
+			IOTools.asyncReadWholeBuffer(t.channel, header).thenAccept(x -> {
+				if (!SwitchboardMux.isMux(new UUID(header.getLong(), header.getLong()), header.getLong())) {
+					IOTools.closeChannel(t.channel);
+					return;
+				}
+				SwitchboardMuxSession session = new SwitchboardMuxSession(t.channel, new SwitchboardMuxSession.Targets() {
+					@Override
+					public Object connected(UUID uuid, long targetId) {
+						return uuid.equals(UUID_) && (targetId == ECHO_TARGET || targetId == STUCK_TARGET) ? targetId : null;
+					}
+
+					@Override
+					public void ready(Object context, AsynchronousSocketChannel channel) {
+						if (context.equals(ECHO_TARGET)) {
+							echo(channel, ByteBuffer.allocate(8 * 1024));
+						}
+					}
+				});
+				IOTools.asyncWriteWholeBuffer(t.channel, ByteBuffer.wrap(new byte[] { 0 }))
+						.thenAccept(y -> session.start());
+			});
+		});
+		daemon = new SwitchboardClientDaemon(dir.resolve("daemon.sock"), switchboard.getAddress());
+		new Thread(daemon::run).start();
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		daemon.close();
+		switchboard.close();
+		Files.deleteIfExists(dir.resolve("daemon.sock"));
+		Files.deleteIfExists(dir);
+	}
+
+	private static void echo(AsynchronousSocketChannel channel, ByteBuffer buffer) {
+		channel.read(buffer, null, new CompletionHandler<Integer, Void>() {
+			@Override
+			public void completed(Integer result, Void attachment) {
+				if (result < 0) {
+					IOTools.closeChannel(channel);
+					return;
+				}
+				buffer.flip();
+				IOTools.asyncWriteWholeBuffer(channel, buffer).thenAccept(x -> {
+					buffer.clear();
+					channel.read(buffer, null, this);
+				});
+			}
+
+			@Override
+			public void failed(Throwable exc, Void attachment) {
+				IOTools.closeChannel(channel);
+			}
+		});
+	}
+
+	private SocketChannel connect(long targetId) throws IOException {
+		SocketChannel res = SocketChannel.open(UnixDomainSocketAddress.of(dir.resolve("daemon.sock")));
+		res.write(ByteBuffer.wrap((UUID_ + " " + targetId + "\n").getBytes(StandardCharsets.US_ASCII)));
+		return res;
+	}
+
+	/**
+	 * Sends it all, closes the output and reads until EOF
+	 */
+	private static byte[] roundTrip(SocketChannel channel, byte[] data) throws Exception {
+		CompletableFuture<Void> sent = CompletableFuture.runAsync(() -> {
+			try {
+				ByteBuffer out = ByteBuffer.wrap(data);
+				while (out.hasRemaining()) {
+					channel.write(out);
+				}
+				channel.shutdownOutput();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		ByteBuffer in = ByteBuffer.allocate(data.length + 1);
+		while (channel.read(in) >= 0) {
+		}
+		sent.get(10, TimeUnit.SECONDS);
+		byte[] res = new byte[in.position()];
+		in.flip().get(res);
+		return res;
+	}
+
+	@Test
+	void manyStreamsAtOnce() throws Exception {
+		Random random = new Random(1);
+		List<CompletableFuture<Void>> results = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			// More than the window, it has to wait for credit
+			byte[] data = new byte[SwitchboardMux.WINDOW * 3 + random.nextInt(1000)];
+			random.nextBytes(data);
+			SocketChannel channel = connect(ECHO_TARGET);
+			results.add(CompletableFuture.runAsync(() -> {
+				try (channel) {
+					assertArrayEquals(data, roundTrip(channel, data));
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}));
+		}
+		CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void unknownTargetIsClosed() throws Exception {
+		try (SocketChannel channel = connect(ECHO_TARGET + 1)) {
+			assertEquals(-1, channel.read(ByteBuffer.allocate(10)));
+		}
+		// The carrier is still fine
+		try (SocketChannel channel = connect(ECHO_TARGET)) {
+			byte[] data = "hello".getBytes(StandardCharsets.US_ASCII);
+			assertArrayEquals(data, roundTrip(channel, data));
+		}
+	}
+
+	/**
+	 * Straight to the switchboard, not minding the credit
+	 */
+	@Test
+	void moreThanTheWindowClosesTheMux() throws Exception {
+		try (SocketChannel carrier = SocketChannel.open(switchboard.getAddress())) {
+			ByteBuffer header = ByteBuffer.allocate(16 + 8);
+			header.putLong(SwitchboardMux.MUX_UUID.getMostSignificantBits())
+					.putLong(SwitchboardMux.MUX_UUID.getLeastSignificantBits()).putLong(SwitchboardMux.MUX_TARGET_ID).flip();
+			carrier.write(header);
+			carrier.read(ByteBuffer.allocate(1));
+			carrier.write(SwitchboardMux.open(1, UUID_, STUCK_TARGET));
+			// It's credited while the target's channel has room, not after that
+			CompletableFuture<Void> sent = CompletableFuture.runAsync(() -> {
+				byte[] chunk = new byte[SwitchboardMux.MAX_PAYLOAD];
+				try {
+					for (int i = 0; i < 1000; i++) {
+						ByteBuffer frame = SwitchboardMux.frame(1, SwitchboardMux.DATA, ByteBuffer.wrap(chunk), chunk.length);
+						while (frame.hasRemaining()) {
+							carrier.write(frame);
+						}
+					}
+				} catch (IOException e) {
+					// Closed already
+				}
+			});
+			CompletableFuture<Void> closed = CompletableFuture.runAsync(() -> {
+				ByteBuffer in = ByteBuffer.allocate(1024);
+				try {
+					while (carrier.read(in) >= 0) {
+						in.clear(); // Credit frames
+					}
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			});
+			closed.get(10, TimeUnit.SECONDS);
+			sent.get(10, TimeUnit.SECONDS);
+		}
+	}
+}
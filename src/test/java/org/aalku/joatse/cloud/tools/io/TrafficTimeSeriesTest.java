@@ -0,0 +1,50 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import org.aalku.joatse.cloud.tools.io.TrafficTimeSeries.Resolution;
+import org.aalku.joatse.cloud.tools.io.TrafficTimeSeries.Series;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class TrafficTimeSeriesTest {
+
+	@Test
+	void rollsUpEachResolution() {
+		TrafficTimeSeries ts = new TrafficTimeSeries();
+		long t0 = 1_700_000_000L / 3600 * 3600; // Start of an hour
+		for (int s = 0; s < 7200; s++) {
+			ts.record(t0 + s, 10, 1);
+		}
+		long now = t0 + 7199;
+		Series seconds = ts.get(Resolution.SECOND, now);
+		Assertions.assertEquals(600, seconds.getBytesIn().length);
+		Assertions.assertEquals(now - 599, seconds.getStartEpochSecond());
+		Assertions.assertEquals(10, seconds.getBytesIn()[0]);
+		Assertions.assertEquals(1, seconds.getBytesOut()[599]);
+		Series minutes = ts.get(Resolution.MINUTE, now);
+		Assertions.assertEquals(600, minutes.getBytesIn()[1439]);
+		Assertions.assertEquals(600, minutes.getBytesIn()[1439 - 119]);
+		Assertions.assertEquals(0, minutes.getBytesIn()[1439 - 120]);
+		Series hours = ts.get(Resolution.HOUR, now);
+		Assertions.assertEquals(t0 + 3600 - 719 * 3600, hours.getStartEpochSecond());
+		Assertions.assertEquals(36000, hours.getBytesIn()[719]);
+		Assertions.assertEquals(36000, hours.getBytesIn()[718]);
+		Assertions.assertEquals(7200 * 11, hours.getTotalBytes());
+	}
+
+	@Test
+	void forgetsWhatIsTooOld() {
+		TrafficTimeSeries ts = new TrafficTimeSeries();
+		long t0 = 1_700_000_000L;
+		ts.record(t0, 5, 5);
+		// Way later, the old second is gone but the minute is not
+		ts.record(t0 + 1000, 1, 0);
+		Series seconds = ts.get(Resolution.SECOND, t0 + 1000);
+		Assertions.assertEquals(1, seconds.getTotalBytes());
+		Assertions.assertEquals(11, ts.get(Resolution.MINUTE, t0 + 1000).getTotalBytes());
+		// Quiet for a while, it reads zeros
+		Assertions.assertEquals(0, ts.get(Resolution.SECOND, t0 + 5000).getTotalBytes());
+		// Late data out of the window is ignored
+		ts.record(t0, 100, 100);
+		Assertions.assertEquals(0, ts.get(Resolution.SECOND, t0 + 5000).getTotalBytes());
+	}
+}
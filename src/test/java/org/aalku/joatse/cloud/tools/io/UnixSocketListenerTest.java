@@ -0,0 +1,240 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+import java.util.function.Consumer;
+
+import org.aalku.joatse.cloud.tools.io.AsyncTcpPortListener.Event;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class UnixSocketListenerTest {
+
+	private static final Logger log = LoggerFactory.getLogger(UnixSocketListenerTest.class);
+
+	private static final UUID UUID_ = UUID.randomUUID();
+
+	private Path dir;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		dir = Files.createTempDirectory("joatse");
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		Files.deleteIfExists(dir.resolve("switchboard.sock"));
+		Files.deleteIfExists(dir);
+	}
+
+	/**
+	 * Like the switchboard, but the target echoes what it receives
+	 */
+	private static final Consumer<Event<Void>> echoSwitchboard = t -> {
+		if (t.channel == null) {
+			return;
+		}
+		AsynchronousSocketChannel channel = t.channel;
+		ByteBuffer header = ByteBuffer.allocate(16 + 8);
+		IOTools.asyncReadWholeBuffer(channel, header)
+				.thenCompose(x -> IOTools.asyncWriteWholeBuffer(channel, ByteBuffer.wrap(new byte[] { 0 })))
+				.thenAccept(x -> echo(channel, ByteBuffer.allocate(64 * 1024)))
+				.exceptionally(e -> {
+					IOTools.closeChannel(channel);
+					return null;
+				});
+	};
+
+	private static void echo(AsynchronousSocketChannel channel, ByteBuffer buffer) {
+		channel.read(buffer, null, new CompletionHandler<Integer, Void>() {
+			@Override
+			public void completed(Integer result, Void attachment) {
+				if (result < 0) {
+					IOTools.closeChannel(channel);
+					return;
+				}
+				buffer.flip();
+				IOTools.asyncWriteWholeBuffer(channel, buffer).thenAccept(x -> {
+					buffer.clear();
+					channel.read(buffer, null, this);
+				}).exceptionally(e -> {
+					IOTools.closeChannel(channel);
+					return null;
+				});
+			}
+
+			@Override
+			public void failed(Throwable exc, Void attachment) {
+				IOTools.closeChannel(channel);
+			}
+		});
+	}
+
+	@Test
+	void connectAndEcho() throws IOException {
+		Path path = dir.resolve("switchboard.sock");
+		UnixSocketListener<Void> listener = new UnixSocketListener<>(path);
+		listener.start(null, echoSwitchboard);
+		try {
+			assertTrue(Files.exists(path));
+			assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(path));
+			try (Stream<Path> files = Files.list(dir)) {
+				assertEquals(1, files.count()); // No temporary directory left
+			}
+			try (SocketChannel client = SwitchboardExternalClient.connect(listener.getAddress(), UUID_, 1L)) {
+				ByteBuffer out = ByteBuffer.wrap("hello".getBytes());
+				ByteBuffer in = ByteBuffer.allocate(5);
+				client.write(out);
+				while (in.hasRemaining()) {
+					client.read(in);
+				}
+				assertEquals("hello", new String(in.array()));
+			}
+		} finally {
+			listener.close();
+		}
+		assertFalse(Files.exists(path));
+	}
+
+	@Test
+	void staleSocketIsReplaced() throws IOException {
+		Path path = dir.resolve("switchboard.sock");
+		// Like a process that died, the file is left there
+		try (ServerSocketChannel gone = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+			gone.bind(UnixDomainSocketAddress.of(path));
+		}
+		assertTrue(Files.exists(path));
+		UnixSocketListener<Void> listener = new UnixSocketListener<>(path);
+		try {
+			assertEquals(path, listener.getAddress().getPath());
+		} finally {
+			listener.close();
+		}
+	}
+
+	@Test
+	void liveSocketIsNotReplaced() throws IOException {
+		Path path = dir.resolve("switchboard.sock");
+		UnixSocketListener<Void> first = new UnixSocketListener<>(path);
+		first.start(null, echoSwitchboard);
+		UnixSocketListener<Void> second = new UnixSocketListener<>(path);
+		try {
+			assertNull(second.getAddress());
+			second.close(); // Doesn't delete the file of the first
+			try (SocketChannel client = SwitchboardExternalClient.connect(first.getAddress(), UUID_, 1L)) {
+				assertTrue(client.isConnected());
+			}
+		} finally {
+			first.close();
+		}
+	}
+
+	@Test
+	void otherFilesAreNotReplaced() throws IOException {
+		Path path = dir.resolve("switchboard.sock");
+		Files.writeString(path, "data");
+		UnixSocketListener<Void> listener = new UnixSocketListener<>(path);
+		assertNull(listener.getAddress());
+		assertEquals("data", Files.readString(path));
+		// The error is told when it starts
+		List<Event<Void>> events = new ArrayList<>();
+		listener.start(null, events::add);
+		assertEquals(1, events.size());
+		assertTrue(events.get(0).error instanceof IOException);
+		assertNull(events.get(0).channel);
+	}
+
+	/**
+	 * Unix domain socket vs loopback tcp, round trips of 1 byte and bulk
+	 * transfer, both through the switchboard handshake.
+	 */
+	@Test
+	@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+	void benchmark() throws IOException {
+		AsyncTcpPortListener<Void> tcp = new AsyncTcpPortListener<>(InetAddress.getLoopbackAddress(), 0);
+		tcp.start(null, echoSwitchboard);
+		UnixSocketListener<Void> unix = new UnixSocketListener<>(dir.resolve("switchboard.sock"));
+		unix.start(null, echoSwitchboard);
+		try {
+			for (int i = 0; i < 3; i++) {
+				benchmark("tcp", tcp.getAddress());
+				benchmark("unix", unix.getAddress());
+			}
+		} finally {
+			tcp.close();
+			unix.close();
+		}
+	}
+
+	private void benchmark(String name, SocketAddress address) throws IOException {
+		try (SocketChannel client = SwitchboardExternalClient.connect(address, UUID_, 1L)) {
+			ByteBuffer one = ByteBuffer.allocate(1);
+			int roundTrips = 20_000;
+			long t0 = System.nanoTime();
+			for (int i = 0; i < roundTrips; i++) {
+				one.clear();
+				client.write(one);
+				one.clear();
+				while (one.hasRemaining()) {
+					client.read(one);
+				}
+			}
+			long latency = (System.nanoTime() - t0) / roundTrips;
+
+			ByteBuffer block = ByteBuffer.allocate(64 * 1024);
+			long total = 256L * 1024 * 1024;
+			Thread reader = new Thread(() -> {
+				ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+				long read = 0;
+				try {
+					while (read < total) {
+						in.clear();
+						read += client.read(in);
+					}
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			});
+			t0 = System.nanoTime();
+			reader.start();
+			for (long written = 0; written < total; written += block.capacity()) {
+				block.clear();
+				while (block.hasRemaining()) {
+					client.write(block);
+				}
+			}
+			try {
+				reader.join();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			double seconds = (System.nanoTime() - t0) / 1e9;
+			log.info("{}: {} us/round trip, {} MB/s", name, String.format("%.1f", latency / 1000.0),
+					String.format("%.0f", total / seconds / 1024 / 1024));
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class UrlPrefixRewriterTest {
+
+	/** The one in HttpProxyManager */
+	private static final Pattern PATTERN_URL_PREFFIX = Pattern.compile("(?<!\\w)http(s?)://[-\\w_.]+(:[0-9]+)?(?![-\\w_.])");
+
+	private Logger log = LoggerFactory.getLogger(UrlPrefixRewriterTest.class);
+
+	private static final Map<String, String> MAP = new LinkedHashMap<>();
+	static {
+		MAP.put("http://localhost:8080", "https://cloud.example.com:9011");
+		MAP.put("https://target.local:443", "https://cloud.example.com:9012");
+		MAP.put("https://target.local", "https://cloud.example.com:9012");
+	}
+
+	private static final String[] PIECES = { "http://localhost:8080", "https://target.local", "https://target.local:443",
+			"http://localhost", "http://localhost:80801", "https://target.localx", "http://a.http://localhost:8080",
+			":8080", ":443x", ":", "/", "x", "_", ".", "-", "\u00e9", "h", "http", "https:", "http:/", "://", "\n",
+			"<a href=\"", "\">", "'", " ", "0", "\u00f1and\u00fa" };
+
+	private static String expected(String text) {
+		CharBuffer buffer = CharBuffer.allocate(text.length());
+		buffer.put(text);
+		StringWriter out = new StringWriter();
+		IOTools.rewriteStringContent(buffer, new PrintWriter(out), true, PATTERN_URL_PREFFIX,
+				y -> MAP.getOrDefault(y, y));
+		return out.toString();
+	}
+
+	/**
+	 * Written in pieces of random size
+	 */
+	private static String rewrite(UrlPrefixRewriter rewriter, byte[] data, Random random) throws IOException {
+		ByteArrayOutputStream res = new ByteArrayOutputStream();
+		try (OutputStream out = rewriter.rewrite(res)) {
+			int p = 0;
+			while (p < data.length) {
+				int n = random.nextInt(10) == 0 ? 1 : Math.min(data.length - p, random.nextInt(2000));
+				out.write(data, p, n);
+				p += n;
+			}
+		}
+		return res.toString(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	void sameAsTheRegex() throws IOException {
+		UrlPrefixRewriter rewriter = new UrlPrefixRewriter(MAP);
+		Random random = new Random(1);
+		for (int i = 0; i < 2000; i++) {
+			StringBuilder sb = new StringBuilder();
+			int pieces = random.nextInt(i % 10 == 0 ? 2000 : 30);
+			for (int j = 0; j < pieces; j++) {
+				sb.append(PIECES[random.nextInt(PIECES.length)]);
+			}
+			String text = sb.toString();
+			Assertions.assertEquals(expected(text), rewrite(rewriter, text.getBytes(StandardCharsets.UTF_8), random), text);
+		}
+	}
+
+	@Test
+	void longPrefixes() throws IOException {
+		UrlPrefixRewriter rewriter = new UrlPrefixRewriter(MAP);
+		Random random = new Random(2);
+		String longHost = "x".repeat(5000);
+		String longPort = "1".repeat(5000);
+		for (String text : new String[] { "http://" + longHost + ".http://localhost:8080 http://localhost:8080",
+				"http://localhost:" + longPort + "/ http://localhost:8080", "http://localhost:8080:" + longPort,
+				"https://target.local:" + longPort + "x", "http://" + longHost }) {
+			Assertions.assertEquals(expected(text), rewrite(rewriter, text.getBytes(StandardCharsets.UTF_8), random));
+		}
+	}
+
+	/**
+	 * Many windows and replacements longer than what they replace
+	 */
+	@Test
+	void sameAsTheRegexInWindows() throws IOException {
+		Random random = new Random(3);
+		byte[] data = page(500_000, random);
+		Assertions.assertEquals(regex(data), rewrite(new UrlPrefixRewriter(MAP), data, random));
+	}
+
+	private static byte[] page(int size, Random random) {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < size) {
+			switch (random.nextInt(6)) {
+			case 0:
+				sb.append("<a class=\"nav-link\" href=\"http://localhost:8080/app/page").append(random.nextInt(1000))
+						.append(".html\">P\u00e1gina ").append(random.nextInt(1000)).append("</a>\n");
+				break;
+			case 1:
+				sb.append("<script src=\"https://cdn.example.org/lib/v").append(random.nextInt(10))
+						.append("/lib.min.js\"></script>\n");
+				break;
+			case 2:
+				sb.append("  fetch(\"http://localhost:8080/api/items?id=\" + id).then(r => r.json());\n");
+				break;
+			default:
+				sb.append("<div class=\"row\"><span>Lorem ipsum dolor sit amet, consectetur adipiscing elit, ")
+						.append("sed do eiusmod tempor incididunt ut labore</span></div>\n");
+			}
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Against what HttpProxyManager did, decoding to chars and rewriting 100 KB
+	 * windows with the regex
+	 */
+	@Test
+	@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+	void benchmark() throws IOException {
+		UrlPrefixRewriter rewriter = new UrlPrefixRewriter(MAP);
+		Random random = new Random(1);
+		for (int size : new int[] { 10_000, 100_000, 1_000_000, 10_000_000 }) {
+			byte[] data = page(size, random);
+			int rounds = Math.max(3, 50_000_000 / data.length);
+			for (int warm = 0; warm < 2; warm++) {
+				long regexNanos = 0;
+				long streamNanos = 0;
+				long streamFirstByte = 0;
+				for (int r = 0; r < rounds; r++) {
+					long t0 = System.nanoTime();
+					regex(data);
+					regexNanos += System.nanoTime() - t0;
+
+					long[] first = new long[] { -1 };
+					OutputStream sink = new OutputStream() {
+						@Override
+						public void write(int b) {
+						}
+
+						@Override
+						public void write(byte[] b, int off, int len) {
+							if (first[0] < 0 && len > 0) {
+								first[0] = System.nanoTime();
+							}
+						}
+					};
+					t0 = System.nanoTime();
+					try (OutputStream out = rewriter.rewrite(sink)) {
+						for (int p = 0; p < data.length; p += 16 * 1024) {
+							out.write(data, p, Math.min(16 * 1024, data.length - p));
+						}
+					}
+					streamNanos += System.nanoTime() - t0;
+					streamFirstByte += first[0] - t0;
+				}
+				if (warm == 1) {
+					log.info("{} bytes: regex {} MB/s, stream {} MB/s, first byte out after {} us", data.length,
+							data.length * (long) rounds * 1000 / regexNanos, data.length * (long) rounds * 1000 / streamNanos,
+							streamFirstByte / rounds / 1000);
+				}
+			}
+		}
+	}
+
+	private static String regex(byte[] data) {
+		// Like HttpProxyManager, but from and to memory
+		CharBuffer input = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(data));
+		StringWriter sw = new StringWriter(data.length + 1024);
+		PrintWriter out = new PrintWriter(sw);
+		CharBuffer buffer = CharBuffer.allocate(1024 * 100);
+		while (true) {
+			int n = Math.min(buffer.remaining(), input.remaining());
+			buffer.put(input.slice(input.position(), n));
+			input.position(input.position() + n);
+			if (!input.hasRemaining()) {
+				IOTools.rewriteStringContent(buffer, out, true, PATTERN_URL_PREFFIX, y -> MAP.getOrDefault(y, y));
+				break;
+			}
+			IOTools.rewriteStringContent(buffer, out, false, PATTERN_URL_PREFFIX, y -> MAP.getOrDefault(y, y));
+		}
+		out.flush();
+		return sw.toString();
+	}
+}
@@ -0,0 +1,320 @@
+package org.aalku.joatse.cloud.tools.io;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+public class WebSocketSendSchedulerTest {
+
+	private Logger log = LoggerFactory.getLogger(WebSocketSendSchedulerTest.class);
+
+	/**
+	 * Fake session that calls a consumer for each message sent
+	 */
+	private static WebSocketSession fakeSession(String id, AtomicBoolean open, Consumer<WebSocketMessage<?>> onSend) {
+		return (WebSocketSession) Proxy.newProxyInstance(WebSocketSession.class.getClassLoader(),
+				new Class<?>[] { WebSocketSession.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getId":
+						return id;
+					case "isOpen":
+						return open.get();
+					case "sendMessage":
+						onSend.accept((WebSocketMessage<?>) args[0]);
+						return null;
+					default:
+						return null;
+					}
+				});
+	}
+
+	private static final byte[] PACK_HEADER = new byte[] { (byte) 0xFF, 7 };
+
+	/**
+	 * Calls the consumer for each message sent, unpacking the packed ones
+	 */
+	private static void unpack(WebSocketMessage<?> m, Consumer<ByteBuffer> onMessage) {
+		ByteBuffer payload = ((ByteBuffer) m.getPayload()).duplicate();
+		if (payload.get(0) != PACK_HEADER[0]) {
+			onMessage.accept(payload);
+			return;
+		}
+		payload.position(PACK_HEADER.length);
+		try {
+			ByteBuffer next;
+			while ((next = BinaryMessagePacker.unpackNext(payload)) != null) {
+				onMessage.accept(next);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static BinaryMessage longMessage(long n) {
+		ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+		buffer.putLong(n);
+		buffer.flip();
+		return new BinaryMessage(buffer);
+	}
+
+	@Test
+	void keepsOrderPerSession() throws InterruptedException, ExecutionException {
+		WebSocketSendScheduler scheduler = new WebSocketSendScheduler(4);
+		try {
+			int sessions = 200;
+			int messages = 500;
+			AtomicInteger errors = new AtomicInteger(0);
+			List<CompletableFuture<Void>> futures = new ArrayList<>();
+			List<WebSocketSendWorker> workers = new ArrayList<>();
+			for (int s = 0; s < sessions; s++) {
+				long[] expected = new long[] { 0L };
+				WebSocketSession session = fakeSession("s" + s, new AtomicBoolean(true), m -> {
+					long n = ((ByteBuffer) m.getPayload()).getLong(0);
+					if (n != expected[0]++) {
+						errors.incrementAndGet();
+					}
+				});
+				workers.add(scheduler.newWorker(session));
+			}
+			for (int i = 0; i < messages; i++) {
+				for (WebSocketSendWorker w : workers) {
+					futures.add(w.sendMessage(longMessage(i)));
+				}
+			}
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+			Assertions.assertEquals(0, errors.get());
+		} finally {
+			scheduler.destroy();
+		}
+	}
+
+	@Test
+	void failsPendingWhenClosed() throws InterruptedException {
+		WebSocketSendScheduler scheduler = new WebSocketSendScheduler(1);
+		try {
+			WebSocketSendWorker worker = scheduler.newWorker(fakeSession("closed", new AtomicBoolean(false), m -> {
+				Assertions.fail("Sent on a closed session");
+			}));
+			CompletableFuture<Void> f = worker.sendMessage(longMessage(0));
+			Assertions.assertThrows(ExecutionException.class, () -> f.get(5, TimeUnit.SECONDS));
+			worker.close();
+			Assertions.assertTrue(worker.sendMessage(longMessage(1)).isCompletedExceptionally());
+		} finally {
+			scheduler.destroy();
+		}
+	}
+
+	@Test
+	void interactiveGoesFirst() throws Exception {
+		WebSocketSendScheduler scheduler = new WebSocketSendScheduler(1);
+		try {
+			CompletableFuture<Void> blocked = new CompletableFuture<>();
+			List<Byte> sent = new ArrayList<>();
+			WebSocketSendWorker worker = scheduler.newWorker(fakeSession("s", new AtomicBoolean(true), m -> {
+				blocked.join();
+				sent.add(((ByteBuffer) m.getPayload()).get(0));
+			}));
+			List<CompletableFuture<Void>> futures = new ArrayList<>();
+			// Blocked sending the first one, so the rest wait in the queues
+			futures.add(worker.sendMessage(classMessage(TrafficClass.BULK, 1000), TrafficClass.BULK));
+			Thread.sleep(50);
+			for (int i = 0; i < 20; i++) {
+				futures.add(worker.sendMessage(classMessage(TrafficClass.BULK, 1000), TrafficClass.BULK));
+				futures.add(worker.sendMessage(classMessage(TrafficClass.DEFAULT, 1000), TrafficClass.DEFAULT));
+			}
+			for (int i = 0; i < 3; i++) {
+				futures.add(worker.sendMessage(classMessage(TrafficClass.INTERACTIVE, 100), TrafficClass.INTERACTIVE));
+			}
+			blocked.complete(null);
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+			byte interactive = (byte) TrafficClass.INTERACTIVE.ordinal();
+			Assertions.assertEquals(List.of(interactive, interactive, interactive), sent.subList(1, 4));
+			// Bulk gets some, but default goes way faster
+			int lastDefault = sent.lastIndexOf((byte) TrafficClass.DEFAULT.ordinal());
+			long bulkBeforeLastDefault = sent.subList(0, lastDefault).stream()
+					.filter(b -> b == TrafficClass.BULK.ordinal()).count();
+			Assertions.assertTrue(bulkBeforeLastDefault > 1 && bulkBeforeLastDefault < 10, "bulk " + bulkBeforeLastDefault);
+		} finally {
+			scheduler.destroy();
+		}
+	}
+
+	private static BinaryMessage classMessage(TrafficClass trafficClass, int size) {
+		byte[] bytes = new byte[size];
+		bytes[0] = (byte) trafficClass.ordinal();
+		return new BinaryMessage(bytes);
+	}
+
+	@Test
+	void packsUnderLoadKeepingOrder() throws Exception {
+		WebSocketSendScheduler scheduler = new WebSocketSendScheduler(1, 2000, 1024);
+		try {
+			int messages = 5000;
+			long[] expected = new long[] { 0L };
+			AtomicInteger errors = new AtomicInteger(0);
+			AtomicInteger wsMessages = new AtomicInteger(0);
+			WebSocketSendWorker worker = scheduler.newWorker(fakeSession("s", new AtomicBoolean(true), m -> {
+				wsMessages.incrementAndGet();
+				Assertions.assertTrue(m.getPayloadLength() <= 1024 + 1024 / 8 * 2 + PACK_HEADER.length);
+				unpack(m, b -> {
+					if (b.getLong(b.position()) != expected[0]++) {
+						errors.incrementAndGet();
+					}
+				});
+			}));
+			worker.setMessagePacker(new BinaryMessagePacker(PACK_HEADER, new ByteBufferPool(1, true)));
+			List<CompletableFuture<Void>> futures = new ArrayList<>();
+			for (int i = 0; i < messages; i++) {
+				futures.add(worker.sendMessage(longMessage(i)));
+			}
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+			Assertions.assertEquals(0, errors.get());
+			Assertions.assertEquals(messages, expected[0]);
+			log.info("{} messages sent in {} ws messages", messages, wsMessages.get());
+			Assertions.assertTrue(wsMessages.get() < messages / 10);
+		} finally {
+			scheduler.destroy();
+		}
+	}
+
+	@Test
+	void doesNotPackWhenIdle() throws Exception {
+		WebSocketSendScheduler scheduler = new WebSocketSendScheduler(1, 50000, 1024);
+		try {
+			AtomicInteger wsMessages = new AtomicInteger(0);
+			WebSocketSendWorker worker = scheduler.newWorker(fakeSession("s", new AtomicBoolean(true), m -> {
+				wsMessages.incrementAndGet();
+			}));
+			worker.setMessagePacker(new BinaryMessagePacker(PACK_HEADER, new ByteBufferPool(1, false)));
+			for (int i = 0; i < 20; i++) {
+				long t0 = System.nanoTime();
+				worker.sendMessage(longMessage(i)).get();
+				// Way less than the latency budget
+				Assertions.assertTrue(System.nanoTime() - t0 < TimeUnit.MILLISECONDS.toNanos(25));
+				Thread.sleep(2);
+			}
+			Assertions.assertEquals(20, wsMessages.get());
+		} finally {
+			scheduler.destroy();
+		}
+	}
+
+	/**
+	 * Run with -Dbenchmark=true. Many sessions sending tiny messages, like
+	 * interactive ssh sessions, with and without packing. Each WS send costs about
+	 * what a socket write syscall does, and wire bytes count 40 bytes of TCP/IP
+	 * headers per WS message (no Nagle).
+	 */
+	@Test
+	@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+	void benchmarkPacking() throws Exception {
+		for (boolean pack : new boolean[] { false, true, false, true }) {
+			WebSocketSendScheduler scheduler = new WebSocketSendScheduler(0, 1000, 16384);
+			try {
+				int sessions = 200;
+				int messages = 500;
+				int messageSize = 40;
+				AtomicLong wsMessages = new AtomicLong(0);
+				AtomicLong wireBytes = new AtomicLong(0);
+				long[] latencies = new long[sessions * messages];
+				AtomicInteger count = new AtomicInteger(0);
+				ByteBufferPool pool = new ByteBufferPool(64, false);
+				List<WebSocketSendWorker> workers = new ArrayList<>();
+				for (int s = 0; s < sessions; s++) {
+					WebSocketSendWorker worker = scheduler.newWorker(fakeSession("s" + s, new AtomicBoolean(true), m -> {
+						long spinUntil = System.nanoTime() + 2000;
+						while (System.nanoTime() < spinUntil) {
+							Thread.onSpinWait();
+						}
+						wsMessages.incrementAndGet();
+						// Server to client WS frame header is 2 bytes, 4 from 126 bytes
+						wireBytes.addAndGet(40 + m.getPayloadLength() + (m.getPayloadLength() < 126 ? 2 : 4));
+						long now = System.nanoTime();
+						unpack(m, b -> latencies[count.getAndIncrement()] = now - b.getLong(b.position()));
+					}));
+					if (pack) {
+						worker.setMessagePacker(new BinaryMessagePacker(PACK_HEADER, pool));
+					}
+					workers.add(worker);
+				}
+				List<CompletableFuture<Void>> futures = new ArrayList<>(sessions * messages);
+				long t0 = System.nanoTime();
+				for (int i = 0; i < messages; i++) {
+					for (WebSocketSendWorker w : workers) {
+						ByteBuffer buffer = ByteBuffer.allocate(messageSize);
+						buffer.putLong(0, System.nanoTime());
+						futures.add(w.sendMessage(new BinaryMessage(buffer)));
+					}
+				}
+				CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+				long t = System.nanoTime() - t0;
+				Arrays.sort(latencies);
+				log.info("pack={}, messages={}, pps={}, ws messages={}, wire bytes={}, p50={} us, p99={} us", pack,
+						latencies.length, latencies.length * 1000_000_000L / t, wsMessages.get(), wireBytes.get(),
+						latencies[latencies.length / 2] / 1000, latencies[latencies.length * 99 / 100] / 1000);
+			} finally {
+				scheduler.destroy();
+			}
+		}
+	}
+
+	/**
+	 * Run with -Dbenchmark=true. Every session sends one message per round and we
+	 * measure the time from sendMessage() to the session getting it.
+	 */
+	@Test
+	@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+	void benchmark() throws Exception {
+		for (int sessions : new int[] { 1000, 5000, 10000 }) {
+			WebSocketSendScheduler scheduler = new WebSocketSendScheduler(0);
+			try {
+				int rounds = 50;
+				long[] latencies = new long[sessions * rounds];
+				AtomicInteger count = new AtomicInteger(0);
+				List<WebSocketSendWorker> workers = new ArrayList<>();
+				for (int s = 0; s < sessions; s++) {
+					workers.add(scheduler.newWorker(fakeSession("s" + s, new AtomicBoolean(true), m -> {
+						long t0 = ((ByteBuffer) m.getPayload()).getLong(0);
+						latencies[count.getAndIncrement()] = System.nanoTime() - t0;
+					})));
+				}
+				int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+				for (int r = 0; r < rounds; r++) {
+					List<CompletableFuture<Void>> futures = new ArrayList<>(sessions);
+					for (WebSocketSendWorker w : workers) {
+						futures.add(w.sendMessage(longMessage(System.nanoTime())));
+					}
+					CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+					Thread.sleep(20);
+				}
+				Arrays.sort(latencies);
+				log.info("sessions={}, pool threads={}, jvm threads={}, p50={} us, p99={} us, max={} us", sessions,
+						scheduler.getThreadCount(), threads, latencies[latencies.length / 2] / 1000,
+						latencies[latencies.length * 99 / 100] / 1000, latencies[latencies.length - 1] / 1000);
+			} finally {
+				scheduler.destroy();
+			}
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package org.aalku.joatse.cloud.tools.net;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+public class AddressSetTest {
+
+	@Test
+	public void sameAsTheRanges() throws UnknownHostException {
+		List<AddressRange> ranges = Arrays.asList(AddressRange.of("192.168.1.100"), AddressRange.of("10.0.0.0/8"),
+				AddressRange.of("172.16.0.0/12"), AddressRange.of("192.168.2.128/25"), AddressRange.of("0.0.0.0"),
+				AddressRange.of("::1"), AddressRange.of("2001:db8::/32"), AddressRange.of("fe80::1:0/112"),
+				AddressRange.of("2001:db8::/32"));
+		AddressSet set = new AddressSet.Builder(ranges).build();
+		assertEquals(8, set.size());
+		Random random = new Random(1);
+		List<InetAddress> tests = new ArrayList<>();
+		for (String a : new String[] { "192.168.1.100", "192.168.1.101", "10.255.0.1", "11.0.0.1", "172.31.255.255",
+				"172.32.0.0", "192.168.2.127", "192.168.2.128", "0.0.0.0", "255.255.255.255", "::1", "::2",
+				"2001:db8:ffff::1", "2001:db9::1", "fe80::1:ffff", "fe80::2:0" }) {
+			tests.add(InetAddress.getByName(a));
+		}
+		for (int i = 0; i < 2000; i++) {
+			byte[] a = new byte[random.nextBoolean() ? 4 : 16];
+			random.nextBytes(a);
+			// Often near the ranges
+			if (random.nextBoolean()) {
+				a[0] = (byte) (a.length == 4 ? (random.nextBoolean() ? 10 : 172) : 0x20);
+				if (a.length == 16) {
+					a[1] = 0x01;
+					a[2] = 0x0d;
+					a[3] = (byte) (random.nextBoolean() ? 0xb8 : 0xb9);
+				}
+			}
+			tests.add(InetAddress.getByAddress(a));
+		}
+		for (InetAddress t : tests) {
+			boolean expected = ranges.stream().anyMatch(r -> r.matches(t));
+			assertEquals(expected, set.contains(t), t.toString());
+		}
+	}
+
+	@Test
+	public void emptyAndWildcard() throws UnknownHostException {
+		InetAddress a = InetAddress.getByName("8.8.8.8");
+		InetAddress b = InetAddress.getByName("2001:4860::8888");
+		assertFalse(AddressSet.EMPTY.contains(a));
+		assertFalse(AddressSet.EMPTY.contains(b));
+		assertFalse(AddressSet.EMPTY.contains(null));
+		AddressSet all = new AddressSet.Builder().add(AddressRange.of("*")).build();
+		assertTrue(all.contains(a));
+		assertTrue(all.contains(b));
+		AddressSet allV4 = new AddressSet.Builder().add(AddressRange.of("0.0.0.0/0")).build();
+		assertTrue(allV4.contains(a));
+		assertFalse(allV4.contains(b));
+	}
+
+	@Test
+	public void ipv4LookupsDontAllocate() throws UnknownHostException {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assumptions.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		Assumptions.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+		AddressSet.Builder builder = new AddressSet.Builder().add(AddressRange.of("10.0.0.0/8"));
+		for (int i = 0; i < 1000; i++) {
+			builder.add(AddressRange.of("192.168." + (i >> 8) + "." + (i & 0xFF)));
+		}
+		AddressSet set = builder.build();
+		InetAddress[] tests = { InetAddress.getByName("192.168.3.7"), InetAddress.getByName("10.1.2.3"),
+				InetAddress.getByName("8.8.8.8") };
+		int found = 0;
+		long tid = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(tid);
+		for (int i = 0; i < 100_000; i++) {
+			if (set.contains(tests[i % tests.length])) {
+				found++;
+			}
+		}
+		long allocated = threads.getThreadAllocatedBytes(tid) - before;
+		assertEquals(66_667, found);
+		// Anything per lookup would be megabytes
+		assertTrue(allocated < 64 * 1024, "Allocated " + allocated + " bytes");
+	}
+}
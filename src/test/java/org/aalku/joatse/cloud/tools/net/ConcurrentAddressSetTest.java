@@ -0,0 +1,112 @@
+package org.aalku.joatse.cloud.tools.net;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class ConcurrentAddressSetTest {
+
+	private static InetAddress ipv4(int i) throws UnknownHostException {
+		return InetAddress.getByAddress(new byte[] { 10, (byte) (i >> 16), (byte) (i >> 8), (byte) i });
+	}
+
+	@Test
+	public void addsOneByOne() throws UnknownHostException {
+		ConcurrentAddressSet set = new ConcurrentAddressSet();
+		int n = 5000;
+		for (int i = 0; i < n; i++) {
+			assertFalse(set.contains(ipv4(i)));
+			assertTrue(set.add(AddressRange.of(ipv4(i).getHostAddress())));
+			assertTrue(set.contains(ipv4(i)));
+		}
+		assertFalse(set.add(AddressRange.of(ipv4(7).getHostAddress())), "Duplicate");
+		assertEquals(n, set.size());
+		for (int i = 0; i < n; i++) {
+			assertTrue(set.contains(ipv4(i)));
+		}
+		assertFalse(set.contains(ipv4(n)));
+		assertEquals(AddressRange.of(ipv4(0).getHostAddress()), set.getRanges().get(0));
+	}
+
+	@Test
+	public void sameAsTheRanges() throws UnknownHostException {
+		List<AddressRange> ranges = Arrays.asList(AddressRange.of("192.168.1.100"), AddressRange.of("::1"),
+				AddressRange.of("2001:db8::5"), AddressRange.of("172.16.0.0/12"), AddressRange.of("2001:db8::/32"));
+		ConcurrentAddressSet set = new ConcurrentAddressSet();
+		List<AddressRange> added = new ArrayList<>();
+		for (AddressRange r : ranges) {
+			set.add(r);
+			added.add(r);
+			for (String a : new String[] { "192.168.1.100", "192.168.1.101", "172.31.0.1", "172.32.0.1", "::1",
+					"::2", "2001:db8::5", "2001:db8:1::1", "2001:db9::1" }) {
+				InetAddress t = InetAddress.getByName(a);
+				assertEquals(added.stream().anyMatch(x -> x.matches(t)), set.contains(t), r + " " + t);
+			}
+		}
+		assertFalse(set.contains(null));
+		set.add(AddressRange.of("*"));
+		assertTrue(set.contains(InetAddress.getByName("8.8.8.8")));
+		assertTrue(set.contains(InetAddress.getByName("2001:4860::8888")));
+	}
+
+	@Test
+	public void setReplacesAll() throws UnknownHostException {
+		ConcurrentAddressSet set = new ConcurrentAddressSet(
+				Arrays.asList(AddressRange.of("10.0.0.1"), AddressRange.of("192.168.0.0/16")));
+		assertTrue(set.contains(InetAddress.getByName("10.0.0.1")));
+		assertTrue(set.contains(InetAddress.getByName("192.168.5.5")));
+		set.set(Arrays.asList(AddressRange.of("10.0.0.2"), AddressRange.of("10.0.0.2")));
+		assertEquals(1, set.size());
+		assertFalse(set.contains(InetAddress.getByName("10.0.0.1")));
+		assertFalse(set.contains(InetAddress.getByName("192.168.5.5")));
+		assertTrue(set.contains(InetAddress.getByName("10.0.0.2")));
+		assertTrue(set.add(AddressRange.of("10.0.0.1")), "Not there any more");
+	}
+
+	@Test
+	public void readersSeeWhatWasAdded() throws Exception {
+		ConcurrentAddressSet set = new ConcurrentAddressSet();
+		int n = 20000;
+		AtomicInteger added = new AtomicInteger();
+		AtomicBoolean done = new AtomicBoolean(false);
+		AtomicInteger misses = new AtomicInteger();
+		List<Thread> readers = new ArrayList<>();
+		for (int r = 0; r < 2; r++) {
+			Thread t = new Thread(() -> {
+				try {
+					while (!done.get()) {
+						int upTo = added.get();
+						for (int i = Math.max(0, upTo - 100); i < upTo; i++) {
+							if (!set.contains(ipv4(i))) {
+								misses.incrementAndGet();
+							}
+						}
+					}
+				} catch (UnknownHostException e) {
+					throw new RuntimeException(e);
+				}
+			});
+			t.start();
+			readers.add(t);
+		}
+		for (int i = 0; i < n; i++) {
+			set.add(AddressRange.of(ipv4(i).getHostAddress()));
+			added.set(i + 1);
+		}
+		done.set(true);
+		for (Thread t : readers) {
+			t.join();
+		}
+		assertEquals(0, misses.get());
+	}
+}
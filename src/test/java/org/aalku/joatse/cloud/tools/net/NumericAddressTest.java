@@ -0,0 +1,28 @@
+package org.aalku.joatse.cloud.tools.net;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.jupiter.api.Test;
+
+public class NumericAddressTest {
+
+	@Test
+	public void sameAsTheResolver() throws UnknownHostException {
+		for (String a : new String[] { "127.0.0.1", "0.0.0.0", "255.255.255.255", "10.20.30.40", "192.168.001.010",
+				"::1", "[::1]", "2001:db8::ff00:42:8329", "::ffff:192.168.1.1" }) {
+			assertEquals(InetAddress.getByName(a), NumericAddress.parse(a), a);
+		}
+	}
+
+	@Test
+	public void namesAreNotResolved() {
+		for (String a : new String[] { "localhost", "example.com", "1.2.3", "1.2.3.4.5", "256.1.1.1", "1..2.3",
+				"1.2.3.", ".1.2.3", "1.2.3.4 ", "" }) {
+			assertThrows(IllegalArgumentException.class, () -> NumericAddress.parse(a), a);
+		}
+	}
+}
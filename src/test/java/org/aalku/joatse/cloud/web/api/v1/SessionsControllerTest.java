@@ -0,0 +1,161 @@
+package org.aalku.joatse.cloud.web.api.v1;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.aalku.joatse.cloud.service.BandwithLimitManager;
+import org.aalku.joatse.cloud.service.BandwithLimitManager.DirectionLimiters;
+import org.aalku.joatse.cloud.service.JWSSession;
+import org.aalku.joatse.cloud.service.JoatseWsHandler;
+import org.aalku.joatse.cloud.service.sharing.shared.SharedResourceLot;
+import org.aalku.joatse.cloud.service.sharing.shared.TcpTunnel;
+import org.aalku.joatse.cloud.service.user.UserManager;
+import org.aalku.joatse.cloud.service.user.vo.JoatseUser;
+import org.aalku.joatse.cloud.tools.io.TrafficClass;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * PUT /{sessionUuid}/limits against a real {@link BandwithLimitManager}
+ */
+public class SessionsControllerTest {
+
+	private static final long ITEM = 7L;
+	private static final long OTHER_ITEM = 8L;
+
+	private BandwithLimitManager bandwithLimitManager;
+	private SessionsController controller;
+	private UUID lotUuid;
+	/** Of the lot and of an item, as running sockets hold them */
+	private DirectionLimiters lotLimiters;
+	private DirectionLimiters itemLimiters;
+
+	@BeforeEach
+	void setUp() {
+		JoatseUser user = JoatseUser.newLocalUser("user", false);
+		UserManager userManager = mock(UserManager.class);
+		when(userManager.getAuthenticatedUser()).thenReturn(Optional.of(user));
+
+		lotUuid = UUID.randomUUID();
+		SharedResourceLot lot = mock(SharedResourceLot.class);
+		when(lot.getUuid()).thenReturn(lotUuid);
+		when(lot.getTcpItems()).thenReturn(List.of(new TcpTunnel(lot, ITEM, "a", "localhost", 80, TrafficClass.DEFAULT),
+				new TcpTunnel(lot, OTHER_ITEM, "b", "localhost", 81, TrafficClass.DEFAULT)));
+		JWSSession session = mock(JWSSession.class);
+		when(session.getSharedResourceLot()).thenReturn(lot);
+		JoatseWsHandler wsHandler = mock(JoatseWsHandler.class);
+		when(wsHandler.getSessions(user)).thenReturn(List.of(session));
+
+		bandwithLimitManager = new BandwithLimitManager();
+		ReflectionTestUtils.setField(bandwithLimitManager, "userManager", userManager);
+		lotLimiters = bandwithLimitManager.lotStarted(lotUuid, user.getUuid());
+		itemLimiters = bandwithLimitManager.getItemLimiters(lotUuid, ITEM);
+
+		controller = new SessionsController();
+		ReflectionTestUtils.setField(controller, "userManager", userManager);
+		ReflectionTestUtils.setField(controller, "wsHandler", wsHandler);
+		ReflectionTestUtils.setField(controller, "bandwithLimitManager", bandwithLimitManager);
+	}
+
+	private ResponseEntity<Map<String, Object>> put(Map<String, Object> body) {
+		return controller.updateSessionLimits(lotUuid.toString(), body);
+	}
+
+	private static Map<String, Object> limits(Object uploadBps, Object downloadBps) {
+		Map<String, Object> res = new HashMap<>(); // Map.of can't have nulls
+		res.put("uploadBps", uploadBps);
+		res.put("downloadBps", downloadBps);
+		return res;
+	}
+
+	@Test
+	void limitsApplyToTheLimitersInUse() {
+		Map<String, Object> body = new HashMap<>(limits(1000000, 2000000));
+		body.put("items", Map.of(String.valueOf(ITEM), Map.of("downloadBps", 500000)));
+		ResponseEntity<Map<String, Object>> r = put(body);
+		Assertions.assertEquals(HttpStatus.OK, r.getStatusCode());
+		Assertions.assertEquals(1000000L, lotLimiters.getUpload().getLimitBps());
+		Assertions.assertEquals(2000000L, lotLimiters.getDownload().getLimitBps());
+		Assertions.assertEquals(500000L, itemLimiters.getDownload().getLimitBps());
+		Assertions.assertNull(itemLimiters.getUpload().getLimitBps(), "Not in the body");
+		Assertions.assertSame(itemLimiters.getDownload(),
+				bandwithLimitManager.getItemLimiters(lotUuid, ITEM).getDownload(), "The same sockets use");
+		Assertions.assertSame(lotLimiters.getDownload(), itemLimiters.getDownload().getParent());
+		Map<?, ?> items = (Map<?, ?>) r.getBody().get("items");
+		Assertions.assertEquals(500000L, ((Map<?, ?>) items.get(String.valueOf(ITEM))).get("downloadBps"));
+		Assertions.assertNull(((Map<?, ?>) items.get(String.valueOf(OTHER_ITEM))).get("downloadBps"));
+	}
+
+	@Test
+	void absentLimitsDontChange() {
+		lotLimiters.setLimits(1000L, 2000L);
+		Assertions.assertEquals(HttpStatus.OK, put(Map.of("downloadBps", 3000)).getStatusCode());
+		Assertions.assertEquals(1000L, lotLimiters.getUpload().getLimitBps());
+		Assertions.assertEquals(3000L, lotLimiters.getDownload().getLimitBps());
+		Assertions.assertEquals(HttpStatus.OK, put(Map.of()).getStatusCode());
+		Assertions.assertEquals(1000L, lotLimiters.getUpload().getLimitBps());
+	}
+
+	@Test
+	void nullOrZeroRemovesTheLimit() {
+		lotLimiters.setLimits(1000L, 2000L);
+		itemLimiters.setLimits(1000L, 2000L);
+		Map<String, Object> body = new HashMap<>(limits(null, 0));
+		body.put("items", Map.of(String.valueOf(ITEM), limits(0, null)));
+		Assertions.assertEquals(HttpStatus.OK, put(body).getStatusCode());
+		Assertions.assertNull(lotLimiters.getUpload().getLimitBps());
+		Assertions.assertNull(lotLimiters.getDownload().getLimitBps());
+		Assertions.assertNull(itemLimiters.getUpload().getLimitBps());
+		Assertions.assertNull(itemLimiters.getDownload().getLimitBps());
+	}
+
+	@Test
+	void rejectsInvalidLimitsWithoutChangingAnything() {
+		lotLimiters.setLimits(1000L, 2000L);
+		for (Object invalid : new Object[] { -1, "fast", true, Map.of() }) {
+			ResponseEntity<Map<String, Object>> r = put(Map.of("uploadBps", invalid));
+			Assertions.assertEquals(HttpStatus.BAD_REQUEST, r.getStatusCode(), String.valueOf(invalid));
+			Assertions.assertEquals("INVALID_LIMITS", r.getBody().get("error"));
+		}
+		// The lot limit is valid but the item one is not
+		Map<String, Object> body = new HashMap<>(limits(5000, null));
+		body.put("items", Map.of(String.valueOf(ITEM), Map.of("downloadBps", -5)));
+		Assertions.assertEquals(HttpStatus.BAD_REQUEST, put(body).getStatusCode());
+		body.put("items", List.of(ITEM));
+		Assertions.assertEquals(HttpStatus.BAD_REQUEST, put(body).getStatusCode());
+		body.put("items", Map.of(String.valueOf(ITEM), 5000));
+		Assertions.assertEquals(HttpStatus.BAD_REQUEST, put(body).getStatusCode());
+		Assertions.assertEquals(1000L, lotLimiters.getUpload().getLimitBps());
+		Assertions.assertEquals(2000L, lotLimiters.getDownload().getLimitBps());
+	}
+
+	@Test
+	void unknownSessionOrItem() {
+		ResponseEntity<Map<String, Object>> r = controller.updateSessionLimits(UUID.randomUUID().toString(),
+				limits(1000, 1000));
+		Assertions.assertEquals(HttpStatus.NOT_FOUND, r.getStatusCode());
+		Assertions.assertEquals("SESSION_NOT_FOUND", r.getBody().get("error"));
+		r = controller.updateSessionLimits("not-a-uuid", limits(1000, 1000));
+		Assertions.assertEquals(HttpStatus.BAD_REQUEST, r.getStatusCode());
+		for (String item : new String[] { "99", "abc" }) {
+			Map<String, Object> body = new HashMap<>(limits(1000, null));
+			body.put("items", Map.of(item, Map.of("downloadBps", 500)));
+			r = put(body);
+			Assertions.assertEquals(HttpStatus.NOT_FOUND, r.getStatusCode(), item);
+			Assertions.assertEquals("ITEM_NOT_FOUND", r.getBody().get("error"));
+		}
+		Assertions.assertNull(lotLimiters.getUpload().getLimitBps(), "Nothing changed");
+		bandwithLimitManager.lotEnded(lotUuid);
+		Assertions.assertEquals(HttpStatus.NOT_FOUND, put(limits(1000, 1000)).getStatusCode(), "Session ended");
+	}
+}